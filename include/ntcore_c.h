@@ -17,6 +17,9 @@ extern "C" {
 /** Default network tables port number */
 #define NT_DEFAULT_PORT 1735
 
+/** NetworkTables instance handle (0 is never a valid instance). */
+typedef unsigned int NT_Inst;
+
 /** NetworkTables data types. */
 enum NT_Type {
   NT_UNASSIGNED = 0,
@@ -32,7 +35,13 @@ enum NT_Type {
 
 /** NetworkTables entry flags. */
 enum NT_EntryFlags {
-  NT_PERSISTENT = 0x01
+  NT_PERSISTENT = 0x01,
+  /* Updates may be sent as datagrams: lower latency, but may be lost. */
+  NT_UNRELIABLE = 0x02,
+  /* Updates are sent ahead of other queued traffic. */
+  NT_HIGH_PRIORITY = 0x04,
+  /* Updates are sent after other traffic, within the low priority budget. */
+  NT_LOW_PRIORITY = 0x08
 };
 
 /** NetworkTables logging levels. */
@@ -59,6 +68,83 @@ enum NT_NotifyKind {
   NT_NOTIFY_FLAGS = 0x20      /* flags changed */
 };
 
+/** Action taken when a connection exceeds its outgoing byte limit. */
+enum NT_OutgoingPolicy {
+  NT_OUTGOING_COALESCE = 0,     /* hold back and merge to latest values */
+  NT_OUTGOING_DROP_UPDATES = 1, /* discard pending value updates */
+  NT_OUTGOING_DISCONNECT = 2    /* close the connection */
+};
+
+/** Indices of the global values returned by NT_GetStatistics().
+ * Times are in NT_Now() units (100 ns).
+ */
+enum NT_Statistic {
+  NT_STAT_NUM_CONNECTIONS = 0,  /* number of per-connection blocks */
+  NT_STAT_LOCK_WAIT_COUNT,      /* storage lock acquisitions that waited */
+  NT_STAT_LOCK_WAIT_TOTAL,      /* total storage lock wait time */
+  NT_STAT_LOCK_WAIT_MAX,        /* longest storage lock wait */
+  NT_STAT_DISPATCH_LOOPS,       /* dispatch loop iterations */
+  NT_STAT_DISPATCH_OVERRUNS,    /* iterations longer than the update rate */
+  NT_STAT_SAVE_COUNT,           /* persistent saves to file */
+  NT_STAT_SAVE_LAST_DURATION,   /* duration of the last persistent save */
+  NT_STAT_SAVE_MAX_DURATION,    /* longest persistent save */
+  NT_STAT_NOTIFIER_DEPTH,       /* queued listener notifications */
+  NT_STAT_NOTIFIER_OLDEST_AGE,  /* age of the oldest queued notification */
+  NT_STAT_RPC_DEPTH,            /* queued RPC calls */
+  NT_STAT_DATALOG_RECORDS,      /* records written to the data log */
+  NT_STAT_DATALOG_DROPPED,      /* records dropped by the data log */
+  NT_STAT_NUM                   /* number of global values */
+};
+
+/** Indices within each per-connection block returned by NT_GetStatistics().
+ * The blocks follow the global values; block i starts at
+ * NT_STAT_NUM + i * NT_STAT_CONN_NUM.
+ */
+enum NT_ConnectionStatistic {
+  NT_STAT_CONN_UID = 0,       /* connection unique id */
+  NT_STAT_CONN_STATE,         /* internal connection state */
+  NT_STAT_CONN_MSGS_IN,       /* messages received */
+  NT_STAT_CONN_BYTES_IN,      /* bytes received */
+  NT_STAT_CONN_MSGS_OUT,      /* messages sent */
+  NT_STAT_CONN_BYTES_OUT,     /* bytes sent */
+  NT_STAT_CONN_QUEUE_DEPTH,   /* message batches waiting to be sent */
+  NT_STAT_CONN_QUEUE_BYTES,   /* approximate bytes waiting to be sent */
+  NT_STAT_CONN_COALESCED,     /* posts held back by the outgoing limit */
+  NT_STAT_CONN_DROPPED,       /* updates dropped by the outgoing limit */
+  NT_STAT_CONN_OVERFLOWED,    /* 1 if disconnected by the outgoing limit */
+  NT_STAT_CONN_NUM            /* number of values per connection */
+};
+
+/** Latency tracing stages.  Each is measured from when the value was
+ * created locally (by a put, or on receipt from the network).
+ */
+enum NT_LatencyStage {
+  NT_LATENCY_QUEUED = 0,  /* queued for a connection */
+  NT_LATENCY_POSTED,      /* handed to the connection's write thread */
+  NT_LATENCY_SENT,        /* written to the connection's socket */
+  NT_LATENCY_NOTIFIED     /* delivered to entry listeners */
+};
+
+/** Latency histogram sources. */
+enum NT_LatencySource {
+  NT_LATENCY_SOURCE_CONNECTION = 0,  /* id is the connection uid */
+  NT_LATENCY_SOURCE_PREFIX           /* id is the prefix index (0 = all) */
+};
+
+/** Layout of each histogram block returned by NT_GetLatencyHistograms().
+ * Bucket i counts values of at least NT_LatencyBucketValue(i) and less than
+ * NT_LatencyBucketValue(i + 1), in NT_Now() units (100 ns).
+ */
+enum NT_LatencyHistogramField {
+  NT_LATENCY_SOURCE = 0,          /* NT_LatencySource */
+  NT_LATENCY_ID,                  /* source id */
+  NT_LATENCY_STAGE,               /* NT_LatencyStage */
+  NT_LATENCY_COUNT,               /* total number of samples */
+  NT_LATENCY_BUCKETS,             /* first bucket count */
+  NT_LATENCY_NUM_BUCKETS = 272,   /* number of buckets */
+  NT_LATENCY_BLOCK = NT_LATENCY_BUCKETS + NT_LATENCY_NUM_BUCKETS
+};
+
 /*
  * Structures
  */
@@ -124,6 +210,8 @@ struct NT_ConnectionInfo {
   unsigned int remote_port;
   unsigned long long last_update;
   unsigned int protocol_version;
+  /** Round trip time in NT_Now() units (0 if not measured). */
+  unsigned long long rtt;
 };
 
 /** NetworkTables RPC Parameter Definition */
@@ -210,6 +298,53 @@ void NT_SetEntryFlags(const char *name, size_t name_len, unsigned int flags);
  */
 unsigned int NT_GetEntryFlags(const char *name, size_t name_len);
 
+/** Set Entry History.
+ * Keeps the last size values of an existing entry, with their times, for
+ * NT_GetEntryNumberHistory().  This is local to this node and is dropped
+ * when the entry is deleted.  A size of 0 disables the history.
+ *
+ * @param name      entry name (UTF-8 string)
+ * @param name_len  length of name in bytes
+ * @param size      number of values to keep
+ */
+void NT_SetEntryHistory(const char *name, size_t name_len, size_t size);
+
+/** Get Entry Number History.
+ * Copies the most recent numeric values of an entry with history enabled,
+ * oldest first, along with their times (in NT_Now() units).  Only values
+ * at or after the given time are returned.
+ *
+ * @param name      entry name (UTF-8 string)
+ * @param name_len  length of name in bytes
+ * @param since     earliest time to return; 0 for all
+ * @param values    buffer for values (may be NULL)
+ * @param times     buffer for times (may be NULL)
+ * @param size      number of elements in each buffer
+ * @return          number of values copied
+ */
+size_t NT_GetEntryNumberHistory(const char *name, size_t name_len,
+                                unsigned long long since, double *values,
+                                unsigned long long *times, size_t size);
+
+/** Set Entry Publish Policy.
+ * Limits how local value changes of an existing entry are published to
+ * local listeners and the network.  The entry always takes every change.  A
+ * change is not published if it is a number within the deadband of the last
+ * published value; one that comes less than 1/max_rate seconds after the
+ * last published change is held back, and the latest held value is
+ * published once that time has passed.  This is local to this node and is
+ * dropped when the entry is deleted.  Zero for both disables the policy
+ * (publishing any held value).
+ *
+ * @param name          entry name (UTF-8 string)
+ * @param name_len      length of name in bytes
+ * @param max_rate      maximum changes per second (0 for no limit)
+ * @param deadband      minimum change of a number value (0 for none)
+ * @param relative      if nonzero, deadband is a fraction of the last value
+ */
+void NT_SetEntryPublishPolicy(const char *name, size_t name_len,
+                              double max_rate, double deadband, int relative);
+
 /** Delete Entry.
  * Deletes an entry.  This is a new feature in version 3.0 of the protocol,
  * so this may not have an effect if any other node in the network is not
@@ -327,6 +462,18 @@ struct NT_Value **NT_UnpackRpcValues(const char *packed, size_t packed_len,
  */
 void NT_SetNetworkIdentity(const char *name, size_t name_len);
 
+/** Set Snapshot File
+ * Sets the file a server saves its complete state to when it stops, for a
+ * warm restart: the next server started with the same file restores the
+ * entries (with their ids, sequence numbers and flags) before accepting
+ * clients, instead of loading the persistent file.  The file is removed
+ * once restored.
+ *
+ * @param filename  the file name (UTF-8 string, null terminated), or empty
+ *                  for none (the default)
+ */
+void NT_SetSnapshotFile(const char *filename);
+
 /** Start Server
  * Starts a server using the specified filename, listening address, and port.
  *
@@ -334,7 +481,9 @@ void NT_SetNetworkIdentity(const char *name, size_t name_len);
  *                          null terminated)
  * @param listen_address    the address to listen on, or null to listen on any
  *                          address. (UTF-8 string, null terminated)
- * @param port              port to communicate over.
+ *                          "unix:<path>" listens on a Unix domain socket
+ *                          instead, for clients on the same host.
+ * @param port              port to communicate over (unused for unix:).
  */
 void NT_StartServer(const char *persist_filename, const char *listen_address,
                     unsigned int port);
@@ -347,8 +496,10 @@ void NT_StopServer(void);
 /** Starts Client
  * Starts a client using the specified server and port
  *
- * @param server_name server name (UTF-8 string, null terminated)
- * @param port        port to communicate over
+ * @param server_name server name (UTF-8 string, null terminated), or
+ *                    "unix:<path>" to connect to a local server's Unix
+ *                    domain socket
+ * @param port        port to communicate over (unused for unix:)
  *
  */
 void NT_StartClient(const char *server_name, unsigned int port);
@@ -358,6 +509,47 @@ void NT_StartClient(const char *server_name, unsigned int port);
  */
 void NT_StopClient(void);
 
+/** Start Relay
+ * Starts a relay: a client of the given server that serves its entries to
+ * its own clients, so the upstream server carries one connection however
+ * many clients attach to the relay.
+ *
+ * @param server_name     upstream server name (UTF-8 string, null
+ *                        terminated), or "unix:<path>"
+ * @param server_port     upstream port (unused for unix:)
+ * @param listen_address  the address to listen on, or null to listen on
+ *                        any address (UTF-8 string, null terminated)
+ * @param port            port to serve clients on (unused for unix:)
+ */
+void NT_StartRelay(const char *server_name, unsigned int server_port,
+                   const char *listen_address, unsigned int port);
+
+/** Stop Relay
+ * Stops the relay if it is running.
+ */
+void NT_StopRelay(void);
+
+/** Start Cluster
+ * Starts a server that is one of a cluster of servers, each with its own
+ * clients.  Entries are replicated between the servers; concurrent writes
+ * are resolved by sequence number, then by an arbitrary but consistent node
+ * order.  Each server should list all of the others.  Stop it with
+ * NT_StopServer().
+ *
+ * @param persist_filename  the name of the persist file to use (UTF-8
+ *                          string, null terminated)
+ * @param listen_address    the address to listen on, or null to listen on
+ *                          any address (UTF-8 string, null terminated)
+ * @param port              port to communicate over
+ * @param peer_names        the other servers (UTF-8 strings, null
+ *                          terminated), or "unix:<path>"
+ * @param peer_ports        the other servers' ports
+ * @param peers_len         number of other servers
+ */
+void NT_StartCluster(const char *persist_filename, const char *listen_address,
+                     unsigned int port, const char **peer_names,
+                     const unsigned int *peer_ports, size_t peers_len);
+
 /** Stop Rpc Server
  * Stops the Rpc server if it is running.
  */
@@ -376,6 +568,38 @@ void NT_StopNotifier(void);
  */
 void NT_SetUpdateRate(double interval);
 
+/** Set Outgoing Limit
+ * Sets the maximum number of bytes that may be queued for transmission on
+ * each connection, and the action to take when a connection exceeds it
+ * (typically because the remote end is not keeping up).
+ *
+ * @param max_bytes the per-connection limit in bytes; 0 means unlimited
+ * @param policy    action to take when the limit is exceeded
+ */
+void NT_SetOutgoingLimit(size_t max_bytes, enum NT_OutgoingPolicy policy);
+
+/** Set Network Compression
+ * Enables compression of large raw, string, and array values, for
+ * connections to peers that support it (protocol 3.2 and later) and have it
+ * enabled too.  Values that change in place are sent as compressed deltas
+ * against the previous value.  Negotiated when a connection is made, so it
+ * only affects new connections.
+ *
+ * @param threshold values of at least this many bytes are compressed; 0
+ *                  disables compression (the default)
+ */
+void NT_SetNetworkCompression(size_t threshold);
+
+/** Set Low Priority Budget
+ * Limits the bandwidth each connection spends on updates to entries flagged
+ * NT_LOW_PRIORITY.  Updates over the budget are held back, keeping only the
+ * latest value of each entry, until the budget allows.  Other traffic is not
+ * affected.
+ *
+ * @param bytes_per_sec budget per connection; 0 for no limit (the default)
+ */
+void NT_SetLowPriorityBudget(size_t bytes_per_sec);
+
 /** Get Connections
  * Gets an array of all the connections in the table.
  *
@@ -387,6 +611,42 @@ void NT_SetUpdateRate(double interval);
  */
 struct NT_ConnectionInfo *NT_GetConnections(size_t *count);
 
+/** Get Statistics
+ * Gets runtime statistics as a flat array of counters and gauges.  The
+ * layout is described by NT_Statistic and NT_ConnectionStatistic.
+ *
+ * @param stats buffer to fill; may be NULL to query the required size
+ * @param size  number of elements in the buffer
+ * @return      the number of elements available (which may be larger than
+ *              size, in which case only size elements are filled)
+ */
+size_t NT_GetStatistics(unsigned long long *stats, size_t size);
+
+/** Set Latency Tracing
+ * Enables or disables latency tracing of entry updates and resets the
+ * notification histograms.  Notification latency is additionally tracked
+ * for each of the given key prefixes.
+ *
+ * @param enabled       nonzero to enable tracing
+ * @param prefixes      array of key prefixes (may be NULL)
+ * @param prefixes_len  number of elements in prefixes
+ */
+void NT_SetLatencyTracing(int enabled, const struct NT_String *prefixes,
+                          size_t prefixes_len);
+
+/** Get Latency Histograms
+ * Gets the latency histograms as a flat array of NT_LATENCY_BLOCK sized
+ * blocks (see NT_LatencyHistogramField).
+ *
+ * @param data  buffer to fill; may be NULL to query the required size
+ * @param size  number of elements in the buffer
+ * @return      the number of elements available
+ */
+size_t NT_GetLatencyHistograms(unsigned long long *data, size_t size);
+
+/** Get the lowest value (in NT_Now() units) counted by a latency bucket. */
+unsigned long long NT_LatencyBucketValue(size_t bucket);
+
 /*
  * Persistent Functions
  */
@@ -395,6 +655,56 @@ const char *NT_SavePersistent(const char *filename);
 const char *NT_LoadPersistent(const char *filename,
                               void (*warn)(size_t line, const char *msg));
 
+/*
+ * Data Log Functions
+ */
+/** Start Data Log
+ * Starts recording all entry value changes and deletions to a binary log
+ * file, replacing any log already running.  Recording is done by a separate
+ * writer thread and does not involve the listener thread.
+ *
+ * @param filename      file to write (truncated if it exists)
+ * @param prefixes      only log keys starting with one of these (may be NULL
+ *                      to log everything)
+ * @param prefixes_len  number of elements in prefixes
+ * @return              error string, or NULL if successful
+ */
+const char *NT_StartDataLog(const char *filename,
+                            const struct NT_String *prefixes,
+                            size_t prefixes_len);
+
+/** Stop Data Log
+ * Writes out any buffered records and closes the data log.
+ */
+void NT_StopDataLog(void);
+
+/** Start Replay
+ * Replays a file written by NT_StartDataLog() into the local entries, as if
+ * the changes came from a remote client: they are sent to all connections
+ * and listeners are notified without NT_NOTIFY_LOCAL.  Any running replay
+ * is replaced.
+ *
+ * @param filename  data log file
+ * @param speed     replay speed relative to real time (e.g. 1 or 10); 0
+ *                  replays as fast as possible
+ * @return          error string, or NULL if successful
+ */
+const char *NT_StartReplay(const char *filename, double speed);
+
+/** Seek Replay
+ * Moves the replay to the given time (in seconds from the start of the log).
+ * Entries are first brought to their logged state as of that time.
+ */
+void NT_SeekReplay(double time);
+
+/** Set Replay Speed
+ * Changes the replay speed; see NT_StartReplay().
+ */
+void NT_SetReplaySpeed(double speed);
+
+/** Stop Replay */
+void NT_StopReplay(void);
+
 /*
  * Utility Functions
  */
@@ -451,6 +761,13 @@ void NT_DisposeRpcCallInfo(struct NT_RpcCallInfo *call_info);
 /* timestamp */
 unsigned long long NT_Now(void);
 
+/** Server Now
+ * Returns the current time on the server's clock, in NT_Now() units.  On a
+ * client this is estimated from clock synchronization with the server; until
+ * the first sample is received (or with pre-3.1 servers) it is NT_Now().
+ */
+unsigned long long NT_ServerNow(void);
+
 /* logging */
 typedef void (*NT_LogFunc)(unsigned int level, const char *file,
                            unsigned int line, const char *msg);
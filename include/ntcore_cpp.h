@@ -46,6 +46,7 @@ struct ConnectionInfo {
   unsigned int remote_port;
   unsigned long long last_update;
   unsigned int protocol_version;
+  unsigned long long rtt;  // round trip time; 0 if not measured
 };
 
 /** NetworkTables RPC Parameter Definition */
@@ -127,6 +128,29 @@ void SetEntryFlags(StringRef name, unsigned int flags);
  */
 unsigned int GetEntryFlags(StringRef name);
 
+/** Set Entry History.
+ * Keeps the last size values of an existing entry; 0 disables.
+ */
+void SetEntryHistory(StringRef name, std::size_t size);
+
+/** Get Entry Number History.
+ * Copies up to size of the most recent numeric values at or after since,
+ * oldest first.  Returns the number copied.
+ */
+std::size_t GetEntryNumberHistory(StringRef name, unsigned long long since,
+                                  double* values, unsigned long long* times,
+                                  std::size_t size);
+
+/** Set Entry Publish Policy.
+ * Limits notifying and sending local changes of an existing entry to
+ * max_rate per second (the latest change held back is published later)
+ * and, for numbers, skips changes within deadband of the last published
+ * value (a fraction of it if relative_deadband).  The entry always takes
+ * the new value.  Zero for both disables.
+ */
+void SetEntryPublishPolicy(StringRef name, double max_rate, double deadband,
+                           bool relative_deadband = false);
+
 /** Delete Entry.
  * Deletes an entry.  This is a new feature in version 3.0 of the protocol,
  * so this may not have an effect if any other node in the network is not
@@ -230,15 +254,29 @@ std::vector<std::shared_ptr<Value>> UnpackRpcValues(StringRef packed,
  * Client/Server Functions
  */
 void SetNetworkIdentity(StringRef name);
+void SetSnapshotFile(StringRef filename);
 void StartServer(StringRef persist_filename, const char* listen_address,
                  unsigned int port);
 void StopServer();
 void StartClient(const char* server_name, unsigned int port);
 void StopClient();
+void StartRelay(const char* server_name, unsigned int server_port,
+                const char* listen_address, unsigned int port);
+void StopRelay();
+void StartCluster(StringRef persist_filename, const char* listen_address,
+                  unsigned int port,
+                  ArrayRef<std::pair<std::string, unsigned int>> peers);
 void StopRpcServer();
 void StopNotifier();
 void SetUpdateRate(double interval);
+void SetOutgoingLimit(std::size_t max_bytes, NT_OutgoingPolicy policy);
+void SetNetworkCompression(std::size_t threshold);
+void SetLowPriorityBudget(std::size_t bytes_per_sec);
 std::vector<ConnectionInfo> GetConnections();
+std::vector<unsigned long long> GetStatistics();
+void SetLatencyTracing(bool enabled, ArrayRef<std::string> prefixes);
+std::vector<unsigned long long> GetLatencyHistograms();
+unsigned long long LatencyBucketValue(std::size_t bucket);
 
 /*
  * Persistent Functions
@@ -248,12 +286,109 @@ const char* SavePersistent(StringRef filename);
 const char* LoadPersistent(
     StringRef filename, std::function<void(size_t line, const char* msg)> warn);
 
+/*
+ * Data Log Functions
+ */
+/* return error string, or nullptr if successful */
+const char* StartDataLog(StringRef filename, ArrayRef<std::string> prefixes);
+void StopDataLog();
+const char* StartReplay(StringRef filename, double speed);
+void SeekReplay(double time);
+void SetReplaySpeed(double speed);
+void StopReplay();
+
+/*
+ * Instance Functions
+ *
+ * Each instance has its own entries, listeners, RPC server and network
+ * connection (and threads).  The functions without an instance parameter
+ * operate on the default instance.  Each instance has its own data log;
+ * replay, latency tracing and statistics are process-wide and only cover
+ * the default instance.
+ */
+NT_Inst GetDefaultInstance();
+/* returns 0 if no more instances can be created */
+NT_Inst CreateInstance();
+/* the instance must not be in use by other threads */
+void DestroyInstance(NT_Inst inst);
+
+std::shared_ptr<Value> GetEntryValue(NT_Inst inst, StringRef name);
+bool SetEntryValue(NT_Inst inst, StringRef name, std::shared_ptr<Value> value);
+void SetEntryTypeValue(NT_Inst inst, StringRef name,
+                       std::shared_ptr<Value> value);
+void SetEntryFlags(NT_Inst inst, StringRef name, unsigned int flags);
+unsigned int GetEntryFlags(NT_Inst inst, StringRef name);
+void SetEntryHistory(NT_Inst inst, StringRef name, std::size_t size);
+std::size_t GetEntryNumberHistory(NT_Inst inst, StringRef name,
+                                  unsigned long long since, double* values,
+                                  unsigned long long* times, std::size_t size);
+void SetEntryPublishPolicy(NT_Inst inst, StringRef name, double max_rate,
+                           double deadband, bool relative_deadband = false);
+void DeleteEntry(NT_Inst inst, StringRef name);
+void DeleteAllEntries(NT_Inst inst);
+std::vector<EntryInfo> GetEntryInfo(NT_Inst inst, StringRef prefix,
+                                    unsigned int types);
+void Flush(NT_Inst inst);
+
+void SetListenerOnStart(NT_Inst inst, std::function<void()> on_start);
+void SetListenerOnExit(NT_Inst inst, std::function<void()> on_exit);
+unsigned int AddEntryListener(NT_Inst inst, StringRef prefix,
+                              EntryListenerCallback callback,
+                              unsigned int flags);
+void RemoveEntryListener(NT_Inst inst, unsigned int entry_listener_uid);
+unsigned int AddConnectionListener(NT_Inst inst,
+                                   ConnectionListenerCallback callback,
+                                   bool immediate_notify);
+void RemoveConnectionListener(NT_Inst inst, unsigned int conn_listener_uid);
+
+void CreateRpc(NT_Inst inst, StringRef name, StringRef def,
+               RpcCallback callback);
+void CreatePolledRpc(NT_Inst inst, StringRef name, StringRef def);
+bool PollRpc(NT_Inst inst, bool blocking, RpcCallInfo* call_info);
+void PostRpcResponse(NT_Inst inst, unsigned int rpc_id, unsigned int call_uid,
+                     StringRef result);
+unsigned int CallRpc(NT_Inst inst, StringRef name, StringRef params);
+bool GetRpcResult(NT_Inst inst, bool blocking, unsigned int call_uid,
+                  std::string* result);
+
+void SetNetworkIdentity(NT_Inst inst, StringRef name);
+void SetSnapshotFile(NT_Inst inst, StringRef filename);
+void StartServer(NT_Inst inst, StringRef persist_filename,
+                 const char* listen_address, unsigned int port);
+void StopServer(NT_Inst inst);
+void StartClient(NT_Inst inst, const char* server_name, unsigned int port);
+void StopClient(NT_Inst inst);
+void StartRelay(NT_Inst inst, const char* server_name,
+                unsigned int server_port, const char* listen_address,
+                unsigned int port);
+void StopRelay(NT_Inst inst);
+void StartCluster(NT_Inst inst, StringRef persist_filename,
+                  const char* listen_address, unsigned int port,
+                  ArrayRef<std::pair<std::string, unsigned int>> peers);
+void SetUpdateRate(NT_Inst inst, double interval);
+void SetOutgoingLimit(NT_Inst inst, std::size_t max_bytes,
+                      NT_OutgoingPolicy policy);
+void SetNetworkCompression(NT_Inst inst, std::size_t threshold);
+void SetLowPriorityBudget(NT_Inst inst, std::size_t bytes_per_sec);
+std::vector<ConnectionInfo> GetConnections(NT_Inst inst);
+unsigned long long ServerNow(NT_Inst inst);
+
+/* return error string, or nullptr if successful */
+const char* SavePersistent(NT_Inst inst, StringRef filename);
+const char* LoadPersistent(
+    NT_Inst inst, StringRef filename,
+    std::function<void(size_t line, const char* msg)> warn);
+const char* StartDataLog(NT_Inst inst, StringRef filename,
+                         ArrayRef<std::string> prefixes);
+void StopDataLog(NT_Inst inst);
+
 /*
  * Utility Functions
  */
 
 /* timestamp */
 unsigned long long Now();
+unsigned long long ServerNow();
 
 /* logging */
 typedef std::function<void(unsigned int level, const char* file,
@@ -1,4 +1,5 @@
 #include <jni.h>
+#include <algorithm>
 #include <atomic>
 #include <cassert>
 #include <condition_variable>
@@ -8,6 +9,7 @@
 #include <thread>
 
 #include "edu_wpi_first_wpilibj_networktables_NetworkTablesJNI.h"
+#include "llvm/StringMap.h"
 #include "ntcore.h"
 #include "atomic_static.h"
 #include "SafeThread.h"
@@ -25,8 +27,9 @@ static jclass connectionInfoCls = nullptr;
 static jclass entryInfoCls = nullptr;
 static jclass keyNotDefinedEx = nullptr;
 static jclass persistentEx = nullptr;
-// Thread-attached environment for listener callbacks.
-static JNIEnv *listenerEnv = nullptr;
+// Thread-attached environment for listener callbacks.  Each instance has
+// its own listener thread.
+static thread_local JNIEnv *listenerEnv = nullptr;
 
 static void ListenerOnStart() {
   if (!jvm) return;
@@ -331,6 +334,40 @@ std::shared_ptr<nt::Value> FromJavaStringArray(JNIEnv *env, jobjectArray jarr) {
   return nt::Value::MakeStringArray(std::move(arr));
 }
 
+// Null arrays and null elements are skipped.
+static std::vector<std::string> FromJavaStrings(JNIEnv *env,
+                                                jobjectArray jarr) {
+  std::vector<std::string> arr;
+  if (!jarr) return arr;
+  size_t len = env->GetArrayLength(jarr);
+  arr.reserve(len);
+  for (size_t i = 0; i < len; ++i) {
+    JavaLocal<jstring> elem(
+        env, static_cast<jstring>(env->GetObjectArrayElement(jarr, i)));
+    if (!elem) continue;
+    arr.push_back(JavaStringRef(env, elem).str());
+  }
+  return arr;
+}
+
+// Pairs up names and ports; extra elements of either are skipped.
+static std::vector<std::pair<std::string, unsigned int>> FromJavaPeers(
+    JNIEnv *env, jobjectArray jnames, jintArray jports) {
+  std::vector<std::pair<std::string, unsigned int>> peers;
+  if (!jnames || !jports) return peers;
+  size_t len = std::min<size_t>(env->GetArrayLength(jnames),
+                                env->GetArrayLength(jports));
+  std::vector<jint> ports(len);
+  env->GetIntArrayRegion(jports, 0, len, ports.data());
+  for (size_t i = 0; i < len; ++i) {
+    JavaLocal<jstring> elem(
+        env, static_cast<jstring>(env->GetObjectArrayElement(jnames, i)));
+    if (!elem) continue;
+    peers.emplace_back(JavaStringRef(env, elem).str(), ports[i]);
+  }
+  return peers;
+}
+
 //
 // Conversions from C++ to Java objects
 //
@@ -372,6 +409,20 @@ static jdoubleArray ToJavaDoubleArray(JNIEnv *env, nt::ArrayRef<double> arr)
   return jarr;
 }
 
+static jlongArray ToJavaLongArray(JNIEnv *env,
+                                  nt::ArrayRef<unsigned long long> arr)
+{
+  jlongArray jarr = env->NewLongArray(arr.size());
+  if (!jarr) return nullptr;
+  jlong *elements =
+      static_cast<jlong*>(env->GetPrimitiveArrayCritical(jarr, nullptr));
+  if (!elements) return nullptr;
+  for (size_t i = 0; i < arr.size(); ++i)
+    elements[i] = static_cast<jlong>(arr[i]);
+  env->ReleasePrimitiveArrayCritical(jarr, elements, 0);
+  return jarr;
+}
+
 static jobjectArray ToJavaStringArray(JNIEnv *env,
                                       nt::ArrayRef<std::string> arr) {
   jobjectArray jarr = env->NewObjectArray(arr.size(), stringCls, nullptr);
@@ -418,12 +469,13 @@ static jobject ToJavaObject(JNIEnv *env, const nt::Value& value) {
 static jobject ToJavaObject(JNIEnv *env, const nt::ConnectionInfo &info) {
   static jmethodID constructor =
       env->GetMethodID(connectionInfoCls, "<init>",
-                       "(Ljava/lang/String;Ljava/lang/String;IJI)V");
+                       "(Ljava/lang/String;Ljava/lang/String;IJIJ)V");
   JavaLocal<jstring> remote_id(env, ToJavaString(env, info.remote_id));
   JavaLocal<jstring> remote_name(env, ToJavaString(env, info.remote_name));
   return env->NewObject(connectionInfoCls, constructor, remote_id.obj(),
                         remote_name.obj(), (jint)info.remote_port,
-                        (jlong)info.last_update, (jint)info.protocol_version);
+                        (jlong)info.last_update, (jint)info.protocol_version,
+                        (jlong)info.rtt);
 }
 
 static jobject ToJavaObject(JNIEnv *env, const nt::EntryInfo &info) {
@@ -447,6 +499,287 @@ static void ThrowTableKeyNotDefined(JNIEnv *env, jstring key) {
   env->Throw(static_cast<jthrowable>(exception));
 }
 
+static jobjectArray ToJavaEntryInfoArray(JNIEnv *env,
+                                         nt::ArrayRef<nt::EntryInfo> arr) {
+  jobjectArray jarr = env->NewObjectArray(arr.size(), entryInfoCls, nullptr);
+  if (!jarr) return nullptr;
+  for (size_t i = 0; i < arr.size(); ++i) {
+    JavaLocal<jobject> jelem(env, ToJavaObject(env, arr[i]));
+    env->SetObjectArrayElement(jarr, i, jelem);
+  }
+  return jarr;
+}
+
+static jobjectArray ToJavaConnectionInfoArray(
+    JNIEnv *env, nt::ArrayRef<nt::ConnectionInfo> arr) {
+  jobjectArray jarr =
+      env->NewObjectArray(arr.size(), connectionInfoCls, nullptr);
+  if (!jarr) return nullptr;
+  for (size_t i = 0; i < arr.size(); ++i) {
+    JavaLocal<jobject> jelem(env, ToJavaObject(env, arr[i]));
+    env->SetObjectArrayElement(jarr, i, jelem);
+  }
+  return jarr;
+}
+
+//
+// Shared implementations of the default and per-instance methods
+//
+
+static jint GetNumberHistory(JNIEnv *env, NT_Inst inst, jstring key,
+                             jlong since, jdoubleArray values,
+                             jlongArray times) {
+  // copy through local buffers; critical sections can't wait on the lock
+  size_t size = values ? env->GetArrayLength(values) : 0;
+  if (times) {
+    size_t times_len = env->GetArrayLength(times);
+    if (!values || times_len < size) size = times_len;
+  }
+  std::vector<double> values_buf(values ? size : 0);
+  std::vector<unsigned long long> times_buf(times ? size : 0);
+  size_t n = nt::GetEntryNumberHistory(
+      inst, JavaStringRef(env, key), since,
+      values ? values_buf.data() : nullptr,
+      times ? times_buf.data() : nullptr, size);
+  if (values && n > 0)
+    env->SetDoubleArrayRegion(values, 0, n, values_buf.data());
+  if (times && n > 0) {
+    static_assert(sizeof(jlong) == sizeof(unsigned long long),
+                  "jlong must be 64 bits");
+    env->SetLongArrayRegion(times, 0, n,
+                            reinterpret_cast<jlong*>(times_buf.data()));
+  }
+  return n;
+}
+
+static jobjectArray LoadPersistent(JNIEnv *env, NT_Inst inst,
+                                   jstring filename) {
+  std::vector<std::string> warns;
+  const char *err = nt::LoadPersistent(inst, JavaStringRef(env, filename),
+                                       [&](size_t line, const char *msg) {
+                                         std::ostringstream oss;
+                                         oss << line << ": " << msg;
+                                         warns.push_back(oss.str());
+                                       });
+  if (err) {
+    env->ThrowNew(persistentEx, err);
+    return nullptr;
+  }
+  return ToJavaStringArray(env, warns);
+}
+
+//
+// Listener callbacks
+//
+
+// Returns nullptr if the listener doesn't have an apply method.
+static nt::EntryListenerCallback MakeEntryListener(JNIEnv *envouter,
+                                                   jobject listener) {
+  // the shared pointer to the weak global will keep it around until the
+  // entry listener is destroyed
+  auto listener_global =
+      std::make_shared<JavaGlobal<jobject>>(envouter, listener);
+
+  // cls is a temporary here; cannot be used within callback functor
+	jclass cls = envouter->GetObjectClass(listener);
+  if (!cls) return nullptr;
+
+  // method ids, on the other hand, are safe to retain
+  jmethodID mid = envouter->GetMethodID(
+      cls, "apply", "(ILjava/lang/String;Ljava/lang/Object;I)V");
+  if (!mid) return nullptr;
+
+  return [=](unsigned int uid, nt::StringRef name,
+          std::shared_ptr<nt::Value> value, unsigned int flags_) {
+        JNIEnv *env = listenerEnv;
+        if (!env || !env->functions) return;
+
+        // get the handler
+        auto handler = listener_global->obj();
+
+        // convert the value into the appropriate Java type
+        JavaLocal<jobject> jobj(env, ToJavaObject(env, *value));
+        if (env->ExceptionCheck()) {
+          env->ExceptionDescribe();
+          env->ExceptionClear();
+          return;
+        }
+        if (!jobj) return;
+
+        JavaLocal<jstring> jname(env, ToJavaString(env, name));
+        env->CallVoidMethod(handler, mid, (jint)uid, jname.obj(), jobj.obj(),
+                            (jint)(flags_));
+        if (env->ExceptionCheck()) {
+          env->ExceptionDescribe();
+          env->ExceptionClear();
+        }
+      };
+}
+
+// Java strings for the keys seen by a typed entry listener, so steady-state
+// notifications don't allocate.  Only used from the listener thread.
+class ListenerKeyCache {
+ public:
+  // Returns a reference owned by the cache, or once the cache is full, a
+  // new local reference (and sets *local).
+  jstring Get(JNIEnv *env, nt::StringRef name, bool *local) {
+    *local = false;
+    auto i = m_keys.find(name);
+    if (i != m_keys.end()) return i->getValue()->obj();
+    jstring str = ToJavaString(env, name);
+    if (!str || m_keys.size() >= kMaxKeys) {
+      *local = true;
+      return str;
+    }
+    auto &global = m_keys[name];
+    global.reset(new JavaGlobal<jstring>(env, str));
+    env->DeleteLocalRef(str);
+    return global->obj();
+  }
+
+ private:
+  static const std::size_t kMaxKeys = 1024;
+  llvm::StringMap<std::unique_ptr<JavaGlobal<jstring>>> m_keys;
+};
+
+// Common part of the typed entry listeners: only values of the given type
+// are passed on, to call(env, handler, mid, uid, jname, value, flags).
+template <typename F>
+static nt::EntryListenerCallback MakeTypedEntryListener(
+    JNIEnv *envouter, jobject listener, const char *sig, NT_Type type,
+    F call) {
+  auto listener_global =
+      std::make_shared<JavaGlobal<jobject>>(envouter, listener);
+
+  // cls is a temporary here; cannot be used within callback functor
+  jclass cls = envouter->GetObjectClass(listener);
+  if (!cls) return nullptr;
+
+  // method ids, on the other hand, are safe to retain
+  jmethodID mid = envouter->GetMethodID(cls, "apply", sig);
+  if (!mid) return nullptr;
+
+  auto keys = std::make_shared<ListenerKeyCache>();
+  return [=](unsigned int uid, nt::StringRef name,
+             std::shared_ptr<nt::Value> value, unsigned int flags_) {
+    if (value->type() != type) return;
+    JNIEnv *env = listenerEnv;
+    if (!env || !env->functions) return;
+
+    bool local;
+    jstring jname = keys->Get(env, name, &local);
+    if (!jname) {
+      env->ExceptionClear();
+      return;
+    }
+    call(env, listener_global->obj(), mid, (jint)uid, jname, *value,
+         (jint)flags_);
+    if (env->ExceptionCheck()) {
+      env->ExceptionDescribe();
+      env->ExceptionClear();
+    }
+    if (local) env->DeleteLocalRef(jname);
+  };
+}
+
+static nt::EntryListenerCallback MakeBooleanEntryListener(JNIEnv *envouter,
+                                                          jobject listener) {
+  return MakeTypedEntryListener(
+      envouter, listener, "(ILjava/lang/String;ZI)V", NT_BOOLEAN,
+      [](JNIEnv *env, jobject handler, jmethodID mid, jint uid,
+         jstring jname, const nt::Value &value, jint flags) {
+        env->CallVoidMethod(handler, mid, uid, jname,
+                            (jboolean)(value.GetBoolean() ? 1 : 0), flags);
+      });
+}
+
+static nt::EntryListenerCallback MakeDoubleEntryListener(JNIEnv *envouter,
+                                                         jobject listener) {
+  return MakeTypedEntryListener(
+      envouter, listener, "(ILjava/lang/String;DI)V", NT_DOUBLE,
+      [](JNIEnv *env, jobject handler, jmethodID mid, jint uid,
+         jstring jname, const nt::Value &value, jint flags) {
+        env->CallVoidMethod(handler, mid, uid, jname,
+                            (jdouble)value.GetDouble(), flags);
+      });
+}
+
+// Raw values are copied into a direct buffer that is reused across calls,
+// so it is only valid during the callback.
+struct ListenerRawBuffer {
+  std::unique_ptr<char[]> data;
+  std::size_t capacity = 0;
+  std::unique_ptr<JavaGlobal<jobject>> buffer;
+};
+
+static nt::EntryListenerCallback MakeRawEntryListener(JNIEnv *envouter,
+                                                      jobject listener) {
+  auto raw = std::make_shared<ListenerRawBuffer>();
+  return MakeTypedEntryListener(
+      envouter, listener, "(ILjava/lang/String;Ljava/nio/ByteBuffer;II)V",
+      NT_RAW,
+      [=](JNIEnv *env, jobject handler, jmethodID mid, jint uid,
+          jstring jname, const nt::Value &value, jint flags) {
+        auto v = value.GetRaw();
+        if (!raw->buffer || v.size() > raw->capacity) {
+          std::size_t capacity = raw->capacity == 0 ? 64 : raw->capacity;
+          while (capacity < v.size()) capacity *= 2;
+          raw->buffer.reset();
+          raw->data.reset(new char[capacity]);
+          raw->capacity = capacity;
+          JavaLocal<jobject> buf(
+              env, env->NewDirectByteBuffer(raw->data.get(), capacity));
+          if (!buf) return;
+          raw->buffer.reset(new JavaGlobal<jobject>(env, buf));
+        }
+        std::copy(v.begin(), v.end(), raw->data.get());
+        env->CallVoidMethod(handler, mid, uid, jname, raw->buffer->obj(),
+                            (jint)v.size(), flags);
+      });
+}
+
+static nt::ConnectionListenerCallback MakeConnectionListener(JNIEnv *envouter,
+                                                             jobject listener) {
+  // the shared pointer to the weak global will keep it around until the
+  // entry listener is destroyed
+  auto listener_global =
+      std::make_shared<JavaGlobal<jobject>>(envouter, listener);
+
+  // cls is a temporary here; cannot be used within callback functor
+	jclass cls = envouter->GetObjectClass(listener);
+  if (!cls) return nullptr;
+
+  // method ids, on the other hand, are safe to retain
+  jmethodID mid = envouter->GetMethodID(
+      cls, "apply", "(IZLedu/wpi/first/wpilibj/networktables/ConnectionInfo;)V");
+  if (!mid) return nullptr;
+
+  return [=](unsigned int uid, bool connected, const nt::ConnectionInfo& conn) {
+        JNIEnv *env = listenerEnv;
+        if (!env || !env->functions) return;
+
+        // get the handler
+        auto handler = listener_global->obj();
+        //if (!handler) goto done; // can happen due to weak reference
+
+        // convert into the appropriate Java type
+        JavaLocal<jobject> jobj(env, ToJavaObject(env, conn));
+        if (env->ExceptionCheck()) {
+          env->ExceptionDescribe();
+          env->ExceptionClear();
+          return;
+        }
+        if (!jobj) return;
+
+        env->CallVoidMethod(handler, mid, (jint)uid,
+                            (jboolean)(connected ? 1 : 0), jobj.obj());
+        if (env->ExceptionCheck()) {
+          env->ExceptionDescribe();
+          env->ExceptionClear();
+        }
+      };
+}
+
 extern "C" {
 
 /*
@@ -454,7 +787,7 @@ extern "C" {
  * Method:    containsKey
  * Signature: (Ljava/lang/String;)Z
  */
-JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_containsKey
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_containsKey__Ljava_lang_String_2
   (JNIEnv *env, jclass, jstring key)
 {
   auto val = nt::GetEntryValue(JavaStringRef(env, key));
@@ -480,7 +813,7 @@ JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    putBoolean
  * Signature: (Ljava/lang/String;Z)Z
  */
-JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putBoolean
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putBoolean__Ljava_lang_String_2Z
   (JNIEnv *env, jclass, jstring key, jboolean value)
 {
   return nt::SetEntryValue(JavaStringRef(env, key),
@@ -492,7 +825,7 @@ JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTable
  * Method:    putDouble
  * Signature: (Ljava/lang/String;D)Z
  */
-JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putDouble
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putDouble__Ljava_lang_String_2D
   (JNIEnv *env, jclass, jstring key, jdouble value)
 {
   return nt::SetEntryValue(JavaStringRef(env, key),
@@ -504,7 +837,7 @@ JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTable
  * Method:    putString
  * Signature: (Ljava/lang/String;Ljava/lang/String;)Z
  */
-JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putString
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putString__Ljava_lang_String_2Ljava_lang_String_2
   (JNIEnv *env, jclass, jstring key, jstring value)
 {
   return nt::SetEntryValue(JavaStringRef(env, key),
@@ -542,7 +875,7 @@ JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTable
  * Method:    putBooleanArray
  * Signature: (Ljava/lang/String;[Z)Z
  */
-JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putBooleanArray
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putBooleanArray__Ljava_lang_String_2_3Z
   (JNIEnv *env, jclass, jstring key, jbooleanArray value)
 {
   auto v = FromJavaBooleanArray(env, value);
@@ -555,7 +888,7 @@ JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTable
  * Method:    putDoubleArray
  * Signature: (Ljava/lang/String;[D)Z
  */
-JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putDoubleArray
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putDoubleArray__Ljava_lang_String_2_3D
   (JNIEnv *env, jclass, jstring key, jdoubleArray value)
 {
   auto v = FromJavaDoubleArray(env, value);
@@ -568,7 +901,7 @@ JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTable
  * Method:    putStringArray
  * Signature: (Ljava/lang/String;[Ljava/lang/String;)Z
  */
-JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putStringArray
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putStringArray__Ljava_lang_String_2_3Ljava_lang_String_2
   (JNIEnv *env, jclass, jstring key, jobjectArray value)
 {
   auto v = FromJavaStringArray(env, value);
@@ -912,7 +1245,7 @@ JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkT
  * Method:    setEntryFlags
  * Signature: (Ljava/lang/String;I)V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setEntryFlags
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setEntryFlags__Ljava_lang_String_2I
   (JNIEnv *env, jclass, jstring key, jint flags)
 {
   nt::SetEntryFlags(JavaStringRef(env, key), flags);
@@ -923,18 +1256,55 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    getEntryFlags
  * Signature: (Ljava/lang/String;)I
  */
-JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getEntryFlags
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getEntryFlags__Ljava_lang_String_2
   (JNIEnv *env, jclass, jstring key)
 {
   return nt::GetEntryFlags(JavaStringRef(env, key));
 }
 
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setEntryHistory
+ * Signature: (Ljava/lang/String;I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setEntryHistory__Ljava_lang_String_2I
+  (JNIEnv *env, jclass, jstring key, jint size)
+{
+  nt::SetEntryHistory(JavaStringRef(env, key), size < 0 ? 0 : size);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getNumberHistory
+ * Signature: (Ljava/lang/String;J[D[J)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getNumberHistory__Ljava_lang_String_2J_3D_3J
+  (JNIEnv *env, jclass, jstring key, jlong since, jdoubleArray values,
+   jlongArray times)
+{
+  return GetNumberHistory(env, nt::GetDefaultInstance(), key, since, values,
+                          times);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setEntryPublishPolicy
+ * Signature: (Ljava/lang/String;DDZ)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setEntryPublishPolicy__Ljava_lang_String_2DDZ
+  (JNIEnv *env, jclass, jstring key, jdouble maxRate, jdouble deadband,
+   jboolean relative)
+{
+  nt::SetEntryPublishPolicy(JavaStringRef(env, key), maxRate, deadband,
+                            relative != JNI_FALSE);
+}
+
 /*
  * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    deleteEntry
  * Signature: (Ljava/lang/String;)V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_deleteEntry
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_deleteEntry__Ljava_lang_String_2
   (JNIEnv *env, jclass, jstring key)
 {
   nt::DeleteEntry(JavaStringRef(env, key));
@@ -945,7 +1315,7 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    deleteAllEntries
  * Signature: ()V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_deleteAllEntries
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_deleteAllEntries__
   (JNIEnv *, jclass)
 {
   nt::DeleteAllEntries();
@@ -956,17 +1326,11 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    getEntries
  * Signature: (Ljava/lang/String;I)[Ledu/wpi/first/wpilibj/networktables/EntryInfo;
  */
-JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getEntries
+JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getEntries__Ljava_lang_String_2I
   (JNIEnv *env, jclass, jstring prefix, jint types)
 {
-  auto arr = nt::GetEntryInfo(JavaStringRef(env, prefix), types);
-  jobjectArray jarr = env->NewObjectArray(arr.size(), entryInfoCls, nullptr);
-  if (!jarr) return nullptr;
-  for (size_t i = 0; i < arr.size(); ++i) {
-    JavaLocal<jobject> jelem(env, ToJavaObject(env, arr[i]));
-    env->SetObjectArrayElement(jarr, i, jelem);
-  }
-  return jarr;
+  return ToJavaEntryInfoArray(
+      env, nt::GetEntryInfo(JavaStringRef(env, prefix), types));
 }
 
 /*
@@ -974,7 +1338,7 @@ JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkT
  * Method:    flush
  * Signature: ()V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_flush
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_flush__
   (JNIEnv *, jclass)
 {
   nt::Flush();
@@ -985,51 +1349,55 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    addEntryListener
  * Signature: (Ljava/lang/String;Ledu/wpi/first/wpilibj/networktables/NetworkTablesJNI/EntryListenerFunction;Z)I
  */
-JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addEntryListener
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addEntryListener__Ljava_lang_String_2Ledu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024EntryListenerFunction_2I
   (JNIEnv *envouter, jclass, jstring prefix, jobject listener, jint flags)
 {
-  // the shared pointer to the weak global will keep it around until the
-  // entry listener is destroyed
-  auto listener_global =
-      std::make_shared<JavaGlobal<jobject>>(envouter, listener);
-
-  // cls is a temporary here; cannot be used within callback functor
-	jclass cls = envouter->GetObjectClass(listener);
-  if (!cls) return 0;
-
-  // method ids, on the other hand, are safe to retain
-  jmethodID mid = envouter->GetMethodID(
-      cls, "apply", "(ILjava/lang/String;Ljava/lang/Object;I)V");
-  if (!mid) return 0;
-
-  return nt::AddEntryListener(
-      JavaStringRef(envouter, prefix),
-      [=](unsigned int uid, nt::StringRef name,
-          std::shared_ptr<nt::Value> value, unsigned int flags_) {
-        JNIEnv *env = listenerEnv;
-        if (!env || !env->functions) return;
+  auto callback = MakeEntryListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddEntryListener(JavaStringRef(envouter, prefix), callback,
+                              flags);
+}
 
-        // get the handler
-        auto handler = listener_global->obj();
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    addBooleanEntryListener
+ * Signature: (Ljava/lang/String;Ledu/wpi/first/wpilibj/networktables/NetworkTablesJNI/BooleanEntryListenerFunction;I)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addBooleanEntryListener__Ljava_lang_String_2Ledu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024BooleanEntryListenerFunction_2I
+  (JNIEnv *envouter, jclass, jstring prefix, jobject listener, jint flags)
+{
+  auto callback = MakeBooleanEntryListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddEntryListener(JavaStringRef(envouter, prefix), callback,
+                              flags);
+}
 
-        // convert the value into the appropriate Java type
-        JavaLocal<jobject> jobj(env, ToJavaObject(env, *value));
-        if (env->ExceptionCheck()) {
-          env->ExceptionDescribe();
-          env->ExceptionClear();
-          return;
-        }
-        if (!jobj) return;
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    addDoubleEntryListener
+ * Signature: (Ljava/lang/String;Ledu/wpi/first/wpilibj/networktables/NetworkTablesJNI/DoubleEntryListenerFunction;I)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addDoubleEntryListener__Ljava_lang_String_2Ledu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024DoubleEntryListenerFunction_2I
+  (JNIEnv *envouter, jclass, jstring prefix, jobject listener, jint flags)
+{
+  auto callback = MakeDoubleEntryListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddEntryListener(JavaStringRef(envouter, prefix), callback,
+                              flags);
+}
 
-        JavaLocal<jstring> jname(env, ToJavaString(env, name));
-        env->CallVoidMethod(handler, mid, (jint)uid, jname.obj(), jobj.obj(),
-                            (jint)(flags_));
-        if (env->ExceptionCheck()) {
-          env->ExceptionDescribe();
-          env->ExceptionClear();
-        }
-      },
-      flags);
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    addRawEntryListener
+ * Signature: (Ljava/lang/String;Ledu/wpi/first/wpilibj/networktables/NetworkTablesJNI/RawEntryListenerFunction;I)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addRawEntryListener__Ljava_lang_String_2Ledu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024RawEntryListenerFunction_2I
+  (JNIEnv *envouter, jclass, jstring prefix, jobject listener, jint flags)
+{
+  auto callback = MakeRawEntryListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddEntryListener(JavaStringRef(envouter, prefix), callback,
+                              flags);
 }
 
 /*
@@ -1037,7 +1405,7 @@ JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    removeEntryListener
  * Signature: (I)V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_removeEntryListener
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_removeEntryListener__I
   (JNIEnv *, jclass, jint entryListenerUid)
 {
   nt::RemoveEntryListener(entryListenerUid);
@@ -1048,61 +1416,24 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    addConnectionListener
  * Signature: (Ledu/wpi/first/wpilibj/networktables/NetworkTablesJNI/ConnectionListenerFunction;Z)I
  */
-JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addConnectionListener
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addConnectionListener__Ledu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024ConnectionListenerFunction_2Z
   (JNIEnv *envouter, jclass, jobject listener, jboolean immediateNotify)
 {
-  // the shared pointer to the weak global will keep it around until the
-  // entry listener is destroyed
-  auto listener_global =
-      std::make_shared<JavaGlobal<jobject>>(envouter, listener);
+  auto callback = MakeConnectionListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddConnectionListener(callback, immediateNotify != JNI_FALSE);
+}
 
-  // cls is a temporary here; cannot be used within callback functor
-	jclass cls = envouter->GetObjectClass(listener);
-  if (!cls) return 0;
-
-  // method ids, on the other hand, are safe to retain
-  jmethodID mid = envouter->GetMethodID(
-      cls, "apply", "(IZLedu/wpi/first/wpilibj/networktables/ConnectionInfo;)V");
-  if (!mid) return 0;
-
-  return nt::AddConnectionListener(
-      [=](unsigned int uid, bool connected, const nt::ConnectionInfo& conn) {
-        JNIEnv *env = listenerEnv;
-        if (!env || !env->functions) return;
-
-        // get the handler
-        auto handler = listener_global->obj();
-        //if (!handler) goto done; // can happen due to weak reference
-
-        // convert into the appropriate Java type
-        JavaLocal<jobject> jobj(env, ToJavaObject(env, conn));
-        if (env->ExceptionCheck()) {
-          env->ExceptionDescribe();
-          env->ExceptionClear();
-          return;
-        }
-        if (!jobj) return;
-
-        env->CallVoidMethod(handler, mid, (jint)uid,
-                            (jboolean)(connected ? 1 : 0), jobj.obj());
-        if (env->ExceptionCheck()) {
-          env->ExceptionDescribe();
-          env->ExceptionClear();
-        }
-      },
-      immediateNotify != JNI_FALSE);
-}
-
-/*
- * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
- * Method:    removeConnectionListener
- * Signature: (I)V
- */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_removeConnectionListener
-  (JNIEnv *, jclass, jint connListenerUid)
-{
-  nt::RemoveConnectionListener(connListenerUid);
-}
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    removeConnectionListener
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_removeConnectionListener__I
+  (JNIEnv *, jclass, jint connListenerUid)
+{
+  nt::RemoveConnectionListener(connListenerUid);
+}
 
 /*
  * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
@@ -1161,18 +1492,29 @@ JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    setNetworkIdentity
  * Signature: (Ljava/lang/String;)V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setNetworkIdentity
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setNetworkIdentity__Ljava_lang_String_2
   (JNIEnv *env, jclass, jstring name)
 {
   nt::SetNetworkIdentity(JavaStringRef(env, name));
 }
 
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setSnapshotFile
+ * Signature: (Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setSnapshotFile__Ljava_lang_String_2
+  (JNIEnv *env, jclass, jstring filename)
+{
+  nt::SetSnapshotFile(JavaStringRef(env, filename));
+}
+
 /*
  * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    startServer
  * Signature: (Ljava/lang/String;Ljava/lang/String;I)V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startServer
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startServer__Ljava_lang_String_2Ljava_lang_String_2I
   (JNIEnv *env, jclass, jstring persistFilename, jstring listenAddress,
    jint port)
 {
@@ -1185,7 +1527,7 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    stopServer
  * Signature: ()V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopServer
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopServer__
   (JNIEnv *, jclass)
 {
   nt::StopServer();
@@ -1196,7 +1538,7 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    startClient
  * Signature: (Ljava/lang/String;I)V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startClient
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startClient__Ljava_lang_String_2I
   (JNIEnv *env, jclass, jstring serverName, jint port)
 {
   nt::StartClient(JavaStringRef(env, serverName).c_str(), port);
@@ -1207,40 +1549,139 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    stopClient
  * Signature: ()V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopClient
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopClient__
   (JNIEnv *, jclass)
 {
   nt::StopClient();
 }
 
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    startRelay
+ * Signature: (Ljava/lang/String;ILjava/lang/String;I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startRelay__Ljava_lang_String_2ILjava_lang_String_2I
+  (JNIEnv *env, jclass, jstring serverName, jint serverPort,
+   jstring listenAddress, jint port)
+{
+  nt::StartRelay(JavaStringRef(env, serverName).c_str(), serverPort,
+                 JavaStringRef(env, listenAddress).c_str(), port);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    stopRelay
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopRelay__
+  (JNIEnv *, jclass)
+{
+  nt::StopRelay();
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    startCluster
+ * Signature: (Ljava/lang/String;Ljava/lang/String;I[Ljava/lang/String;[I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startCluster__Ljava_lang_String_2Ljava_lang_String_2I_3Ljava_lang_String_2_3I
+  (JNIEnv *env, jclass, jstring persistFilename, jstring listenAddress,
+   jint port, jobjectArray peerNames, jintArray peerPorts)
+{
+  nt::StartCluster(JavaStringRef(env, persistFilename),
+                   JavaStringRef(env, listenAddress).c_str(), port,
+                   FromJavaPeers(env, peerNames, peerPorts));
+}
+
 /*
  * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    setUpdateRate
  * Signature: (D)V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setUpdateRate
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setUpdateRate__D
   (JNIEnv *, jclass, jdouble interval)
 {
   nt::SetUpdateRate(interval);
 }
 
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setOutgoingLimit
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setOutgoingLimit__JI
+  (JNIEnv *, jclass, jlong maxBytes, jint policy)
+{
+  nt::SetOutgoingLimit(maxBytes < 0 ? 0 : static_cast<size_t>(maxBytes),
+                       static_cast<NT_OutgoingPolicy>(policy));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setNetworkCompression
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setNetworkCompression__J
+  (JNIEnv *, jclass, jlong threshold)
+{
+  nt::SetNetworkCompression(threshold < 0 ? 0
+                                          : static_cast<size_t>(threshold));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setLowPriorityBudget
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setLowPriorityBudget__J
+  (JNIEnv *, jclass, jlong bytesPerSec)
+{
+  nt::SetLowPriorityBudget(bytesPerSec < 0 ? 0
+                                           : static_cast<size_t>(bytesPerSec));
+}
+
 /*
  * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    getConnections
  * Signature: ()[Ledu/wpi/first/wpilibj/networktables/ConnectionInfo;
  */
-JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getConnections
+JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getConnections__
   (JNIEnv *env, jclass)
 {
-  auto arr = nt::GetConnections();
-  jobjectArray jarr =
-      env->NewObjectArray(arr.size(), connectionInfoCls, nullptr);
-  if (!jarr) return nullptr;
-  for (size_t i = 0; i < arr.size(); ++i) {
-    JavaLocal<jobject> jelem(env, ToJavaObject(env, arr[i]));
-    env->SetObjectArrayElement(jarr, i, jelem);
-  }
-  return jarr;
+  return ToJavaConnectionInfoArray(env, nt::GetConnections());
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getStatistics
+ * Signature: ()[J
+ */
+JNIEXPORT jlongArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getStatistics
+  (JNIEnv *env, jclass)
+{
+  return ToJavaLongArray(env, nt::GetStatistics());
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setLatencyTracing
+ * Signature: (Z[Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setLatencyTracing
+  (JNIEnv *env, jclass, jboolean enabled, jobjectArray prefixes)
+{
+  nt::SetLatencyTracing(enabled, FromJavaStrings(env, prefixes));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getLatencyHistograms
+ * Signature: ()[J
+ */
+JNIEXPORT jlongArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getLatencyHistograms
+  (JNIEnv *env, jclass)
+{
+  return ToJavaLongArray(env, nt::GetLatencyHistograms());
 }
 
 /*
@@ -1248,7 +1689,7 @@ JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkT
  * Method:    savePersistent
  * Signature: (Ljava/lang/String;)V
  */
-JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_savePersistent
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_savePersistent__Ljava_lang_String_2
   (JNIEnv *env, jclass, jstring filename)
 {
   const char *err = nt::SavePersistent(JavaStringRef(env, filename));
@@ -1260,21 +1701,79 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
  * Method:    loadPersistent
  * Signature: (Ljava/lang/String;)[Ljava/lang/String;
  */
-JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_loadPersistent
+JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_loadPersistent__Ljava_lang_String_2
   (JNIEnv *env, jclass, jstring filename)
 {
-  std::vector<std::string> warns;
-  const char *err = nt::LoadPersistent(JavaStringRef(env, filename),
-                                       [&](size_t line, const char *msg) {
-                                         std::ostringstream oss;
-                                         oss << line << ": " << msg;
-                                         warns.push_back(oss.str());
-                                       });
-  if (err) {
-    env->ThrowNew(persistentEx, err);
-    return nullptr;
-  }
-  return ToJavaStringArray(env, warns);
+  return LoadPersistent(env, nt::GetDefaultInstance(), filename);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    startDataLog
+ * Signature: (Ljava/lang/String;[Ljava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startDataLog
+  (JNIEnv *env, jclass, jstring filename, jobjectArray prefixes)
+{
+  const char *err = nt::StartDataLog(JavaStringRef(env, filename),
+                                     FromJavaStrings(env, prefixes));
+  if (err) env->ThrowNew(env->FindClass("java/io/IOException"), err);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    stopDataLog
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopDataLog
+  (JNIEnv *, jclass)
+{
+  nt::StopDataLog();
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    startReplay
+ * Signature: (Ljava/lang/String;D)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startReplay
+  (JNIEnv *env, jclass, jstring filename, jdouble speed)
+{
+  const char *err = nt::StartReplay(JavaStringRef(env, filename), speed);
+  if (err) env->ThrowNew(env->FindClass("java/io/IOException"), err);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    seekReplay
+ * Signature: (D)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_seekReplay
+  (JNIEnv *, jclass, jdouble time)
+{
+  nt::SeekReplay(time);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setReplaySpeed
+ * Signature: (D)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setReplaySpeed
+  (JNIEnv *, jclass, jdouble speed)
+{
+  nt::SetReplaySpeed(speed);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    stopReplay
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopReplay
+  (JNIEnv *, jclass)
+{
+  nt::StopReplay();
 }
 
 /*
@@ -1288,6 +1787,17 @@ JNIEXPORT jlong JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJN
   return nt::Now();
 }
 
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    serverNow
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_serverNow
+  (JNIEnv *, jclass)
+{
+  return nt::ServerNow();
+}
+
 }  // extern "C"
 
 // Thread where log callbacks are actually performed.
@@ -1419,4 +1929,588 @@ JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
       minLevel);
 }
 
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getDefaultInstance
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getDefaultInstance
+  (JNIEnv *, jclass)
+{
+  return nt::GetDefaultInstance();
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    createInstance
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_createInstance
+  (JNIEnv *, jclass)
+{
+  NT_Inst inst = nt::CreateInstance();
+  if (inst == 0) return 0;
+  // each instance has its own listener thread
+  nt::SetListenerOnStart(inst, ListenerOnStart);
+  nt::SetListenerOnExit(inst, ListenerOnExit);
+  return inst;
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    destroyInstance
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_destroyInstance
+  (JNIEnv *, jclass, jint inst)
+{
+  nt::DestroyInstance(inst);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    containsKey
+ * Signature: (ILjava/lang/String;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_containsKey__ILjava_lang_String_2
+  (JNIEnv *env, jclass, jint inst, jstring key)
+{
+  auto val = nt::GetEntryValue(inst, JavaStringRef(env, key));
+  if (!val) return false;
+  return true;
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    putBoolean
+ * Signature: (ILjava/lang/String;Z)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putBoolean__ILjava_lang_String_2Z
+  (JNIEnv *env, jclass, jint inst, jstring key, jboolean value)
+{
+  return nt::SetEntryValue(inst, JavaStringRef(env, key),
+                           nt::Value::MakeBoolean(value != JNI_FALSE));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    putDouble
+ * Signature: (ILjava/lang/String;D)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putDouble__ILjava_lang_String_2D
+  (JNIEnv *env, jclass, jint inst, jstring key, jdouble value)
+{
+  return nt::SetEntryValue(inst, JavaStringRef(env, key),
+                           nt::Value::MakeDouble(value));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    putString
+ * Signature: (ILjava/lang/String;Ljava/lang/String;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putString__ILjava_lang_String_2Ljava_lang_String_2
+  (JNIEnv *env, jclass, jint inst, jstring key, jstring value)
+{
+  return nt::SetEntryValue(inst, JavaStringRef(env, key),
+                           nt::Value::MakeString(JavaStringRef(env, value)));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    putRaw
+ * Signature: (ILjava/lang/String;[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putRaw__ILjava_lang_String_2_3B
+  (JNIEnv *env, jclass, jint inst, jstring key, jbyteArray value)
+{
+  auto v = FromJavaRaw(env, value);
+  if (!v) return false;
+  return nt::SetEntryValue(inst, JavaStringRef(env, key), v);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    putRaw
+ * Signature: (ILjava/lang/String;Ljava/nio/ByteBuffer;I)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putRaw__ILjava_lang_String_2Ljava_nio_ByteBuffer_2I
+  (JNIEnv *env, jclass, jint inst, jstring key, jobject value,
+   jint len)
+{
+  auto v = FromJavaRawBB(env, value, len);
+  if (!v) return false;
+  return nt::SetEntryValue(inst, JavaStringRef(env, key), v);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    putBooleanArray
+ * Signature: (ILjava/lang/String;[Z)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putBooleanArray__ILjava_lang_String_2_3Z
+  (JNIEnv *env, jclass, jint inst, jstring key, jbooleanArray value)
+{
+  auto v = FromJavaBooleanArray(env, value);
+  if (!v) return false;
+  return nt::SetEntryValue(inst, JavaStringRef(env, key), v);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    putDoubleArray
+ * Signature: (ILjava/lang/String;[D)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putDoubleArray__ILjava_lang_String_2_3D
+  (JNIEnv *env, jclass, jint inst, jstring key, jdoubleArray value)
+{
+  auto v = FromJavaDoubleArray(env, value);
+  if (!v) return false;
+  return nt::SetEntryValue(inst, JavaStringRef(env, key), v);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    putStringArray
+ * Signature: (ILjava/lang/String;[Ljava/lang/String;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_putStringArray__ILjava_lang_String_2_3Ljava_lang_String_2
+  (JNIEnv *env, jclass, jint inst, jstring key, jobjectArray value)
+{
+  auto v = FromJavaStringArray(env, value);
+  if (!v) return false;
+  return nt::SetEntryValue(inst, JavaStringRef(env, key), v);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getValue
+ * Signature: (ILjava/lang/String;Ljava/lang/Object;)Ljava/lang/Object;
+ */
+JNIEXPORT jobject JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getValue__ILjava_lang_String_2Ljava_lang_Object_2
+  (JNIEnv *env, jclass, jint inst, jstring key,
+   jobject defaultValue)
+{
+  auto val = nt::GetEntryValue(inst, JavaStringRef(env, key));
+  if (!val) return defaultValue;
+  return ToJavaObject(env, *val);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getBoolean
+ * Signature: (ILjava/lang/String;Z)Z
+ */
+JNIEXPORT jboolean JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getBoolean__ILjava_lang_String_2Z
+  (JNIEnv *env, jclass, jint inst, jstring key,
+   jboolean defaultValue)
+{
+  auto val = nt::GetEntryValue(inst, JavaStringRef(env, key));
+  if (!val || !val->IsBoolean()) return defaultValue;
+  return val->GetBoolean();
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getDouble
+ * Signature: (ILjava/lang/String;D)D
+ */
+JNIEXPORT jdouble JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getDouble__ILjava_lang_String_2D
+  (JNIEnv *env, jclass, jint inst, jstring key,
+   jdouble defaultValue)
+{
+  auto val = nt::GetEntryValue(inst, JavaStringRef(env, key));
+  if (!val || !val->IsDouble()) return defaultValue;
+  return val->GetDouble();
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setEntryFlags
+ * Signature: (ILjava/lang/String;I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setEntryFlags__ILjava_lang_String_2I
+  (JNIEnv *env, jclass, jint inst, jstring key, jint flags)
+{
+  nt::SetEntryFlags(inst, JavaStringRef(env, key), flags);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getEntryFlags
+ * Signature: (ILjava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getEntryFlags__ILjava_lang_String_2
+  (JNIEnv *env, jclass, jint inst, jstring key)
+{
+  return nt::GetEntryFlags(inst, JavaStringRef(env, key));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setEntryHistory
+ * Signature: (ILjava/lang/String;I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setEntryHistory__ILjava_lang_String_2I
+  (JNIEnv *env, jclass, jint inst, jstring key, jint size)
+{
+  nt::SetEntryHistory(inst, JavaStringRef(env, key), size < 0 ? 0 : size);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getNumberHistory
+ * Signature: (ILjava/lang/String;J[D[J)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getNumberHistory__ILjava_lang_String_2J_3D_3J
+  (JNIEnv *env, jclass, jint inst, jstring key, jlong since,
+   jdoubleArray values, jlongArray times)
+{
+  return GetNumberHistory(env, inst, key, since, values, times);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setEntryPublishPolicy
+ * Signature: (ILjava/lang/String;DDZ)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setEntryPublishPolicy__ILjava_lang_String_2DDZ
+  (JNIEnv *env, jclass, jint inst, jstring key, jdouble maxRate,
+   jdouble deadband, jboolean relative)
+{
+  nt::SetEntryPublishPolicy(inst, JavaStringRef(env, key), maxRate, deadband,
+                            relative != JNI_FALSE);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    deleteEntry
+ * Signature: (ILjava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_deleteEntry__ILjava_lang_String_2
+  (JNIEnv *env, jclass, jint inst, jstring key)
+{
+  nt::DeleteEntry(inst, JavaStringRef(env, key));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    deleteAllEntries
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_deleteAllEntries__I
+  (JNIEnv *, jclass, jint inst)
+{
+  nt::DeleteAllEntries(inst);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getEntries
+ * Signature: (ILjava/lang/String;I)[Ledu/wpi/first/wpilibj/networktables/EntryInfo;
+ */
+JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getEntries__ILjava_lang_String_2I
+  (JNIEnv *env, jclass, jint inst, jstring prefix, jint types)
+{
+  return ToJavaEntryInfoArray(
+      env, nt::GetEntryInfo(inst, JavaStringRef(env, prefix), types));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    flush
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_flush__I
+  (JNIEnv *, jclass, jint inst)
+{
+  nt::Flush(inst);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    addEntryListener
+ * Signature: (ILjava/lang/String;Ledu/wpi/first/wpilibj/networktables/NetworkTablesJNI/EntryListenerFunction;I)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addEntryListener__ILjava_lang_String_2Ledu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024EntryListenerFunction_2I
+  (JNIEnv *envouter, jclass, jint inst, jstring prefix, jobject listener,
+   jint flags)
+{
+  auto callback = MakeEntryListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddEntryListener(inst, JavaStringRef(envouter, prefix), callback,
+                              flags);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    addBooleanEntryListener
+ * Signature: (ILjava/lang/String;Ledu/wpi/first/wpilibj/networktables/NetworkTablesJNI/BooleanEntryListenerFunction;I)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addBooleanEntryListener__ILjava_lang_String_2Ledu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024BooleanEntryListenerFunction_2I
+  (JNIEnv *envouter, jclass, jint inst, jstring prefix, jobject listener,
+   jint flags)
+{
+  auto callback = MakeBooleanEntryListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddEntryListener(inst, JavaStringRef(envouter, prefix), callback,
+                              flags);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    addDoubleEntryListener
+ * Signature: (ILjava/lang/String;Ledu/wpi/first/wpilibj/networktables/NetworkTablesJNI/DoubleEntryListenerFunction;I)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addDoubleEntryListener__ILjava_lang_String_2Ledu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024DoubleEntryListenerFunction_2I
+  (JNIEnv *envouter, jclass, jint inst, jstring prefix, jobject listener,
+   jint flags)
+{
+  auto callback = MakeDoubleEntryListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddEntryListener(inst, JavaStringRef(envouter, prefix), callback,
+                              flags);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    addRawEntryListener
+ * Signature: (ILjava/lang/String;Ledu/wpi/first/wpilibj/networktables/NetworkTablesJNI/RawEntryListenerFunction;I)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addRawEntryListener__ILjava_lang_String_2Ledu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024RawEntryListenerFunction_2I
+  (JNIEnv *envouter, jclass, jint inst, jstring prefix, jobject listener,
+   jint flags)
+{
+  auto callback = MakeRawEntryListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddEntryListener(inst, JavaStringRef(envouter, prefix), callback,
+                              flags);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    removeEntryListener
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_removeEntryListener__II
+  (JNIEnv *, jclass, jint inst, jint entryListenerUid)
+{
+  nt::RemoveEntryListener(inst, entryListenerUid);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    addConnectionListener
+ * Signature: (ILedu/wpi/first/wpilibj/networktables/NetworkTablesJNI/ConnectionListenerFunction;Z)I
+ */
+JNIEXPORT jint JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_addConnectionListener__ILedu_wpi_first_wpilibj_networktables_NetworkTablesJNI_00024ConnectionListenerFunction_2Z
+  (JNIEnv *envouter, jclass, jint inst, jobject listener,
+   jboolean immediateNotify)
+{
+  auto callback = MakeConnectionListener(envouter, listener);
+  if (!callback) return 0;
+  return nt::AddConnectionListener(inst, callback,
+                                   immediateNotify != JNI_FALSE);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    removeConnectionListener
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_removeConnectionListener__II
+  (JNIEnv *, jclass, jint inst, jint connListenerUid)
+{
+  nt::RemoveConnectionListener(inst, connListenerUid);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setNetworkIdentity
+ * Signature: (ILjava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setNetworkIdentity__ILjava_lang_String_2
+  (JNIEnv *env, jclass, jint inst, jstring name)
+{
+  nt::SetNetworkIdentity(inst, JavaStringRef(env, name));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setSnapshotFile
+ * Signature: (ILjava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setSnapshotFile__ILjava_lang_String_2
+  (JNIEnv *env, jclass, jint inst, jstring filename)
+{
+  nt::SetSnapshotFile(inst, JavaStringRef(env, filename));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    startServer
+ * Signature: (ILjava/lang/String;Ljava/lang/String;I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startServer__ILjava_lang_String_2Ljava_lang_String_2I
+  (JNIEnv *env, jclass, jint inst, jstring persistFilename,
+   jstring listenAddress, jint port)
+{
+  nt::StartServer(inst, JavaStringRef(env, persistFilename),
+                  JavaStringRef(env, listenAddress).c_str(), port);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    stopServer
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopServer__I
+  (JNIEnv *, jclass, jint inst)
+{
+  nt::StopServer(inst);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    startClient
+ * Signature: (ILjava/lang/String;I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startClient__ILjava_lang_String_2I
+  (JNIEnv *env, jclass, jint inst, jstring serverName, jint port)
+{
+  nt::StartClient(inst, JavaStringRef(env, serverName).c_str(), port);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    stopClient
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopClient__I
+  (JNIEnv *, jclass, jint inst)
+{
+  nt::StopClient(inst);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    startRelay
+ * Signature: (ILjava/lang/String;ILjava/lang/String;I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startRelay__ILjava_lang_String_2ILjava_lang_String_2I
+  (JNIEnv *env, jclass, jint inst, jstring serverName, jint serverPort,
+   jstring listenAddress, jint port)
+{
+  nt::StartRelay(inst, JavaStringRef(env, serverName).c_str(), serverPort,
+                 JavaStringRef(env, listenAddress).c_str(), port);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    stopRelay
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_stopRelay__I
+  (JNIEnv *, jclass, jint inst)
+{
+  nt::StopRelay(inst);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    startCluster
+ * Signature: (ILjava/lang/String;Ljava/lang/String;I[Ljava/lang/String;[I)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_startCluster__ILjava_lang_String_2Ljava_lang_String_2I_3Ljava_lang_String_2_3I
+  (JNIEnv *env, jclass, jint inst, jstring persistFilename,
+   jstring listenAddress, jint port, jobjectArray peerNames,
+   jintArray peerPorts)
+{
+  nt::StartCluster(inst, JavaStringRef(env, persistFilename),
+                   JavaStringRef(env, listenAddress).c_str(), port,
+                   FromJavaPeers(env, peerNames, peerPorts));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setUpdateRate
+ * Signature: (ID)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setUpdateRate__ID
+  (JNIEnv *, jclass, jint inst, jdouble interval)
+{
+  nt::SetUpdateRate(inst, interval);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setOutgoingLimit
+ * Signature: (IJI)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setOutgoingLimit__IJI
+  (JNIEnv *, jclass, jint inst, jlong maxBytes, jint policy)
+{
+  nt::SetOutgoingLimit(inst,
+                       maxBytes < 0 ? 0 : static_cast<size_t>(maxBytes),
+                       static_cast<NT_OutgoingPolicy>(policy));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setNetworkCompression
+ * Signature: (IJ)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setNetworkCompression__IJ
+  (JNIEnv *, jclass, jint inst, jlong threshold)
+{
+  nt::SetNetworkCompression(
+      inst, threshold < 0 ? 0 : static_cast<size_t>(threshold));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    setLowPriorityBudget
+ * Signature: (IJ)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_setLowPriorityBudget__IJ
+  (JNIEnv *, jclass, jint inst, jlong bytesPerSec)
+{
+  nt::SetLowPriorityBudget(
+      inst, bytesPerSec < 0 ? 0 : static_cast<size_t>(bytesPerSec));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    getConnections
+ * Signature: (I)[Ledu/wpi/first/wpilibj/networktables/ConnectionInfo;
+ */
+JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_getConnections__I
+  (JNIEnv *env, jclass, jint inst)
+{
+  return ToJavaConnectionInfoArray(env, nt::GetConnections(inst));
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    savePersistent
+ * Signature: (ILjava/lang/String;)V
+ */
+JNIEXPORT void JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_savePersistent__ILjava_lang_String_2
+  (JNIEnv *env, jclass, jint inst, jstring filename)
+{
+  const char *err = nt::SavePersistent(inst, JavaStringRef(env, filename));
+  if (err) env->ThrowNew(persistentEx, err);
+}
+
+/*
+ * Class:     edu_wpi_first_wpilibj_networktables_NetworkTablesJNI
+ * Method:    loadPersistent
+ * Signature: (ILjava/lang/String;)[Ljava/lang/String;
+ */
+JNIEXPORT jobjectArray JNICALL Java_edu_wpi_first_wpilibj_networktables_NetworkTablesJNI_loadPersistent__ILjava_lang_String_2
+  (JNIEnv *env, jclass, jint inst, jstring filename)
+{
+  return LoadPersistent(env, inst, filename);
+}
+
 }  // extern "C"
@@ -0,0 +1,205 @@
+package edu.wpi.first.wpilibj.networktables;
+
+import edu.wpi.first.wpilibj.tables.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A read cache for a {@link NetworkTable} and its subtables.  The current
+ * values are kept in a Java map that a single entry listener keeps up to
+ * date, so reads don't cross into the backend.  Values changed remotely (or
+ * by other code in this process) show up once the listener is notified;
+ * puts through this class are visible immediately, and are not replaced by
+ * older notifications still on their way.
+ *
+ * <p>The cache holds one value per existing entry in the subtree; deleted
+ * entries are removed.  Call {@link #free()} when it is no longer needed, to
+ * remove the listener.
+ */
+public class CachedNetworkTable {
+  private final NetworkTable table;
+  private final NetworkTablesBackend backend;
+  private final String prefix;
+  private final ConcurrentHashMap<String, Object> values =
+      new ConcurrentHashMap<String, Object>();
+  // Held while the listener applies a change and while a value is read
+  // back from the backend.
+  private final Object lock = new Object();
+  // Values read back from the backend whose notifications have not arrived
+  // yet, by key (DELETED for a missing entry).  Notifications for such a key
+  // were queued before the read and may be older, so they are skipped until
+  // the one carrying the awaited value.  Guarded by lock.
+  private final HashMap<String, Object> awaited = new HashMap<String, Object>();
+  private static final Object DELETED = new Object();
+  private int listenerUid;
+  private volatile boolean freed;
+
+  /**
+   * Starts caching a table.
+   * @param table the table to cache
+   */
+  public CachedNetworkTable(NetworkTable table) {
+    this.table = table;
+    backend = table.getBackend();
+    prefix = table.getPath() + NetworkTable.PATH_SEPARATOR;
+    // listen first, so no change is missed between the two steps
+    listenerUid = backend.addEntryListener(prefix, new NetworkTablesJNI.EntryListenerFunction() {
+      public void apply(int uid, String key, Object value, int flags) {
+        String relativeKey = key.substring(prefix.length());
+        synchronized (lock) {
+          if (freed)
+            return;
+          if ((flags & ITable.NOTIFY_DELETE) != 0)
+            value = DELETED;
+          Object expected = awaited.get(relativeKey);
+          if (expected != null) {
+            if (!sameValue(expected, value)) {
+              // Either older than the read, or the awaited change was never
+              // notified (e.g. it didn't change the value).  Read the
+              // backend again; if it holds this value, this notification is
+              // the latest one.
+              refresh(relativeKey);
+              if (sameValue(awaited.get(relativeKey), value))
+                awaited.remove(relativeKey);
+              return;
+            }
+            awaited.remove(relativeKey);
+          }
+          if (value == DELETED)
+            values.remove(relativeKey);
+          else
+            values.put(relativeKey, value);
+        }
+      }
+    }, ITable.NOTIFY_NEW | ITable.NOTIFY_UPDATE | ITable.NOTIFY_DELETE | ITable.NOTIFY_LOCAL);
+    for (EntryInfo info : backend.getEntries(prefix, 0))
+      refresh(info.name.substring(prefix.length()));
+  }
+
+  /**
+   * Stops updating the cache and empties it.
+   */
+  public synchronized void free() {
+    if (freed)
+      return;
+    synchronized (lock) {
+      freed = true;
+      values.clear();
+      awaited.clear();
+    }
+    backend.removeEntryListener(listenerUid);
+  }
+
+  /**
+   * @return the table being cached
+   */
+  public NetworkTable getTable() {
+    return table;
+  }
+
+  // Reads the current value from the backend, e.g. after a put.
+  private boolean refresh(String key) {
+    synchronized (lock) {
+      if (freed)
+        return true;
+      Object value = backend.getValue(prefix + key, null);
+      if (value == null) {
+        values.remove(key);
+        awaited.put(key, DELETED);
+      } else {
+        values.put(key, value);
+        awaited.put(key, value);
+      }
+    }
+    return true;
+  }
+
+  private static boolean sameValue(Object a, Object b) {
+    return Arrays.deepEquals(new Object[] {a}, new Object[] {b});
+  }
+
+  /**
+   * @param key the key, relative to the table
+   * @return true if the entry exists
+   */
+  public boolean containsKey(String key) {
+    return values.containsKey(key);
+  }
+
+  /**
+   * @return the keys of all cached entries, relative to the table
+   */
+  public Set<String> getKeys() {
+    return Collections.unmodifiableSet(values.keySet());
+  }
+
+  public boolean putBoolean(String key, boolean value) {
+    return table.putBoolean(key, value) && refresh(key);
+  }
+  public boolean putNumber(String key, double value) {
+    return table.putNumber(key, value) && refresh(key);
+  }
+  public boolean putString(String key, String value) {
+    return table.putString(key, value) && refresh(key);
+  }
+  public boolean putRaw(String key, byte[] value) {
+    return table.putRaw(key, value) && refresh(key);
+  }
+  public boolean putBooleanArray(String key, boolean[] value) {
+    return table.putBooleanArray(key, value) && refresh(key);
+  }
+  public boolean putNumberArray(String key, double[] value) {
+    return table.putNumberArray(key, value) && refresh(key);
+  }
+  public boolean putStringArray(String key, String[] value) {
+    return table.putStringArray(key, value) && refresh(key);
+  }
+
+  /**
+   * @param key the key, relative to the table
+   * @param defaultValue returned if the entry doesn't exist
+   * @return the cached value; arrays are copies
+   */
+  public Object getValue(String key, Object defaultValue) {
+    Object value = values.get(key);
+    if (value == null)
+      return defaultValue;
+    if (value instanceof byte[]) return ((byte[])value).clone();
+    if (value instanceof boolean[]) return ((boolean[])value).clone();
+    if (value instanceof double[]) return ((double[])value).clone();
+    if (value instanceof String[]) return ((String[])value).clone();
+    return value;
+  }
+
+  public boolean getBoolean(String key, boolean defaultValue) {
+    Object value = values.get(key);
+    return value instanceof Boolean ? ((Boolean)value).booleanValue() : defaultValue;
+  }
+  public double getNumber(String key, double defaultValue) {
+    Object value = values.get(key);
+    return value instanceof Double ? ((Double)value).doubleValue() : defaultValue;
+  }
+  public String getString(String key, String defaultValue) {
+    Object value = values.get(key);
+    return value instanceof String ? (String)value : defaultValue;
+  }
+  public byte[] getRaw(String key, byte[] defaultValue) {
+    Object value = values.get(key);
+    return value instanceof byte[] ? ((byte[])value).clone() : defaultValue;
+  }
+  public boolean[] getBooleanArray(String key, boolean[] defaultValue) {
+    Object value = values.get(key);
+    return value instanceof boolean[] ? ((boolean[])value).clone() : defaultValue;
+  }
+  public double[] getNumberArray(String key, double[] defaultValue) {
+    Object value = values.get(key);
+    return value instanceof double[] ? ((double[])value).clone() : defaultValue;
+  }
+  public String[] getStringArray(String key, String[] defaultValue) {
+    Object value = values.get(key);
+    return value instanceof String[] ? ((String[])value).clone() : defaultValue;
+  }
+}
@@ -0,0 +1,890 @@
+package edu.wpi.first.wpilibj.networktables;
+
+import edu.wpi.first.wpilibj.tables.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pure-Java, in-process backend with no networking.  Each instance is a
+ * separate set of entries, so tests can use one per test and run in parallel
+ * without loading the native library.
+ *
+ * <p>All changes are local, so as with the native library only listeners
+ * registered with {@link ITable#NOTIFY_LOCAL} see them.  Listeners are
+ * called in the order the changes were made, on the thread making the
+ * change; if another thread is already calling listeners, that thread
+ * calls them instead.  Persistent files use the same format as the native
+ * library.
+ */
+public class InMemoryBackend implements NetworkTablesBackend {
+  private static final String PERSISTENT_HEADER = "[NetworkTables Storage 3.0]";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /* Type masks, as for getEntries(); values are stored as the Java objects
+   * returned by getValue() and are never modified once stored. */
+  private static final int BOOLEAN = 0x01;
+  private static final int DOUBLE = 0x02;
+  private static final int STRING = 0x04;
+  private static final int RAW = 0x08;
+  private static final int BOOLEAN_ARRAY = 0x10;
+  private static final int DOUBLE_ARRAY = 0x20;
+  private static final int STRING_ARRAY = 0x40;
+
+  private static class Entry {
+    Object value;
+    int type;
+    int flags;
+    long lastChange;
+    boolean deleted;
+
+    // value history of number entries
+    double[] historyValues;
+    long[] historyTimes;
+    int historyNext;
+    int historyCount;
+
+    Entry(Object value) {
+      setValue(value);
+    }
+
+    void setValue(Object value) {
+      this.value = value;
+      type = typeOf(value);
+      lastChange = now();
+      if (historyValues != null)
+        recordHistory();
+    }
+
+    void recordHistory() {
+      if (type != DOUBLE)
+        return;
+      historyValues[historyNext] = ((Double)value).doubleValue();
+      historyTimes[historyNext] = lastChange;
+      if (++historyNext == historyValues.length)
+        historyNext = 0;
+      if (historyCount < historyValues.length)
+        ++historyCount;
+    }
+  }
+
+  private static class EntryListener {
+    final String prefix;
+    final NetworkTablesJNI.EntryListenerFunction listener;
+    final int flags;
+
+    EntryListener(String prefix, NetworkTablesJNI.EntryListenerFunction listener, int flags) {
+      this.prefix = prefix;
+      this.listener = listener;
+      this.flags = flags;
+    }
+  }
+
+  private static class Notification {
+    final String key;
+    final Object value;
+    final int flags;
+
+    Notification(String key, Object value, int flags) {
+      this.key = key;
+      this.value = value;
+      this.flags = flags;
+    }
+  }
+
+  private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+  private final ConcurrentSkipListMap<Integer,EntryListener> entryListeners = new ConcurrentSkipListMap<Integer,EntryListener>();
+  private final ConcurrentSkipListMap<Integer,NetworkTablesJNI.ConnectionListenerFunction> connListeners = new ConcurrentSkipListMap<Integer,NetworkTablesJNI.ConnectionListenerFunction>();
+  private final AtomicInteger nextUid = new AtomicInteger(1);
+
+  // notifications not yet delivered, and whether a thread is delivering
+  // them; both protected by pendingNotifications
+  private final ArrayDeque<Notification> pendingNotifications = new ArrayDeque<Notification>();
+  private boolean dispatching;
+
+  private static long now() {
+    // same 100 ns units as the native library
+    return System.nanoTime() / 100;
+  }
+
+  private static int typeOf(Object value) {
+    if (value instanceof Boolean) return BOOLEAN;
+    if (value instanceof Double) return DOUBLE;
+    if (value instanceof String) return STRING;
+    if (value instanceof byte[]) return RAW;
+    if (value instanceof boolean[]) return BOOLEAN_ARRAY;
+    if (value instanceof double[]) return DOUBLE_ARRAY;
+    if (value instanceof String[]) return STRING_ARRAY;
+    return 0;
+  }
+
+  /* Copies arrays so callers can't modify stored values. */
+  private static Object copyOf(Object value) {
+    if (value instanceof byte[]) return ((byte[])value).clone();
+    if (value instanceof boolean[]) return ((boolean[])value).clone();
+    if (value instanceof double[]) return ((double[])value).clone();
+    if (value instanceof String[]) return ((String[])value).clone();
+    return value;
+  }
+
+  private static boolean valueEquals(Object a, Object b) {
+    if (a instanceof byte[] && b instanceof byte[]) return Arrays.equals((byte[])a, (byte[])b);
+    if (a instanceof boolean[] && b instanceof boolean[]) return Arrays.equals((boolean[])a, (boolean[])b);
+    if (a instanceof double[] && b instanceof double[]) return Arrays.equals((double[])a, (double[])b);
+    if (a instanceof String[] && b instanceof String[]) return Arrays.equals((String[])a, (String[])b);
+    return a.equals(b);
+  }
+
+  /* Stores an already-copied value.  Unless force is set, fails if the entry
+   * exists with a different type. */
+  private boolean put(String key, Object value, boolean force) {
+    if (value == null)
+      throw new NullPointerException(key);
+    for (;;) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(value);
+        synchronized (entry) {
+          if (entries.putIfAbsent(key, entry) != null)
+            continue;
+          queueNotify(key, value, NOTIFY_NEW | NOTIFY_LOCAL);
+        }
+        dispatchNotifications();
+        return true;
+      }
+      synchronized (entry) {
+        if (entry.deleted)
+          continue;  // lost a race with a delete; start over
+        if (!force && entry.type != typeOf(value))
+          return false;
+        if (valueEquals(entry.value, value))
+          return true;
+        entry.setValue(value);
+        queueNotify(key, value, NOTIFY_UPDATE | NOTIFY_LOCAL);
+      }
+      dispatchNotifications();
+      return true;
+    }
+  }
+
+  /* Returns the stored value (not a copy), or null if it doesn't exist or
+   * isn't of the given type mask. */
+  private Object get(String key, int types) {
+    Entry entry = entries.get(key);
+    if (entry == null)
+      return null;
+    synchronized (entry) {
+      if ((entry.type & types) == 0)
+        return null;
+      return entry.value;
+    }
+  }
+
+  private Object getOrThrow(String key, int types) throws TableKeyNotDefinedException {
+    Object value = get(key, types);
+    if (value == null)
+      throw new TableKeyNotDefinedException(key);
+    return value;
+  }
+
+  private static final int NOTIFY_IMMEDIATE = ITable.NOTIFY_IMMEDIATE;
+  private static final int NOTIFY_LOCAL = ITable.NOTIFY_LOCAL;
+  private static final int NOTIFY_NEW = ITable.NOTIFY_NEW;
+  private static final int NOTIFY_DELETE = ITable.NOTIFY_DELETE;
+  private static final int NOTIFY_UPDATE = ITable.NOTIFY_UPDATE;
+  private static final int NOTIFY_FLAGS = ITable.NOTIFY_FLAGS;
+
+  /* Queues a notification.  Called with the entry lock held, so
+   * notifications for an entry are queued in the order of its changes. */
+  private void queueNotify(String key, Object value, int flags) {
+    synchronized (pendingNotifications) {
+      pendingNotifications.add(new Notification(key, value, flags));
+    }
+  }
+
+  /* Delivers queued notifications in order.  Must be called without any
+   * entry lock held.  Only one thread delivers at a time; if another thread
+   * (or a listener further up this thread's stack) already is, it also
+   * delivers the ones queued here. */
+  private void dispatchNotifications() {
+    synchronized (pendingNotifications) {
+      if (dispatching)
+        return;
+      dispatching = true;
+    }
+    boolean done = false;
+    try {
+      for (;;) {
+        Notification n;
+        synchronized (pendingNotifications) {
+          n = pendingNotifications.poll();
+          if (n == null) {
+            dispatching = false;
+            done = true;
+            return;
+          }
+        }
+        notifyEntry(n.key, n.value, n.flags);
+      }
+    } finally {
+      // a listener threw; leave the rest for the next change
+      if (!done) {
+        synchronized (pendingNotifications) {
+          dispatching = false;
+        }
+      }
+    }
+  }
+
+  private void notifyEntry(String key, Object value, int flags) {
+    for (Map.Entry<Integer,EntryListener> i : entryListeners.entrySet()) {
+      EntryListener l = i.getValue();
+      // an assign that changes both value and flags matches listeners for
+      // either, as in the native library
+      int listenFlags = l.flags;
+      int notifyFlags = flags;
+      int assignBoth = NOTIFY_UPDATE | NOTIFY_FLAGS;
+      if ((notifyFlags & assignBoth) == assignBoth) {
+        if ((listenFlags & assignBoth) == 0)
+          continue;
+        listenFlags &= ~assignBoth;
+        notifyFlags &= ~assignBoth;
+      }
+      if ((notifyFlags & ~listenFlags) != 0)
+        continue;
+      if (!key.startsWith(l.prefix))
+        continue;
+      l.listener.apply(i.getKey(), key, copyOf(value), flags);
+    }
+  }
+
+  public boolean containsKey(String key) {
+    return entries.containsKey(key);
+  }
+
+  public boolean putBoolean(String key, boolean value) {
+    return put(key, Boolean.valueOf(value), false);
+  }
+  public boolean putDouble(String key, double value) {
+    return put(key, Double.valueOf(value), false);
+  }
+  public boolean putString(String key, String value) {
+    return put(key, value, false);
+  }
+  public boolean putRaw(String key, byte[] value) {
+    return put(key, value.clone(), false);
+  }
+  public boolean putRaw(String key, ByteBuffer value, int len) {
+    // like the native library, always reads from the start of the buffer
+    byte[] arr = new byte[len];
+    ByteBuffer dup = value.duplicate();
+    dup.clear();
+    dup.get(arr);
+    return put(key, arr, false);
+  }
+  public boolean putBooleanArray(String key, boolean[] value) {
+    return put(key, value.clone(), false);
+  }
+  public boolean putDoubleArray(String key, double[] value) {
+    return put(key, value.clone(), false);
+  }
+  public boolean putStringArray(String key, String[] value) {
+    return put(key, value.clone(), false);
+  }
+
+  public Object getValue(String key) throws TableKeyNotDefinedException {
+    return copyOf(getOrThrow(key, ~0));
+  }
+  public boolean getBoolean(String key) throws TableKeyNotDefinedException {
+    return ((Boolean)getOrThrow(key, BOOLEAN)).booleanValue();
+  }
+  public double getDouble(String key) throws TableKeyNotDefinedException {
+    return ((Double)getOrThrow(key, DOUBLE)).doubleValue();
+  }
+  public String getString(String key) throws TableKeyNotDefinedException {
+    return (String)getOrThrow(key, STRING);
+  }
+  public byte[] getRaw(String key) throws TableKeyNotDefinedException {
+    return ((byte[])getOrThrow(key, RAW)).clone();
+  }
+  public boolean[] getBooleanArray(String key) throws TableKeyNotDefinedException {
+    return ((boolean[])getOrThrow(key, BOOLEAN_ARRAY)).clone();
+  }
+  public double[] getDoubleArray(String key) throws TableKeyNotDefinedException {
+    return ((double[])getOrThrow(key, DOUBLE_ARRAY)).clone();
+  }
+  public String[] getStringArray(String key) throws TableKeyNotDefinedException {
+    return ((String[])getOrThrow(key, STRING_ARRAY)).clone();
+  }
+
+  public Object getValue(String key, Object defaultValue) {
+    Object value = get(key, ~0);
+    return value != null ? copyOf(value) : defaultValue;
+  }
+  public boolean getBoolean(String key, boolean defaultValue) {
+    Object value = get(key, BOOLEAN);
+    return value != null ? ((Boolean)value).booleanValue() : defaultValue;
+  }
+  public double getDouble(String key, double defaultValue) {
+    Object value = get(key, DOUBLE);
+    return value != null ? ((Double)value).doubleValue() : defaultValue;
+  }
+  public String getString(String key, String defaultValue) {
+    Object value = get(key, STRING);
+    return value != null ? (String)value : defaultValue;
+  }
+  public byte[] getRaw(String key, byte[] defaultValue) {
+    Object value = get(key, RAW);
+    return value != null ? ((byte[])value).clone() : defaultValue;
+  }
+  public boolean[] getBooleanArray(String key, boolean[] defaultValue) {
+    Object value = get(key, BOOLEAN_ARRAY);
+    return value != null ? ((boolean[])value).clone() : defaultValue;
+  }
+  public double[] getDoubleArray(String key, double[] defaultValue) {
+    Object value = get(key, DOUBLE_ARRAY);
+    return value != null ? ((double[])value).clone() : defaultValue;
+  }
+  public String[] getStringArray(String key, String[] defaultValue) {
+    Object value = get(key, STRING_ARRAY);
+    return value != null ? ((String[])value).clone() : defaultValue;
+  }
+
+  public void setEntryFlags(String key, int flags) {
+    Entry entry = entries.get(key);
+    if (entry == null)
+      return;
+    Object value;
+    synchronized (entry) {
+      if (entry.deleted || entry.flags == flags)
+        return;
+      entry.flags = flags;
+      queueNotify(key, entry.value, NOTIFY_FLAGS | NOTIFY_LOCAL);
+    }
+    dispatchNotifications();
+  }
+
+  public int getEntryFlags(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null)
+      return 0;
+    synchronized (entry) {
+      return entry.flags;
+    }
+  }
+
+  public void setEntryHistory(String key, int size) {
+    Entry entry = entries.get(key);
+    if (entry == null)
+      return;
+    synchronized (entry) {
+      if (size <= 0) {
+        entry.historyValues = null;
+        entry.historyTimes = null;
+        return;
+      }
+      if (entry.historyValues != null && entry.historyValues.length == size)
+        return;
+      entry.historyValues = new double[size];
+      entry.historyTimes = new long[size];
+      entry.historyNext = 0;
+      entry.historyCount = 0;
+      entry.recordHistory();
+    }
+  }
+
+  /* There is no network to publish to, so the policy is ignored and
+   * listeners see every change. */
+  public void setEntryPublishPolicy(String key, double maxRate, double deadband, boolean relative) {
+  }
+
+  public int getNumberHistory(String key, long since, double[] values, long[] times) {
+    Entry entry = entries.get(key);
+    if (entry == null)
+      return 0;
+    synchronized (entry) {
+      if (entry.historyValues == null)
+        return 0;
+      int cap = entry.historyValues.length;
+      int size = values != null ? values.length : 0;
+      if (times != null && times.length < size)
+        size = times.length;
+      // walk back from the newest to find how many to return
+      int n = 0;
+      while (n < entry.historyCount && n < size) {
+        int slot = (entry.historyNext + cap - 1 - n) % cap;
+        if (entry.historyTimes[slot] < since)
+          break;
+        ++n;
+      }
+      // then copy them out oldest first
+      int slot = (entry.historyNext + cap - n) % cap;
+      for (int i = 0; i < n; ++i) {
+        values[i] = entry.historyValues[slot];
+        if (times != null)
+          times[i] = entry.historyTimes[slot];
+        if (++slot == cap)
+          slot = 0;
+      }
+      return n;
+    }
+  }
+
+  public void deleteEntry(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null)
+      return;
+    synchronized (entry) {
+      if (entry.deleted)
+        return;
+      entry.deleted = true;
+      queueNotify(key, entry.value, NOTIFY_DELETE | NOTIFY_LOCAL);
+    }
+    entries.remove(key, entry);
+    dispatchNotifications();
+  }
+
+  public void deleteAllEntries() {
+    for (String key : entries.keySet())
+      deleteEntry(key);
+  }
+
+  public EntryInfo[] getEntries(String prefix, int types) {
+    List<EntryInfo> infos = new ArrayList<EntryInfo>();
+    for (Map.Entry<String,Entry> i : entries.entrySet()) {
+      if (!i.getKey().startsWith(prefix))
+        continue;
+      Entry entry = i.getValue();
+      synchronized (entry) {
+        if (entry.deleted || (types != 0 && (entry.type & types) == 0))
+          continue;
+        infos.add(new EntryInfo(i.getKey(), entry.type, entry.flags, entry.lastChange));
+      }
+    }
+    return infos.toArray(new EntryInfo[infos.size()]);
+  }
+
+  public int addEntryListener(String prefix, NetworkTablesJNI.EntryListenerFunction listener, int flags) {
+    int uid = nextUid.getAndIncrement();
+    entryListeners.put(uid, new EntryListener(prefix, listener, flags));
+    if ((flags & NOTIFY_IMMEDIATE) != 0) {
+      for (Map.Entry<String,Entry> i : entries.entrySet()) {
+        if (!i.getKey().startsWith(prefix))
+          continue;
+        Object value;
+        Entry entry = i.getValue();
+        synchronized (entry) {
+          if (entry.deleted)
+            continue;
+          value = entry.value;
+        }
+        listener.apply(uid, i.getKey(), copyOf(value), NOTIFY_IMMEDIATE);
+      }
+    }
+    return uid;
+  }
+
+  public void removeEntryListener(int entryListenerUid) {
+    entryListeners.remove(entryListenerUid);
+  }
+
+  /* There are never any connections, so connection listeners are only
+   * tracked to keep uids consistent. */
+  public int addConnectionListener(NetworkTablesJNI.ConnectionListenerFunction listener, boolean immediateNotify) {
+    int uid = nextUid.getAndIncrement();
+    connListeners.put(uid, listener);
+    return uid;
+  }
+
+  public void removeConnectionListener(int connListenerUid) {
+    connListeners.remove(connListenerUid);
+  }
+
+  public ConnectionInfo[] getConnections() {
+    return new ConnectionInfo[0];
+  }
+
+  public void savePersistent(String filename) throws PersistentException {
+    // copy out and sort in name order
+    TreeMap<String,Object> persistent = new TreeMap<String,Object>();
+    for (Map.Entry<String,Entry> i : entries.entrySet()) {
+      Entry entry = i.getValue();
+      synchronized (entry) {
+        if (!entry.deleted && (entry.flags & NetworkTable.PERSISTENT) != 0)
+          persistent.put(i.getKey(), entry.value);
+      }
+    }
+
+    // write to a temporary file, then move it over the real one
+    File file = new File(filename);
+    File tmp = new File(filename + ".tmp");
+    File bak = new File(filename + ".bak");
+    try {
+      Writer os = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+      try {
+        os.write(PERSISTENT_HEADER);
+        os.write('\n');
+        for (Map.Entry<String,Object> i : persistent.entrySet()) {
+          writeEntry(os, i.getKey(), i.getValue());
+          os.write('\n');
+        }
+      } finally {
+        os.close();
+      }
+    } catch (IOException e) {
+      tmp.delete();
+      throw new PersistentException("error saving file");
+    }
+    // ignore any failures related to the backup
+    bak.delete();
+    file.renameTo(bak);
+    if (!tmp.renameTo(file)) {
+      bak.renameTo(file);  // attempt to restore backup
+      throw new PersistentException("could not rename temp file to real file");
+    }
+  }
+
+  public String[] loadPersistent(String filename) throws PersistentException {
+    List<String> warns = new ArrayList<String>();
+    Map<String,Object> loaded = new LinkedHashMap<String,Object>();
+    try {
+      BufferedReader is = new BufferedReader(new InputStreamReader(new FileInputStream(filename), UTF8));
+      try {
+        if (!readPersistent(is, loaded, warns))
+          throw new PersistentException("error reading file");
+      } finally {
+        is.close();
+      }
+    } catch (FileNotFoundException e) {
+      throw new PersistentException("could not open file");
+    } catch (PersistentException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PersistentException("error reading file");
+    }
+
+    for (Map.Entry<String,Object> i : loaded.entrySet()) {
+      String key = i.getKey();
+      Object value = i.getValue();
+      for (;;) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+          entry = new Entry(value);
+          entry.flags = NetworkTable.PERSISTENT;
+          synchronized (entry) {
+            if (entries.putIfAbsent(key, entry) != null)
+              continue;
+            queueNotify(key, value, NOTIFY_NEW | NOTIFY_LOCAL);
+          }
+          dispatchNotifications();
+          break;
+        }
+        int notifyFlags = NOTIFY_UPDATE | NOTIFY_LOCAL;
+        synchronized (entry) {
+          if (entry.deleted)
+            continue;
+          boolean changed = !valueEquals(entry.value, value);
+          if ((entry.flags & NetworkTable.PERSISTENT) == 0) {
+            entry.flags |= NetworkTable.PERSISTENT;
+            notifyFlags |= NOTIFY_FLAGS;
+          }
+          if (!changed)
+            break;
+          entry.setValue(value);
+          queueNotify(key, value, notifyFlags);
+        }
+        dispatchNotifications();
+        break;
+      }
+    }
+    return warns.toArray(new String[warns.size()]);
+  }
+
+  /*
+   * Persistent file format
+   */
+
+  private static void writeEntry(Writer os, String name, Object v) throws IOException {
+    switch (typeOf(v)) {
+      case BOOLEAN: os.write("boolean "); break;
+      case DOUBLE: os.write("double "); break;
+      case STRING: os.write("string "); break;
+      case RAW: os.write("raw "); break;
+      case BOOLEAN_ARRAY: os.write("array boolean "); break;
+      case DOUBLE_ARRAY: os.write("array double "); break;
+      case STRING_ARRAY: os.write("array string "); break;
+      default: return;
+    }
+    writeString(os, name);
+    os.write('=');
+    if (v instanceof Boolean) {
+      os.write(v.toString());
+    } else if (v instanceof Double) {
+      os.write(formatDouble(((Double)v).doubleValue()));
+    } else if (v instanceof String) {
+      writeString(os, (String)v);
+    } else if (v instanceof byte[]) {
+      os.write(Base64.getEncoder().encodeToString((byte[])v));
+    } else if (v instanceof boolean[]) {
+      boolean[] arr = (boolean[])v;
+      for (int i = 0; i < arr.length; i++) {
+        if (i != 0) os.write(',');
+        os.write(arr[i] ? "true" : "false");
+      }
+    } else if (v instanceof double[]) {
+      double[] arr = (double[])v;
+      for (int i = 0; i < arr.length; i++) {
+        if (i != 0) os.write(',');
+        os.write(formatDouble(arr[i]));
+      }
+    } else if (v instanceof String[]) {
+      String[] arr = (String[])v;
+      for (int i = 0; i < arr.length; i++) {
+        if (i != 0) os.write(',');
+        writeString(os, arr[i]);
+      }
+    }
+  }
+
+  private static String formatDouble(double v) {
+    // spelled the way the native reader (strtod) expects
+    if (Double.isNaN(v)) return "nan";
+    if (Double.isInfinite(v)) return v > 0 ? "inf" : "-inf";
+    return Double.toString(v);
+  }
+
+  private static double parseDouble(String s) throws NumberFormatException {
+    String lower = s.toLowerCase();
+    if (lower.equals("nan")) return Double.NaN;
+    if (lower.equals("inf") || lower.equals("infinity")) return Double.POSITIVE_INFINITY;
+    if (lower.equals("-inf") || lower.equals("-infinity")) return Double.NEGATIVE_INFINITY;
+    return Double.parseDouble(s);
+  }
+
+  /* Escapes and writes a string, including start and end double quotes.
+   * Escapes are of UTF-8 bytes, as in the native library. */
+  private static void writeString(Writer os, String str) throws IOException {
+    os.write('"');
+    for (byte b : str.getBytes(UTF8)) {
+      switch (b) {
+        case '\\': os.write("\\\\"); break;
+        case '\t': os.write("\\t"); break;
+        case '\n': os.write("\\n"); break;
+        case '"': os.write("\\\""); break;
+        default:
+          if (b >= 0x20 && b < 0x7f) {
+            os.write(b);
+            break;
+          }
+          os.write(String.format("\\x%02x", b & 0xff));
+      }
+    }
+    os.write('"');
+  }
+
+  /* Extracts a quoted string token from the start of source.  Returns the
+   * end index (exclusive of the closing quote), or -1 if there is no opening
+   * quote, or source.length() if unterminated. */
+  private static int readStringToken(String source) {
+    if (source.isEmpty() || source.charAt(0) != '"')
+      return -1;
+    for (int pos = 1; pos < source.length(); ++pos) {
+      if (source.charAt(pos) == '"' && source.charAt(pos - 1) != '\\')
+        return pos;
+    }
+    return source.length();
+  }
+
+  private static String unescapeString(String source) {
+    ByteArrayOutputStream dest = new ByteArrayOutputStream(source.length());
+    byte[] s = source.getBytes(UTF8);
+    for (int i = 0; i < s.length; ++i) {
+      if (s[i] != '\\' || i + 1 >= s.length) {
+        dest.write(s[i]);
+        continue;
+      }
+      byte c = s[++i];
+      switch (c) {
+        case 't': dest.write('\t'); break;
+        case 'n': dest.write('\n'); break;
+        case 'x': {
+          int hi = i + 1 < s.length ? Character.digit(s[i + 1], 16) : -1;
+          if (hi < 0) {
+            dest.write('x');  // treat it like a unknown escape
+            break;
+          }
+          int ch = hi;
+          ++i;
+          int lo = i + 1 < s.length ? Character.digit(s[i + 1], 16) : -1;
+          if (lo >= 0) {
+            ch = (ch << 4) | lo;
+            ++i;
+          }
+          dest.write(ch);
+          break;
+        }
+        default: dest.write(c); break;
+      }
+    }
+    return new String(dest.toByteArray(), UTF8);
+  }
+
+  /* Parses the persistent file, adding values to out and line-numbered
+   * warnings to warns.  Returns false if the header doesn't match. */
+  private static boolean readPersistent(BufferedReader is, Map<String,Object> out,
+                                        List<String> warns) throws IOException {
+    int lineNum = 1;
+    String line;
+
+    // ignore blank lines and lines that start with ; or # (comments)
+    while ((line = is.readLine()) != null) {
+      String trimmed = line.trim();
+      if (!trimmed.isEmpty() && trimmed.charAt(0) != ';' && trimmed.charAt(0) != '#')
+        break;
+    }
+
+    // header
+    if (!PERSISTENT_HEADER.equals(line)) {
+      warns.add(lineNum + ": header line mismatch, ignoring rest of file");
+      return false;
+    }
+
+    while ((line = is.readLine()) != null) {
+      ++lineNum;
+      line = line.trim();
+      if (line.isEmpty() || line.charAt(0) == ';' || line.charAt(0) == '#')
+        continue;
+      String err = parseLine(line, out);
+      if (err != null)
+        warns.add(lineNum + ": " + err);
+    }
+    return true;
+  }
+
+  /* Parses one entry line into out; returns a warning message or null. */
+  private static String parseLine(String line, Map<String,Object> out) {
+    // type
+    int type = 0;
+    int sp = line.indexOf(' ');
+    String typeTok = sp < 0 ? line : line.substring(0, sp);
+    line = sp < 0 ? "" : line.substring(sp + 1);
+    if (typeTok.equals("boolean")) type = BOOLEAN;
+    else if (typeTok.equals("double")) type = DOUBLE;
+    else if (typeTok.equals("string")) type = STRING;
+    else if (typeTok.equals("raw")) type = RAW;
+    else if (typeTok.equals("array")) {
+      sp = line.indexOf(' ');
+      String arrayTok = sp < 0 ? line : line.substring(0, sp);
+      line = sp < 0 ? "" : line.substring(sp + 1);
+      if (arrayTok.equals("boolean")) type = BOOLEAN_ARRAY;
+      else if (arrayTok.equals("double")) type = DOUBLE_ARRAY;
+      else if (arrayTok.equals("string")) type = STRING_ARRAY;
+    }
+    if (type == 0)
+      return "unrecognized type";
+
+    // name
+    int end = readStringToken(line);
+    if (end < 0)
+      return "missing name";
+    if (end == line.length())
+      return "unterminated name string";
+    String name = unescapeString(line.substring(1, end));
+    line = line.substring(end + 1).trim();
+
+    // =
+    if (line.isEmpty() || line.charAt(0) != '=')
+      return "expected = after name";
+    line = line.substring(1).trim();
+
+    // value
+    Object value;
+    switch (type) {
+      case BOOLEAN:
+        // only true or false is accepted
+        if (line.equals("true"))
+          value = Boolean.TRUE;
+        else if (line.equals("false"))
+          value = Boolean.FALSE;
+        else
+          return "unrecognized boolean value, not 'true' or 'false'";
+        break;
+      case DOUBLE:
+        try {
+          value = parseDouble(line);
+        } catch (NumberFormatException e) {
+          return "invalid double value";
+        }
+        break;
+      case STRING:
+        end = readStringToken(line);
+        if (end < 0)
+          return "missing string value";
+        if (end == line.length())
+          return "unterminated string value";
+        value = unescapeString(line.substring(1, end));
+        break;
+      case RAW:
+        value = Base64.getMimeDecoder().decode(line);
+        break;
+      case BOOLEAN_ARRAY: {
+        List<Boolean> arr = new ArrayList<Boolean>();
+        if (!line.isEmpty()) {
+          for (String elem : line.split(",", -1)) {
+            elem = elem.trim();
+            if (elem.equals("true"))
+              arr.add(Boolean.TRUE);
+            else if (elem.equals("false"))
+              arr.add(Boolean.FALSE);
+            else
+              return "unrecognized boolean value, not 'true' or 'false'";
+          }
+        }
+        value = NetworkTable.toNative(arr.toArray(new Boolean[arr.size()]));
+        break;
+      }
+      case DOUBLE_ARRAY: {
+        List<Double> arr = new ArrayList<Double>();
+        if (!line.isEmpty()) {
+          for (String elem : line.split(",", -1)) {
+            try {
+              arr.add(parseDouble(elem.trim()));
+            } catch (NumberFormatException e) {
+              return "invalid double value";
+            }
+          }
+        }
+        value = NetworkTable.toNative(arr.toArray(new Double[arr.size()]));
+        break;
+      }
+      case STRING_ARRAY: {
+        List<String> arr = new ArrayList<String>();
+        while (!line.isEmpty()) {
+          end = readStringToken(line);
+          if (end < 0)
+            return "missing string value";
+          if (end == line.length())
+            return "unterminated string value";
+          arr.add(unescapeString(line.substring(1, end)));
+          line = line.substring(end + 1).trim();
+          if (line.isEmpty())
+            break;
+          if (line.charAt(0) != ',')
+            return "expected comma between strings";
+          line = line.substring(1).trim();
+        }
+        value = arr.toArray(new String[arr.size()]);
+        break;
+      }
+      default:
+        return null;
+    }
+    if (!name.isEmpty())
+      out.put(name, value);
+    return null;
+  }
+}
@@ -0,0 +1,68 @@
+package edu.wpi.first.wpilibj.networktables;
+
+/**
+ * Layout of and helpers for the array returned by
+ * {@link NetworkTablesJNI#getLatencyHistograms()}.  The array is a sequence
+ * of BLOCK sized histograms.  Latencies are in
+ * {@link NetworkTablesJNI#now()} units (100 ns).
+ */
+public final class LatencyHistograms {
+  // stages
+  public static final int QUEUED = 0;
+  public static final int POSTED = 1;
+  public static final int SENT = 2;
+  public static final int NOTIFIED = 3;
+
+  // sources
+  public static final int SOURCE_CONNECTION = 0;
+  public static final int SOURCE_PREFIX = 1;
+
+  // block layout
+  public static final int SOURCE = 0;
+  public static final int ID = 1;
+  public static final int STAGE = 2;
+  public static final int COUNT = 3;
+  public static final int BUCKETS = 4;
+  public static final int NUM_BUCKETS = 272;
+  public static final int BLOCK = BUCKETS + NUM_BUCKETS;
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * Gets the lowest latency counted by a bucket.
+   *
+   * @param bucket bucket index
+   * @return latency in 100 ns units
+   */
+  public static long bucketValue(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS))
+        << (magnitude - SUB_BUCKET_BITS);
+  }
+
+  /**
+   * Gets the latency at a given percentile of one histogram.
+   *
+   * @param data array returned by getLatencyHistograms()
+   * @param offset offset of the histogram block within data
+   * @param percentile percentile (0 to 100)
+   * @return latency in 100 ns units (lower bound of the bucket)
+   */
+  public static long valueAtPercentile(long[] data, int offset,
+                                       double percentile) {
+    long count = data[offset + COUNT];
+    if (count == 0) return 0;
+    long target = (long) Math.ceil(count * percentile / 100.0);
+    if (target < 1) target = 1;
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      seen += data[offset + BUCKETS + i];
+      if (seen >= target) return bucketValue(i);
+    }
+    return bucketValue(NUM_BUCKETS - 1);
+  }
+
+  private LatencyHistograms() {}
+}
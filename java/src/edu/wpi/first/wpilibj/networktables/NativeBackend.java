@@ -0,0 +1,139 @@
+package edu.wpi.first.wpilibj.networktables;
+
+import edu.wpi.first.wpilibj.tables.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The ntcore library, through {@link NetworkTablesJNI}.  The native library
+ * is loaded on first use rather than when this class is loaded.
+ */
+public class NativeBackend implements NetworkTablesBackend {
+  public boolean containsKey(String key) {
+    return NetworkTablesJNI.containsKey(key);
+  }
+
+  public boolean putBoolean(String key, boolean value) {
+    return NetworkTablesJNI.putBoolean(key, value);
+  }
+  public boolean putDouble(String key, double value) {
+    return NetworkTablesJNI.putDouble(key, value);
+  }
+  public boolean putString(String key, String value) {
+    return NetworkTablesJNI.putString(key, value);
+  }
+  public boolean putRaw(String key, byte[] value) {
+    return NetworkTablesJNI.putRaw(key, value);
+  }
+  public boolean putRaw(String key, ByteBuffer value, int len) {
+    return NetworkTablesJNI.putRaw(key, value, len);
+  }
+  public boolean putBooleanArray(String key, boolean[] value) {
+    return NetworkTablesJNI.putBooleanArray(key, value);
+  }
+  public boolean putDoubleArray(String key, double[] value) {
+    return NetworkTablesJNI.putDoubleArray(key, value);
+  }
+  public boolean putStringArray(String key, String[] value) {
+    return NetworkTablesJNI.putStringArray(key, value);
+  }
+
+  public Object getValue(String key) throws TableKeyNotDefinedException {
+    return NetworkTablesJNI.getValue(key);
+  }
+  public boolean getBoolean(String key) throws TableKeyNotDefinedException {
+    return NetworkTablesJNI.getBoolean(key);
+  }
+  public double getDouble(String key) throws TableKeyNotDefinedException {
+    return NetworkTablesJNI.getDouble(key);
+  }
+  public String getString(String key) throws TableKeyNotDefinedException {
+    return NetworkTablesJNI.getString(key);
+  }
+  public byte[] getRaw(String key) throws TableKeyNotDefinedException {
+    return NetworkTablesJNI.getRaw(key);
+  }
+  public boolean[] getBooleanArray(String key) throws TableKeyNotDefinedException {
+    return NetworkTablesJNI.getBooleanArray(key);
+  }
+  public double[] getDoubleArray(String key) throws TableKeyNotDefinedException {
+    return NetworkTablesJNI.getDoubleArray(key);
+  }
+  public String[] getStringArray(String key) throws TableKeyNotDefinedException {
+    return NetworkTablesJNI.getStringArray(key);
+  }
+
+  public Object getValue(String key, Object defaultValue) {
+    return NetworkTablesJNI.getValue(key, defaultValue);
+  }
+  public boolean getBoolean(String key, boolean defaultValue) {
+    return NetworkTablesJNI.getBoolean(key, defaultValue);
+  }
+  public double getDouble(String key, double defaultValue) {
+    return NetworkTablesJNI.getDouble(key, defaultValue);
+  }
+  public String getString(String key, String defaultValue) {
+    return NetworkTablesJNI.getString(key, defaultValue);
+  }
+  public byte[] getRaw(String key, byte[] defaultValue) {
+    return NetworkTablesJNI.getRaw(key, defaultValue);
+  }
+  public boolean[] getBooleanArray(String key, boolean[] defaultValue) {
+    return NetworkTablesJNI.getBooleanArray(key, defaultValue);
+  }
+  public double[] getDoubleArray(String key, double[] defaultValue) {
+    return NetworkTablesJNI.getDoubleArray(key, defaultValue);
+  }
+  public String[] getStringArray(String key, String[] defaultValue) {
+    return NetworkTablesJNI.getStringArray(key, defaultValue);
+  }
+
+  public void setEntryFlags(String key, int flags) {
+    NetworkTablesJNI.setEntryFlags(key, flags);
+  }
+  public int getEntryFlags(String key) {
+    return NetworkTablesJNI.getEntryFlags(key);
+  }
+  public void setEntryHistory(String key, int size) {
+    NetworkTablesJNI.setEntryHistory(key, size);
+  }
+  public int getNumberHistory(String key, long since, double[] values, long[] times) {
+    return NetworkTablesJNI.getNumberHistory(key, since, values, times);
+  }
+  public void setEntryPublishPolicy(String key, double maxRate, double deadband, boolean relative) {
+    NetworkTablesJNI.setEntryPublishPolicy(key, maxRate, deadband, relative);
+  }
+
+  public void deleteEntry(String key) {
+    NetworkTablesJNI.deleteEntry(key);
+  }
+  public void deleteAllEntries() {
+    NetworkTablesJNI.deleteAllEntries();
+  }
+
+  public EntryInfo[] getEntries(String prefix, int types) {
+    return NetworkTablesJNI.getEntries(prefix, types);
+  }
+
+  public int addEntryListener(String prefix, NetworkTablesJNI.EntryListenerFunction listener, int flags) {
+    return NetworkTablesJNI.addEntryListener(prefix, listener, flags);
+  }
+  public void removeEntryListener(int entryListenerUid) {
+    NetworkTablesJNI.removeEntryListener(entryListenerUid);
+  }
+  public int addConnectionListener(NetworkTablesJNI.ConnectionListenerFunction listener, boolean immediateNotify) {
+    return NetworkTablesJNI.addConnectionListener(listener, immediateNotify);
+  }
+  public void removeConnectionListener(int connListenerUid) {
+    NetworkTablesJNI.removeConnectionListener(connListenerUid);
+  }
+  public ConnectionInfo[] getConnections() {
+    return NetworkTablesJNI.getConnections();
+  }
+
+  public void savePersistent(String filename) throws PersistentException {
+    NetworkTablesJNI.savePersistent(filename);
+  }
+  public String[] loadPersistent(String filename) throws PersistentException {
+    return NetworkTablesJNI.loadPersistent(filename);
+  }
+}
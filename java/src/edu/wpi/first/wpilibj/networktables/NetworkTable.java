@@ -21,10 +21,13 @@ public class NetworkTable implements ITable, IRemote {
   public static final int DEFAULT_PORT = 1735;
 
   private static boolean client = false;
+  private static boolean relay = false;
   private static boolean running = false;
   private static int port = DEFAULT_PORT;
+  private static int relayPort = DEFAULT_PORT;
   private static String ipAddress = "";
   private static String persistentFilename = "networktables.ini";
+  private static NetworkTablesBackend defaultBackend = null;
 
   private synchronized static void checkInit() {
     if (running)
@@ -38,10 +41,14 @@ public class NetworkTable implements ITable, IRemote {
   public synchronized static void initialize() {
     if (running)
       shutdown();
-    if (client)
-      NetworkTablesJNI.startClient(ipAddress, port);
-    else
-      NetworkTablesJNI.startServer(persistentFilename, "", port);
+    if (usingNative()) {
+      if (relay)
+        NetworkTablesJNI.startRelay(ipAddress, port, "", relayPort);
+      else if (client)
+        NetworkTablesJNI.startClient(ipAddress, port);
+      else
+        NetworkTablesJNI.startServer(persistentFilename, "", port);
+    }
     running = true;
   }
 
@@ -51,10 +58,14 @@ public class NetworkTable implements ITable, IRemote {
   public synchronized static void shutdown() {
     if (!running)
       return;
-    if (client)
-      NetworkTablesJNI.stopClient();
-    else
-      NetworkTablesJNI.stopServer();
+    if (usingNative()) {
+      if (relay)
+        NetworkTablesJNI.stopRelay();
+      else if (client)
+        NetworkTablesJNI.stopClient();
+      else
+        NetworkTablesJNI.stopServer();
+    }
     running = false;
   }
 
@@ -63,10 +74,11 @@ public class NetworkTable implements ITable, IRemote {
    * This must be called before initialize or getTable
    */
   public synchronized static void setServerMode() {
-    if (!client)
+    if (!client && !relay)
       return;
     checkInit();
     client = false;
+    relay = false;
   }
 
   /**
@@ -74,10 +86,27 @@ public class NetworkTable implements ITable, IRemote {
    * This must be called before initialize or getTable
    */
   public synchronized static void setClientMode() {
-    if (client)
+    if (client && !relay)
       return;
     checkInit();
     client = true;
+    relay = false;
+  }
+
+  /**
+   * set that network tables should relay a server to its own clients: it
+   * connects to the server as one client (see {@link #setIPAddress(String)}
+   * and {@link #setPort(int)}) and serves the entries on another port
+   * This must be called before initialize or getTable
+   * @param listenPort the port to serve the relayed entries on
+   */
+  public synchronized static void setRelayMode(int listenPort) {
+    if (relay && relayPort == listenPort)
+      return;
+    checkInit();
+    client = true;
+    relay = true;
+    relayPort = listenPort;
   }
 
   /**
@@ -92,7 +121,7 @@ public class NetworkTable implements ITable, IRemote {
 
   /**
    * @param address the adress that network tables will connect to in client
-   * mode
+   * mode, or "unix:&lt;path&gt;" for a server on the same host
    */
   public synchronized static void setIPAddress(final String address) {
     if (ipAddress.equals(address))
@@ -130,7 +159,8 @@ public class NetworkTable implements ITable, IRemote {
    * @param name identity
    */
   public static void setNetworkIdentity(String name) {
-    NetworkTablesJNI.setNetworkIdentity(name);
+    if (usingNative())
+      NetworkTablesJNI.setNetworkIdentity(name);
   }
 
   public static boolean[] toNative(Boolean[] arr) {
@@ -174,24 +204,67 @@ public class NetworkTable implements ITable, IRemote {
   public synchronized static NetworkTable getTable(String key) {
     if (!running)
       initialize();
+    return getTable(getDefaultBackend(), key);
+  }
+
+  /**
+   * Gets the table with the specified key from a specific backend, such as
+   * an {@link InMemoryBackend} private to a test.  Unlike
+   * {@link #getTable(String)}, this does not initialize network tables.
+   *
+   * @param backend the backend holding the table's entries
+   * @param key the key name
+   * @return the network table requested
+   */
+  public static NetworkTable getTable(NetworkTablesBackend backend, String key) {
     if (key.isEmpty() || key.charAt(0) == PATH_SEPARATOR)
-      return new NetworkTable(key);
-    return new NetworkTable(PATH_SEPARATOR + key);
+      return new NetworkTable(backend, key);
+    return new NetworkTable(backend, PATH_SEPARATOR + key);
+  }
+
+  /**
+   * Sets the backend used by {@link #getTable(String)} and the static
+   * methods of this class.  The default is the native ntcore library; with
+   * any other backend, the networking methods have no effect.
+   * This must be called before initialize or getTable
+   * @param backend the backend
+   */
+  public synchronized static void setDefaultBackend(NetworkTablesBackend backend) {
+    checkInit();
+    defaultBackend = backend;
+  }
+
+  /**
+   * @return the backend used by {@link #getTable(String)}
+   */
+  public synchronized static NetworkTablesBackend getDefaultBackend() {
+    if (defaultBackend == null)
+      defaultBackend = new NativeBackend();
+    return defaultBackend;
   }
 
+  private static boolean usingNative() {
+    return getDefaultBackend() instanceof NativeBackend;
+  }
+
+  private final NetworkTablesBackend backend;
   private final String path;
 
-  NetworkTable(String path) {
+  NetworkTable(NetworkTablesBackend backend, String path) {
+    this.backend = backend;
     this.path = path;
   }
   public String toString() { return "NetworkTable: " + path; }
 
+  NetworkTablesBackend getBackend() { return backend; }
+  String getPath() { return path; }
+
   public static ConnectionInfo[] connections() {
-    return NetworkTablesJNI.getConnections();
+    return getDefaultBackend().getConnections();
   }
 
   public boolean isConnected() {
-    ConnectionInfo[] conns = NetworkTablesJNI.getConnections();
+    ConnectionInfo[] conns = backend.getConnections();
     return conns.length > 0;
   }
 
@@ -227,14 +300,14 @@ public class NetworkTable implements ITable, IRemote {
     if (adapter != null)
       throw new IllegalStateException("Cannot add the same listener twice");
     adapter = new ConnectionListenerAdapter(this, listener);
-    adapter.uid = NetworkTablesJNI.addConnectionListener(adapter, immediateNotify);
+    adapter.uid = backend.addConnectionListener(adapter, immediateNotify);
     connectionListenerMap.put(listener, adapter);
   }
 
   public synchronized void removeConnectionListener(IRemoteConnectionListener listener) {
     ConnectionListenerAdapter adapter = connectionListenerMap.get(listener);
     if (adapter != null) {
-      NetworkTablesJNI.removeConnectionListener(adapter.uid);
+      backend.removeConnectionListener(adapter.uid);
       connectionListenerMap.remove(listener);
     }
   }
@@ -288,7 +361,7 @@ public class NetworkTable implements ITable, IRemote {
     }
     TableListenerAdapter adapter =
         new TableListenerAdapter(path.length() + 1, this, listener);
-    adapter.uid = NetworkTablesJNI.addEntryListener(path + PATH_SEPARATOR, adapter, flags);
+    adapter.uid = backend.addEntryListener(path + PATH_SEPARATOR, adapter, flags);
     adapters.add(adapter);
   }
 
@@ -339,7 +412,7 @@ public class NetworkTable implements ITable, IRemote {
     String fullKey = path + PATH_SEPARATOR + key;
     KeyListenerAdapter adapter =
         new KeyListenerAdapter(key, fullKey, this, listener);
-    adapter.uid = NetworkTablesJNI.addEntryListener(fullKey, adapter, flags);
+    adapter.uid = backend.addEntryListener(fullKey, adapter, flags);
     adapters.add(adapter);
   }
 
@@ -392,7 +465,7 @@ public class NetworkTable implements ITable, IRemote {
     int flags = NOTIFY_NEW | NOTIFY_IMMEDIATE;
     if (localNotify)
       flags |= NOTIFY_LOCAL;
-    adapter.uid = NetworkTablesJNI.addEntryListener(path + PATH_SEPARATOR, adapter, flags);
+    adapter.uid = backend.addEntryListener(path + PATH_SEPARATOR, adapter, flags);
     adapters.add(adapter);
   }
 
@@ -404,7 +477,7 @@ public class NetworkTable implements ITable, IRemote {
     List<ListenerBase> adapters = listenerMap.get(listener);
     if (adapters != null) {
       for (int i = 0; i < adapters.size(); ++i)
-        NetworkTablesJNI.removeEntryListener(adapters.get(i).uid);
+        backend.removeEntryListener(adapters.get(i).uid);
       adapters.clear();
     }
   }
@@ -414,7 +487,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public ITable getSubTable(String key) {
-    return new NetworkTable(path + PATH_SEPARATOR + key);
+    return new NetworkTable(backend, path + PATH_SEPARATOR + key);
   }
 
   /**
@@ -422,11 +495,11 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean containsKey(String key) {
-    return NetworkTablesJNI.containsKey(path + PATH_SEPARATOR + key);
+    return backend.containsKey(path + PATH_SEPARATOR + key);
   }
 
   public boolean containsSubTable(String key) {
-    EntryInfo[] entries = NetworkTablesJNI.getEntries(path + PATH_SEPARATOR + key + PATH_SEPARATOR, 0);
+    EntryInfo[] entries = backend.getEntries(path + PATH_SEPARATOR + key + PATH_SEPARATOR, 0);
     return entries.length != 0;
   }
 
@@ -437,7 +510,7 @@ public class NetworkTable implements ITable, IRemote {
   public Set<String> getKeys(int types) {
     Set<String> keys = new HashSet<String>();
     int prefixLen = path.length() + 1;
-    for (EntryInfo entry : NetworkTablesJNI.getEntries(path + PATH_SEPARATOR, types)) {
+    for (EntryInfo entry : backend.getEntries(path + PATH_SEPARATOR, types)) {
       String relativeKey = entry.name.substring(prefixLen);
       if (relativeKey.indexOf(PATH_SEPARATOR) != -1)
         continue;
@@ -461,7 +534,7 @@ public class NetworkTable implements ITable, IRemote {
   public Set<String> getSubTables() {
     Set<String> keys = new HashSet<String>();
     int prefixLen = path.length() + 1;
-    for (EntryInfo entry : NetworkTablesJNI.getEntries(path + PATH_SEPARATOR, 0)) {
+    for (EntryInfo entry : backend.getEntries(path + PATH_SEPARATOR, 0)) {
       String relativeKey = entry.name.substring(prefixLen);
       int endSubTable = relativeKey.indexOf(PATH_SEPARATOR);
       if (endSubTable == -1)
@@ -476,7 +549,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean putNumber(String key, double value) {
-    return NetworkTablesJNI.putDouble(path + PATH_SEPARATOR + key, value);
+    return backend.putDouble(path + PATH_SEPARATOR + key, value);
   }
 
   /**
@@ -487,7 +560,7 @@ public class NetworkTable implements ITable, IRemote {
   @Override
   @Deprecated
   public double getNumber(String key) throws TableKeyNotDefinedException {
-    return NetworkTablesJNI.getDouble(path + PATH_SEPARATOR + key);
+    return backend.getDouble(path + PATH_SEPARATOR + key);
   }
 
   /**
@@ -495,7 +568,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public double getNumber(String key, double defaultValue) {
-    return NetworkTablesJNI.getDouble(path + PATH_SEPARATOR + key, defaultValue);
+    return backend.getDouble(path + PATH_SEPARATOR + key, defaultValue);
   }
 
   /**
@@ -503,7 +576,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean putString(String key, String value) {
-    return NetworkTablesJNI.putString(path + PATH_SEPARATOR + key, value);
+    return backend.putString(path + PATH_SEPARATOR + key, value);
   }
 
   /**
@@ -514,7 +587,7 @@ public class NetworkTable implements ITable, IRemote {
   @Override
   @Deprecated
   public String getString(String key) throws TableKeyNotDefinedException {
-    return NetworkTablesJNI.getString(path + PATH_SEPARATOR + key);
+    return backend.getString(path + PATH_SEPARATOR + key);
   }
 
   /**
@@ -522,7 +595,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public String getString(String key, String defaultValue) {
-    return NetworkTablesJNI.getString(path + PATH_SEPARATOR + key, defaultValue);
+    return backend.getString(path + PATH_SEPARATOR + key, defaultValue);
   }
 
   /**
@@ -530,7 +603,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean putBoolean(String key, boolean value) {
-    return NetworkTablesJNI.putBoolean(path + PATH_SEPARATOR + key, value);
+    return backend.putBoolean(path + PATH_SEPARATOR + key, value);
   }
 
   /**
@@ -541,7 +614,7 @@ public class NetworkTable implements ITable, IRemote {
   @Override
   @Deprecated
   public boolean getBoolean(String key) throws TableKeyNotDefinedException {
-    return NetworkTablesJNI.getBoolean(path + PATH_SEPARATOR + key);
+    return backend.getBoolean(path + PATH_SEPARATOR + key);
   }
 
   /**
@@ -549,7 +622,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean getBoolean(String key, boolean defaultValue) {
-    return NetworkTablesJNI.getBoolean(path + PATH_SEPARATOR + key, defaultValue);
+    return backend.getBoolean(path + PATH_SEPARATOR + key, defaultValue);
   }
 
   /**
@@ -557,7 +630,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean putBooleanArray(String key, boolean[] value) {
-    return NetworkTablesJNI.putBooleanArray(path + PATH_SEPARATOR + key, value);
+    return backend.putBooleanArray(path + PATH_SEPARATOR + key, value);
   }
 
   /**
@@ -576,7 +649,7 @@ public class NetworkTable implements ITable, IRemote {
   @Override
   @Deprecated
   public boolean[] getBooleanArray(String key) throws TableKeyNotDefinedException {
-    return NetworkTablesJNI.getBooleanArray(path + PATH_SEPARATOR + key);
+    return backend.getBooleanArray(path + PATH_SEPARATOR + key);
   }
 
   /**
@@ -584,7 +657,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean[] getBooleanArray(String key, boolean[] defaultValue) {
-    return NetworkTablesJNI.getBooleanArray(path + PATH_SEPARATOR + key, defaultValue);
+    return backend.getBooleanArray(path + PATH_SEPARATOR + key, defaultValue);
   }
 
   /**
@@ -604,7 +677,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean putNumberArray(String key, double[] value) {
-    return NetworkTablesJNI.putDoubleArray(path + PATH_SEPARATOR + key, value);
+    return backend.putDoubleArray(path + PATH_SEPARATOR + key, value);
   }
 
   /**
@@ -623,7 +696,7 @@ public class NetworkTable implements ITable, IRemote {
   @Override
   @Deprecated
   public double[] getNumberArray(String key) throws TableKeyNotDefinedException {
-    return NetworkTablesJNI.getDoubleArray(path + PATH_SEPARATOR + key);
+    return backend.getDoubleArray(path + PATH_SEPARATOR + key);
   }
 
   /**
@@ -631,7 +704,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public double[] getNumberArray(String key, double[] defaultValue) {
-    return NetworkTablesJNI.getDoubleArray(path + PATH_SEPARATOR + key, defaultValue);
+    return backend.getDoubleArray(path + PATH_SEPARATOR + key, defaultValue);
   }
 
   /**
@@ -651,7 +724,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean putStringArray(String key, String[] value) {
-    return NetworkTablesJNI.putStringArray(path + PATH_SEPARATOR + key, value);
+    return backend.putStringArray(path + PATH_SEPARATOR + key, value);
   }
 
   /**
@@ -662,7 +735,7 @@ public class NetworkTable implements ITable, IRemote {
   @Override
   @Deprecated
   public String[] getStringArray(String key) throws TableKeyNotDefinedException {
-    return NetworkTablesJNI.getStringArray(path + PATH_SEPARATOR + key);
+    return backend.getStringArray(path + PATH_SEPARATOR + key);
   }
 
   /**
@@ -670,7 +743,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public String[] getStringArray(String key, String[] defaultValue) {
-    return NetworkTablesJNI.getStringArray(path + PATH_SEPARATOR + key, defaultValue);
+    return backend.getStringArray(path + PATH_SEPARATOR + key, defaultValue);
   }
 
   /**
@@ -678,7 +751,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public boolean putRaw(String key, byte[] value) {
-    return NetworkTablesJNI.putRaw(path + PATH_SEPARATOR + key, value);
+    return backend.putRaw(path + PATH_SEPARATOR + key, value);
   }
 
   /**
@@ -690,7 +763,7 @@ public class NetworkTable implements ITable, IRemote {
       throw new IllegalArgumentException("must be a direct buffer");
     if (value.capacity() < len)
       throw new IllegalArgumentException("buffer is too small, must be at least " + len);
-    return NetworkTablesJNI.putRaw(path + PATH_SEPARATOR + key, value, len);
+    return backend.putRaw(path + PATH_SEPARATOR + key, value, len);
   }
 
   /**
@@ -701,7 +774,7 @@ public class NetworkTable implements ITable, IRemote {
   @Override
   @Deprecated
   public byte[] getRaw(String key) throws TableKeyNotDefinedException {
-    return NetworkTablesJNI.getRaw(path + PATH_SEPARATOR + key);
+    return backend.getRaw(path + PATH_SEPARATOR + key);
   }
 
   /**
@@ -709,7 +782,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public byte[] getRaw(String key, byte[] defaultValue) {
-    return NetworkTablesJNI.getRaw(path + PATH_SEPARATOR + key, defaultValue);
+    return backend.getRaw(path + PATH_SEPARATOR + key, defaultValue);
   }
 
   /**
@@ -718,29 +791,29 @@ public class NetworkTable implements ITable, IRemote {
   @Override
   public boolean putValue(String key, Object value) throws IllegalArgumentException {
     if (value instanceof Boolean)
-      return NetworkTablesJNI.putBoolean(path + PATH_SEPARATOR + key, ((Boolean)value).booleanValue());
+      return backend.putBoolean(path + PATH_SEPARATOR + key, ((Boolean)value).booleanValue());
     else if (value instanceof Double)
-      return NetworkTablesJNI.putDouble(path + PATH_SEPARATOR + key, ((Double)value).doubleValue());
+      return backend.putDouble(path + PATH_SEPARATOR + key, ((Double)value).doubleValue());
     else if (value instanceof String)
-      return NetworkTablesJNI.putString(path + PATH_SEPARATOR + key, (String)value);
+      return backend.putString(path + PATH_SEPARATOR + key, (String)value);
     else if (value instanceof byte[])
-      return NetworkTablesJNI.putRaw(path + PATH_SEPARATOR + key, (byte[])value);
+      return backend.putRaw(path + PATH_SEPARATOR + key, (byte[])value);
     else if (value instanceof boolean[])
-      return NetworkTablesJNI.putBooleanArray(path + PATH_SEPARATOR + key, (boolean[])value);
+      return backend.putBooleanArray(path + PATH_SEPARATOR + key, (boolean[])value);
     else if (value instanceof double[])
-      return NetworkTablesJNI.putDoubleArray(path + PATH_SEPARATOR + key, (double[])value);
+      return backend.putDoubleArray(path + PATH_SEPARATOR + key, (double[])value);
     else if (value instanceof Boolean[])
-      return NetworkTablesJNI.putBooleanArray(path + PATH_SEPARATOR + key, toNative((Boolean[])value));
+      return backend.putBooleanArray(path + PATH_SEPARATOR + key, toNative((Boolean[])value));
     else if (value instanceof Double[])
-      return NetworkTablesJNI.putDoubleArray(path + PATH_SEPARATOR + key, toNative((Double[])value));
+      return backend.putDoubleArray(path + PATH_SEPARATOR + key, toNative((Double[])value));
     else if (value instanceof String[])
-      return NetworkTablesJNI.putStringArray(path + PATH_SEPARATOR + key, (String[])value);
+      return backend.putStringArray(path + PATH_SEPARATOR + key, (String[])value);
     else if (value instanceof BooleanArray)
-      return NetworkTablesJNI.putBooleanArray(path + PATH_SEPARATOR + key, toNative((Boolean[])((ArrayData)value).getDataArray()));
+      return backend.putBooleanArray(path + PATH_SEPARATOR + key, toNative((Boolean[])((ArrayData)value).getDataArray()));
     else if (value instanceof NumberArray)
-      return NetworkTablesJNI.putDoubleArray(path + PATH_SEPARATOR + key, toNative((Double[])((ArrayData)value).getDataArray()));
+      return backend.putDoubleArray(path + PATH_SEPARATOR + key, toNative((Double[])((ArrayData)value).getDataArray()));
     else if (value instanceof StringArray)
-      return NetworkTablesJNI.putStringArray(path + PATH_SEPARATOR + key, (String[])((ArrayData)value).getDataArray());
+      return backend.putStringArray(path + PATH_SEPARATOR + key, (String[])((ArrayData)value).getDataArray());
     else
       throw new IllegalArgumentException(key);
   }
@@ -771,7 +844,7 @@ public class NetworkTable implements ITable, IRemote {
   @Override
   @Deprecated
   public Object getValue(String key) throws TableKeyNotDefinedException {
-    return NetworkTablesJNI.getValue(path + PATH_SEPARATOR + key);
+    return backend.getValue(path + PATH_SEPARATOR + key);
   }
 
   /**
@@ -779,12 +852,33 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public Object getValue(String key, Object defaultValue) {
-    return NetworkTablesJNI.getValue(path + PATH_SEPARATOR + key, defaultValue);
+    return backend.getValue(path + PATH_SEPARATOR + key, defaultValue);
   }
 
   /** The persistent flag value. */
   public static final int PERSISTENT = 1;
 
+  /**
+   * The unreliable flag value.  Updates to entries with this flag may be
+   * sent as datagrams, which avoids delays behind other traffic but may
+   * lose some updates.  Set it with {@link #setFlags(String, int)}.
+   */
+  public static final int UNRELIABLE = 2;
+
+  /**
+   * The high priority flag value.  Updates to entries with this flag are
+   * sent ahead of other queued traffic.  Set it with
+   * {@link #setFlags(String, int)}.
+   */
+  public static final int HIGH_PRIORITY = 4;
+
+  /**
+   * The low priority flag value, for bulk data.  Updates to entries with
+   * this flag are sent after other traffic, within the budget set with
+   * {@link #setLowPriorityBudget(long)}.
+   */
+  public static final int LOW_PRIORITY = 8;
+
   /**
    * {@inheritDoc}
    */
@@ -814,7 +908,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public void setFlags(String key, int flags) {
-    NetworkTablesJNI.setEntryFlags(path + PATH_SEPARATOR + key, getFlags(key) | flags);
+    backend.setEntryFlags(path + PATH_SEPARATOR + key, getFlags(key) | flags);
   }
 
   /**
@@ -822,7 +916,7 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public void clearFlags(String key, int flags) {
-    NetworkTablesJNI.setEntryFlags(path + PATH_SEPARATOR + key, getFlags(key) & ~flags);
+    backend.setEntryFlags(path + PATH_SEPARATOR + key, getFlags(key) & ~flags);
   }
 
   /**
@@ -830,7 +924,58 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public int getFlags(String key) {
-    return NetworkTablesJNI.getEntryFlags(path + PATH_SEPARATOR + key);
+    return backend.getEntryFlags(path + PATH_SEPARATOR + key);
+  }
+
+  /**
+   * Keeps the last size values of an existing entry for
+   * {@link #getNumberHistory(String, double[], long[])}.  The history is local
+   * to this node and is dropped if the entry is deleted.
+   * @param key the key name
+   * @param size number of values to keep, or 0 to disable
+   */
+  public void setHistory(String key, int size) {
+    backend.setEntryHistory(path + PATH_SEPARATOR + key, size);
+  }
+
+  /**
+   * Gets the most recent values of a number entry with history enabled,
+   * oldest first.
+   * @param key the key name
+   * @param values array to fill with values
+   * @param times array to fill with the time of each value (may be null)
+   * @return the number of values filled in
+   */
+  public int getNumberHistory(String key, double[] values, long[] times) {
+    return backend.getNumberHistory(path + PATH_SEPARATOR + key, 0, values, times);
+  }
+
+  /**
+   * Limits how local changes of an existing entry are published to local
+   * listeners and the network.  The entry always takes every change.  A
+   * number that differs from the last published value by less than the
+   * deadband is not published, and a change that comes sooner than
+   * 1/maxRate seconds after the last published one is held back; the latest
+   * held value is published once that time has passed.  The policy is local
+   * to this node and is dropped if the entry is deleted.
+   * @param key the key name
+   * @param maxRate maximum changes per second (0 for no limit)
+   * @param deadband minimum change of a number value (0 for none)
+   * @param relative if true, the deadband is a fraction of the last value
+   */
+  public void setPublishPolicy(String key, double maxRate, double deadband, boolean relative) {
+    backend.setEntryPublishPolicy(path + PATH_SEPARATOR + key, maxRate, deadband, relative);
+  }
+
+  /**
+   * Sets a publish policy with an absolute deadband.
+   * @see #setPublishPolicy(String, double, double, boolean)
+   * @param key the key name
+   * @param maxRate maximum changes per second (0 for no limit)
+   * @param deadband minimum change of a number value (0 for none)
+   */
+  public void setPublishPolicy(String key, double maxRate, double deadband) {
+    setPublishPolicy(key, maxRate, deadband, false);
   }
 
   /**
@@ -838,14 +983,14 @@ public class NetworkTable implements ITable, IRemote {
    */
   @Override
   public void delete(String key) {
-    NetworkTablesJNI.deleteEntry(path + PATH_SEPARATOR + key);
+    backend.deleteEntry(path + PATH_SEPARATOR + key);
   }
 
   /**
    * Deletes ALL keys in ALL subtables.  Use with caution!
    */
   public static void globalDeleteAll() {
-    NetworkTablesJNI.deleteAllEntries();
+    getDefaultBackend().deleteAllEntries();
   }
 
   /**
@@ -855,7 +1000,8 @@ public class NetworkTable implements ITable, IRemote {
    * user code.
    */
   public static void flush() {
-    NetworkTablesJNI.flush();
+    if (usingNative())
+      NetworkTablesJNI.flush();
   }
 
   /**
@@ -864,7 +1010,53 @@ public class NetworkTable implements ITable, IRemote {
    * @param interval update interval in seconds (range 0.1 to 1.0)
    */
   public static void setUpdateRate(double interval) {
-    NetworkTablesJNI.setUpdateRate(interval);
+    if (usingNative())
+      NetworkTablesJNI.setUpdateRate(interval);
+  }
+
+  /** Outgoing limit policy: hold back and merge to latest values. */
+  public static final int OUTGOING_COALESCE = 0;
+  /** Outgoing limit policy: discard pending value updates. */
+  public static final int OUTGOING_DROP_UPDATES = 1;
+  /** Outgoing limit policy: close the connection. */
+  public static final int OUTGOING_DISCONNECT = 2;
+
+  /**
+   * Set the per-connection limit on bytes queued for transmission, and what
+   * to do when a slow connection exceeds it.
+   *
+   * @param maxBytes limit in bytes (0 for unlimited)
+   * @param policy one of OUTGOING_COALESCE, OUTGOING_DROP_UPDATES, or
+   *     OUTGOING_DISCONNECT
+   */
+  public static void setOutgoingLimit(long maxBytes, int policy) {
+    if (usingNative())
+      NetworkTablesJNI.setOutgoingLimit(maxBytes, policy);
+  }
+
+  /**
+   * Enable compression of large raw, string, and array values, for
+   * connections to peers that have it enabled too.  Only affects connections
+   * made afterwards.
+   *
+   * @param threshold values of at least this many bytes are compressed (0
+   *     to disable, the default)
+   */
+  public static void setNetworkCompression(long threshold) {
+    if (usingNative())
+      NetworkTablesJNI.setNetworkCompression(threshold);
+  }
+
+  /**
+   * Limit the bandwidth each connection spends on updates to entries
+   * flagged {@link #LOW_PRIORITY}.  Updates over the budget are held back,
+   * keeping only the latest value of each entry.
+   *
+   * @param bytesPerSec budget per connection (0 for no limit, the default)
+   */
+  public static void setLowPriorityBudget(long bytesPerSec) {
+    if (usingNative())
+      NetworkTablesJNI.setLowPriorityBudget(bytesPerSec);
   }
 
   /**
@@ -874,7 +1066,7 @@ public class NetworkTable implements ITable, IRemote {
    * @throws PersistentException if error saving file
    */
   public static void savePersistent(String filename) throws PersistentException {
-    NetworkTablesJNI.savePersistent(filename);
+    getDefaultBackend().savePersistent(filename);
   }
 
   /**
@@ -885,7 +1077,7 @@ public class NetworkTable implements ITable, IRemote {
    * @throws PersistentException if error reading file
    */
   public static String[] loadPersistent(String filename) throws PersistentException {
-    return NetworkTablesJNI.loadPersistent(filename);
+    return getDefaultBackend().loadPersistent(filename);
   }
 
   /*
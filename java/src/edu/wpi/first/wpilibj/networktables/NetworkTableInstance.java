@@ -0,0 +1,330 @@
+package edu.wpi.first.wpilibj.networktables;
+
+import edu.wpi.first.wpilibj.tables.*;
+import java.nio.ByteBuffer;
+
+/**
+ * An independent set of network tables: its own entries, listeners, and
+ * network connection (server or client), with its own threads.  Use
+ * {@link #create()} to run several servers or clients in one process;
+ * {@link #getDefault()} is the instance used by the static
+ * {@link NetworkTable} methods.
+ */
+public class NetworkTableInstance implements NetworkTablesBackend {
+  private final int handle;
+  private boolean owned;
+
+  private NetworkTableInstance(int handle, boolean owned) {
+    this.handle = handle;
+    this.owned = owned;
+  }
+
+  /**
+   * @return the default instance
+   */
+  public static NetworkTableInstance getDefault() {
+    return new NetworkTableInstance(NetworkTablesJNI.getDefaultInstance(), false);
+  }
+
+  /**
+   * Creates a new instance.  It must be destroyed with {@link #free()}.
+   * @return the new instance
+   * @throws IllegalStateException if too many instances exist
+   */
+  public static NetworkTableInstance create() {
+    int handle = NetworkTablesJNI.createInstance();
+    if (handle == 0)
+      throw new IllegalStateException("too many NetworkTables instances");
+    return new NetworkTableInstance(handle, true);
+  }
+
+  /**
+   * Stops and destroys an instance from {@link #create()}.  It must not be
+   * used afterwards.  Has no effect on the default instance.
+   */
+  public synchronized void free() {
+    if (!owned)
+      return;
+    owned = false;
+    NetworkTablesJNI.destroyInstance(handle);
+  }
+
+  /**
+   * Gets a table in this instance.
+   * @param key the key name
+   * @return the network table requested
+   */
+  public NetworkTable getTable(String key) {
+    return NetworkTable.getTable(this, key);
+  }
+
+  /*
+   * Networking
+   */
+
+  public void setNetworkIdentity(String name) {
+    NetworkTablesJNI.setNetworkIdentity(handle, name);
+  }
+
+  /**
+   * Sets the file a server saves its complete state to when stopped, and
+   * restores it from when next started.
+   * @param filename the file name ("" for none)
+   */
+  public void setSnapshotFile(String filename) {
+    NetworkTablesJNI.setSnapshotFile(handle, filename);
+  }
+
+  /**
+   * @param persistFilename file for persistent values ("" for none)
+   * @param listenAddress address to listen on ("" for any), or
+   *   "unix:&lt;path&gt;" for a Unix domain socket
+   * @param port port number (unused for unix:)
+   */
+  public void startServer(String persistFilename, String listenAddress, int port) {
+    NetworkTablesJNI.startServer(handle, persistFilename, listenAddress, port);
+  }
+
+  public void stopServer() {
+    NetworkTablesJNI.stopServer(handle);
+  }
+
+  public void startClient(String serverName, int port) {
+    NetworkTablesJNI.startClient(handle, serverName, port);
+  }
+
+  public void stopClient() {
+    NetworkTablesJNI.stopClient(handle);
+  }
+
+  /**
+   * Serves the entries of another server to this instance's own clients.
+   * @param serverName upstream server, or "unix:&lt;path&gt;"
+   * @param serverPort upstream port (unused for unix:)
+   * @param listenAddress address to listen on ("" for any), or
+   *   "unix:&lt;path&gt;" for a Unix domain socket
+   * @param port port number to listen on (unused for unix:)
+   */
+  public void startRelay(String serverName, int serverPort, String listenAddress, int port) {
+    NetworkTablesJNI.startRelay(handle, serverName, serverPort, listenAddress, port);
+  }
+
+  public void stopRelay() {
+    NetworkTablesJNI.stopRelay(handle);
+  }
+
+  /**
+   * Starts a server that replicates its entries with the other servers of a
+   * cluster.  Each server should list all of the others.  Stop it with
+   * {@link #stopServer()}.
+   * @param persistFilename file for persistent values ("" for none)
+   * @param listenAddress address to listen on ("" for any), or
+   *   "unix:&lt;path&gt;" for a Unix domain socket
+   * @param port port number (unused for unix:)
+   * @param peerNames the other servers, or "unix:&lt;path&gt;"
+   * @param peerPorts the other servers' ports
+   */
+  public void startCluster(String persistFilename, String listenAddress, int port,
+                           String[] peerNames, int[] peerPorts) {
+    NetworkTablesJNI.startCluster(handle, persistFilename, listenAddress, port, peerNames, peerPorts);
+  }
+
+  /** @see NetworkTable#flush() */
+  public void flush() {
+    NetworkTablesJNI.flush(handle);
+  }
+
+  /** @see NetworkTable#setUpdateRate(double) */
+  public void setUpdateRate(double interval) {
+    NetworkTablesJNI.setUpdateRate(handle, interval);
+  }
+
+  /** @see NetworkTable#setOutgoingLimit(long, int) */
+  public void setOutgoingLimit(long maxBytes, int policy) {
+    NetworkTablesJNI.setOutgoingLimit(handle, maxBytes, policy);
+  }
+
+  /** @see NetworkTable#setNetworkCompression(long) */
+  public void setNetworkCompression(long threshold) {
+    NetworkTablesJNI.setNetworkCompression(handle, threshold);
+  }
+
+  /** @see NetworkTable#setLowPriorityBudget(long) */
+  public void setLowPriorityBudget(long bytesPerSec) {
+    NetworkTablesJNI.setLowPriorityBudget(handle, bytesPerSec);
+  }
+
+  /*
+   * NetworkTablesBackend
+   */
+
+  public boolean containsKey(String key) {
+    return NetworkTablesJNI.containsKey(handle, key);
+  }
+
+  public boolean putBoolean(String key, boolean value) {
+    return NetworkTablesJNI.putBoolean(handle, key, value);
+  }
+  public boolean putDouble(String key, double value) {
+    return NetworkTablesJNI.putDouble(handle, key, value);
+  }
+  public boolean putString(String key, String value) {
+    return NetworkTablesJNI.putString(handle, key, value);
+  }
+  public boolean putRaw(String key, byte[] value) {
+    return NetworkTablesJNI.putRaw(handle, key, value);
+  }
+  public boolean putRaw(String key, ByteBuffer value, int len) {
+    return NetworkTablesJNI.putRaw(handle, key, value, len);
+  }
+  public boolean putBooleanArray(String key, boolean[] value) {
+    return NetworkTablesJNI.putBooleanArray(handle, key, value);
+  }
+  public boolean putDoubleArray(String key, double[] value) {
+    return NetworkTablesJNI.putDoubleArray(handle, key, value);
+  }
+  public boolean putStringArray(String key, String[] value) {
+    return NetworkTablesJNI.putStringArray(handle, key, value);
+  }
+
+  public Object getValue(String key) throws TableKeyNotDefinedException {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    if (value == null)
+      throw new TableKeyNotDefinedException(key);
+    return value;
+  }
+  public boolean getBoolean(String key) throws TableKeyNotDefinedException {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    if (!(value instanceof Boolean))
+      throw new TableKeyNotDefinedException(key);
+    return ((Boolean)value).booleanValue();
+  }
+  public double getDouble(String key) throws TableKeyNotDefinedException {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    if (!(value instanceof Double))
+      throw new TableKeyNotDefinedException(key);
+    return ((Double)value).doubleValue();
+  }
+  public String getString(String key) throws TableKeyNotDefinedException {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    if (!(value instanceof String))
+      throw new TableKeyNotDefinedException(key);
+    return (String)value;
+  }
+  public byte[] getRaw(String key) throws TableKeyNotDefinedException {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    if (!(value instanceof byte[]))
+      throw new TableKeyNotDefinedException(key);
+    return (byte[])value;
+  }
+  public boolean[] getBooleanArray(String key) throws TableKeyNotDefinedException {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    if (!(value instanceof boolean[]))
+      throw new TableKeyNotDefinedException(key);
+    return (boolean[])value;
+  }
+  public double[] getDoubleArray(String key) throws TableKeyNotDefinedException {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    if (!(value instanceof double[]))
+      throw new TableKeyNotDefinedException(key);
+    return (double[])value;
+  }
+  public String[] getStringArray(String key) throws TableKeyNotDefinedException {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    if (!(value instanceof String[]))
+      throw new TableKeyNotDefinedException(key);
+    return (String[])value;
+  }
+
+  public Object getValue(String key, Object defaultValue) {
+    return NetworkTablesJNI.getValue(handle, key, defaultValue);
+  }
+  public boolean getBoolean(String key, boolean defaultValue) {
+    return NetworkTablesJNI.getBoolean(handle, key, defaultValue);
+  }
+  public double getDouble(String key, double defaultValue) {
+    return NetworkTablesJNI.getDouble(handle, key, defaultValue);
+  }
+  public String getString(String key, String defaultValue) {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    return value instanceof String ? (String)value : defaultValue;
+  }
+  public byte[] getRaw(String key, byte[] defaultValue) {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    return value instanceof byte[] ? (byte[])value : defaultValue;
+  }
+  public boolean[] getBooleanArray(String key, boolean[] defaultValue) {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    return value instanceof boolean[] ? (boolean[])value : defaultValue;
+  }
+  public double[] getDoubleArray(String key, double[] defaultValue) {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    return value instanceof double[] ? (double[])value : defaultValue;
+  }
+  public String[] getStringArray(String key, String[] defaultValue) {
+    Object value = NetworkTablesJNI.getValue(handle, key, null);
+    return value instanceof String[] ? (String[])value : defaultValue;
+  }
+
+  public void setEntryFlags(String key, int flags) {
+    NetworkTablesJNI.setEntryFlags(handle, key, flags);
+  }
+  public int getEntryFlags(String key) {
+    return NetworkTablesJNI.getEntryFlags(handle, key);
+  }
+  public void setEntryHistory(String key, int size) {
+    NetworkTablesJNI.setEntryHistory(handle, key, size);
+  }
+  public int getNumberHistory(String key, long since, double[] values, long[] times) {
+    return NetworkTablesJNI.getNumberHistory(handle, key, since, values, times);
+  }
+  public void setEntryPublishPolicy(String key, double maxRate, double deadband, boolean relative) {
+    NetworkTablesJNI.setEntryPublishPolicy(handle, key, maxRate, deadband, relative);
+  }
+
+  public void deleteEntry(String key) {
+    NetworkTablesJNI.deleteEntry(handle, key);
+  }
+  public void deleteAllEntries() {
+    NetworkTablesJNI.deleteAllEntries(handle);
+  }
+
+  public EntryInfo[] getEntries(String prefix, int types) {
+    return NetworkTablesJNI.getEntries(handle, prefix, types);
+  }
+
+  public int addEntryListener(String prefix, NetworkTablesJNI.EntryListenerFunction listener, int flags) {
+    return NetworkTablesJNI.addEntryListener(handle, prefix, listener, flags);
+  }
+  /** @see NetworkTablesJNI.BooleanEntryListenerFunction */
+  public int addBooleanEntryListener(String prefix, NetworkTablesJNI.BooleanEntryListenerFunction listener, int flags) {
+    return NetworkTablesJNI.addBooleanEntryListener(handle, prefix, listener, flags);
+  }
+  /** @see NetworkTablesJNI.DoubleEntryListenerFunction */
+  public int addDoubleEntryListener(String prefix, NetworkTablesJNI.DoubleEntryListenerFunction listener, int flags) {
+    return NetworkTablesJNI.addDoubleEntryListener(handle, prefix, listener, flags);
+  }
+  /** @see NetworkTablesJNI.RawEntryListenerFunction */
+  public int addRawEntryListener(String prefix, NetworkTablesJNI.RawEntryListenerFunction listener, int flags) {
+    return NetworkTablesJNI.addRawEntryListener(handle, prefix, listener, flags);
+  }
+  public void removeEntryListener(int entryListenerUid) {
+    NetworkTablesJNI.removeEntryListener(handle, entryListenerUid);
+  }
+  public int addConnectionListener(NetworkTablesJNI.ConnectionListenerFunction listener, boolean immediateNotify) {
+    return NetworkTablesJNI.addConnectionListener(handle, listener, immediateNotify);
+  }
+  public void removeConnectionListener(int connListenerUid) {
+    NetworkTablesJNI.removeConnectionListener(handle, connListenerUid);
+  }
+  public ConnectionInfo[] getConnections() {
+    return NetworkTablesJNI.getConnections(handle);
+  }
+
+  public void savePersistent(String filename) throws PersistentException {
+    NetworkTablesJNI.savePersistent(handle, filename);
+  }
+  public String[] loadPersistent(String filename) throws PersistentException {
+    return NetworkTablesJNI.loadPersistent(handle, filename);
+  }
+}
@@ -0,0 +1,65 @@
+package edu.wpi.first.wpilibj.networktables;
+
+import edu.wpi.first.wpilibj.tables.*;
+import java.nio.ByteBuffer;
+
+/**
+ * The entry storage behind a {@link NetworkTable}.  Keys are full paths
+ * (including the leading table separator).  Semantics follow the native
+ * implementation: puts fail if the entry already exists with a different
+ * type, and listeners only see local changes if registered with
+ * {@link ITable#NOTIFY_LOCAL}.
+ *
+ * @see NativeBackend
+ * @see InMemoryBackend
+ */
+public interface NetworkTablesBackend {
+  boolean containsKey(String key);
+
+  boolean putBoolean(String key, boolean value);
+  boolean putDouble(String key, double value);
+  boolean putString(String key, String value);
+  boolean putRaw(String key, byte[] value);
+  boolean putRaw(String key, ByteBuffer value, int len);
+  boolean putBooleanArray(String key, boolean[] value);
+  boolean putDoubleArray(String key, double[] value);
+  boolean putStringArray(String key, String[] value);
+
+  Object getValue(String key) throws TableKeyNotDefinedException;
+  boolean getBoolean(String key) throws TableKeyNotDefinedException;
+  double getDouble(String key) throws TableKeyNotDefinedException;
+  String getString(String key) throws TableKeyNotDefinedException;
+  byte[] getRaw(String key) throws TableKeyNotDefinedException;
+  boolean[] getBooleanArray(String key) throws TableKeyNotDefinedException;
+  double[] getDoubleArray(String key) throws TableKeyNotDefinedException;
+  String[] getStringArray(String key) throws TableKeyNotDefinedException;
+
+  Object getValue(String key, Object defaultValue);
+  boolean getBoolean(String key, boolean defaultValue);
+  double getDouble(String key, double defaultValue);
+  String getString(String key, String defaultValue);
+  byte[] getRaw(String key, byte[] defaultValue);
+  boolean[] getBooleanArray(String key, boolean[] defaultValue);
+  double[] getDoubleArray(String key, double[] defaultValue);
+  String[] getStringArray(String key, String[] defaultValue);
+
+  void setEntryFlags(String key, int flags);
+  int getEntryFlags(String key);
+  void setEntryHistory(String key, int size);
+  int getNumberHistory(String key, long since, double[] values, long[] times);
+  void setEntryPublishPolicy(String key, double maxRate, double deadband, boolean relative);
+
+  void deleteEntry(String key);
+  void deleteAllEntries();
+
+  EntryInfo[] getEntries(String prefix, int types);
+
+  int addEntryListener(String prefix, NetworkTablesJNI.EntryListenerFunction listener, int flags);
+  void removeEntryListener(int entryListenerUid);
+  int addConnectionListener(NetworkTablesJNI.ConnectionListenerFunction listener, boolean immediateNotify);
+  void removeConnectionListener(int connListenerUid);
+  ConnectionInfo[] getConnections();
+
+  void savePersistent(String filename) throws PersistentException;
+  String[] loadPersistent(String filename) throws PersistentException;  // returns warnings
+}
@@ -108,6 +108,9 @@ public class NetworkTablesJNI {
 
   public static native void setEntryFlags(String key, int flags);
   public static native int getEntryFlags(String key);
+  public static native void setEntryHistory(String key, int size);
+  public static native int getNumberHistory(String key, long since, double[] values, long[] times);
+  public static native void setEntryPublishPolicy(String key, double maxRate, double deadband, boolean relative);
 
   public static native void deleteEntry(String key);
   public static native void deleteAllEntries();
@@ -122,6 +125,22 @@ public class NetworkTablesJNI {
   public static native int addEntryListener(String prefix, EntryListenerFunction listener, int flags);
   public static native void removeEntryListener(int entryListenerUid);
 
+  // Typed entry listeners only see values of their type, and are called
+  // without boxing the value.  Remove them with removeEntryListener().
+  public interface BooleanEntryListenerFunction {
+    void apply(int uid, String key, boolean value, int flags);
+  }
+  public interface DoubleEntryListenerFunction {
+    void apply(int uid, String key, double value, int flags);
+  }
+  // The buffer is reused and is only valid during the call.
+  public interface RawEntryListenerFunction {
+    void apply(int uid, String key, ByteBuffer value, int len, int flags);
+  }
+  public static native int addBooleanEntryListener(String prefix, BooleanEntryListenerFunction listener, int flags);
+  public static native int addDoubleEntryListener(String prefix, DoubleEntryListenerFunction listener, int flags);
+  public static native int addRawEntryListener(String prefix, RawEntryListenerFunction listener, int flags);
+
   public interface ConnectionListenerFunction {
     void apply(int uid, boolean connected, ConnectionInfo conn);
   }
@@ -138,18 +157,90 @@ public class NetworkTablesJNI {
   // public static native byte[] getRpcResultNonblocking(int callUid) throws RpcNoResponseException;
 
   public static native void setNetworkIdentity(String name);
+  public static native void setSnapshotFile(String filename);
   public static native void startServer(String persistFilename, String listenAddress, int port);
   public static native void stopServer();
   public static native void startClient(String serverName, int port);
   public static native void stopClient();
+  public static native void startRelay(String serverName, int serverPort, String listenAddress, int port);
+  public static native void stopRelay();
+  public static native void startCluster(String persistFilename, String listenAddress, int port, String[] peerNames, int[] peerPorts);
   public static native void setUpdateRate(double interval);
+  public static native void setOutgoingLimit(long maxBytes, int policy);
+  public static native void setNetworkCompression(long threshold);
+  public static native void setLowPriorityBudget(long bytesPerSec);
 
   public static native ConnectionInfo[] getConnections();
+  public static native long[] getStatistics();  // layout per Statistics
+  public static native void setLatencyTracing(boolean enabled, String[] prefixes);
+  public static native long[] getLatencyHistograms();  // layout per LatencyHistograms
 
   public static native void savePersistent(String filename) throws PersistentException;
   public static native String[] loadPersistent(String filename) throws PersistentException;  // returns warnings
 
+  public static native void startDataLog(String filename, String[] prefixes) throws java.io.IOException;
+  public static native void stopDataLog();
+  public static native void startReplay(String filename, double speed) throws java.io.IOException;  // speed 0 is as fast as possible
+  public static native void seekReplay(double time);
+  public static native void setReplaySpeed(double speed);
+  public static native void stopReplay();
+
   public static native long now();
+  public static native long serverNow();
+
+  // Instances; the functions below operate on the given instance rather
+  // than the default one.  See NetworkTableInstance.
+  public static native int getDefaultInstance();
+  public static native int createInstance();  // 0 if too many
+  public static native void destroyInstance(int inst);
+
+  public static native boolean containsKey(int inst, String key);
+  public static native boolean putBoolean(int inst, String key, boolean value);
+  public static native boolean putDouble(int inst, String key, double value);
+  public static native boolean putString(int inst, String key, String value);
+  public static native boolean putRaw(int inst, String key, byte[] value);
+  public static native boolean putRaw(int inst, String key, ByteBuffer value, int len);
+  public static native boolean putBooleanArray(int inst, String key, boolean[] value);
+  public static native boolean putDoubleArray(int inst, String key, double[] value);
+  public static native boolean putStringArray(int inst, String key, String[] value);
+  public static native Object getValue(int inst, String key, Object defaultValue);
+  public static native boolean getBoolean(int inst, String key, boolean defaultValue);
+  public static native double getDouble(int inst, String key, double defaultValue);
+
+  public static native void setEntryFlags(int inst, String key, int flags);
+  public static native int getEntryFlags(int inst, String key);
+  public static native void setEntryHistory(int inst, String key, int size);
+  public static native int getNumberHistory(int inst, String key, long since, double[] values, long[] times);
+  public static native void setEntryPublishPolicy(int inst, String key, double maxRate, double deadband, boolean relative);
+  public static native void deleteEntry(int inst, String key);
+  public static native void deleteAllEntries(int inst);
+  public static native EntryInfo[] getEntries(int inst, String prefix, int types);
+  public static native void flush(int inst);
+
+  public static native int addEntryListener(int inst, String prefix, EntryListenerFunction listener, int flags);
+  public static native int addBooleanEntryListener(int inst, String prefix, BooleanEntryListenerFunction listener, int flags);
+  public static native int addDoubleEntryListener(int inst, String prefix, DoubleEntryListenerFunction listener, int flags);
+  public static native int addRawEntryListener(int inst, String prefix, RawEntryListenerFunction listener, int flags);
+  public static native void removeEntryListener(int inst, int entryListenerUid);
+  public static native int addConnectionListener(int inst, ConnectionListenerFunction listener, boolean immediateNotify);
+  public static native void removeConnectionListener(int inst, int connListenerUid);
+
+  public static native void setNetworkIdentity(int inst, String name);
+  public static native void setSnapshotFile(int inst, String filename);
+  public static native void startServer(int inst, String persistFilename, String listenAddress, int port);
+  public static native void stopServer(int inst);
+  public static native void startClient(int inst, String serverName, int port);
+  public static native void stopClient(int inst);
+  public static native void startRelay(int inst, String serverName, int serverPort, String listenAddress, int port);
+  public static native void stopRelay(int inst);
+  public static native void startCluster(int inst, String persistFilename, String listenAddress, int port, String[] peerNames, int[] peerPorts);
+  public static native void setUpdateRate(int inst, double interval);
+  public static native void setOutgoingLimit(int inst, long maxBytes, int policy);
+  public static native void setNetworkCompression(int inst, long threshold);
+  public static native void setLowPriorityBudget(int inst, long bytesPerSec);
+  public static native ConnectionInfo[] getConnections(int inst);
+  public static native void savePersistent(int inst, String filename) throws PersistentException;
+  public static native String[] loadPersistent(int inst, String filename) throws PersistentException;
 
   public interface LoggerFunction {
     void apply(int level, String file, int line, String msg);
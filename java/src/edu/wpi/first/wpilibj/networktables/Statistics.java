@@ -0,0 +1,40 @@
+package edu.wpi.first.wpilibj.networktables;
+
+/**
+ * Indices into the array returned by {@link NetworkTablesJNI#getStatistics()}.
+ * The global values come first, followed by one block of CONN_NUM values
+ * per connection; block i starts at NUM + i * CONN_NUM.  Times are in
+ * {@link NetworkTablesJNI#now()} units (100 ns).
+ */
+public final class Statistics {
+  public static final int NUM_CONNECTIONS = 0;
+  public static final int LOCK_WAIT_COUNT = 1;
+  public static final int LOCK_WAIT_TOTAL = 2;
+  public static final int LOCK_WAIT_MAX = 3;
+  public static final int DISPATCH_LOOPS = 4;
+  public static final int DISPATCH_OVERRUNS = 5;
+  public static final int SAVE_COUNT = 6;
+  public static final int SAVE_LAST_DURATION = 7;
+  public static final int SAVE_MAX_DURATION = 8;
+  public static final int NOTIFIER_DEPTH = 9;
+  public static final int NOTIFIER_OLDEST_AGE = 10;
+  public static final int RPC_DEPTH = 11;
+  public static final int DATALOG_RECORDS = 12;
+  public static final int DATALOG_DROPPED = 13;
+  public static final int NUM = 14;
+
+  public static final int CONN_UID = 0;
+  public static final int CONN_STATE = 1;
+  public static final int CONN_MSGS_IN = 2;
+  public static final int CONN_BYTES_IN = 3;
+  public static final int CONN_MSGS_OUT = 4;
+  public static final int CONN_BYTES_OUT = 5;
+  public static final int CONN_QUEUE_DEPTH = 6;
+  public static final int CONN_QUEUE_BYTES = 7;
+  public static final int CONN_COALESCED = 8;
+  public static final int CONN_DROPPED = 9;
+  public static final int CONN_OVERFLOWED = 10;
+  public static final int CONN_NUM = 11;
+
+  private Statistics() {}
+}
@@ -0,0 +1,102 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_CHANGELOG_H_
+#define NT_CHANGELOG_H_
+
+#include <algorithm>
+#include <atomic>
+#include <memory>
+#include <vector>
+
+#include "Message.h"
+#include "NetworkConnection.h"
+
+namespace nt {
+
+// Outgoing messages waiting to be fanned out to the connections.  Any number
+// of threads may Push() without locking; a single consumer takes everything
+// at once with TakeAll().
+//
+// Connections are referred to by uid rather than by pointer, as a closed
+// connection's address may be reused by a new one before a record naming
+// it is fanned out.
+//
+// Each record is stamped in push order, so a connection can skip records
+// already covered by the snapshot it was synchronized with.
+class ChangeLog {
+ public:
+  static const unsigned int kNoConnection = ~0u;
+
+  struct Record {
+    std::shared_ptr<Message> msg;
+    unsigned int only;    // unless kNoConnection, only this connection
+    unsigned int except;  // unless kNoConnection, all but this connection
+    bool unreliable;      // may take the datagram path
+    NetworkConnection::Priority priority;
+    unsigned long long stamp;
+  };
+
+  ChangeLog() : m_head(nullptr), m_stamp(0) {}
+  ~ChangeLog() { Clear(); }
+
+  ChangeLog(const ChangeLog&) = delete;
+  ChangeLog& operator=(const ChangeLog&) = delete;
+
+  void Push(std::shared_ptr<Message> msg, unsigned int only,
+            unsigned int except, bool unreliable,
+            NetworkConnection::Priority priority =
+                NetworkConnection::kPriorityNormal) {
+    Node* node = new Node{
+        {std::move(msg), only, except, unreliable, priority, ++m_stamp},
+        nullptr};
+    node->next = m_head.load(std::memory_order_relaxed);
+    while (!m_head.compare_exchange_weak(node->next, node,
+                                         std::memory_order_release,
+                                         std::memory_order_relaxed)) {
+    }
+  }
+
+  // Appends all records pushed so far to out, oldest first.
+  void TakeAll(std::vector<Record>* out) {
+    Node* node = m_head.exchange(nullptr, std::memory_order_acquire);
+    // the list is newest first
+    std::size_t start = out->size();
+    while (node) {
+      out->push_back(std::move(node->record));
+      Node* next = node->next;
+      delete node;
+      node = next;
+    }
+    std::reverse(out->begin() + start, out->end());
+  }
+
+  // Stamp of the last record pushed.
+  unsigned long long stamp() const { return m_stamp; }
+
+  void Clear() {
+    Node* node = m_head.exchange(nullptr, std::memory_order_acquire);
+    while (node) {
+      Node* next = node->next;
+      delete node;
+      node = next;
+    }
+  }
+
+ private:
+  struct Node {
+    Record record;
+    Node* next;
+  };
+
+  std::atomic<Node*> m_head;
+  std::atomic_ullong m_stamp;
+};
+
+}  // namespace nt
+
+#endif  // NT_CHANGELOG_H_
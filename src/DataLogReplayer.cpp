@@ -0,0 +1,213 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "DataLogReplayer.h"
+
+#include <algorithm>
+#include <cstring>
+
+#include "DataLogger.h"
+#include "Log.h"
+#include "raw_istream.h"
+#include "Storage.h"
+#include "WireDecoder.h"
+
+using namespace nt;
+
+ATOMIC_STATIC_INIT(DataLogReplayer)
+
+// magic plus 16-bit version
+static const std::size_t kHeaderSize = sizeof(DataLogger::kMagic) + 2;
+
+DataLogReplayer::DataLogReplayer()
+    : DataLogReplayer(Storage::GetInstance()) {}
+
+DataLogReplayer::~DataLogReplayer() { Stop(); }
+
+const char* DataLogReplayer::Start(llvm::StringRef filename, double speed) {
+  Stop();
+
+  if (!m_file.Open(filename)) return "could not open file";
+  const char* err = Index();
+  if (err) {
+    m_file.Close();
+    return err;
+  }
+
+  {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    m_pos = 0;
+    m_speed = speed < 0 ? 0 : speed;
+    m_base_time = m_records.empty() ? 0 : m_records[0].time;
+    m_base_wall = std::chrono::steady_clock::now();
+    m_finished = false;
+    m_active = true;
+  }
+  m_thread = std::thread(&DataLogReplayer::ReplayMain, this);
+  INFO("replaying " << filename << ": " << m_records.size() << " records, "
+                    << m_names.size() << " entries");
+  return nullptr;
+}
+
+void DataLogReplayer::Stop() {
+  {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (!m_active) return;
+    m_active = false;
+  }
+  m_cond.notify_one();
+  if (m_thread.joinable()) m_thread.join();
+  m_file.Close();
+  m_names.clear();
+  m_records.clear();
+}
+
+bool DataLogReplayer::active() const {
+  std::lock_guard<std::mutex> lock(m_mutex);
+  return m_active;
+}
+
+void DataLogReplayer::Seek(double time) {
+  std::lock_guard<std::mutex> lock(m_mutex);
+  if (!m_active || m_records.empty()) return;
+  unsigned long long target = m_records[0].time;
+  if (time > 0) target += static_cast<unsigned long long>(time * 1.0e7);
+
+  auto pos = std::lower_bound(m_records.begin(), m_records.end(), target,
+                              [](const Record& rec, unsigned long long t) {
+                                return rec.time < t;
+                              }) -
+             m_records.begin();
+
+  // Rebuild the state at the target time from the last record of each
+  // entry; entries with no record yet don't exist at that point.
+  std::vector<const Record*> last(m_names.size(), nullptr);
+  for (std::size_t i = 0; i < static_cast<std::size_t>(pos); ++i)
+    last[m_records[i].id] = &m_records[i];
+  for (std::size_t id = 0; id < last.size(); ++id) {
+    if (last[id] && last[id]->offset != 0)
+      Apply(*last[id]);
+    else
+      m_storage.ReplayDeleteEntry(m_names[id]);
+  }
+
+  m_pos = pos;
+  m_base_time = target;
+  m_base_wall = std::chrono::steady_clock::now();
+  m_finished = false;
+  m_cond.notify_one();
+}
+
+void DataLogReplayer::SetSpeed(double speed) {
+  std::lock_guard<std::mutex> lock(m_mutex);
+  if (speed < 0) speed = 0;
+  auto now = std::chrono::steady_clock::now();
+  // keep the current log position when changing speed
+  if (m_speed > 0) {
+    auto elapsed = std::chrono::duration_cast<std::chrono::nanoseconds>(
+                       now - m_base_wall).count();
+    m_base_time += static_cast<unsigned long long>(elapsed / 100 * m_speed);
+  } else if (m_pos < m_records.size()) {
+    m_base_time = m_records[m_pos].time;
+  }
+  m_base_wall = now;
+  m_speed = speed;
+  m_cond.notify_one();
+}
+
+const char* DataLogReplayer::Index() {
+  m_names.clear();
+  m_records.clear();
+
+  const char* data = m_file.data();
+  std::size_t size = m_file.size();
+  if (size < kHeaderSize ||
+      std::memcmp(data, DataLogger::kMagic, sizeof(DataLogger::kMagic)) != 0)
+    return "not a data log";
+  const unsigned char* ver =
+      reinterpret_cast<const unsigned char*>(data) + sizeof(DataLogger::kMagic);
+  unsigned int version = (ver[0] << 8) | ver[1];
+  if (version != DataLogger::kVersion) return "unsupported data log version";
+
+  raw_mem_istream is(data + kHeaderSize, size - kHeaderSize);
+  WireDecoder decoder(is, 0x0300);
+  while (is.left() > 0) {
+    // a partial record at the end (e.g. from a crash) ends the log
+    std::size_t offset = size - is.left();
+    unsigned int kind;
+    unsigned long id;
+    if (!decoder.Read8(&kind)) break;
+    if (kind == DataLogger::kDefine) {
+      std::string name;
+      if (!decoder.ReadUleb128(&id) || !decoder.ReadString(&name)) break;
+      if (id != m_names.size()) return "invalid entry id in data log";
+      m_names.push_back(std::move(name));
+      continue;
+    }
+    if (kind != DataLogger::kValue && kind != DataLogger::kDelete) {
+      WARNING("replay: unknown record type " << kind << " at offset "
+                                             << offset);
+      break;
+    }
+    Record rec;
+    if (!decoder.Read64(&rec.time) || !decoder.ReadUleb128(&id)) break;
+    if (id >= m_names.size()) return "invalid entry id in data log";
+    rec.id = id;
+    rec.offset = 0;
+    if (kind == DataLogger::kValue) {
+      rec.offset = size - is.left();
+      NT_Type type;
+      if (!decoder.ReadType(&type) || !decoder.ReadValue(type)) break;
+    }
+    m_records.push_back(rec);
+  }
+  if (is.left() > 0)
+    WARNING("replay: ignoring " << is.left() << " bytes at end of data log");
+  return nullptr;
+}
+
+void DataLogReplayer::Apply(const Record& rec) {
+  llvm::StringRef name = m_names[rec.id];
+  if (rec.offset == 0) {
+    m_storage.ReplayDeleteEntry(name);
+    return;
+  }
+  raw_mem_istream is(m_file.data() + rec.offset, m_file.size() - rec.offset);
+  WireDecoder decoder(is, 0x0300);
+  NT_Type type;
+  if (!decoder.ReadType(&type)) return;
+  auto value = decoder.ReadValue(type);
+  if (value) m_storage.ReplayEntryValue(name, value);
+}
+
+void DataLogReplayer::ReplayMain() {
+  std::unique_lock<std::mutex> lock(m_mutex);
+  while (m_active) {
+    if (m_pos >= m_records.size()) {
+      // stay around at the end so a seek can restart playback
+      m_finished = true;
+      m_cond.wait(lock);
+      continue;
+    }
+    Record rec = m_records[m_pos];
+    if (m_speed > 0 && rec.time > m_base_time) {
+      using namespace std::chrono;
+      auto due = m_base_wall +
+                 duration_cast<steady_clock::duration>(
+                     nanoseconds(static_cast<long long>(
+                         (rec.time - m_base_time) * 100 / m_speed)));
+      if (std::chrono::steady_clock::now() < due) {
+        // re-check afterwards, as a stop, seek or speed change may wake us
+        m_cond.wait_until(lock, due);
+        continue;
+      }
+    }
+    // applied with the lock held so a seek can't be overtaken by it
+    ++m_pos;
+    Apply(rec);
+  }
+}
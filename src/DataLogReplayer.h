@@ -0,0 +1,89 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_DATALOGREPLAYER_H_
+#define NT_DATALOGREPLAYER_H_
+
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include "llvm/StringRef.h"
+
+#include "atomic_static.h"
+#include "support/MappedFile.h"
+
+namespace nt {
+
+class Storage;
+
+// Plays a file written by DataLogger back into Storage.  The file is memory
+// mapped and indexed up front; the changes are then applied by a separate
+// thread, paced by their recorded times.
+class DataLogReplayer {
+ public:
+  static DataLogReplayer& GetInstance() {
+    ATOMIC_STATIC(DataLogReplayer, instance);
+    return instance;
+  }
+  explicit DataLogReplayer(Storage& storage) : m_storage(storage) {}
+  ~DataLogReplayer();
+
+  // Starts replaying the given file, replacing any running replay.  Speed is
+  // relative to real time; 0 replays as fast as possible.  Returns an error
+  // string, or nullptr if successful.
+  const char* Start(llvm::StringRef filename, double speed);
+  void Stop();
+
+  // Moves to the given time (in seconds from the first record).  Entries
+  // are first brought to their logged state as of that time.
+  void Seek(double time);
+  void SetSpeed(double speed);
+
+  bool active() const;
+  // True once every record has been applied (until the next seek).
+  bool finished() const { return m_finished; }
+
+ private:
+  DataLogReplayer();
+
+  struct Record {
+    std::size_t offset;  // of the value type; 0 for deletes
+    unsigned long long time;
+    unsigned int id;
+  };
+
+  const char* Index();
+  void Apply(const Record& rec);
+  void ReplayMain();
+
+  Storage& m_storage;
+  MappedFile m_file;
+  std::vector<std::string> m_names;
+  std::vector<Record> m_records;
+
+  mutable std::mutex m_mutex;
+  std::condition_variable m_cond;
+  std::thread m_thread;
+  bool m_active = false;
+  std::atomic_bool m_finished{false};
+  std::size_t m_pos = 0;
+  double m_speed = 1.0;
+  // Log time that corresponds to m_base_wall when pacing
+  unsigned long long m_base_time = 0;
+  std::chrono::steady_clock::time_point m_base_wall;
+
+  ATOMIC_STATIC_DECL(DataLogReplayer)
+};
+
+}  // namespace nt
+
+#endif  // NT_DATALOGREPLAYER_H_
@@ -0,0 +1,142 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "DataLogger.h"
+
+#include <chrono>
+
+#include "support/timestamp.h"
+#include "Log.h"
+
+using namespace nt;
+
+ATOMIC_STATIC_INIT(DataLogger)
+
+const char DataLogger::kMagic[5] = {'N', 'T', 'L', 'O', 'G'};
+
+DataLogger::DataLogger() : m_enc(0x0300) {
+  m_active = false;
+  m_records = 0;
+  m_dropped = 0;
+}
+
+DataLogger::~DataLogger() { Stop(); }
+
+const char* DataLogger::Start(llvm::StringRef filename,
+                              llvm::ArrayRef<std::string> prefixes) {
+  Stop();
+
+  m_os.open(filename.str(),
+            std::ios_base::out | std::ios_base::binary | std::ios_base::trunc);
+  if (!m_os) return "could not open file";
+  m_os.write(kMagic, sizeof(kMagic));
+  m_os.put(static_cast<char>((kVersion >> 8) & 0xff));
+  m_os.put(static_cast<char>(kVersion & 0xff));
+
+  {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    m_prefixes.assign(prefixes.begin(), prefixes.end());
+    m_ids.clear();
+    m_front.clear();
+    m_front.reserve(kBlockSize * 2);
+    m_records = 0;
+    m_dropped = 0;
+    m_active = true;
+  }
+  m_writer = std::thread(&DataLogger::WriterMain, this);
+  INFO("data log started: " << filename);
+  return nullptr;
+}
+
+void DataLogger::Stop() {
+  {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (!m_active) return;
+    m_active = false;
+  }
+  m_cond.notify_one();
+  if (m_writer.joinable()) m_writer.join();
+  m_os.close();
+  INFO("data log stopped: " << m_records << " records, " << m_dropped
+                            << " dropped");
+}
+
+void DataLogger::LogEntry(llvm::StringRef name, std::shared_ptr<Value> value,
+                          unsigned int flags) {
+  if (!m_active) return;
+  bool is_delete = (flags & NT_NOTIFY_DELETE) != 0;
+  if (!is_delete && ((flags & (NT_NOTIFY_NEW | NT_NOTIFY_UPDATE)) == 0 ||
+                     !value))
+    return;
+
+  std::lock_guard<std::mutex> lock(m_mutex);
+  if (!m_active) return;
+  if (!m_prefixes.empty()) {
+    bool match = false;
+    for (auto& prefix : m_prefixes) {
+      if (name.startswith(prefix)) {
+        match = true;
+        break;
+      }
+    }
+    if (!match) return;
+  }
+
+  if (m_front.size() >= kMaxBuffered) {
+    ++m_dropped;
+    return;
+  }
+
+  m_enc.Reset();
+  auto& id = m_ids[name];
+  if (id == 0) {
+    id = m_ids.size();
+    m_enc.Write8(kDefine);
+    m_enc.WriteUleb128(id - 1);
+    m_enc.WriteString(name);
+  }
+  m_enc.Write8(is_delete ? kDelete : kValue);
+  m_enc.Write64(Now());
+  m_enc.WriteUleb128(id - 1);
+  if (!is_delete) {
+    m_enc.WriteType(value->type());
+    m_enc.WriteValue(*value);
+  }
+  if (m_enc.error()) {
+    DEBUG("data log: " << m_enc.error());
+    ++m_dropped;
+    return;
+  }
+  m_front.append(m_enc.data(), m_enc.size());
+  ++m_records;
+  if (m_front.size() >= kBlockSize) m_cond.notify_one();
+}
+
+void DataLogger::WriterMain() {
+  // Double buffering: records are appended to m_front while the previous
+  // block is being written out from back.
+  std::string back;
+  back.reserve(kBlockSize * 2);
+  std::unique_lock<std::mutex> lock(m_mutex);
+  for (;;) {
+    m_cond.wait_for(lock, std::chrono::milliseconds(100), [&] {
+      return !m_active || m_front.size() >= kBlockSize;
+    });
+    bool done = !m_active;
+    back.swap(m_front);
+    lock.unlock();
+
+    if (!back.empty()) {
+      m_os.write(back.data(), back.size());
+      if (!m_os) WARNING("data log: write failed");
+      back.clear();
+    }
+    if (done) break;
+    lock.lock();
+  }
+  m_os.flush();
+}
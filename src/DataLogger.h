@@ -0,0 +1,102 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_DATALOGGER_H_
+#define NT_DATALOGGER_H_
+
+#include <atomic>
+#include <condition_variable>
+#include <fstream>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include "llvm/ArrayRef.h"
+#include "llvm/StringMap.h"
+#include "llvm/StringRef.h"
+
+#include "atomic_static.h"
+#include "nt_Value.h"
+#include "WireEncoder.h"
+
+namespace nt {
+
+// Binary log of entry changes, written by a dedicated thread.
+//
+// The file starts with the magic bytes "NTLOG" and a 16-bit version,
+// followed by records.  Integers are big-endian and values use the
+// protocol 3.0 encoding, as on the wire:
+//   kDefine: id (uleb128), name (string)
+//   kValue:  time (8 bytes), id (uleb128), type (1 byte), value
+//   kDelete: time (8 bytes), id (uleb128)
+// Ids are assigned by the logger when a name is first logged; times are in
+// nt::Now() units.
+class DataLogger {
+  friend class InstanceImpl;
+ public:
+  static DataLogger& GetInstance() {
+    ATOMIC_STATIC(DataLogger, instance);
+    return instance;
+  }
+  ~DataLogger();
+
+  enum RecordType { kDefine = 1, kValue = 2, kDelete = 3 };
+  static const char kMagic[5];
+  static const unsigned int kVersion = 1;
+
+  // Starts logging to the given file, replacing any running log.  Only
+  // entries starting with one of the prefixes are logged; no prefixes logs
+  // everything.  Returns an error string, or nullptr if successful.
+  const char* Start(llvm::StringRef filename,
+                    llvm::ArrayRef<std::string> prefixes);
+  // Writes out anything buffered and closes the file.
+  void Stop();
+
+  bool active() const { return m_active; }
+
+  // Records an entry change; flags are the notification flags.  Called by
+  // Storage with its lock held, so this only appends to the front buffer.
+  void LogEntry(llvm::StringRef name, std::shared_ptr<Value> value,
+                unsigned int flags);
+
+  unsigned long long records() const { return m_records; }
+  unsigned long long dropped() const { return m_dropped; }
+
+  // The writer is woken when this much is buffered (or periodically).
+  static const std::size_t kBlockSize = 64 * 1024;
+  // Records are dropped rather than buffered past this while the writer is
+  // behind.
+  static const std::size_t kMaxBuffered = 16 * 1024 * 1024;
+
+ private:
+  DataLogger();
+
+  void WriterMain();
+
+  std::mutex m_mutex;
+  std::condition_variable m_cond;
+  std::atomic_bool m_active;
+  std::thread m_writer;
+  std::ofstream m_os;
+
+  // Protected by m_mutex
+  std::vector<std::string> m_prefixes;
+  llvm::StringMap<unsigned int> m_ids;
+  WireEncoder m_enc;
+  std::string m_front;
+
+  std::atomic_ullong m_records;
+  std::atomic_ullong m_dropped;
+
+  ATOMIC_STATIC_DECL(DataLogger)
+};
+
+}  // namespace nt
+
+#endif  // NT_DATALOGGER_H_
@@ -8,58 +8,149 @@
 #include "Dispatcher.h"
 
 #include <algorithm>
+#include <cstdio>
 #include <iterator>
+#include <random>
 
 #include "tcpsockets/TCPAcceptor.h"
 #include "tcpsockets/TCPConnector.h"
+#include "tcpsockets/UnixAcceptor.h"
+#include "tcpsockets/UnixConnector.h"
+#include "support/timestamp.h"
 #include "Log.h"
 
 using namespace nt;
 
 ATOMIC_STATIC_INIT(Dispatcher)
 
-void Dispatcher::StartServer(StringRef persist_filename,
-                             const char* listen_address, unsigned int port) {
-  DispatcherBase::StartServer(persist_filename,
-                              std::unique_ptr<NetworkAcceptor>(new TCPAcceptor(
-                                  static_cast<int>(port), listen_address)));
+// Addresses of the form "unix:<path>" use a Unix domain socket; returns
+// the path, or empty if the address is a TCP address.
+static llvm::StringRef LocalSocketPath(const char* address) {
+  llvm::StringRef addr = address ? address : "";
+  if (!addr.startswith("unix:")) return llvm::StringRef();
+  return addr.substr(5);
 }
 
-void Dispatcher::StartClient(const char* server_name, unsigned int port) {
+static void MakeAcceptor(const char* listen_address, unsigned int port,
+                         std::unique_ptr<NetworkAcceptor>* acceptor,
+                         std::unique_ptr<UDPSocket>* datagram) {
+  llvm::StringRef path = LocalSocketPath(listen_address);
+  if (!path.empty()) {
+    acceptor->reset(new UnixAcceptor(path.str().c_str()));
+    return;
+  }
+  acceptor->reset(new TCPAcceptor(static_cast<int>(port), listen_address));
+  // the datagram path is optional; clients fall back to TCP without it
+  datagram->reset(new UDPSocket);
+  if (!(*datagram)->bind(listen_address, static_cast<int>(port)))
+    datagram->reset();
+}
+
+static std::function<std::unique_ptr<NetworkStream>()> MakeConnector(
+    const char* server_name, unsigned int port) {
+  std::string path = LocalSocketPath(server_name);
+  if (!path.empty()) {
+    return [=]() -> std::unique_ptr<NetworkStream> {
+      return UnixConnector::connect(path.c_str());
+    };
+  }
   std::string server_name_copy(server_name);
-  DispatcherBase::StartClient([=]() -> std::unique_ptr<NetworkStream> {
+  return [=]() -> std::unique_ptr<NetworkStream> {
     return TCPConnector::connect(server_name_copy.c_str(),
                                  static_cast<int>(port), 1);
-  });
+  };
+}
+
+void Dispatcher::StartServer(StringRef persist_filename,
+                             const char* listen_address, unsigned int port) {
+  std::unique_ptr<NetworkAcceptor> acceptor;
+  std::unique_ptr<UDPSocket> datagram;
+  MakeAcceptor(listen_address, port, &acceptor, &datagram);
+  DispatcherBase::StartServer(persist_filename, std::move(acceptor),
+                              std::move(datagram));
+}
+
+void Dispatcher::StartClient(const char* server_name, unsigned int port) {
+  // only TCP connections have a datagram path
+  DispatcherBase::StartClient(MakeConnector(server_name, port),
+                              LocalSocketPath(server_name).empty());
+}
+
+void Dispatcher::StartCluster(
+    StringRef persist_filename, const char* listen_address, unsigned int port,
+    llvm::ArrayRef<std::pair<std::string, unsigned int>> peers) {
+  std::unique_ptr<NetworkAcceptor> acceptor;
+  std::unique_ptr<UDPSocket> datagram;
+  MakeAcceptor(listen_address, port, &acceptor, &datagram);
+  std::vector<std::function<std::unique_ptr<NetworkStream>()>> connectors;
+  for (auto& peer : peers)
+    connectors.emplace_back(MakeConnector(peer.first.c_str(), peer.second));
+  DispatcherBase::StartCluster(persist_filename, std::move(acceptor),
+                               std::move(datagram), std::move(connectors));
 }
 
 Dispatcher::Dispatcher()
     : Dispatcher(Storage::GetInstance(), Notifier::GetInstance()) {}
 
-DispatcherBase::DispatcherBase(Storage& storage, Notifier& notifier)
-    : m_storage(storage), m_notifier(notifier) {
+DispatcherBase::DispatcherBase(Storage& storage, Notifier& notifier,
+                               bool process_wide)
+    : m_storage(storage), m_notifier(notifier), m_process_wide(process_wide) {
   m_active = false;
   m_update_rate = 100;
+  m_dispatch_loops = 0;
+  m_dispatch_overruns = 0;
+  m_num_peers = 0;
 }
 
 DispatcherBase::~DispatcherBase() {
-  Logger::GetInstance().SetLogger(nullptr);
+  if (m_process_wide) Logger::GetInstance().SetLogger(nullptr);
   Stop();
 }
 
 void DispatcherBase::StartServer(StringRef persist_filename,
-                                 std::unique_ptr<NetworkAcceptor> acceptor) {
+                                 std::unique_ptr<NetworkAcceptor> acceptor,
+                                 std::unique_ptr<UDPSocket> datagram) {
+  std::string snapshot_filename;
   {
     std::lock_guard<std::mutex> lock(m_user_mutex);
     if (m_active) return;
     m_active = true;
+    // a new session; clients of a previous run can't resume
+    std::random_device rd;
+    do {
+      m_session_token = (static_cast<unsigned long long>(rd()) << 32) ^ rd() ^
+                        Now();
+    } while (m_session_token == 0);
+    m_change_seq = 0;
+    m_resync_floor = 0;
+    m_change_seqs.clear();
+    snapshot_filename = m_snapshot_filename;
   }
   m_server = true;
   m_persist_filename = persist_filename;
   m_server_acceptor = std::move(acceptor);
+  m_datagram = static_cast<bool>(datagram);
+  m_datagram_socket = std::move(datagram);
+
+  // Restore the state saved when the last server stopped, before any client
+  // can connect.  It includes the persistent values, and is only used once,
+  // so after a crash the persistent file is loaded instead.
+  bool restored = false;
+  if (!snapshot_filename.empty()) {
+    std::size_t count = 0;
+    const char* err = m_storage.LoadSnapshot(snapshot_filename, &count);
+    if (!err) {
+      INFO("restored " << count << " entries from snapshot '"
+                       << snapshot_filename << "'");
+      std::remove(snapshot_filename.c_str());
+      restored = true;
+    } else {
+      DEBUG("not restoring snapshot '" << snapshot_filename << "': " << err);
+    }
+  }
 
   // Load persistent file.  Ignore errors, but pass along warnings.
-  if (!persist_filename.empty()) {
+  if (!restored && !persist_filename.empty()) {
     bool first = true;
     m_storage.LoadPersistent(
         persist_filename, [&](std::size_t line, const char* msg) {
@@ -73,33 +164,69 @@ void DispatcherBase::StartServer(StringRef persist_filename,
   }
 
   using namespace std::placeholders;
-  m_storage.SetOutgoing(std::bind(&Dispatcher::QueueOutgoing, this, _1, _2, _3),
-                        m_server);
+  m_storage.SetOutgoing(
+      std::bind(&Dispatcher::QueueOutgoing, this, _1, _2, _3, _4), m_server,
+      [this](NetworkConnection& conn) {
+        conn.set_sync_stamp(m_change_log.stamp());
+      });
 
   m_dispatch_thread = std::thread(&Dispatcher::DispatchThreadMain, this);
   m_clientserver_thread = std::thread(&Dispatcher::ServerThreadMain, this);
+  if (m_datagram)
+    m_datagram_thread = std::thread(&Dispatcher::DatagramThreadMain, this);
 }
 
 void DispatcherBase::StartClient(
-    std::function<std::unique_ptr<NetworkStream>()> connect) {
+    std::function<std::unique_ptr<NetworkStream>()> connect, bool datagram) {
   {
     std::lock_guard<std::mutex> lock(m_user_mutex);
     if (m_active) return;
     m_active = true;
+    // the session is kept across a client restart, but not a server one
+    if (m_server) {
+      m_session_token = 0;
+      m_change_seqs.clear();
+    }
   }
   m_server = false;
+  m_datagram = datagram;
 
   using namespace std::placeholders;
-  m_storage.SetOutgoing(std::bind(&Dispatcher::QueueOutgoing, this, _1, _2, _3),
-                        m_server);
+  m_storage.SetOutgoing(
+      std::bind(&Dispatcher::QueueOutgoing, this, _1, _2, _3, _4), m_server,
+      [this](NetworkConnection& conn) {
+        conn.set_sync_stamp(m_change_log.stamp());
+      });
 
   m_dispatch_thread = std::thread(&Dispatcher::DispatchThreadMain, this);
   m_clientserver_thread =
       std::thread(&Dispatcher::ClientThreadMain, this, connect);
+  if (m_datagram)
+    m_datagram_thread = std::thread(&Dispatcher::DatagramThreadMain, this);
+}
+
+void DispatcherBase::StartCluster(
+    StringRef persist_filename, std::unique_ptr<NetworkAcceptor> acceptor,
+    std::unique_ptr<UDPSocket> datagram,
+    std::vector<std::function<std::unique_ptr<NetworkStream>()>> peers) {
+  if (m_active) return;
+  // ties between writes on different nodes go to the higher node id
+  std::random_device rd;
+  unsigned int node_id;
+  do {
+    node_id = rd();
+  } while (node_id == 0);
+  m_storage.SetNodeId(node_id);
+  StartServer(persist_filename, std::move(acceptor), std::move(datagram));
+  if (!m_active) return;
+  m_peers = std::move(peers);
+  m_num_peers = m_peers.size();
+  m_peer_thread = std::thread(&Dispatcher::PeerThreadMain, this);
 }
 
 void DispatcherBase::Stop() {
   m_active = false;
+  bool was_server = m_server && m_dispatch_thread.joinable();
 
   // wake up dispatch thread with a flush
   m_flush_cv.notify_one();
@@ -107,21 +234,60 @@ void DispatcherBase::Stop() {
   // wake up client thread with a reconnect
   ClientReconnect();
 
+  // wake up the peer thread
+  {
+    std::lock_guard<std::mutex> lock(m_user_mutex);
+  }
+  m_reconnect_cv.notify_all();
+
   // wake up server thread by shutting down the socket
   if (m_server_acceptor) m_server_acceptor->shutdown();
 
   // join threads, with timeout
   if (m_dispatch_thread.joinable()) m_dispatch_thread.join();
   if (m_clientserver_thread.joinable()) m_clientserver_thread.join();
+  if (m_datagram_thread.joinable()) m_datagram_thread.join();
+  if (m_peer_thread.joinable()) m_peer_thread.join();
+  m_peers.clear();
+  m_num_peers = 0;
+  m_tombstone_floor = 0;
+  m_tombstone_links.clear();
+  m_storage.SetNodeId(0);
 
   std::vector<std::shared_ptr<NetworkConnection>> conns;
   {
     std::lock_guard<std::mutex> lock(m_user_mutex);
+    if (!m_server) {
+      // keep track of what the server hasn't seen yet, for a resume
+      m_change_log.TakeAll(&m_changes);
+      for (auto& change : m_changes) RecordChange(*change.msg);
+      m_changes.clear();
+      if (!m_connections.empty())
+        m_resync_seq = m_connections.front()->resync_seq();
+    }
     conns.swap(m_connections);
+    m_datagram_socket.reset();
+    m_datagram_peers.clear();
   }
+  m_change_log.Clear();
 
   // close all connections
   conns.resize(0);
+
+  // nothing changes remotely from here on
+  if (was_server) {
+    std::string snapshot_filename;
+    {
+      std::lock_guard<std::mutex> lock(m_user_mutex);
+      snapshot_filename = m_snapshot_filename;
+    }
+    if (!snapshot_filename.empty()) {
+      const char* err = m_storage.SaveSnapshot(snapshot_filename);
+      if (err)
+        WARNING("could not save snapshot '" << snapshot_filename
+                                            << "': " << err);
+    }
+  }
 }
 
 void DispatcherBase::SetUpdateRate(double interval) {
@@ -133,6 +299,32 @@ void DispatcherBase::SetUpdateRate(double interval) {
   m_update_rate = static_cast<unsigned int>(interval * 1000);
 }
 
+void DispatcherBase::SetOutgoingLimit(std::size_t max_bytes,
+                                      NT_OutgoingPolicy policy) {
+  std::lock_guard<std::mutex> lock(m_user_mutex);
+  m_outgoing_limit = max_bytes;
+  m_outgoing_policy = policy;
+  for (auto& conn : m_connections) conn->set_outgoing_limit(max_bytes, policy);
+}
+
+void DispatcherBase::SetLowPriorityBudget(std::size_t bytes_per_sec) {
+  std::lock_guard<std::mutex> lock(m_user_mutex);
+  m_low_priority_budget = bytes_per_sec;
+  for (auto& conn : m_connections)
+    conn->set_low_priority_budget(bytes_per_sec);
+}
+
+void DispatcherBase::SetNetworkCompression(std::size_t threshold) {
+  // negotiated in the handshake, so only new connections are affected
+  std::lock_guard<std::mutex> lock(m_user_mutex);
+  m_compress_threshold = threshold;
+}
+
+void DispatcherBase::SetSnapshotFile(llvm::StringRef filename) {
+  std::lock_guard<std::mutex> lock(m_user_mutex);
+  m_snapshot_filename = filename;
+}
+
 void DispatcherBase::SetIdentity(llvm::StringRef name) {
   std::lock_guard<std::mutex> lock(m_user_mutex);
   m_identity = name;
@@ -164,6 +356,50 @@ std::vector<ConnectionInfo> DispatcherBase::GetConnections() const {
   return conns;
 }
 
+unsigned long long DispatcherBase::ServerNow() const {
+  auto now = Now();
+  if (m_server) return now;
+  std::lock_guard<std::mutex> lock(m_user_mutex);
+  for (auto& conn : m_connections) {
+    if (conn->state() != NetworkConnection::kActive || !conn->time_synced())
+      continue;
+    return now + conn->time_offset();
+  }
+  return now;
+}
+
+void DispatcherBase::GetConnectionStatistics(
+    std::vector<unsigned long long>* stats) const {
+  std::lock_guard<std::mutex> lock(m_user_mutex);
+  for (auto& conn : m_connections) {
+    std::size_t base = stats->size();
+    stats->resize(base + NT_STAT_CONN_NUM);
+    unsigned long long* out = &(*stats)[base];
+    out[NT_STAT_CONN_UID] = conn->uid();
+    out[NT_STAT_CONN_STATE] = conn->state();
+    out[NT_STAT_CONN_MSGS_IN] = conn->msgs_in();
+    out[NT_STAT_CONN_BYTES_IN] = conn->bytes_in();
+    out[NT_STAT_CONN_MSGS_OUT] = conn->msgs_out();
+    out[NT_STAT_CONN_BYTES_OUT] = conn->bytes_out();
+    out[NT_STAT_CONN_QUEUE_DEPTH] = conn->outgoing_depth();
+    out[NT_STAT_CONN_QUEUE_BYTES] = conn->outgoing_bytes();
+    out[NT_STAT_CONN_COALESCED] = conn->coalesce_count();
+    out[NT_STAT_CONN_DROPPED] = conn->drop_count();
+    out[NT_STAT_CONN_OVERFLOWED] = conn->overflow_disconnected() ? 1 : 0;
+  }
+}
+
+void DispatcherBase::GetLatencyHistograms(
+    std::vector<unsigned long long>* out) const {
+  std::lock_guard<std::mutex> lock(m_user_mutex);
+  for (auto& conn : m_connections) conn->GetLatencyHistograms(out);
+}
+
+void DispatcherBase::ResetLatencyHistograms() {
+  std::lock_guard<std::mutex> lock(m_user_mutex);
+  for (auto& conn : m_connections) conn->ResetLatencyHistograms();
+}
+
 void DispatcherBase::NotifyConnections(
     ConnectionListenerCallback callback) const {
   std::lock_guard<std::mutex> lock(m_user_mutex);
@@ -194,6 +430,8 @@ void DispatcherBase::DispatchThreadMain() {
                           [&] { return !m_active || m_do_flush; });
     m_do_flush = false;
     if (!m_active) break;  // in case we were woken up to terminate
+    auto work_start = std::chrono::steady_clock::now();
+    ++m_dispatch_loops;
 
     // perform periodic persistent save
     if (m_server && !m_persist_filename.empty() && start > next_save_time) {
@@ -204,6 +442,12 @@ void DispatcherBase::DispatchThreadMain() {
       if (err) WARNING("periodic persistent save: " << err);
     }
 
+    // publish changes held back by publish policies
+    m_storage.PublishPending(Now());
+
+    // deletes made so far go out on the peer links below
+    unsigned long long tombstones = m_storage.GetTombstoneStamp();
+
     {
       std::lock_guard<std::mutex> user_lock(m_user_mutex);
       bool reconnect = false;
@@ -213,36 +457,181 @@ void DispatcherBase::DispatchThreadMain() {
         count = 0;
       }
 
+      FanOutChanges();
+
       for (auto& conn : m_connections) {
         // post outgoing messages if connection is active
         // only send keep-alives on client
         if (conn->state() == NetworkConnection::kActive)
           conn->PostOutgoing(!m_server);
 
+        // ask the server for the datagram path until it answers (for up
+        // to 10 update periods; it may not support it)
+        if (!m_server && m_datagram_socket && m_datagram_hellos < 10 &&
+            conn->state() == NetworkConnection::kActive &&
+            !conn->datagram_active()) {
+          ++m_datagram_hellos;
+          const char hello[] = {NetworkConnection::kDatagramMagic,
+                                NetworkConnection::kDatagramHello};
+          m_datagram_socket->sendTo(hello, sizeof(hello), m_datagram_server);
+        }
+
         // if client, reconnect if connection died
         if (!m_server && conn->state() == NetworkConnection::kDead)
           reconnect = true;
       }
+      ExpireTombstones(tombstones);
       // reconnect if we disconnected (and a reconnect is not in progress)
       if (reconnect && !m_do_reconnect) {
         m_do_reconnect = true;
         m_reconnect_cv.notify_one();
       }
     }
+
+    // count loops whose work took longer than the update period
+    if (std::chrono::steady_clock::now() - work_start >
+        std::chrono::milliseconds(m_update_rate))
+      ++m_dispatch_overruns;
   }
 }
 
 void DispatcherBase::QueueOutgoing(std::shared_ptr<Message> msg,
                                    NetworkConnection* only,
-                                   NetworkConnection* except) {
-  std::lock_guard<std::mutex> user_lock(m_user_mutex);
+                                   NetworkConnection* except,
+                                   unsigned int flags) {
+  // nobody drains the log when stopped
+  if (!m_active) return;
+  // only value updates can take the datagram path or have a priority
+  bool unreliable = false;
+  auto priority = NetworkConnection::kPriorityNormal;
+  if (msg->Is(Message::kEntryUpdate)) {
+    unreliable = m_datagram && (flags & NT_UNRELIABLE) != 0;
+    if ((flags & NT_HIGH_PRIORITY) != 0)
+      priority = NetworkConnection::kPriorityHigh;
+    else if ((flags & NT_LOW_PRIORITY) != 0)
+      priority = NetworkConnection::kPriorityLow;
+  }
+  // the dispatch thread does the per-connection work, so the cost here
+  // doesn't depend on the number of connections
+  m_change_log.Push(std::move(msg),
+                    only ? only->uid() : ChangeLog::kNoConnection,
+                    except ? except->uid() : ChangeLog::kNoConnection,
+                    unreliable, priority);
+}
+
+// Called by the dispatch thread with the user mutex held, before posting.
+void DispatcherBase::FanOutChanges() {
+  m_change_log.TakeAll(&m_changes);
+  for (auto& change : m_changes) {
+    RecordChange(*change.msg);
+    bool peer_msg = change.msg->Is(Message::kPeerEntry);
+    std::shared_ptr<Message> peer_entry;  // made on first use
+    bool have_peer_entry = false;
+    for (auto& conn : m_connections) {
+      if (conn->uid() == change.except) continue;
+      // already in the snapshot the connection was synchronized with
+      if (change.stamp <= conn->sync_stamp()) continue;
+      if (change.only != ChangeLog::kNoConnection &&
+          conn->uid() != change.only)
+        continue;
+      auto state = conn->state();
+      if (state != NetworkConnection::kSynchronized &&
+          state != NetworkConnection::kActive) continue;
+      auto role = conn->peer_role();
+      if (role == NetworkConnection::kPeerIncoming) continue;
+      if (role == NetworkConnection::kPeerOutgoing) {
+        // peers get the whole state of a changed entry
+        if (peer_msg) {
+          conn->QueueOutgoing(change.msg);
+          continue;
+        }
+        if (!change.msg->Is(Message::kEntryAssign) &&
+            !change.msg->Is(Message::kEntryUpdate) &&
+            !change.msg->Is(Message::kFlagsUpdate))
+          continue;
+        if (!have_peer_entry) {
+          peer_entry = m_storage.GetPeerEntry(change.msg->id());
+          have_peer_entry = true;
+        }
+        if (peer_entry) conn->QueueOutgoing(peer_entry);
+        continue;
+      }
+      if (peer_msg) continue;
+      if (change.unreliable)
+        conn->QueueUnreliable(change.msg);
+      else
+        conn->QueueOutgoing(change.msg, change.priority);
+    }
+  }
+
+  // let resuming clients know they are up to date to here
+  if (m_server && !m_changes.empty()) {
+    auto point = Message::ResyncPoint(m_change_seq);
+    for (auto& conn : m_connections) {
+      auto state = conn->state();
+      if (conn->peer_role() != NetworkConnection::kNotPeer) continue;
+      if (conn->proto_rev() >= 0x0302 &&
+          (state == NetworkConnection::kSynchronized ||
+           state == NetworkConnection::kActive))
+        conn->QueueOutgoing(point);
+    }
+  }
+  m_changes.clear();
+}
+
+// Called by the dispatch thread with the user mutex held, after posting.
+// The tombstones up to stamp have been sent on every active peer link; they
+// are dropped if all the peers are still linked by the same connections an
+// update period later, as a peer that has them won't send back what they
+// deleted.
+void DispatcherBase::ExpireTombstones(unsigned long long stamp) {
+  if (m_num_peers == 0) return;
+  std::vector<unsigned int> links;
   for (auto& conn : m_connections) {
-    if (conn.get() == except) continue;
-    if (only && conn.get() != only) continue;
-    auto state = conn->state();
-    if (state != NetworkConnection::kSynchronized &&
-        state != NetworkConnection::kActive) continue;
-    conn->QueueOutgoing(msg);
+    if (conn->peer_role() == NetworkConnection::kPeerOutgoing &&
+        conn->state() == NetworkConnection::kActive)
+      links.push_back(conn->uid());
+  }
+  std::sort(links.begin(), links.end());
+  if (links.size() != m_num_peers) {
+    m_tombstone_links.clear();
+    return;
+  }
+  if (links == m_tombstone_links) m_storage.ExpireTombstones(m_tombstone_floor);
+  m_tombstone_links.swap(links);
+  m_tombstone_floor = stamp;
+}
+
+void DispatcherBase::RecordChange(const Message& msg) {
+  switch (msg.type()) {
+    case Message::kEntryAssign:
+    case Message::kEntryUpdate:
+    case Message::kFlagsUpdate:
+      // no id yet on a client; those are sent as assigns on a resume anyway
+      if (msg.id() == 0xffff) break;
+      m_change_seqs[msg.id()] = ++m_change_seq;
+      break;
+    case Message::kEntryDelete:
+      if (!m_server) {
+        // a resume wouldn't bring back the server's copy of the entry, as a
+        // full resync does, so don't resume
+        m_session_token = 0;
+        m_session_lost = true;
+        break;
+      }
+      m_change_seqs[msg.id()] = ++m_change_seq;
+      break;
+    case Message::kClearEntries:
+      // there's nothing left to resume from
+      if (!m_server) {
+        m_session_token = 0;
+        m_session_lost = true;
+      }
+      m_change_seqs.clear();
+      m_resync_floor = ++m_change_seq;
+      break;
+    default:
+      break;
   }
 }
 
@@ -272,6 +661,8 @@ void DispatcherBase::ServerThreadMain() {
                   std::weak_ptr<NetworkConnection>(conn)));
     {
       std::lock_guard<std::mutex> lock(m_user_mutex);
+      conn->set_outgoing_limit(m_outgoing_limit, m_outgoing_policy);
+      conn->set_low_priority_budget(m_low_priority_budget);
       // reuse dead connection slots
       bool placed = false;
       for (auto& c : m_connections) {
@@ -300,6 +691,18 @@ void DispatcherBase::ClientThreadMain(
     DEBUG("client connected");
 
     std::unique_lock<std::mutex> lock(m_user_mutex);
+    m_datagram_socket.reset();
+    m_datagram_hellos = 0;
+    if (m_datagram && stream->getLocalPort() != 0) {
+      // bind to the local port of the TCP connection so the server can
+      // tell which connection our datagrams belong to
+      auto socket = std::make_shared<UDPSocket>();
+      if (UDPSocket::ParseAddress(stream->getPeerIP().str().c_str(),
+                                  stream->getPeerPort(),
+                                  &m_datagram_server) &&
+          socket->bind(nullptr, stream->getLocalPort()))
+        m_datagram_socket = socket;
+    }
     using namespace std::placeholders;
     auto conn = std::make_shared<NetworkConnection>(
         std::move(stream), m_notifier,
@@ -308,6 +711,12 @@ void DispatcherBase::ClientThreadMain(
     conn->set_process_incoming(
         std::bind(&Storage::ProcessIncoming, &m_storage, _1, _2,
                   std::weak_ptr<NetworkConnection>(conn)));
+    conn->set_outgoing_limit(m_outgoing_limit, m_outgoing_policy);
+    conn->set_low_priority_budget(m_low_priority_budget);
+    if (!m_connections.empty())
+      m_resync_seq = m_connections.front()->resync_seq();
+    // carried over in case this connection never gets as far as a hello
+    conn->set_resync_seq(m_resync_seq);
     m_connections.resize(0);  // disconnect any current
     m_connections.emplace_back(conn);
     conn->set_proto_rev(m_reconnect_proto_rev);
@@ -319,20 +728,173 @@ void DispatcherBase::ClientThreadMain(
   }
 }
 
+void DispatcherBase::PeerThreadMain() {
+  std::vector<std::shared_ptr<NetworkConnection>> links(m_peers.size());
+  while (m_active) {
+    for (std::size_t i = 0; i < m_peers.size() && m_active; ++i) {
+      if (links[i] && links[i]->state() != NetworkConnection::kDead) continue;
+
+      // try to connect (with timeout)
+      auto stream = m_peers[i]();
+      if (!stream) continue;  // retried next time around
+      DEBUG("cluster: connected to peer " << stream->getPeerIP() << " port "
+                                          << stream->getPeerPort());
+
+      using namespace std::placeholders;
+      auto conn = std::make_shared<NetworkConnection>(
+          std::move(stream), m_notifier,
+          std::bind(&Dispatcher::PeerHandshake, this, _1, _2, _3),
+          std::bind(&Storage::GetEntryType, &m_storage, _1));
+      conn->set_process_incoming(
+          std::bind(&Storage::ProcessIncoming, &m_storage, _1, _2,
+                    std::weak_ptr<NetworkConnection>(conn)));
+      conn->set_peer_role(NetworkConnection::kPeerOutgoing);
+      conn->set_proto_rev(0x0302);
+      std::lock_guard<std::mutex> lock(m_user_mutex);
+      conn->set_outgoing_limit(m_outgoing_limit, m_outgoing_policy);
+      // reuse dead connection slots
+      bool placed = false;
+      for (auto& c : m_connections) {
+        if (c->state() == NetworkConnection::kDead) {
+          c = conn;
+          placed = true;
+          break;
+        }
+      }
+      if (!placed) m_connections.emplace_back(conn);
+      conn->Start();
+      links[i] = conn;
+    }
+
+    // sleep between retries
+    std::unique_lock<std::mutex> lock(m_user_mutex);
+    m_reconnect_cv.wait_for(lock, std::chrono::milliseconds(500),
+                            [&] { return !m_active; });
+  }
+}
+
+void DispatcherBase::DatagramThreadMain() {
+  char buf[2048];
+  while (m_active) {
+    std::shared_ptr<UDPSocket> socket;
+    {
+      std::lock_guard<std::mutex> lock(m_user_mutex);
+      socket = m_datagram_socket;
+    }
+    if (!socket) {
+      // client not connected yet
+      std::this_thread::sleep_for(std::chrono::milliseconds(100));
+      continue;
+    }
+    // time out periodically to check for termination
+    UDPSocket::Address from;
+    std::size_t len = socket->receiveFrom(buf, sizeof(buf), &from, 100);
+    if (len < 2 || buf[0] != NetworkConnection::kDatagramMagic) continue;
+    ProcessDatagram(buf, len, from, socket);
+  }
+}
+
+void DispatcherBase::ProcessDatagram(const char* data, std::size_t len,
+                                     const UDPSocket::Address& from,
+                                     const std::shared_ptr<UDPSocket>& socket) {
+  auto sender = [=](const char* data, std::size_t len) {
+    return socket->sendTo(data, len, from);
+  };
+  std::shared_ptr<NetworkConnection> conn;
+  std::unique_lock<std::mutex> lock(m_user_mutex);
+  switch (static_cast<unsigned char>(data[1])) {
+    case NetworkConnection::kDatagramHello: {
+      if (!m_server) return;
+      // the client's datagram port is the port of its TCP connection
+      for (auto& c : m_connections) {
+        if (c->state() == NetworkConnection::kDead) continue;
+        UDPSocket::Address addr;
+        if (UDPSocket::ParseAddress(c->stream().getPeerIP().str().c_str(),
+                                    c->stream().getPeerPort(), &addr) &&
+            addr == from) {
+          conn = c;
+          break;
+        }
+      }
+      if (!conn) return;
+      m_datagram_peers.erase(
+          std::remove_if(m_datagram_peers.begin(), m_datagram_peers.end(),
+                         [&](const std::pair<UDPSocket::Address,
+                                             std::weak_ptr<NetworkConnection>>&
+                                 peer) {
+                           auto c = peer.second.lock();
+                           return !c || peer.first == from ||
+                                  c->state() == NetworkConnection::kDead;
+                         }),
+          m_datagram_peers.end());
+      m_datagram_peers.emplace_back(from, conn);
+      lock.unlock();
+      if (!conn->datagram_active()) {
+        DEBUG("server: datagram path to " << conn->stream().getPeerIP()
+                                          << " port " << from.port);
+        conn->set_datagram_sender(sender);
+      }
+      const char ack[] = {NetworkConnection::kDatagramMagic,
+                          NetworkConnection::kDatagramHelloAck};
+      socket->sendTo(ack, sizeof(ack), from);
+      break;
+    }
+    case NetworkConnection::kDatagramHelloAck: {
+      if (m_server || !(from == m_datagram_server) || m_connections.empty())
+        return;
+      conn = m_connections.front();
+      lock.unlock();
+      if (conn->state() != NetworkConnection::kActive ||
+          conn->datagram_active())
+        return;
+      DEBUG("client: datagram path established");
+      conn->set_datagram_sender(sender);
+      break;
+    }
+    case NetworkConnection::kDatagramUpdates: {
+      if (m_server) {
+        for (auto& peer : m_datagram_peers) {
+          if (peer.first == from) {
+            conn = peer.second.lock();
+            break;
+          }
+        }
+      } else if (from == m_datagram_server && !m_connections.empty()) {
+        conn = m_connections.front();
+      }
+      lock.unlock();
+      if (conn && conn->state() == NetworkConnection::kActive)
+        conn->ProcessDatagram(data, len);
+      break;
+    }
+    default:
+      break;
+  }
+}
+
 bool DispatcherBase::ClientHandshake(
     NetworkConnection& conn,
     std::function<std::shared_ptr<Message>()> get_msg,
     std::function<void(llvm::ArrayRef<std::shared_ptr<Message>>)> send_msgs) {
   // get identity
   std::string self_id;
+  std::size_t compress_threshold;
+  unsigned long long session;
   {
     std::lock_guard<std::mutex> lock(m_user_mutex);
     self_id = m_identity;
+    compress_threshold = m_compress_threshold;
+    session = m_session_token;
   }
 
   // send client hello
   DEBUG("client: sending hello");
-  send_msgs(Message::ClientHello(self_id));
+  unsigned int hello_flags = 0;
+  if (compress_threshold != 0) hello_flags |= Message::kHelloCompression;
+  if (session != 0 && conn.proto_rev() >= 0x0302)
+    hello_flags |= Message::kHelloResume;
+  send_msgs(Message::ClientHello(self_id, hello_flags, session,
+                                 conn.resync_seq()));
 
   // wait for response
   auto msg = get_msg();
@@ -343,16 +905,27 @@ bool DispatcherBase::ClientHandshake(
   }
 
   if (msg->Is(Message::kProtoUnsup)) {
-    if (msg->id() == 0x0200) ClientReconnect(0x0200);
+    // retry with the server's version if it's one we support
+    if (msg->id() == 0x0200 || msg->id() == 0x0300 || msg->id() == 0x0301)
+      ClientReconnect(msg->id());
     return false;
   }
 
   bool new_server = true;
+  bool resume = false;
+  unsigned long long server_session = 0;
+  unsigned long long server_seq = 0;
   if (conn.proto_rev() >= 0x0300) {
     // should be server hello; if not, disconnect.
     if (!msg->Is(Message::kServerHello)) return false;
     conn.set_remote_id(msg->str());
-    if ((msg->flags() & 1) != 0) new_server = false;
+    if ((msg->flags() & Message::kHelloReconnect) != 0) new_server = false;
+    // the server only sets these if we asked for them
+    if ((msg->flags() & Message::kHelloCompression) != 0)
+      conn.set_compression(compress_threshold);
+    if ((msg->flags() & Message::kHelloResume) != 0) resume = true;
+    server_session = msg->session();
+    server_seq = msg->change_seq();
     // get the next message
     msg = get_msg();
   }
@@ -368,7 +941,8 @@ bool DispatcherBase::ClientHandshake(
     DEBUG4("received init str=" << msg->str() << " id=" << msg->id()
                                 << " seq_num=" << msg->seq_num_uid());
     if (msg->Is(Message::kServerHelloDone)) break;
-    if (!msg->Is(Message::kEntryAssign)) {
+    if (!msg->Is(Message::kEntryAssign) &&
+        !(resume && msg->Is(Message::kEntryDelete))) {
       // unexpected message
       DEBUG("client: received message (" << msg->type() << ") other than entry assignment during initial handshake");
       return false;
@@ -378,10 +952,36 @@ bool DispatcherBase::ClientHandshake(
     msg = get_msg();
   }
 
+  // Our own changes from here on go out after the handshake; until it
+  // completes there's no session to resume.
+  std::vector<unsigned int> local_ids;
+  {
+    std::lock_guard<std::mutex> lock(m_user_mutex);
+    if (resume) {
+      conn.set_state(NetworkConnection::kSynchronized);
+      for (auto& i : m_change_seqs) local_ids.push_back(i.first);
+    }
+    m_change_seqs.clear();
+    m_session_token = 0;
+    m_session_lost = false;
+  }
+
   // generate outgoing assignments
   NetworkConnection::Outgoing outgoing;
 
-  m_storage.ApplyInitialAssignments(conn, incoming, new_server, &outgoing);
+  if (resume) {
+    DEBUG("client: resuming session, " << incoming.size()
+                                       << " entries changed");
+    m_storage.ApplyResyncAssignments(conn, incoming, local_ids, &outgoing);
+  } else {
+    m_storage.ApplyInitialAssignments(conn, incoming, new_server, &outgoing);
+  }
+
+  {
+    std::lock_guard<std::mutex> lock(m_user_mutex);
+    if (!m_session_lost) m_session_token = server_session;
+  }
+  conn.set_resync_seq(server_seq);
 
   if (conn.proto_rev() >= 0x0300)
     outgoing.emplace_back(Message::ClientHelloDone());
@@ -410,8 +1010,8 @@ bool DispatcherBase::ServerHandshake(
 
   // Check that the client requested version is not too high.
   unsigned int proto_rev = msg->id();
-  if (proto_rev > 0x0300) {
-    DEBUG("server: client requested proto > 0x0300");
+  if (proto_rev > 0x0302) {
+    DEBUG("server: client requested proto > 0x0302");
     send_msgs(Message::ProtoUnsup());
     return false;
   }
@@ -422,24 +1022,65 @@ bool DispatcherBase::ServerHandshake(
   DEBUG("server: client protocol " << proto_rev);
   conn.set_proto_rev(proto_rev);
 
-  // Send initial set of assignments
-  NetworkConnection::Outgoing outgoing;
+  // Another server of the cluster; it pushes its entries once connected.
+  if (proto_rev >= 0x0302 && (msg->flags() & Message::kHelloPeer) != 0) {
+    if (m_storage.node_id() == 0) {
+      DEBUG("server: peer connection, but not in a cluster");
+      return false;
+    }
+    conn.set_peer_role(NetworkConnection::kPeerIncoming);
+    {
+      std::lock_guard<std::mutex> lock(m_user_mutex);
+      send_msgs(Message::ServerHello(Message::kHelloPeer, m_identity));
+    }
+    send_msgs(Message::ServerHelloDone());
+    INFO("server: peer CONNECTED: " << conn.stream().getPeerIP() << " port "
+                                    << conn.stream().getPeerPort());
+    return true;
+  }
 
   // Start with server hello.  TODO: initial connection flag
+  std::vector<unsigned int> changed;
+  bool resume = false;
   if (proto_rev >= 0x0300) {
     std::lock_guard<std::mutex> lock(m_user_mutex);
-    outgoing.emplace_back(Message::ServerHello(0u, m_identity));
+    unsigned int flags = 0;
+    if (proto_rev >= 0x0302 && m_compress_threshold != 0 &&
+        (msg->flags() & Message::kHelloCompression) != 0) {
+      DEBUG("server: client uses compression");
+      conn.set_compression(m_compress_threshold);
+      flags |= Message::kHelloCompression;
+    }
+    if (proto_rev >= 0x0302 && (msg->flags() & Message::kHelloResume) != 0 &&
+        msg->session() == m_session_token &&
+        msg->change_seq() >= m_resync_floor &&
+        msg->change_seq() <= m_change_seq) {
+      // Marked synchronized under the user mutex, so every change is either
+      // collected here or fanned out to the connection later.
+      conn.set_state(NetworkConnection::kSynchronized);
+      for (auto& i : m_change_seqs)
+        if (i.second > msg->change_seq()) changed.push_back(i.first);
+      std::sort(changed.begin(), changed.end());
+      flags |= Message::kHelloResume;
+      resume = true;
+    }
+    send_msgs(Message::ServerHello(flags, m_identity, m_session_token,
+                                   m_change_seq));
   }
 
-  // Get snapshot of initial assignments
-  m_storage.GetInitialAssignments(conn, &outgoing);
+  if (resume) {
+    DEBUG("server: resuming session, " << changed.size()
+                                       << " entries changed");
+    m_storage.GetResyncAssignments(changed, send_msgs);
+  } else {
+    // Stream initial assignments in bounded chunks rather than as one batch
+    // so that large tables don't hold the storage lock for the whole walk.
+    DEBUG("server: sending initial assignments");
+    m_storage.GetInitialAssignments(conn, send_msgs);
+  }
 
   // Finish with server hello done
-  outgoing.emplace_back(Message::ServerHelloDone());
-
-  // Batch transmit
-  DEBUG("server: sending initial assignments");
-  send_msgs(outgoing);
+  send_msgs(Message::ServerHelloDone());
 
   // In proto rev 3.0 and later, the handshake concludes with a client hello
   // done message, so we can batch the assigns before marking the connection
@@ -476,6 +1117,44 @@ bool DispatcherBase::ServerHandshake(
   return true;
 }
 
+bool DispatcherBase::PeerHandshake(
+    NetworkConnection& conn,
+    std::function<std::shared_ptr<Message>()> get_msg,
+    std::function<void(llvm::ArrayRef<std::shared_ptr<Message>>)> send_msgs) {
+  std::string self_id;
+  {
+    std::lock_guard<std::mutex> lock(m_user_mutex);
+    self_id = m_identity;
+  }
+  send_msgs(Message::ClientHello(self_id, Message::kHelloPeer));
+
+  auto msg = get_msg();
+  if (!msg) {
+    DEBUG("cluster: peer disconnected before first response");
+    return false;
+  }
+  if (!msg->Is(Message::kServerHello) ||
+      (msg->flags() & Message::kHelloPeer) == 0) {
+    WARNING("cluster: peer " << conn.stream().getPeerIP() << " port "
+                             << conn.stream().getPeerPort()
+                             << " is not a cluster server");
+    return false;
+  }
+  conn.set_remote_id(msg->str());
+  msg = get_msg();
+  if (!msg || !msg->Is(Message::kServerHelloDone)) {
+    DEBUG("cluster: peer disconnected during handshake");
+    return false;
+  }
+
+  // push everything we have; the peer keeps whichever writes win
+  m_storage.GetPeerEntries(conn, send_msgs);
+
+  INFO("cluster: CONNECTED to peer " << conn.stream().getPeerIP() << " port "
+                                     << conn.stream().getPeerPort());
+  return true;
+}
+
 void DispatcherBase::ClientReconnect(unsigned int proto_rev) {
   if (m_server) return;
   {
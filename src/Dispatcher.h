@@ -17,9 +17,13 @@
 #include <string>
 #include <vector>
 
+#include "llvm/ArrayRef.h"
+#include "llvm/DenseMap.h"
 #include "llvm/StringRef.h"
 
 #include "atomic_static.h"
+#include "tcpsockets/UDPSocket.h"
+#include "ChangeLog.h"
 #include "NetworkConnection.h"
 #include "Notifier.h"
 #include "Storage.h"
@@ -34,29 +38,61 @@ class DispatcherBase {
  public:
   virtual ~DispatcherBase();
 
+  // If a datagram socket (server) or datagram flag (client) is given,
+  // updates to NT_UNRELIABLE entries may be sent as UDP datagrams.
   void StartServer(StringRef persist_filename,
-                   std::unique_ptr<NetworkAcceptor> acceptor);
-  void StartClient(std::function<std::unique_ptr<NetworkStream>()> connect);
+                   std::unique_ptr<NetworkAcceptor> acceptor,
+                   std::unique_ptr<UDPSocket> datagram = nullptr);
+  void StartClient(std::function<std::unique_ptr<NetworkStream>()> connect,
+                   bool datagram = false);
+  // A server that also keeps links to the other servers of a cluster, each
+  // made with one of peers, and replicates its entries to them.
+  void StartCluster(
+      StringRef persist_filename, std::unique_ptr<NetworkAcceptor> acceptor,
+      std::unique_ptr<UDPSocket> datagram,
+      std::vector<std::function<std::unique_ptr<NetworkStream>()>> peers);
   void Stop();
   void SetUpdateRate(double interval);
+  void SetOutgoingLimit(std::size_t max_bytes, NT_OutgoingPolicy policy);
+  void SetLowPriorityBudget(std::size_t bytes_per_sec);
+  void SetNetworkCompression(std::size_t threshold);
   void SetIdentity(llvm::StringRef name);
+  // A server saves its complete state here when stopped and restores it
+  // when next started.
+  void SetSnapshotFile(llvm::StringRef filename);
   void Flush();
   std::vector<ConnectionInfo> GetConnections() const;
+  unsigned long long ServerNow() const;
   void NotifyConnections(ConnectionListenerCallback callback) const;
 
+  // Statistics.  GetConnectionStatistics() appends a block of
+  // NT_STAT_CONN_NUM values for each connection.
+  unsigned long long dispatch_loops() const { return m_dispatch_loops; }
+  unsigned long long dispatch_overruns() const { return m_dispatch_overruns; }
+  void GetConnectionStatistics(std::vector<unsigned long long>* stats) const;
+  void GetLatencyHistograms(std::vector<unsigned long long>* out) const;
+  void ResetLatencyHistograms();
+
   bool active() const { return m_active; }
 
   DispatcherBase(const DispatcherBase&) = delete;
   DispatcherBase& operator=(const DispatcherBase&) = delete;
 
  protected:
-  DispatcherBase(Storage& storage, Notifier& notifier);
+  // Only a process-wide dispatcher clears the logger on destruction.
+  DispatcherBase(Storage& storage, Notifier& notifier,
+                 bool process_wide = true);
 
  private:
   void DispatchThreadMain();
   void ServerThreadMain();
   void ClientThreadMain(
       std::function<std::unique_ptr<NetworkStream>()> connect);
+  void DatagramThreadMain();
+  void PeerThreadMain();
+  void ProcessDatagram(const char* data, std::size_t len,
+                       const UDPSocket::Address& from,
+                       const std::shared_ptr<UDPSocket>& socket);
 
   bool ClientHandshake(
       NetworkConnection& conn,
@@ -66,14 +102,22 @@ class DispatcherBase {
       NetworkConnection& conn,
       std::function<std::shared_ptr<Message>()> get_msg,
       std::function<void(llvm::ArrayRef<std::shared_ptr<Message>>)> send_msgs);
+  bool PeerHandshake(
+      NetworkConnection& conn,
+      std::function<std::shared_ptr<Message>()> get_msg,
+      std::function<void(llvm::ArrayRef<std::shared_ptr<Message>>)> send_msgs);
 
-  void ClientReconnect(unsigned int proto_rev = 0x0300);
+  void ClientReconnect(unsigned int proto_rev = 0x0302);
 
   void QueueOutgoing(std::shared_ptr<Message> msg, NetworkConnection* only,
-                     NetworkConnection* except);
+                     NetworkConnection* except, unsigned int flags);
+  void FanOutChanges();
+  void RecordChange(const Message& msg);
+  void ExpireTombstones(unsigned long long stamp);
 
   Storage& m_storage;
   Notifier& m_notifier;
+  bool m_process_wide;
   bool m_server = false;
   std::string m_persist_filename;
   std::thread m_dispatch_thread;
@@ -81,13 +125,64 @@ class DispatcherBase {
 
   std::unique_ptr<NetworkAcceptor> m_server_acceptor;
 
+  // Cluster mode: the peer thread keeps an outgoing link to each peer.
+  // Entries go out on those links as PEER_ENTRY messages and come in on the
+  // links the other servers make to us.  Only used by the peer thread.
+  std::thread m_peer_thread;
+  std::vector<std::function<std::unique_ptr<NetworkStream>()>> m_peers;
+
+  // Cluster mode: the number of peers, and the tombstones made up to
+  // m_tombstone_floor, which have been sent on the peer links in
+  // m_tombstone_links (sorted uids).  The latter two are only used by the
+  // dispatch thread.
+  std::atomic_size_t m_num_peers;
+  unsigned long long m_tombstone_floor = 0;
+  std::vector<unsigned int> m_tombstone_links;
+
+  // Messages from QueueOutgoing(), fanned out to the connections by the
+  // dispatch thread.  m_changes is only used by the dispatch thread.
+  ChangeLog m_change_log;
+  std::vector<ChangeLog::Record> m_changes;
+
+  // Session resumption (protocol 3.2), protected by the user mutex.  The
+  // server numbers the changes it fans out and remembers, for each id, the
+  // number of its last change; a client that reconnects with the number of
+  // the last change it saw only gets the entries changed since.  A client
+  // uses m_change_seqs for the ids it changed itself, as those are sent back
+  // on a resume.  m_session_token is the server's (0 if none).
+  unsigned long long m_session_token = 0;
+  unsigned long long m_change_seq = 0;
+  unsigned long long m_resync_floor = 0;  // server: oldest resumable point
+  unsigned long long m_resync_seq = 0;    // client: point to resume from
+  bool m_session_lost = false;  // client: can't resume (set during handshake)
+  llvm::DenseMap<unsigned int, unsigned long long> m_change_seqs;
+
+  // Datagram fast path.  The server uses one socket on its listening port
+  // for all clients; a client binds a socket to the local port of its TCP
+  // connection, which is how the server matches the two up.  The socket
+  // and peers are protected by the user mutex.
+  bool m_datagram = false;
+  std::thread m_datagram_thread;
+  std::shared_ptr<UDPSocket> m_datagram_socket;
+  UDPSocket::Address m_datagram_server;
+  unsigned int m_datagram_hellos = 0;
+  std::vector<std::pair<UDPSocket::Address, std::weak_ptr<NetworkConnection>>>
+      m_datagram_peers;
+
   // Mutex for user-accessible items
   mutable std::mutex m_user_mutex;
   std::vector<std::shared_ptr<NetworkConnection>> m_connections;
   std::string m_identity;
+  std::string m_snapshot_filename;
+  std::size_t m_outgoing_limit = 0;
+  NT_OutgoingPolicy m_outgoing_policy = NT_OUTGOING_COALESCE;
+  std::size_t m_low_priority_budget = 0;
+  std::size_t m_compress_threshold = 0;
 
   std::atomic_bool m_active;  // set to false to terminate threads
   std::atomic_uint m_update_rate;  // periodic dispatch update rate, in ms
+  std::atomic_ullong m_dispatch_loops;
+  std::atomic_ullong m_dispatch_overruns;
 
   // Condition variable for forced dispatch wakeup (flush)
   std::mutex m_flush_mutex;
@@ -97,12 +192,13 @@ class DispatcherBase {
 
   // Condition variable for client reconnect (uses user mutex)
   std::condition_variable m_reconnect_cv;
-  unsigned int m_reconnect_proto_rev = 0x0300;
+  unsigned int m_reconnect_proto_rev = 0x0302;
   bool m_do_reconnect = true;
 };
 
 class Dispatcher : public DispatcherBase {
   friend class DispatcherTest;
+  friend class InstanceImpl;
  public:
   static Dispatcher& GetInstance() {
     ATOMIC_STATIC(Dispatcher, instance);
@@ -112,11 +208,15 @@ class Dispatcher : public DispatcherBase {
   void StartServer(StringRef persist_filename, const char* listen_address,
                    unsigned int port);
   void StartClient(const char* server_name, unsigned int port);
+  void StartCluster(
+      StringRef persist_filename, const char* listen_address,
+      unsigned int port,
+      llvm::ArrayRef<std::pair<std::string, unsigned int>> peers);
 
  private:
   Dispatcher();
-  Dispatcher(Storage& storage, Notifier& notifier)
-      : DispatcherBase(storage, notifier) {}
+  Dispatcher(Storage& storage, Notifier& notifier, bool process_wide = true)
+      : DispatcherBase(storage, notifier, process_wide) {}
 
   ATOMIC_STATIC_DECL(Dispatcher)
 };
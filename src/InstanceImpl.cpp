@@ -0,0 +1,97 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "InstanceImpl.h"
+
+#include <mutex>
+
+#include "DataLogger.h"
+#include "Dispatcher.h"
+#include "Log.h"
+#include "Notifier.h"
+#include "RpcServer.h"
+#include "Storage.h"
+
+using namespace nt;
+
+std::atomic<InstanceImpl*> InstanceImpl::s_instances[kMaxInstances];
+
+// Serializes Create() and Destroy(); Get() is lock-free.
+static std::mutex s_instances_mutex;
+
+struct InstanceImpl::Owned {
+  // declared so the dispatcher is destroyed (and stopped) first
+  std::unique_ptr<DataLogger> data_logger;
+  std::unique_ptr<Notifier> notifier;
+  std::unique_ptr<RpcServer> rpc_server;
+  std::unique_ptr<Storage> storage;
+  std::unique_ptr<Dispatcher> dispatcher;
+};
+
+InstanceImpl& InstanceImpl::GetDefault() {
+  static InstanceImpl instance;
+  return instance;
+}
+
+InstanceImpl::InstanceImpl()
+    : notifier(Notifier::GetInstance()),
+      rpc_server(RpcServer::GetInstance()),
+      storage(Storage::GetInstance()),
+      dispatcher(Dispatcher::GetInstance()),
+      data_logger(DataLogger::GetInstance()),
+      relay(*this) {}
+
+InstanceImpl::InstanceImpl(std::unique_ptr<Owned> owned)
+    : notifier(*owned->notifier),
+      rpc_server(*owned->rpc_server),
+      storage(*owned->storage),
+      dispatcher(*owned->dispatcher),
+      data_logger(*owned->data_logger),
+      relay(*this),
+      m_owned(std::move(owned)) {}
+
+InstanceImpl::~InstanceImpl() {
+  relay.Stop();
+}
+
+NT_Inst InstanceImpl::Create() {
+  std::lock_guard<std::mutex> lock(s_instances_mutex);
+  // slot 0 is the default instance
+  for (unsigned int i = 1; i < kMaxInstances; ++i) {
+    if (s_instances[i].load(std::memory_order_relaxed)) continue;
+    std::unique_ptr<Owned> owned(new Owned);
+    // not process-wide, so destroying them leaves the logger and the
+    // notifier-destroyed flag alone
+    owned->data_logger.reset(new DataLogger);
+    owned->notifier.reset(new Notifier(false));
+    owned->rpc_server.reset(new RpcServer(false));
+    owned->storage.reset(new Storage(*owned->notifier, *owned->rpc_server,
+                                     *owned->data_logger, false));
+    owned->dispatcher.reset(
+        new Dispatcher(*owned->storage, *owned->notifier, false));
+    s_instances[i].store(new InstanceImpl(std::move(owned)),
+                         std::memory_order_release);
+    DEBUG("created instance " << (i + 1));
+    return i + 1;
+  }
+  WARNING("too many NetworkTables instances");
+  return 0;
+}
+
+void InstanceImpl::Destroy(NT_Inst inst) {
+  if (inst <= kDefaultInstance || inst > kMaxInstances) return;
+  InstanceImpl* impl;
+  {
+    std::lock_guard<std::mutex> lock(s_instances_mutex);
+    impl = s_instances[inst - 1].exchange(nullptr);
+  }
+  if (!impl) return;
+  impl->relay.Stop();
+  impl->dispatcher.Stop();
+  delete impl;
+  DEBUG("destroyed instance " << inst);
+}
@@ -0,0 +1,73 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_INSTANCEIMPL_H_
+#define NT_INSTANCEIMPL_H_
+
+#include <atomic>
+#include <memory>
+
+#include "ntcore_c.h"
+#include "Relay.h"
+
+namespace nt {
+
+class DataLogger;
+class Dispatcher;
+class Notifier;
+class RpcServer;
+class Storage;
+
+// A complete set of storage, dispatcher, notifier, RPC server and data
+// logger, referred to by an NT_Inst handle.  The default instance uses the
+// process-wide singletons; others own their components, and so their own
+// threads.
+class InstanceImpl {
+ public:
+  // Handles are 1-based slot numbers; 0 is never valid.
+  static const unsigned int kMaxInstances = 16;
+  static const NT_Inst kDefaultInstance = 1;
+
+  // Returns nullptr if the handle is not a live instance.
+  static InstanceImpl* Get(NT_Inst inst) {
+    if (inst == kDefaultInstance) return &GetDefault();
+    if (inst == 0 || inst > kMaxInstances) return nullptr;
+    return s_instances[inst - 1].load(std::memory_order_acquire);
+  }
+  static InstanceImpl& GetDefault();
+
+  // Returns 0 if all handles are in use.
+  static NT_Inst Create();
+  // Stops and destroys an instance.  The handle must not be in use by any
+  // other thread.  The default instance cannot be destroyed.
+  static void Destroy(NT_Inst inst);
+
+  Notifier& notifier;
+  RpcServer& rpc_server;
+  Storage& storage;
+  Dispatcher& dispatcher;
+  DataLogger& data_logger;
+  Relay relay;
+
+  InstanceImpl(const InstanceImpl&) = delete;
+  InstanceImpl& operator=(const InstanceImpl&) = delete;
+
+ private:
+  struct Owned;
+
+  InstanceImpl();
+  explicit InstanceImpl(std::unique_ptr<Owned> owned);
+  ~InstanceImpl();
+
+  std::unique_ptr<Owned> m_owned;
+
+  static std::atomic<InstanceImpl*> s_instances[kMaxInstances];
+};
+
+}  // namespace nt
+
+#endif  // NT_INSTANCEIMPL_H_
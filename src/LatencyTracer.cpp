@@ -0,0 +1,83 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "LatencyTracer.h"
+
+using namespace nt;
+
+ATOMIC_STATIC_INIT(LatencyTracer)
+
+static const unsigned int kSubBucketBits = 3;
+static const unsigned long long kSubBuckets = 1ull << kSubBucketBits;
+
+void LatencyHistogram::Reset() {
+  for (auto& count : m_counts) count = 0;
+  m_total = 0;
+}
+
+void LatencyHistogram::Get(unsigned int source, unsigned int id,
+                           unsigned int stage,
+                           std::vector<unsigned long long>* out) const {
+  std::size_t base = out->size();
+  out->resize(base + NT_LATENCY_BLOCK);
+  unsigned long long* block = &(*out)[base];
+  block[NT_LATENCY_SOURCE] = source;
+  block[NT_LATENCY_ID] = id;
+  block[NT_LATENCY_STAGE] = stage;
+  block[NT_LATENCY_COUNT] = m_total;
+  for (std::size_t i = 0; i < kNumBuckets; ++i)
+    block[NT_LATENCY_BUCKETS + i] = m_counts[i];
+}
+
+std::size_t LatencyHistogram::BucketIndex(unsigned long long value) {
+  if (value < kSubBuckets) return static_cast<std::size_t>(value);
+  unsigned int magnitude = 0;
+  for (unsigned long long v = value; v > 1; v >>= 1) ++magnitude;
+  std::size_t index =
+      (magnitude - kSubBucketBits + 1) * kSubBuckets +
+      ((value >> (magnitude - kSubBucketBits)) & (kSubBuckets - 1));
+  return index < kNumBuckets ? index : kNumBuckets - 1;
+}
+
+unsigned long long LatencyHistogram::BucketValue(std::size_t index) {
+  if (index < kSubBuckets) return index;
+  unsigned int magnitude =
+      static_cast<unsigned int>(index / kSubBuckets) + kSubBucketBits - 1;
+  return (kSubBuckets + index % kSubBuckets)
+         << (magnitude - kSubBucketBits);
+}
+
+LatencyTracer::LatencyTracer() {
+  m_enabled = false;
+  m_prefixes.emplace_back(new Prefix(""));
+}
+
+void LatencyTracer::SetEnabled(bool enabled,
+                               llvm::ArrayRef<std::string> prefixes) {
+  std::lock_guard<std::mutex> lock(m_mutex);
+  m_prefixes.resize(1);
+  m_prefixes[0]->notified.Reset();
+  for (auto& prefix : prefixes) m_prefixes.emplace_back(new Prefix(prefix));
+  m_enabled = enabled;
+}
+
+void LatencyTracer::RecordNotify(llvm::StringRef name,
+                                 unsigned long long latency) {
+  std::lock_guard<std::mutex> lock(m_mutex);
+  m_prefixes[0]->notified.Record(latency);
+  for (std::size_t i = 1; i < m_prefixes.size(); ++i) {
+    if (name.startswith(m_prefixes[i]->prefix))
+      m_prefixes[i]->notified.Record(latency);
+  }
+}
+
+void LatencyTracer::GetHistograms(std::vector<unsigned long long>* out) const {
+  std::lock_guard<std::mutex> lock(m_mutex);
+  for (std::size_t i = 0; i < m_prefixes.size(); ++i)
+    m_prefixes[i]->notified.Get(NT_LATENCY_SOURCE_PREFIX, i,
+                                NT_LATENCY_NOTIFIED, out);
+}
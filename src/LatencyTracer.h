@@ -0,0 +1,96 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_LATENCYTRACER_H_
+#define NT_LATENCYTRACER_H_
+
+#include <atomic>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <vector>
+
+#include "llvm/ArrayRef.h"
+#include "llvm/StringRef.h"
+
+#include "atomic_static.h"
+#include "ntcore_c.h"
+
+namespace nt {
+
+// Log-linear latency histogram in the spirit of HdrHistogram.  Values below
+// 8 get their own bucket; above that, each power of two is split into 8
+// sub-buckets, bounding the relative error to 12.5%.  Recording is lock-free
+// so it can be done from any thread.
+class LatencyHistogram {
+ public:
+  static const std::size_t kNumBuckets = NT_LATENCY_NUM_BUCKETS;
+
+  LatencyHistogram() { Reset(); }
+
+  void Record(unsigned long long value) {
+    m_counts[BucketIndex(value)].fetch_add(1, std::memory_order_relaxed);
+    m_total.fetch_add(1, std::memory_order_relaxed);
+  }
+  void Reset();
+
+  unsigned long long total() const { return m_total; }
+
+  // Appends a histogram block (see NT_LatencyHistogramField) to out.
+  void Get(unsigned int source, unsigned int id, unsigned int stage,
+           std::vector<unsigned long long>* out) const;
+
+  static std::size_t BucketIndex(unsigned long long value);
+  // Lowest value that maps to the given bucket.
+  static unsigned long long BucketValue(std::size_t index);
+
+  LatencyHistogram(const LatencyHistogram&) = delete;
+  LatencyHistogram& operator=(const LatencyHistogram&) = delete;
+
+ private:
+  std::atomic_ullong m_counts[kNumBuckets];
+  std::atomic_ullong m_total;
+};
+
+// Global latency tracing switch and the notification-stage histograms,
+// which are kept both overall and per configured key prefix.  The per-
+// connection stages are kept by each NetworkConnection.
+class LatencyTracer {
+ public:
+  static LatencyTracer& GetInstance() {
+    ATOMIC_STATIC(LatencyTracer, instance);
+    return instance;
+  }
+
+  bool enabled() const { return m_enabled; }
+  void SetEnabled(bool enabled, llvm::ArrayRef<std::string> prefixes);
+
+  // Records a notification of the given entry; latency is in nt::Now() units.
+  void RecordNotify(llvm::StringRef name, unsigned long long latency);
+
+  // Appends a histogram block for each prefix; prefix 0 is all entries.
+  void GetHistograms(std::vector<unsigned long long>* out) const;
+
+ private:
+  LatencyTracer();
+
+  struct Prefix {
+    explicit Prefix(llvm::StringRef prefix_) : prefix(prefix_) {}
+    std::string prefix;
+    LatencyHistogram notified;
+  };
+
+  std::atomic_bool m_enabled;
+  mutable std::mutex m_mutex;
+  std::vector<std::unique_ptr<Prefix>> m_prefixes;
+
+  ATOMIC_STATIC_DECL(LatencyTracer)
+};
+
+}  // namespace nt
+
+#endif  // NT_LATENCYTRACER_H_
@@ -29,6 +29,7 @@ class Logger {
                              unsigned int line, const char* msg)> LogFunc;
 
   void SetLogger(LogFunc func) { m_func = func; }
+  LogFunc func() const { return m_func; }
 
   void set_min_level(unsigned int level) { m_min_level = level; }
   unsigned int min_level() const { return m_min_level; }
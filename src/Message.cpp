@@ -7,7 +7,10 @@
 
 #include "Message.h"
 
+#include <algorithm>
+
 #include "Log.h"
+#include "support/timestamp.h"
 #include "WireDecoder.h"
 #include "WireEncoder.h"
 
@@ -33,6 +36,13 @@ std::shared_ptr<Message> Message::Read(WireDecoder& decoder,
       if (proto_rev >= 0x0300u) {
         if (!decoder.ReadString(&msg->m_str)) return nullptr;
       }
+      if (proto_rev >= 0x0302u) {
+        if (!decoder.Read8(&msg->m_flags)) return nullptr;
+        if ((msg->m_flags & kHelloResume) != 0) {
+          if (!decoder.Read64(&msg->m_session)) return nullptr;
+          if (!decoder.Read64(&msg->m_change_seq)) return nullptr;
+        }
+      }
       break;
     }
     case kProtoUnsup: {
@@ -48,6 +58,10 @@ std::shared_ptr<Message> Message::Read(WireDecoder& decoder,
       }
       if (!decoder.Read8(&msg->m_flags)) return nullptr;
       if (!decoder.ReadString(&msg->m_str)) return nullptr;
+      if (decoder.proto_rev() >= 0x0302u) {
+        if (!decoder.Read64(&msg->m_session)) return nullptr;
+        if (!decoder.Read64(&msg->m_change_seq)) return nullptr;
+      }
       break;
     case kClientHelloDone:
       if (decoder.proto_rev() < 0x0300u) {
@@ -55,21 +69,37 @@ std::shared_ptr<Message> Message::Read(WireDecoder& decoder,
         return nullptr;
       }
       break;
+    case kTimeSyncRequest:
+      if (decoder.proto_rev() < 0x0301u) {
+        decoder.set_error("received TIME_SYNC_REQUEST in protocol < 3.1");
+        return nullptr;
+      }
+      if (!decoder.Read64(&msg->m_transmit_time)) return nullptr;
+      break;
+    case kTimeSyncResponse:
+      if (decoder.proto_rev() < 0x0301u) {
+        decoder.set_error("received TIME_SYNC_RESPONSE in protocol < 3.1");
+        return nullptr;
+      }
+      if (!decoder.Read64(&msg->m_origin_time)) return nullptr;
+      if (!decoder.Read64(&msg->m_receive_time)) return nullptr;
+      if (!decoder.Read64(&msg->m_transmit_time)) return nullptr;
+      break;
     case kEntryAssign: {
       if (!decoder.ReadString(&msg->m_str)) return nullptr;
       NT_Type type;
       if (!decoder.ReadType(&type)) return nullptr;  // name
-      if (!decoder.Read16(&msg->m_id)) return nullptr;  // id
+      if (!decoder.ReadId(&msg->m_id)) return nullptr;  // id
       if (!decoder.Read16(&msg->m_seq_num_uid)) return nullptr;  // seq num
       if (decoder.proto_rev() >= 0x0300u) {
         if (!decoder.Read8(&msg->m_flags)) return nullptr;  // flags
       }
-      msg->m_value = decoder.ReadValue(type);
+      msg->m_value = decoder.ReadValue(type, msg->m_id);
       if (!msg->m_value) return nullptr;
       break;
     }
     case kEntryUpdate: {
-      if (!decoder.Read16(&msg->m_id)) return nullptr;  // id
+      if (!decoder.ReadId(&msg->m_id)) return nullptr;  // id
       if (!decoder.Read16(&msg->m_seq_num_uid)) return nullptr;  // seq num
       NT_Type type;
       if (decoder.proto_rev() >= 0x0300u) {
@@ -78,7 +108,7 @@ std::shared_ptr<Message> Message::Read(WireDecoder& decoder,
         type = get_entry_type(msg->m_id);
       }
       DEBUG4("update message data type: " << type);
-      msg->m_value = decoder.ReadValue(type);
+      msg->m_value = decoder.ReadValue(type, msg->m_id);
       if (!msg->m_value) return nullptr;
       break;
     }
@@ -87,7 +117,7 @@ std::shared_ptr<Message> Message::Read(WireDecoder& decoder,
         decoder.set_error("received FLAGS_UPDATE in protocol < 3.0");
         return nullptr;
       }
-      if (!decoder.Read16(&msg->m_id)) return nullptr;
+      if (!decoder.ReadId(&msg->m_id)) return nullptr;
       if (!decoder.Read8(&msg->m_flags)) return nullptr;
       break;
     }
@@ -96,7 +126,7 @@ std::shared_ptr<Message> Message::Read(WireDecoder& decoder,
         decoder.set_error("received ENTRY_DELETE in protocol < 3.0");
         return nullptr;
       }
-      if (!decoder.Read16(&msg->m_id)) return nullptr;
+      if (!decoder.ReadId(&msg->m_id)) return nullptr;
       break;
     }
     case kClearEntries: {
@@ -113,12 +143,85 @@ std::shared_ptr<Message> Message::Read(WireDecoder& decoder,
       }
       break;
     }
+    case kEntryUpdateBatch: {
+      if (decoder.proto_rev() < 0x0302u) {
+        decoder.set_error("received ENTRY_UPDATE_BATCH in protocol < 3.2");
+        return nullptr;
+      }
+      unsigned long groups;
+      if (!decoder.ReadUleb128(&groups)) return nullptr;
+      for (; groups != 0; --groups) {
+        NT_Type type;
+        if (!decoder.ReadType(&type)) return nullptr;
+        unsigned long count;
+        if (!decoder.ReadUleb128(&count)) return nullptr;
+        // ids are ascending within a group and sent as deltas
+        unsigned int id = 0;
+        for (; count != 0; --count) {
+          unsigned int delta;
+          if (!decoder.ReadId(&delta)) return nullptr;
+          id += delta;
+          Update update;
+          update.id = id;
+          if (!decoder.Read16(&update.seq_num)) return nullptr;
+          update.value = decoder.ReadValue(type, id);
+          if (!update.value) return nullptr;
+          msg->m_updates.push_back(std::move(update));
+        }
+      }
+      break;
+    }
+    case kMessageChunk: {
+      if (decoder.proto_rev() < 0x0302u) {
+        decoder.set_error("received MESSAGE_CHUNK in protocol < 3.2");
+        return nullptr;
+      }
+      unsigned long total, size;
+      if (!decoder.ReadUleb128(&total)) return nullptr;
+      if (!decoder.ReadUleb128(&size)) return nullptr;
+      const char* data;
+      if (!decoder.Read(&data, size)) return nullptr;
+      msg->m_id = total;
+      msg->m_str = llvm::StringRef(data, size);
+      break;
+    }
+    case kResyncPoint:
+      if (decoder.proto_rev() < 0x0302u) {
+        decoder.set_error("received RESYNC_POINT in protocol < 3.2");
+        return nullptr;
+      }
+      if (!decoder.Read64(&msg->m_change_seq)) return nullptr;
+      break;
+    case kPeerEntry: {
+      if (decoder.proto_rev() < 0x0302u) {
+        decoder.set_error("received PEER_ENTRY in protocol < 3.2");
+        return nullptr;
+      }
+      if (!decoder.ReadString(&msg->m_str)) return nullptr;  // name
+      unsigned long origin, flags_origin, flags_seq;
+      if (!decoder.ReadUleb128(&origin)) return nullptr;
+      if (!decoder.Read16(&msg->m_seq_num_uid)) return nullptr;  // seq num
+      if (!decoder.ReadUleb128(&flags_origin)) return nullptr;
+      if (!decoder.ReadUleb128(&flags_seq)) return nullptr;
+      if (!decoder.Read8(&msg->m_flags)) return nullptr;  // flags
+      msg->m_id = origin;
+      msg->m_flags_origin = flags_origin;
+      msg->m_flags_seq = flags_seq;
+      unsigned int exists;
+      if (!decoder.Read8(&exists)) return nullptr;
+      if (exists == 0) break;  // deleted
+      NT_Type type;
+      if (!decoder.ReadType(&type)) return nullptr;
+      msg->m_value = decoder.ReadValue(type);
+      if (!msg->m_value) return nullptr;
+      break;
+    }
     case kExecuteRpc: {
       if (decoder.proto_rev() < 0x0300u) {
         decoder.set_error("received EXECUTE_RPC in protocol < 3.0");
         return nullptr;
       }
-      if (!decoder.Read16(&msg->m_id)) return nullptr;
+      if (!decoder.ReadId(&msg->m_id)) return nullptr;
       if (!decoder.Read16(&msg->m_seq_num_uid)) return nullptr;  // uid
       unsigned long size;
       if (!decoder.ReadUleb128(&size)) return nullptr;
@@ -132,7 +235,7 @@ std::shared_ptr<Message> Message::Read(WireDecoder& decoder,
         decoder.set_error("received RPC_RESPONSE in protocol < 3.0");
         return nullptr;
       }
-      if (!decoder.Read16(&msg->m_id)) return nullptr;
+      if (!decoder.ReadId(&msg->m_id)) return nullptr;
       if (!decoder.Read16(&msg->m_seq_num_uid)) return nullptr;  // uid
       unsigned long size;
       if (!decoder.ReadUleb128(&size)) return nullptr;
@@ -149,17 +252,27 @@ std::shared_ptr<Message> Message::Read(WireDecoder& decoder,
   return msg;
 }
 
-std::shared_ptr<Message> Message::ClientHello(llvm::StringRef self_id) {
+std::shared_ptr<Message> Message::ClientHello(llvm::StringRef self_id,
+                                              unsigned int flags,
+                                              unsigned long long session,
+                                              unsigned long long change_seq) {
   auto msg = std::make_shared<Message>(kClientHello, private_init());
   msg->m_str = self_id;
+  msg->m_flags = flags;
+  msg->m_session = session;
+  msg->m_change_seq = change_seq;
   return msg;
 }
 
 std::shared_ptr<Message> Message::ServerHello(unsigned int flags,
-                                              llvm::StringRef self_id) {
+                                              llvm::StringRef self_id,
+                                              unsigned long long session,
+                                              unsigned long long change_seq) {
   auto msg = std::make_shared<Message>(kServerHello, private_init());
   msg->m_str = self_id;
   msg->m_flags = flags;
+  msg->m_session = session;
+  msg->m_change_seq = change_seq;
   return msg;
 }
 
@@ -219,6 +332,43 @@ std::shared_ptr<Message> Message::RpcResponse(unsigned int id, unsigned int uid,
   return msg;
 }
 
+std::shared_ptr<Message> Message::TimeSyncResponse(
+    unsigned long long origin_time, unsigned long long receive_time) {
+  auto msg = std::make_shared<Message>(kTimeSyncResponse, private_init());
+  msg->m_origin_time = origin_time;
+  msg->m_receive_time = receive_time;
+  return msg;
+}
+
+std::shared_ptr<Message> Message::MessageChunk(unsigned int size,
+                                               llvm::StringRef data) {
+  auto msg = std::make_shared<Message>(kMessageChunk, private_init());
+  msg->m_str = data;
+  msg->m_id = size;
+  return msg;
+}
+
+std::shared_ptr<Message> Message::ResyncPoint(unsigned long long change_seq) {
+  auto msg = std::make_shared<Message>(kResyncPoint, private_init());
+  msg->m_change_seq = change_seq;
+  return msg;
+}
+
+std::shared_ptr<Message> Message::PeerEntry(
+    llvm::StringRef name, unsigned int origin, unsigned int seq_num,
+    unsigned int flags_origin, unsigned int flags_seq, unsigned int flags,
+    std::shared_ptr<Value> value) {
+  auto msg = std::make_shared<Message>(kPeerEntry, private_init());
+  msg->m_str = name;
+  msg->m_id = origin;
+  msg->m_seq_num_uid = seq_num;
+  msg->m_flags_origin = flags_origin;
+  msg->m_flags_seq = flags_seq;
+  msg->m_flags = flags;
+  msg->m_value = value;
+  return msg;
+}
+
 void Message::Write(WireEncoder& encoder) const {
   switch (m_type) {
     case kKeepAlive:
@@ -229,6 +379,12 @@ void Message::Write(WireEncoder& encoder) const {
       encoder.Write16(encoder.proto_rev());
       if (encoder.proto_rev() < 0x0300u) return;
       encoder.WriteString(m_str);
+      if (encoder.proto_rev() < 0x0302u) return;
+      encoder.Write8(m_flags);
+      if ((m_flags & kHelloResume) != 0) {
+        encoder.Write64(m_session);
+        encoder.Write64(m_change_seq);
+      }
       break;
     case kProtoUnsup:
       encoder.Write8(kProtoUnsup);
@@ -242,54 +398,95 @@ void Message::Write(WireEncoder& encoder) const {
       encoder.Write8(kServerHello);
       encoder.Write8(m_flags);
       encoder.WriteString(m_str);
+      if (encoder.proto_rev() >= 0x0302u) {
+        encoder.Write64(m_session);
+        encoder.Write64(m_change_seq);
+      }
       break;
     case kClientHelloDone:
       if (encoder.proto_rev() < 0x0300u) return;  // new message in version 3.0
       encoder.Write8(kClientHelloDone);
       break;
+    case kTimeSyncRequest:
+      if (encoder.proto_rev() < 0x0301u) return;  // new message in version 3.1
+      encoder.Write8(kTimeSyncRequest);
+      encoder.Write64(Now());  // origin time
+      break;
+    case kTimeSyncResponse:
+      if (encoder.proto_rev() < 0x0301u) return;  // new message in version 3.1
+      encoder.Write8(kTimeSyncResponse);
+      encoder.Write64(m_origin_time);
+      encoder.Write64(m_receive_time);
+      encoder.Write64(Now());  // transmit time
+      break;
     case kEntryAssign:
       encoder.Write8(kEntryAssign);
       encoder.WriteString(m_str);
       encoder.WriteType(m_value->type());
-      encoder.Write16(m_id);
+      encoder.WriteId(m_id);
       encoder.Write16(m_seq_num_uid);
       if (encoder.proto_rev() >= 0x0300u) encoder.Write8(m_flags);
-      encoder.WriteValue(*m_value);
+      encoder.WriteValue(*m_value, m_id);
       break;
     case kEntryUpdate:
       encoder.Write8(kEntryUpdate);
-      encoder.Write16(m_id);
+      encoder.WriteId(m_id);
       encoder.Write16(m_seq_num_uid);
       if (encoder.proto_rev() >= 0x0300u) encoder.WriteType(m_value->type());
-      encoder.WriteValue(*m_value);
+      encoder.WriteValue(*m_value, m_id);
       break;
     case kFlagsUpdate:
       if (encoder.proto_rev() < 0x0300u) return;  // new message in version 3.0
       encoder.Write8(kFlagsUpdate);
-      encoder.Write16(m_id);
+      encoder.WriteId(m_id);
       encoder.Write8(m_flags);
       break;
     case kEntryDelete:
       if (encoder.proto_rev() < 0x0300u) return;  // new message in version 3.0
       encoder.Write8(kEntryDelete);
-      encoder.Write16(m_id);
+      encoder.WriteId(m_id);
       break;
     case kClearEntries:
       if (encoder.proto_rev() < 0x0300u) return;  // new message in version 3.0
       encoder.Write8(kClearEntries);
       encoder.Write32(kClearAllMagic);
       break;
+    case kResyncPoint:
+      if (encoder.proto_rev() < 0x0302u) return;  // new message in version 3.2
+      encoder.Write8(kResyncPoint);
+      encoder.Write64(m_change_seq);
+      break;
+    case kPeerEntry:
+      if (encoder.proto_rev() < 0x0302u) return;  // new message in version 3.2
+      encoder.Write8(kPeerEntry);
+      encoder.WriteString(m_str);
+      encoder.WriteUleb128(m_id);
+      encoder.Write16(m_seq_num_uid);
+      encoder.WriteUleb128(m_flags_origin);
+      encoder.WriteUleb128(m_flags_seq);
+      encoder.Write8(m_flags);
+      encoder.Write8(m_value ? 1 : 0);
+      if (!m_value) break;
+      encoder.WriteType(m_value->type());
+      encoder.WriteValue(*m_value);
+      break;
+    case kMessageChunk:
+      if (encoder.proto_rev() < 0x0302u) return;  // new message in version 3.2
+      encoder.Write8(kMessageChunk);
+      encoder.WriteUleb128(m_id);
+      encoder.WriteString(m_str);
+      break;
     case kExecuteRpc:
       if (encoder.proto_rev() < 0x0300u) return;  // new message in version 3.0
       encoder.Write8(kExecuteRpc);
-      encoder.Write16(m_id);
+      encoder.WriteId(m_id);
       encoder.Write16(m_seq_num_uid);
       encoder.WriteString(m_str);
       break;
     case kRpcResponse:
       if (encoder.proto_rev() < 0x0300u) return;  // new message in version 3.0
       encoder.Write8(kRpcResponse);
-      encoder.Write16(m_id);
+      encoder.WriteId(m_id);
       encoder.Write16(m_seq_num_uid);
       encoder.WriteString(m_str);
       break;
@@ -297,3 +494,46 @@ void Message::Write(WireEncoder& encoder) const {
       break;
   }
 }
+
+void Message::WriteUpdates(WireEncoder& encoder,
+                           llvm::ArrayRef<std::shared_ptr<Message>> msgs) {
+  std::vector<const Message*> sorted;
+  sorted.reserve(msgs.size());
+  for (auto& msg : msgs)
+    if (msg) sorted.push_back(msg.get());
+  // a batch of one is larger than the plain update
+  if (encoder.proto_rev() < 0x0302u || sorted.size() < 2) {
+    for (auto msg : sorted) msg->Write(encoder);
+    return;
+  }
+
+  // group by type, ids ascending so they can be sent as deltas
+  std::sort(sorted.begin(), sorted.end(),
+            [](const Message* a, const Message* b) {
+              NT_Type atype = a->m_value->type();
+              NT_Type btype = b->m_value->type();
+              return atype != btype ? atype < btype : a->m_id < b->m_id;
+            });
+  unsigned long groups = 0;
+  for (std::size_t i = 0; i < sorted.size(); ++i) {
+    if (i == 0 || sorted[i]->m_value->type() != sorted[i - 1]->m_value->type())
+      ++groups;
+  }
+
+  encoder.Write8(kEntryUpdateBatch);
+  encoder.WriteUleb128(groups);
+  for (std::size_t i = 0; i < sorted.size();) {
+    NT_Type type = sorted[i]->m_value->type();
+    std::size_t end = i + 1;
+    while (end < sorted.size() && sorted[end]->m_value->type() == type) ++end;
+    encoder.WriteType(type);
+    encoder.WriteUleb128(end - i);
+    unsigned int last_id = 0;
+    for (; i < end; ++i) {
+      encoder.WriteId(sorted[i]->m_id - last_id);
+      last_id = sorted[i]->m_id;
+      encoder.Write16(sorted[i]->m_seq_num_uid);
+      encoder.WriteValue(*sorted[i]->m_value, sorted[i]->m_id);
+    }
+  }
+}
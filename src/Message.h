@@ -11,6 +11,7 @@
 #include <functional>
 #include <memory>
 #include <string>
+#include <vector>
 
 #include "nt_Value.h"
 
@@ -31,19 +32,60 @@ class Message {
     kServerHelloDone = 0x03,
     kServerHello = 0x04,
     kClientHelloDone = 0x05,
+    kTimeSyncRequest = 0x06,
+    kTimeSyncResponse = 0x07,
     kEntryAssign = 0x10,
     kEntryUpdate = 0x11,
     kFlagsUpdate = 0x12,
     kEntryDelete = 0x13,
     kClearEntries = 0x14,
+    kEntryUpdateBatch = 0x15,
+    kMessageChunk = 0x16,
+    kResyncPoint = 0x17,
+    kPeerEntry = 0x18,
     kExecuteRpc = 0x20,
     kRpcResponse = 0x21
   };
+  // Client and server hello flags
+  enum HelloFlags {
+    kHelloReconnect = 0x01,    // server hello: the client was seen before
+    kHelloCompression = 0x02,  // can take compressed values (from 3.2)
+    kHelloResume = 0x04,       // client: resume session; server: resumed
+    kHelloPeer = 0x08,         // a link between cluster nodes
+  };
   typedef std::function<NT_Type(unsigned int id)> GetEntryTypeFunc;
 
-  Message() : m_type(kUnknown), m_id(0), m_flags(0), m_seq_num_uid(0) {}
+  // One entry update carried by an update batch.
+  struct Update {
+    unsigned int id;
+    unsigned int seq_num;
+    std::shared_ptr<Value> value;
+  };
+
+  Message()
+      : m_type(kUnknown),
+        m_id(0),
+        m_flags(0),
+        m_seq_num_uid(0),
+        m_origin_time(0),
+        m_receive_time(0),
+        m_transmit_time(0),
+        m_session(0),
+        m_change_seq(0),
+        m_flags_seq(0),
+        m_flags_origin(0) {}
   Message(MsgType type, const private_init&)
-      : m_type(type), m_id(0), m_flags(0), m_seq_num_uid(0) {}
+      : m_type(type),
+        m_id(0),
+        m_flags(0),
+        m_seq_num_uid(0),
+        m_origin_time(0),
+        m_receive_time(0),
+        m_transmit_time(0),
+        m_session(0),
+        m_change_seq(0),
+        m_flags_seq(0),
+        m_flags_origin(0) {}
 
   MsgType type() const { return m_type; }
   bool Is(MsgType type) const { return type == m_type; }
@@ -55,12 +97,37 @@ class Message {
   unsigned int id() const { return m_id; }
   unsigned int flags() const { return m_flags; }
   unsigned int seq_num_uid() const { return m_seq_num_uid; }
+  const std::vector<Update>& updates() const { return m_updates; }
+
+  // Time sync timestamps (in nt::Now() units of the respective ends).  The
+  // transmit time (and the origin time of a request) is taken when the
+  // message is written, so it is only meaningful for received messages.
+  unsigned long long origin_time() const { return m_origin_time; }
+  unsigned long long receive_time() const { return m_receive_time; }
+  unsigned long long transmit_time() const { return m_transmit_time; }
+
+  // Session resumption (protocol 3.2): the server's session token, and a
+  // point in its sequence of changes.  A client that has seen all changes up
+  // to a point can resume from there after a reconnect.
+  unsigned long long session() const { return m_session; }
+  unsigned long long change_seq() const { return m_change_seq; }
+
+  // Cluster entries: id() is the node that wrote the value, and these are
+  // the version of the flags and the node that wrote them.
+  unsigned int flags_seq() const { return m_flags_seq; }
+  unsigned int flags_origin() const { return m_flags_origin; }
 
   // Read and write from wire representation
   void Write(WireEncoder& encoder) const;
   static std::shared_ptr<Message> Read(WireDecoder& decoder,
                                        GetEntryTypeFunc get_entry_type);
 
+  // Writes a run of entry update messages.  From protocol 3.2 on they are
+  // packed into a single update batch, grouped by type; before that, each
+  // is written as is.
+  static void WriteUpdates(WireEncoder& encoder,
+                           llvm::ArrayRef<std::shared_ptr<Message>> msgs);
+
   // Create messages without data
   static std::shared_ptr<Message> KeepAlive() {
     return std::make_shared<Message>(kKeepAlive, private_init());
@@ -77,11 +144,17 @@ class Message {
   static std::shared_ptr<Message> ClearEntries() {
     return std::make_shared<Message>(kClearEntries, private_init());
   }
+  static std::shared_ptr<Message> TimeSyncRequest() {
+    return std::make_shared<Message>(kTimeSyncRequest, private_init());
+  }
 
   // Create messages with data
-  static std::shared_ptr<Message> ClientHello(llvm::StringRef self_id);
-  static std::shared_ptr<Message> ServerHello(unsigned int flags,
-                                              llvm::StringRef self_id);
+  static std::shared_ptr<Message> ClientHello(
+      llvm::StringRef self_id, unsigned int flags = 0,
+      unsigned long long session = 0, unsigned long long change_seq = 0);
+  static std::shared_ptr<Message> ServerHello(
+      unsigned int flags, llvm::StringRef self_id,
+      unsigned long long session = 0, unsigned long long change_seq = 0);
   static std::shared_ptr<Message> EntryAssign(llvm::StringRef name,
                                               unsigned int id,
                                               unsigned int seq_num,
@@ -97,6 +170,20 @@ class Message {
                                              llvm::StringRef params);
   static std::shared_ptr<Message> RpcResponse(unsigned int id, unsigned int uid,
                                               llvm::StringRef results);
+  static std::shared_ptr<Message> TimeSyncResponse(
+      unsigned long long origin_time, unsigned long long receive_time);
+  // A piece of a large encoded message that is sent in several parts
+  // (protocol 3.2); size is that of the whole message.
+  static std::shared_ptr<Message> MessageChunk(unsigned int size,
+                                               llvm::StringRef data);
+  // The receiver has now seen all changes up to change_seq (protocol 3.2).
+  static std::shared_ptr<Message> ResyncPoint(unsigned long long change_seq);
+  // An entry as replicated between cluster nodes, by name (protocol 3.2).
+  // A null value deletes the entry.
+  static std::shared_ptr<Message> PeerEntry(
+      llvm::StringRef name, unsigned int origin, unsigned int seq_num,
+      unsigned int flags_origin, unsigned int flags_seq, unsigned int flags,
+      std::shared_ptr<Value> value);
 
   Message(const Message&) = delete;
   Message& operator=(const Message&) = delete;
@@ -107,9 +194,17 @@ class Message {
   // Message data.  Use varies by message type.
   std::string m_str;
   std::shared_ptr<Value> m_value;
-  unsigned int m_id;  // also used for proto_rev
+  unsigned int m_id;  // also used for proto_rev and chunked message size
   unsigned int m_flags;
   unsigned int m_seq_num_uid;
+  unsigned long long m_origin_time;
+  unsigned long long m_receive_time;
+  unsigned long long m_transmit_time;
+  unsigned long long m_session;
+  unsigned long long m_change_seq;
+  unsigned int m_flags_seq;
+  unsigned int m_flags_origin;
+  std::vector<Update> m_updates;
 };
 
 }  // namespace nt
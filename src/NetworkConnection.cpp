@@ -7,10 +7,13 @@
 
 #include "NetworkConnection.h"
 
+#include <algorithm>
+
 #include "support/timestamp.h"
 #include "tcpsockets/NetworkStream.h"
 #include "Log.h"
 #include "Notifier.h"
+#include "raw_istream.h"
 #include "raw_socket_istream.h"
 #include "WireDecoder.h"
 #include "WireEncoder.h"
@@ -18,6 +21,10 @@
 using namespace nt;
 
 std::atomic_uint NetworkConnection::s_uid;
+const char NetworkConnection::kDatagramMagic;
+const std::size_t NetworkConnection::kMaxDatagramSize;
+const std::size_t NetworkConnection::kChunkSize;
+const std::size_t NetworkConnection::kMaxChunkedSize;
 
 NetworkConnection::NetworkConnection(std::unique_ptr<NetworkStream> stream,
                                      Notifier& notifier,
@@ -29,9 +36,28 @@ NetworkConnection::NetworkConnection(std::unique_ptr<NetworkStream> stream,
       m_handshake(handshake),
       m_get_entry_type(get_entry_type) {
   m_active = false;
-  m_proto_rev = 0x0300;
+  m_proto_rev = 0x0302;
+  m_compression = 0;
+  m_resync_seq = 0;
+  m_sync_stamp = 0;
   m_state = static_cast<int>(kCreated);
+  m_peer_role = static_cast<int>(kNotPeer);
   m_last_update = 0;
+  m_outgoing_bytes = 0;
+  m_outgoing_limit = 0;
+  m_low_budget = 0;
+  m_outgoing_policy = static_cast<int>(NT_OUTGOING_COALESCE);
+  m_coalesce_count = 0;
+  m_drop_count = 0;
+  m_overflow_disconnected = false;
+  m_msgs_in = 0;
+  m_bytes_in = 0;
+  m_msgs_out = 0;
+  m_bytes_out = 0;
+  m_time_synced = false;
+  m_time_offset = 0;
+  m_rtt = 0;
+  m_datagram_active = false;
 
   // turn off Nagle algorithm; we bundle packets for transmission
   m_stream->setNoDelay();
@@ -45,6 +71,7 @@ void NetworkConnection::Start() {
   m_state = static_cast<int>(kInit);
   // clear queue
   while (!m_outgoing.empty()) m_outgoing.pop();
+  m_outgoing_bytes = 0;
   // reset shutdown flags
   {
     std::lock_guard<std::mutex> lock(m_shutdown_mutex);
@@ -63,7 +90,7 @@ void NetworkConnection::Stop() {
   // closing the stream so the read thread terminates
   if (m_stream) m_stream->close();
   // send an empty outgoing message set so the write thread terminates
-  m_outgoing.push(Outgoing());
+  m_outgoing.push(OutgoingBatch());
   // wait for threads to terminate, with timeout
   if (m_write_thread.joinable()) {
     std::unique_lock<std::mutex> lock(m_shutdown_mutex);
@@ -87,12 +114,15 @@ void NetworkConnection::Stop() {
   }
   // clear queue
   while (!m_outgoing.empty()) m_outgoing.pop();
+  m_outgoing_bytes = 0;
+  // drop the datagram path; it refers to the dispatcher's socket
+  set_datagram_sender(nullptr);
 }
 
 ConnectionInfo NetworkConnection::info() const {
   return ConnectionInfo{remote_id(), m_stream->getPeerIP(),
                         static_cast<unsigned int>(m_stream->getPeerPort()),
-                        m_last_update, m_proto_rev};
+                        m_last_update, m_proto_rev, m_rtt};
 }
 
 std::string NetworkConnection::remote_id() const {
@@ -108,18 +138,50 @@ void NetworkConnection::set_remote_id(StringRef remote_id) {
 void NetworkConnection::ReadThreadMain() {
   raw_socket_istream is(*m_stream);
   WireDecoder decoder(is, m_proto_rev);
+  std::string chunked;  // a message being received in chunks
+  std::size_t chunked_size = 0;
+
+  // Reads the next message; messages sent in chunks are reassembled, then
+  // decoded with the same decoder (and so the same compression state) as if
+  // they had arrived whole.
+  auto read_msg = [&]() -> std::shared_ptr<Message> {
+    for (;;) {
+      auto msg = Message::Read(decoder, m_get_entry_type);
+      if (!msg || !msg->Is(Message::kMessageChunk)) return msg;
+      if (chunked.empty()) chunked_size = msg->id();
+      chunked += msg->str();
+      if (msg->id() != chunked_size || chunked_size > kMaxChunkedSize ||
+          chunked.size() > chunked_size) {
+        decoder.set_error("bad message chunk");
+        return nullptr;
+      }
+      if (chunked.size() < chunked_size) continue;
+      raw_mem_istream chunked_is(chunked.data(), chunked.size());
+      raw_istream& prev_is = decoder.set_stream(chunked_is);
+      msg = Message::Read(decoder, m_get_entry_type);
+      decoder.set_stream(prev_is);
+      bool whole = chunked_is.left() == 0;
+      chunked.clear();
+      if (msg && (!whole || msg->Is(Message::kMessageChunk))) {
+        decoder.set_error("bad chunked message");
+        return nullptr;
+      }
+      return msg;
+    }
+  };
 
   m_state = static_cast<int>(kHandshake);
   if (!m_handshake(*this,
                    [&] {
                      decoder.set_proto_rev(m_proto_rev);
-                     auto msg = Message::Read(decoder, m_get_entry_type);
+                     decoder.set_compression(m_compression != 0);
+                     auto msg = read_msg();
                      if (!msg && decoder.error())
                        DEBUG("error reading in handshake: " << decoder.error());
                      return msg;
                    },
                    [&](llvm::ArrayRef<std::shared_ptr<Message>> msgs) {
-                     m_outgoing.emplace(msgs);
+                     PushOutgoing(Outgoing(msgs.begin(), msgs.end()));
                    })) {
     m_state = static_cast<int>(kDead);
     m_active = false;
@@ -132,8 +194,9 @@ void NetworkConnection::ReadThreadMain() {
     if (!m_stream)
       break;
     decoder.set_proto_rev(m_proto_rev);
+    decoder.set_compression(m_compression != 0);
     decoder.Reset();
-    auto msg = Message::Read(decoder, m_get_entry_type);
+    auto msg = read_msg();
     if (!msg) {
       if (decoder.error()) INFO("read error: " << decoder.error());
       // terminate connection on bad message
@@ -143,14 +206,32 @@ void NetworkConnection::ReadThreadMain() {
     DEBUG3("received type=" << msg->type() << " with str=" << msg->str()
                             << " id=" << msg->id()
                             << " seq_num=" << msg->seq_num_uid());
-    m_last_update = Now();
+    auto now = Now();
+    m_last_update = now;
+    ++m_msgs_in;
+    m_bytes_in = is.count();
+    if (msg->Is(Message::kTimeSyncRequest)) {
+      // answer immediately rather than on the next dispatch
+      PushOutgoing(
+          Outgoing{Message::TimeSyncResponse(msg->transmit_time(), now)});
+      continue;
+    }
+    if (msg->Is(Message::kTimeSyncResponse)) {
+      ProcessTimeSync(*msg, now);
+      continue;
+    }
+    if (msg->Is(Message::kResyncPoint)) {
+      // everything before it has been processed
+      m_resync_seq = msg->change_seq();
+      continue;
+    }
     m_process_incoming(std::move(msg), this);
   }
   DEBUG2("read thread died (" << this << ")");
   if (m_state != kDead) m_notifier.NotifyConnection(false, info());
   m_state = static_cast<int>(kDead);
   m_active = false;
-  m_outgoing.push(Outgoing());  // also kill write thread
+  m_outgoing.push(OutgoingBatch());  // also kill write thread
 
 done:
   // use condition variable to signal thread shutdown
@@ -163,27 +244,124 @@ done:
 
 void NetworkConnection::WriteThreadMain() {
   WireEncoder encoder(m_proto_rev);
+  // Large messages being sent in chunks, oldest first, and messages held
+  // back until the large message before them for the same id is through
+  struct Transfer {
+    unsigned int id;
+    std::string data;
+    std::size_t sent;
+  };
+  std::deque<Transfer> transfers;
+  Outgoing held;
 
   while (m_active) {
-    auto msgs = m_outgoing.pop();
+    OutgoingBatch batch;
+    bool got = true;
+    if (transfers.empty() && held.empty())
+      batch = m_outgoing.pop();
+    else
+      got = m_outgoing.try_pop(batch);
     DEBUG4("write thread woke up");
-    if (msgs.empty()) continue;
+    // Take everything queued, so urgent updates can go ahead of the rest,
+    // though not ahead of an assignment of the same entry.  Held messages
+    // were queued first.
+    Outgoing msgs;
+    Outgoing urgent;
+    std::vector<unsigned int> assigned;
+    auto take = [&](Outgoing& from, bool is_urgent) {
+      for (auto& msg : from) {
+        if (!msg) continue;
+        if (is_urgent && std::find(assigned.begin(), assigned.end(),
+                                   msg->id()) == assigned.end()) {
+          urgent.push_back(std::move(msg));
+          continue;
+        }
+        if (msg->Is(Message::kEntryAssign)) assigned.push_back(msg->id());
+        msgs.push_back(std::move(msg));
+      }
+    };
+    take(held, false);
+    held.clear();
+    std::size_t msgs_size = 0;
+    for (; got; got = m_outgoing.try_pop(batch)) {
+      msgs_size += OutgoingSize(batch.msgs);
+      take(batch.msgs, batch.urgent);
+    }
+    if (!urgent.empty()) {
+      msgs.insert(msgs.begin(), std::make_move_iterator(urgent.begin()),
+                  std::make_move_iterator(urgent.end()));
+    }
+    bool chunking = m_proto_rev >= 0x0302;
+    if (chunking) {
+      // messages for an id with a large message in flight wait for it, so
+      // each entry's changes still arrive in order
+      std::vector<unsigned int> blocked;
+      for (auto& transfer : transfers) blocked.push_back(transfer.id);
+      HoldBehindChunked(std::move(blocked), &msgs, &held);
+    }
+    if (msgs.empty() && transfers.empty()) continue;
     encoder.set_proto_rev(m_proto_rev);
+    encoder.set_compression(m_compression);
     encoder.Reset();
     DEBUG3("sending " << msgs.size() << " messages");
-    for (auto& msg : msgs) {
-      if (msg) {
-        DEBUG3("sending type=" << msg->type() << " with str=" << msg->str()
-                               << " id=" << msg->id()
-                               << " seq_num=" << msg->seq_num_uid());
-        msg->Write(encoder);
+    for (std::size_t i = 0; i < msgs.size(); ++i) {
+      auto& msg = msgs[i];
+      if (!msg) continue;
+      ++m_msgs_out;
+      DEBUG3("sending type=" << msg->type() << " with str=" << msg->str()
+                             << " id=" << msg->id()
+                             << " seq_num=" << msg->seq_num_uid());
+      bool large = chunking && IsChunked(*msg);
+      if (msg->Is(Message::kEntryUpdate) && !large) {
+        // runs of updates go out together (as one batch from 3.2 on)
+        std::size_t end = i + 1;
+        while (end < msgs.size() &&
+               (!msgs[end] || (msgs[end]->Is(Message::kEntryUpdate) &&
+                               !(chunking && IsChunked(*msgs[end]))))) {
+          if (msgs[end]) ++m_msgs_out;
+          ++end;
+        }
+        Message::WriteUpdates(encoder,
+                              llvm::makeArrayRef(msgs.data() + i, end - i));
+        i = end - 1;
+        continue;
+      }
+      std::size_t start = encoder.size();
+      msg->Write(encoder);
+      // it may have compressed well enough to go out whole
+      if (large && encoder.size() - start > kChunkSize) {
+        transfers.push_back(Transfer{
+            msg->id(),
+            std::string(encoder.data() + start, encoder.size() - start), 0});
+        encoder.Truncate(start);
+        DEBUG3("sending " << transfers.back().data.size()
+                          << " byte message in chunks");
       }
     }
+    // one chunk per write, so everything else keeps flowing in between
+    if (!transfers.empty()) {
+      auto& transfer = transfers.front();
+      std::size_t len = transfer.data.size() - transfer.sent;
+      if (len > kChunkSize) len = kChunkSize;
+      Message::MessageChunk(
+          transfer.data.size(),
+          llvm::StringRef(transfer.data.data() + transfer.sent, len))
+          ->Write(encoder);
+      transfer.sent += len;
+      if (transfer.sent == transfer.data.size()) transfers.pop_front();
+    }
     NetworkStream::Error err;
     if (!m_stream) break;
-    if (encoder.size() == 0) continue;
-    if (m_stream->send(encoder.data(), encoder.size(), &err) == 0) break;
-    DEBUG4("sent " << encoder.size() << " bytes");
+    if (encoder.size() != 0) {
+      if (m_stream->send(encoder.data(), encoder.size(), &err) == 0) break;
+      DEBUG4("sent " << encoder.size() << " bytes");
+      m_bytes_out += encoder.size();
+      if (LatencyTracer::GetInstance().enabled()) {
+        for (auto& msg : msgs)
+          if (msg) RecordLatency(NT_LATENCY_SENT, *msg);
+      }
+    }
+    m_outgoing_bytes -= msgs_size;
   }
   DEBUG2("write thread died (" << this << ")");
   if (m_state != kDead) m_notifier.NotifyConnection(false, info());
@@ -199,8 +377,39 @@ void NetworkConnection::WriteThreadMain() {
   }
 }
 
-void NetworkConnection::QueueOutgoing(std::shared_ptr<Message> msg) {
+void NetworkConnection::QueueOutgoing(std::shared_ptr<Message> msg,
+                                      Priority priority) {
+  // peers before 3.2 only have 16-bit ids; entries beyond that range simply
+  // don't exist for them
+  if (msg->id() > 0xffff && m_proto_rev < 0x0302) return;
+
   std::lock_guard<std::mutex> lock(m_pending_mutex);
+  if (LatencyTracer::GetInstance().enabled())
+    RecordLatency(NT_LATENCY_QUEUED, *msg);
+
+  if (msg->Is(Message::kEntryUpdate) && msg->id() != 0xffff) {
+    unsigned int id = msg->id();
+    auto low = m_pending_low_index.find(id);
+    if (priority == kPriorityLow) {
+      // merge into a pending assignment as usual; otherwise wait for budget,
+      // keeping only the latest value
+      auto pending = m_pending_update.find(id);
+      if (pending == m_pending_update.end() || pending->second.first == 0) {
+        if (low != m_pending_low_index.end()) {
+          m_pending_low[low->second - 1] = std::move(msg);
+        } else {
+          m_pending_low.push_back(std::move(msg));
+          m_pending_low_index[id] = m_pending_low.size();
+        }
+        return;
+      }
+    } else if (low != m_pending_low_index.end()) {
+      // superseded
+      m_pending_low[low->second - 1].reset();
+      m_pending_low_index.erase(low);
+    }
+    if (priority == kPriorityHigh) m_pending_high.push_back(id);
+  }
 
   // Merge with previous.  One case we don't combine: delete/assign loop.
   switch (msg->type()) {
@@ -212,9 +421,10 @@ void NetworkConnection::QueueOutgoing(std::shared_ptr<Message> msg) {
         m_pending_outgoing.push_back(msg);
         break;
       }
-      if (id < m_pending_update.size() && m_pending_update[id].first != 0) {
+      auto& pending = m_pending_update[id];
+      if (pending.first != 0) {
         // overwrite the previous one for this id
-        auto& oldmsg = m_pending_outgoing[m_pending_update[id].first - 1];
+        auto& oldmsg = m_pending_outgoing[pending.first - 1];
         if (oldmsg && oldmsg->Is(Message::kEntryAssign) &&
             msg->Is(Message::kEntryUpdate)) {
           // need to update assignment with new seq_num and value
@@ -226,8 +436,7 @@ void NetworkConnection::QueueOutgoing(std::shared_ptr<Message> msg) {
         // new, but remember it
         std::size_t pos = m_pending_outgoing.size();
         m_pending_outgoing.push_back(msg);
-        if (id >= m_pending_update.size()) m_pending_update.resize(id + 1);
-        m_pending_update[id].first = pos + 1;
+        pending.first = pos + 1;
       }
       break;
     }
@@ -240,15 +449,23 @@ void NetworkConnection::QueueOutgoing(std::shared_ptr<Message> msg) {
       }
 
       // clear previous updates
-      if (id < m_pending_update.size()) {
-        if (m_pending_update[id].first != 0) {
-          m_pending_outgoing[m_pending_update[id].first - 1].reset();
-          m_pending_update[id].first = 0;
-        }
-        if (m_pending_update[id].second != 0) {
-          m_pending_outgoing[m_pending_update[id].second - 1].reset();
-          m_pending_update[id].second = 0;
-        }
+      auto low = m_pending_low_index.find(id);
+      if (low != m_pending_low_index.end()) {
+        m_pending_low[low->second - 1].reset();
+        m_pending_low_index.erase(low);
+      }
+      auto unreliable = m_pending_unreliable_index.find(id);
+      if (unreliable != m_pending_unreliable_index.end()) {
+        m_pending_unreliable[unreliable->second - 1].reset();
+        m_pending_unreliable_index.erase(unreliable);
+      }
+      auto pending = m_pending_update.find(id);
+      if (pending != m_pending_update.end()) {
+        if (pending->second.first != 0)
+          m_pending_outgoing[pending->second.first - 1].reset();
+        if (pending->second.second != 0)
+          m_pending_outgoing[pending->second.second - 1].reset();
+        m_pending_update.erase(pending);
       }
 
       // add deletion
@@ -262,18 +479,29 @@ void NetworkConnection::QueueOutgoing(std::shared_ptr<Message> msg) {
         m_pending_outgoing.push_back(msg);
         break;
       }
-      if (id < m_pending_update.size() && m_pending_update[id].second != 0) {
+      auto& pending = m_pending_update[id];
+      if (pending.second != 0) {
         // overwrite the previous one for this id
-        m_pending_outgoing[m_pending_update[id].second - 1] = msg;
+        m_pending_outgoing[pending.second - 1] = msg;
       } else {
         // new, but remember it
         std::size_t pos = m_pending_outgoing.size();
         m_pending_outgoing.push_back(msg);
-        if (id >= m_pending_update.size()) m_pending_update.resize(id + 1);
-        m_pending_update[id].second = pos + 1;
+        pending.second = pos + 1;
       }
       break;
     }
+    case Message::kResyncPoint: {
+      // only valid behind everything queued before it, which low priority
+      // updates waiting for budget are not; a later one will do
+      if (m_resync_broken || !m_pending_low.empty()) break;
+      // only the latest one is useful
+      if (m_pending_resync != 0)
+        m_pending_outgoing[m_pending_resync - 1].reset();
+      m_pending_outgoing.push_back(msg);
+      m_pending_resync = m_pending_outgoing.size();
+      break;
+    }
     case Message::kClearEntries: {
       // knock out all previous assigns/updates!
       for (auto& i : m_pending_outgoing) {
@@ -284,7 +512,12 @@ void NetworkConnection::QueueOutgoing(std::shared_ptr<Message> msg) {
             t == Message::kClearEntries)
           i.reset();
       }
-      m_pending_update.resize(0);
+      m_pending_update.clear();
+      m_pending_high.clear();
+      m_pending_unreliable.resize(0);
+      m_pending_unreliable_index.clear();
+      m_pending_low.resize(0);
+      m_pending_low_index.clear();
       m_pending_outgoing.push_back(msg);
       break;
     }
@@ -297,15 +530,398 @@ void NetworkConnection::QueueOutgoing(std::shared_ptr<Message> msg) {
 void NetworkConnection::PostOutgoing(bool keep_alive) {
   std::lock_guard<std::mutex> lock(m_pending_mutex);
   auto now = std::chrono::steady_clock::now();
+  // datagrams don't count against the outgoing limit or as keep-alives
+  if (!m_pending_unreliable.empty()) SendDatagrams();
+  // sample the remote clock once a second; this also acts as a keep-alive
+  if (m_proto_rev >= 0x0301 &&
+      (now - m_last_time_sync) >= std::chrono::seconds(1)) {
+    m_pending_outgoing.push_back(Message::TimeSyncRequest());
+    m_last_time_sync = now;
+  }
+  if (!m_pending_low.empty()) PostLowPriority(now);
   if (m_pending_outgoing.empty()) {
     if (!keep_alive) return;
     // send keep-alives once a second (if no other messages have been sent)
     if ((now - m_last_post) < std::chrono::seconds(1)) return;
-    m_outgoing.emplace(Outgoing{Message::KeepAlive()});
+    PushOutgoing(Outgoing{Message::KeepAlive()});
   } else {
-    m_outgoing.emplace(std::move(m_pending_outgoing));
+    std::size_t limit = m_outgoing_limit;
+    std::size_t queued = m_outgoing_bytes;
+    if (limit != 0 && queued != 0 &&
+        queued + OutgoingSize(m_pending_outgoing) > limit) {
+      switch (static_cast<NT_OutgoingPolicy>(m_outgoing_policy.load())) {
+        case NT_OUTGOING_COALESCE:
+          // Leave the messages pending; QueueOutgoing keeps merging them
+          // down to the latest value per entry until the writer catches up.
+          ++m_coalesce_count;
+          DEBUG1("outgoing limit exceeded (" << queued
+                                             << " bytes queued), coalescing");
+          return;
+        case NT_OUTGOING_DROP_UPDATES: {
+          // Value updates are the only messages that can be lost without
+          // desynchronizing the entry tables; everything else is kept.
+          std::size_t dropped = 0;
+          for (auto& msg : m_pending_outgoing) {
+            if (msg && msg->Is(Message::kEntryUpdate)) {
+              msg.reset();
+              ++dropped;
+            }
+          }
+          if (dropped != 0) {
+            m_resync_broken = true;
+            if (m_pending_resync != 0)
+              m_pending_outgoing[m_pending_resync - 1].reset();
+          }
+          m_drop_count += dropped;
+          DEBUG1("outgoing limit exceeded (" << queued << " bytes queued), "
+                                             << "dropped " << dropped
+                                             << " updates");
+          break;
+        }
+        case NT_OUTGOING_DISCONNECT:
+        default:
+          WARNING("outgoing limit exceeded (" << queued << " bytes queued), "
+                                              << "disconnecting "
+                                              << m_stream->getPeerIP());
+          m_overflow_disconnected = true;
+          m_pending_outgoing.resize(0);
+          m_pending_update.clear();
+          m_pending_high.clear();
+          m_pending_resync = 0;
+          // closing the stream terminates both threads
+          m_stream->close();
+          return;
+      }
+    }
+    if (LatencyTracer::GetInstance().enabled()) {
+      for (auto& msg : m_pending_outgoing)
+        if (msg) RecordLatency(NT_LATENCY_POSTED, *msg);
+    }
+    if (!m_pending_high.empty()) {
+      Outgoing urgent;
+      for (auto id : m_pending_high) {
+        auto pending = m_pending_update.find(id);
+        if (pending == m_pending_update.end() || pending->second.first == 0)
+          continue;
+        // an assignment has to go out in order
+        auto& msg = m_pending_outgoing[pending->second.first - 1];
+        if (!msg || !msg->Is(Message::kEntryUpdate)) continue;
+        urgent.push_back(std::move(msg));
+      }
+      m_pending_high.clear();
+      if (!urgent.empty()) PushOutgoing(std::move(urgent), true);
+    }
+    PushOutgoing(std::move(m_pending_outgoing));
     m_pending_outgoing.resize(0);
-    m_pending_update.resize(0);
+    m_pending_update.clear();
+    m_pending_resync = 0;
   }
   m_last_post = now;
 }
+
+// Moves as many pending low priority updates to the pending messages as the
+// budget allows, oldest first.  Called with the pending mutex held.
+void NetworkConnection::PostLowPriority(
+    std::chrono::steady_clock::time_point now) {
+  std::size_t budget = m_low_budget;
+  std::size_t posted = 0;
+  if (budget == 0) {
+    posted = m_pending_low.size();
+  } else {
+    // token bucket holding at most a second's worth
+    std::chrono::duration<double> elapsed = now - m_last_low_post;
+    m_low_tokens += elapsed.count() * budget;
+    if (m_low_tokens > budget) m_low_tokens = budget;
+    // may overdraw by one message, so any size eventually goes
+    for (; posted < m_pending_low.size() && m_low_tokens > 0; ++posted) {
+      if (m_pending_low[posted])
+        m_low_tokens -= MessageSize(*m_pending_low[posted]);
+    }
+  }
+  m_last_low_post = now;
+  if (posted == 0) return;
+  Outgoing left;
+  m_pending_low_index.clear();
+  for (std::size_t i = 0; i < m_pending_low.size(); ++i) {
+    auto& msg = m_pending_low[i];
+    if (!msg) continue;
+    if (i < posted) {
+      m_pending_outgoing.push_back(std::move(msg));
+    } else {
+      left.push_back(std::move(msg));
+      m_pending_low_index[left.back()->id()] = left.size();
+    }
+  }
+  m_pending_low.swap(left);
+}
+
+void NetworkConnection::set_datagram_sender(DatagramSender sender) {
+  std::lock_guard<std::mutex> lock(m_pending_mutex);
+  m_datagram_active = static_cast<bool>(sender);
+  m_datagram_sender = std::move(sender);
+  if (m_datagram_active) return;
+  // anything still pending goes by the stream instead
+  for (auto& msg : m_pending_unreliable)
+    if (msg) m_pending_outgoing.push_back(std::move(msg));
+  m_pending_unreliable.resize(0);
+  m_pending_unreliable_index.clear();
+}
+
+void NetworkConnection::QueueUnreliable(std::shared_ptr<Message> msg) {
+  unsigned int id = msg->id();
+  auto value = msg->value();
+  // datagrams carry 16-bit ids
+  if (!m_datagram_active || id >= 0xffff || !value ||
+      5 + WireEncoder(m_proto_rev).GetValueSize(*value) >
+          kMaxDatagramSize - 2) {
+    QueueOutgoing(std::move(msg));
+    return;
+  }
+  std::unique_lock<std::mutex> lock(m_pending_mutex);
+  if (!m_datagram_active) {
+    // lost the datagram path in the meantime
+    lock.unlock();
+    QueueOutgoing(std::move(msg));
+    return;
+  }
+  if (LatencyTracer::GetInstance().enabled())
+    RecordLatency(NT_LATENCY_QUEUED, *msg);
+  auto& index = m_pending_unreliable_index[id];
+  if (index != 0) {
+    // only the latest value is worth sending
+    m_pending_unreliable[index - 1] = std::move(msg);
+    return;
+  }
+  m_pending_unreliable.push_back(std::move(msg));
+  index = m_pending_unreliable.size();
+}
+
+// Packs the pending unreliable updates into as few datagrams as possible.
+// Called with the pending mutex held.
+void NetworkConnection::SendDatagrams() {
+  bool trace = LatencyTracer::GetInstance().enabled();
+  WireEncoder encoder(m_proto_rev);
+  std::size_t first = 0;  // first message in the current datagram
+  auto send = [&](std::size_t end) {
+    if (encoder.size() <= 2) return;
+    if (m_datagram_sender(encoder.data(), encoder.size())) {
+      m_bytes_out += encoder.size();
+      if (trace) {
+        for (std::size_t i = first; i < end; ++i)
+          if (m_pending_unreliable[i])
+            RecordLatency(NT_LATENCY_SENT, *m_pending_unreliable[i]);
+      }
+    }
+    encoder.Reset();
+    encoder.Write8(kDatagramMagic);
+    encoder.Write8(kDatagramUpdates);
+    first = end;
+  };
+  encoder.Write8(kDatagramMagic);
+  encoder.Write8(kDatagramUpdates);
+  for (std::size_t i = 0; i < m_pending_unreliable.size(); ++i) {
+    auto& msg = m_pending_unreliable[i];
+    if (!msg) continue;
+    auto value = msg->value();
+    if (encoder.size() + 5 + encoder.GetValueSize(*value) > kMaxDatagramSize)
+      send(i);
+    encoder.Write16(msg->id());
+    encoder.Write16(msg->seq_num_uid());
+    encoder.WriteType(value->type());
+    encoder.WriteValue(*value);
+    ++m_msgs_out;
+  }
+  send(m_pending_unreliable.size());
+  m_pending_unreliable.resize(0);
+  m_pending_unreliable_index.clear();
+}
+
+void NetworkConnection::ProcessDatagram(const char* data, std::size_t len) {
+  raw_mem_istream is(data, len);
+  WireDecoder decoder(is, m_proto_rev);
+  unsigned int magic, type;
+  if (!decoder.Read8(&magic) || !decoder.Read8(&type) ||
+      magic != static_cast<unsigned int>(kDatagramMagic) ||
+      type != kDatagramUpdates)
+    return;
+  m_last_update = Now();
+  while (is.left() > 0) {
+    unsigned int id, seq_num;
+    NT_Type value_type;
+    if (!decoder.Read16(&id) || !decoder.Read16(&seq_num) ||
+        !decoder.ReadType(&value_type))
+      return;
+    auto value = decoder.ReadValue(value_type);
+    if (!value) {
+      DEBUG("bad datagram: " << (decoder.error() ? decoder.error() : ""));
+      return;
+    }
+    // the entry may not be assigned yet, or may have changed type
+    if (m_get_entry_type(id) != value_type) continue;
+    ++m_msgs_in;
+    m_process_incoming(Message::EntryUpdate(id, seq_num, value), this);
+  }
+}
+
+void NetworkConnection::PushOutgoing(Outgoing&& msgs, bool urgent) {
+  m_outgoing_bytes += OutgoingSize(msgs);
+  m_outgoing.push(OutgoingBatch{std::move(msgs), urgent});
+}
+
+// Approximate wire size of a set of messages.  This only needs to be
+// consistent (it is added when posting and subtracted when written), so it
+// ignores protocol revision differences.
+std::size_t NetworkConnection::OutgoingSize(const Outgoing& msgs) {
+  std::size_t size = 0;
+  for (auto& msg : msgs) {
+    if (msg) size += MessageSize(*msg);
+  }
+  return size;
+}
+
+std::size_t NetworkConnection::MessageSize(const Message& msg) {
+  std::size_t size = 8 + msg.str().size();
+  auto value = msg.value();
+  if (value) {
+    switch (value->type()) {
+      case NT_BOOLEAN:
+        size += 1;
+        break;
+      case NT_DOUBLE:
+        size += 8;
+        break;
+      case NT_STRING:
+        size += value->GetString().size();
+        break;
+      case NT_RAW:
+        size += value->GetRaw().size();
+        break;
+      case NT_RPC:
+        size += value->GetRpc().size();
+        break;
+      case NT_BOOLEAN_ARRAY:
+        size += value->GetBooleanArray().size();
+        break;
+      case NT_DOUBLE_ARRAY:
+        size += value->GetDoubleArray().size() * 8;
+        break;
+      case NT_STRING_ARRAY:
+        for (auto& str : value->GetStringArray()) size += 2 + str.size();
+        break;
+      default:
+        break;
+    }
+  }
+  return size;
+}
+
+// Messages that concern a single entry (or RPC) id
+static bool HasId(const Message& msg) {
+  switch (msg.type()) {
+    case Message::kEntryAssign:
+    case Message::kEntryUpdate:
+    case Message::kFlagsUpdate:
+    case Message::kEntryDelete:
+    case Message::kExecuteRpc:
+    case Message::kRpcResponse:
+      return true;
+    default:
+      return false;
+  }
+}
+
+// Messages that mark a point in the stream: handshake steps and clears
+static bool IsBarrier(const Message& msg) {
+  switch (msg.type()) {
+    case Message::kClientHello:
+    case Message::kProtoUnsup:
+    case Message::kServerHelloDone:
+    case Message::kServerHello:
+    case Message::kClientHelloDone:
+    case Message::kClearEntries:
+      return true;
+    default:
+      return false;
+  }
+}
+
+bool NetworkConnection::IsChunked(const Message& msg) {
+  return HasId(msg) && MessageSize(msg) > kChunkSize;
+}
+
+// Moves the messages that must wait for a large message before them (ids in
+// blocked, or sent in chunks by this write) from msgs to held, keeping order.
+// Messages not about a single id wait until no large message is in flight;
+// in a handshake, the client must have every assignment before the hello
+// done.
+void NetworkConnection::HoldBehindChunked(std::vector<unsigned int> blocked,
+                                          Outgoing* msgs, Outgoing* held) {
+  Outgoing ready;
+  bool hold_all = false;  // a barrier is held, and so everything after it
+  for (auto& msg : *msgs) {
+    if (!msg) continue;
+    bool is_blocked = std::find(blocked.begin(), blocked.end(), msg->id()) !=
+                      blocked.end();
+    if (!HasId(*msg) && (hold_all || !blocked.empty())) {
+      if (IsBarrier(*msg)) hold_all = true;
+      held->push_back(std::move(msg));
+    } else if (HasId(*msg) && (hold_all || is_blocked)) {
+      if (!is_blocked) blocked.push_back(msg->id());
+      held->push_back(std::move(msg));
+    } else {
+      if (IsChunked(*msg)) blocked.push_back(msg->id());
+      ready.push_back(std::move(msg));
+    }
+  }
+  msgs->swap(ready);
+}
+
+// NTP-style offset and round trip estimation.  Of the most recent samples,
+// the one with the lowest round trip time is the least affected by queueing
+// delay, so its offset is used.
+void NetworkConnection::ProcessTimeSync(const Message& msg,
+                                        unsigned long long now) {
+  long long t0 = msg.origin_time();
+  long long t1 = msg.receive_time();
+  long long t2 = msg.transmit_time();
+  long long t3 = now;
+  long long rtt = (t3 - t0) - (t2 - t1);
+  if (rtt < 0) rtt = 0;
+  ClockSample sample{((t1 - t0) + (t2 - t3)) / 2,
+                     static_cast<unsigned long long>(rtt)};
+  m_clock_samples[m_clock_sample_count++ % kNumClockSamples] = sample;
+
+  std::size_t count = m_clock_sample_count < kNumClockSamples
+                          ? m_clock_sample_count
+                          : kNumClockSamples;
+  const ClockSample* best = &m_clock_samples[0];
+  for (std::size_t i = 1; i < count; ++i) {
+    if (m_clock_samples[i].rtt < best->rtt) best = &m_clock_samples[i];
+  }
+  m_time_offset = best->offset;
+  m_rtt = best->rtt;
+  m_time_synced = true;
+  DEBUG4("time sync: offset=" << sample.offset << " rtt=" << sample.rtt);
+}
+
+void NetworkConnection::RecordLatency(NT_LatencyStage stage,
+                                      const Message& msg) {
+  if (!msg.Is(Message::kEntryAssign) && !msg.Is(Message::kEntryUpdate))
+    return;
+  auto value = msg.value();
+  if (!value) return;
+  auto now = Now();
+  auto created = value->last_change();
+  m_latency[stage].Record(now > created ? now - created : 0);
+}
+
+void NetworkConnection::GetLatencyHistograms(
+    std::vector<unsigned long long>* out) const {
+  for (unsigned int stage = NT_LATENCY_QUEUED; stage <= NT_LATENCY_SENT;
+       ++stage)
+    m_latency[stage].Get(NT_LATENCY_SOURCE_CONNECTION, m_uid, stage, out);
+}
+
+void NetworkConnection::ResetLatencyHistograms() {
+  for (auto& histogram : m_latency) histogram.Reset();
+}
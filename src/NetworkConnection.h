@@ -10,10 +10,13 @@
 
 #include <atomic>
 #include <chrono>
+#include <deque>
 #include <memory>
 #include <thread>
 
+#include "llvm/DenseMap.h"
 #include "support/ConcurrentQueue.h"
+#include "LatencyTracer.h"
 #include "Message.h"
 #include "ntcore_cpp.h"
 
@@ -24,6 +27,7 @@ namespace nt {
 class Notifier;
 
 class NetworkConnection {
+  friend class NetworkConnectionTest;
  public:
   enum State { kCreated, kInit, kHandshake, kSynchronized, kActive, kDead };
 
@@ -35,7 +39,32 @@ class NetworkConnection {
   typedef std::function<void(std::shared_ptr<Message> msg,
                              NetworkConnection* conn)> ProcessIncomingFunc;
   typedef std::vector<std::shared_ptr<Message>> Outgoing;
-  typedef ConcurrentQueue<Outgoing> OutgoingQueue;
+  // Messages posted together; urgent ones may be written ahead of others
+  // posted before them.
+  struct OutgoingBatch {
+    Outgoing msgs;
+    bool urgent;
+  };
+  typedef ConcurrentQueue<OutgoingBatch> OutgoingQueue;
+  typedef std::function<bool(const char* data, std::size_t len)>
+      DatagramSender;
+
+  // Datagram framing: a magic byte and a type byte, followed for updates by
+  // repeated (id, sequence number, type, value) records.
+  static const char kDatagramMagic = 'N';
+  enum DatagramType {
+    kDatagramHello = 0x01,
+    kDatagramHelloAck = 0x02,
+    kDatagramUpdates = 0x11
+  };
+  static const std::size_t kMaxDatagramSize = 1200;
+
+  // From protocol 3.2, messages that encode to more than this are sent in
+  // chunks of this size, interleaved with the other outgoing messages, so a
+  // large value doesn't hold up everything queued behind it.
+  static const std::size_t kChunkSize = 16384;
+  // Limit on the size of a message received in chunks
+  static const std::size_t kMaxChunkedSize = 1u << 28;
 
   NetworkConnection(std::unique_ptr<NetworkStream> stream,
                     Notifier& notifier,
@@ -56,22 +85,108 @@ class NetworkConnection {
   bool active() const { return m_active; }
   NetworkStream& stream() { return *m_stream; }
 
-  void QueueOutgoing(std::shared_ptr<Message> msg);
+  // Priority classes of value updates, from the NT_HIGH_PRIORITY and
+  // NT_LOW_PRIORITY entry flags.  High priority updates are written ahead of
+  // all other queued messages, except an assignment of the same entry; low
+  // priority updates are posted after everything else, within the low
+  // priority budget.
+  enum Priority { kPriorityNormal, kPriorityHigh, kPriorityLow };
+
+  void QueueOutgoing(std::shared_ptr<Message> msg,
+                     Priority priority = kPriorityNormal);
   void PostOutgoing(bool keep_alive);
 
+  // Bandwidth budget for low priority updates, in bytes per second; 0 (the
+  // default) is unlimited.  Updates over the budget stay pending, coalesced
+  // to the latest value per entry.
+  void set_low_priority_budget(std::size_t bytes_per_sec) {
+    m_low_budget = bytes_per_sec;
+  }
+
+  // Unreliable fast path for entries flagged NT_UNRELIABLE.  Once a sender
+  // is set, updates queued with QueueUnreliable() are coalesced per entry
+  // and sent as datagrams by PostOutgoing(); lost datagrams are not resent.
+  // Without a sender (or for values too large for a datagram) they take
+  // the normal stream path.
+  void set_datagram_sender(DatagramSender sender);
+  bool datagram_active() const { return m_datagram_active; }
+  void QueueUnreliable(std::shared_ptr<Message> msg);
+
+  // Applies the updates in a received datagram.  Updates for unknown
+  // entries or with a mismatched type are ignored; the sequence number
+  // check happens in the incoming processor as for stream updates.
+  void ProcessDatagram(const char* data, std::size_t len);
+
+  // Limit on the number of bytes posted but not yet written to the stream.
+  // When posting would exceed the limit, the policy determines what happens
+  // to the pending messages.  A limit of 0 disables the check.
+  void set_outgoing_limit(std::size_t max_bytes, NT_OutgoingPolicy policy) {
+    m_outgoing_limit = max_bytes;
+    m_outgoing_policy = static_cast<int>(policy);
+  }
+  std::size_t outgoing_bytes() const { return m_outgoing_bytes; }
+
+  // Counts of backpressure actions taken on this connection.
+  unsigned long long coalesce_count() const { return m_coalesce_count; }
+  unsigned long long drop_count() const { return m_drop_count; }
+  bool overflow_disconnected() const { return m_overflow_disconnected; }
+
+  // Traffic counters.
+  unsigned long long msgs_in() const { return m_msgs_in; }
+  unsigned long long bytes_in() const { return m_bytes_in; }
+  unsigned long long msgs_out() const { return m_msgs_out; }
+  unsigned long long bytes_out() const { return m_bytes_out; }
+  std::size_t outgoing_depth() const { return m_outgoing.size(); }
+
+  // Latency histograms for the outgoing stages (see NT_LatencyStage); only
+  // recorded while latency tracing is enabled.
+  void GetLatencyHistograms(std::vector<unsigned long long>* out) const;
+  void ResetLatencyHistograms();
+
   unsigned int uid() const { return m_uid; }
 
   unsigned int proto_rev() const { return m_proto_rev; }
   void set_proto_rev(unsigned int proto_rev) { m_proto_rev = proto_rev; }
 
+  // Last resync point received (see Message::ResyncPoint); set to the
+  // server's change sequence by the client handshake.
+  unsigned long long resync_seq() const { return m_resync_seq; }
+  void set_resync_seq(unsigned long long seq) { m_resync_seq = seq; }
+
+  // Change log stamp at which the connection was synchronized from a table
+  // snapshot; older changes are not sent to it (0 sends everything).
+  unsigned long long sync_stamp() const { return m_sync_stamp; }
+  void set_sync_stamp(unsigned long long stamp) { m_sync_stamp = stamp; }
+
+  // Value compression threshold, once negotiated in the handshake (0 if not
+  // in use).  Must be set before any values are exchanged.
+  std::size_t compression() const { return m_compression; }
+  void set_compression(std::size_t threshold) { m_compression = threshold; }
+
   State state() const { return static_cast<State>(m_state.load()); }
   void set_state(State state) { m_state = static_cast<int>(state); }
 
+  // Links between cluster nodes (see Dispatcher::StartCluster).  A node
+  // pushes its changes over the links it opens and takes in changes over
+  // the links it accepts; neither carries the usual client messages.
+  enum PeerRole { kNotPeer = 0, kPeerOutgoing, kPeerIncoming };
+  PeerRole peer_role() const {
+    return static_cast<PeerRole>(m_peer_role.load());
+  }
+  void set_peer_role(PeerRole role) { m_peer_role = static_cast<int>(role); }
+
   std::string remote_id() const;
   void set_remote_id(StringRef remote_id);
 
   unsigned long long last_update() const { return m_last_update; }
 
+  // Clock synchronization with the remote end (protocol 3.1 and later).
+  // The offset is the remote clock minus the local clock, from the sample
+  // with the lowest round trip time among the most recent few.
+  bool time_synced() const { return m_time_synced; }
+  long long time_offset() const { return m_time_offset; }
+  unsigned long long rtt() const { return m_rtt; }
+
   NetworkConnection(const NetworkConnection&) = delete;
   NetworkConnection& operator=(const NetworkConnection&) = delete;
 
@@ -79,6 +194,17 @@ class NetworkConnection {
   void ReadThreadMain();
   void WriteThreadMain();
 
+  void PushOutgoing(Outgoing&& msgs, bool urgent = false);
+  void PostLowPriority(std::chrono::steady_clock::time_point now);
+  void SendDatagrams();
+  void RecordLatency(NT_LatencyStage stage, const Message& msg);
+  void ProcessTimeSync(const Message& msg, unsigned long long now);
+  static std::size_t OutgoingSize(const Outgoing& msgs);
+  static std::size_t MessageSize(const Message& msg);
+  static bool IsChunked(const Message& msg);
+  static void HoldBehindChunked(std::vector<unsigned int> blocked,
+                                Outgoing* msgs, Outgoing* held);
+
   static std::atomic_uint s_uid;
 
   unsigned int m_uid;
@@ -92,15 +218,75 @@ class NetworkConnection {
   std::thread m_write_thread;
   std::atomic_bool m_active;
   std::atomic_uint m_proto_rev;
+  std::atomic_size_t m_compression;
+  std::atomic_ullong m_resync_seq;
+  std::atomic_ullong m_sync_stamp;
   std::atomic_int m_state;
+  std::atomic_int m_peer_role;
   mutable std::mutex m_remote_id_mutex;
   std::string m_remote_id;
   std::atomic_ullong m_last_update;
   std::chrono::steady_clock::time_point m_last_post;
+  std::chrono::steady_clock::time_point m_last_time_sync;
+
+  // Clock synchronization; samples are only accessed by the read thread
+  struct ClockSample {
+    long long offset;
+    unsigned long long rtt;
+  };
+  static const std::size_t kNumClockSamples = 8;
+  ClockSample m_clock_samples[kNumClockSamples];
+  std::size_t m_clock_sample_count = 0;
+  std::atomic_bool m_time_synced;
+  std::atomic_llong m_time_offset;
+  std::atomic_ullong m_rtt;
 
   std::mutex m_pending_mutex;
   Outgoing m_pending_outgoing;
-  std::vector<std::pair<std::size_t, std::size_t>> m_pending_update;
+  // Maps id to the positions + 1 of its pending assign/update and flags
+  // update.  A map rather than a vector indexed by id, as ids may be large.
+  llvm::DenseMap<unsigned int, std::pair<std::size_t, std::size_t>>
+      m_pending_update;
+
+  // Unreliable updates pending for the next datagram post (also protected
+  // by the pending mutex); the index maps id to position + 1.
+  DatagramSender m_datagram_sender;
+  std::atomic_bool m_datagram_active;
+  Outgoing m_pending_unreliable;
+  llvm::DenseMap<unsigned int, std::size_t> m_pending_unreliable_index;
+
+  // Priority classes (also protected by the pending mutex): ids of high
+  // priority updates in the pending messages, and the low priority updates
+  // waiting for budget, with their index as for unreliable updates.
+  std::vector<unsigned int> m_pending_high;
+  Outgoing m_pending_low;
+  llvm::DenseMap<unsigned int, std::size_t> m_pending_low_index;
+
+  // Position + 1 of the pending resync point, if any.  Once updates have
+  // been dropped, no more resync points are sent, so the peer can only
+  // resume from before the loss.
+  std::size_t m_pending_resync = 0;
+  bool m_resync_broken = false;
+  std::atomic_size_t m_low_budget;
+  double m_low_tokens = 0;
+  std::chrono::steady_clock::time_point m_last_low_post;
+
+  // Outgoing backpressure
+  std::atomic_size_t m_outgoing_bytes;
+  std::atomic_size_t m_outgoing_limit;
+  std::atomic_int m_outgoing_policy;
+  std::atomic_ullong m_coalesce_count;
+  std::atomic_ullong m_drop_count;
+  std::atomic_bool m_overflow_disconnected;
+
+  // Traffic counters
+  std::atomic_ullong m_msgs_in;
+  std::atomic_ullong m_bytes_in;
+  std::atomic_ullong m_msgs_out;
+  std::atomic_ullong m_bytes_out;
+
+  // Latency histograms, indexed by NT_LatencyStage
+  LatencyHistogram m_latency[NT_LATENCY_SENT + 1];
 
   // Condition variables for shutdown
   std::mutex m_shutdown_mutex;
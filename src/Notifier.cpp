@@ -10,6 +10,9 @@
 #include <queue>
 #include <vector>
 
+#include "support/timestamp.h"
+#include "LatencyTracer.h"
+
 using namespace nt;
 
 ATOMIC_STATIC_INIT(Notifier)
@@ -40,23 +43,29 @@ class Notifier::Thread : public SafeThread {
         : name(name_),
           value(value_),
           flags(flags_),
-          only(only_) {}
+          only(only_),
+          timestamp(Now()) {}
 
     std::string name;
     std::shared_ptr<Value> value;
     unsigned int flags;
     EntryListenerCallback only;
+    unsigned long long timestamp;
   };
   std::queue<EntryNotification> m_entry_notifications;
 
   struct ConnectionNotification {
     ConnectionNotification(bool connected_, const ConnectionInfo& conn_info_,
                            ConnectionListenerCallback only_)
-        : connected(connected_), conn_info(conn_info_), only(only_) {}
+        : connected(connected_),
+          conn_info(conn_info_),
+          only(only_),
+          timestamp(Now()) {}
 
     bool connected;
     ConnectionInfo conn_info;
     ConnectionListenerCallback only;
+    unsigned long long timestamp;
   };
   std::queue<ConnectionNotification> m_conn_notifications;
 
@@ -64,12 +73,14 @@ class Notifier::Thread : public SafeThread {
   std::function<void()> m_on_exit;
 };
 
-Notifier::Notifier() {
+Notifier::Notifier(bool process_wide) : m_process_wide(process_wide) {
   m_local_notifiers = false;
-  s_destroyed = false;
+  if (m_process_wide) s_destroyed = false;
 }
 
-Notifier::~Notifier() { s_destroyed = true; }
+Notifier::~Notifier() {
+  if (m_process_wide) s_destroyed = true;
+}
 
 void Notifier::Start() {
   auto thr = m_owner.GetThread();
@@ -97,6 +108,15 @@ void Notifier::Thread::Main() {
       if (!item.value) continue;
       StringRef name(item.name);
 
+      // initial (immediate) notifications aren't updates, so don't count them
+      if ((item.flags & NT_NOTIFY_IMMEDIATE) == 0 &&
+          LatencyTracer::GetInstance().enabled()) {
+        auto now = Now();
+        auto created = item.value->last_change();
+        LatencyTracer::GetInstance().RecordNotify(
+            name, now > created ? now - created : 0);
+      }
+
       if (item.only) {
         // Don't hold mutex during callback execution!
         lock.unlock();
@@ -220,3 +240,21 @@ void Notifier::NotifyConnection(bool connected,
   thr->m_conn_notifications.emplace(connected, conn_info, only);
   thr->m_cond.notify_one();
 }
+
+void Notifier::GetQueueStatistics(std::size_t* depth,
+                                  unsigned long long* oldest_age) {
+  *depth = 0;
+  *oldest_age = 0;
+  auto thr = m_owner.GetThread();
+  if (!thr) return;
+  *depth = thr->m_entry_notifications.size() + thr->m_conn_notifications.size();
+  if (*depth == 0) return;
+  unsigned long long oldest = ~0ull;
+  if (!thr->m_entry_notifications.empty())
+    oldest = thr->m_entry_notifications.front().timestamp;
+  if (!thr->m_conn_notifications.empty() &&
+      thr->m_conn_notifications.front().timestamp < oldest)
+    oldest = thr->m_conn_notifications.front().timestamp;
+  auto now = Now();
+  if (now > oldest) *oldest_age = now - oldest;
+}
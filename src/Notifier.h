@@ -18,6 +18,8 @@ namespace nt {
 
 class Notifier {
   friend class NotifierTest;
+  friend class StorageTest;
+  friend class InstanceImpl;
  public:
   static Notifier& GetInstance() {
     ATOMIC_STATIC(Notifier, instance);
@@ -48,13 +50,19 @@ class Notifier {
   void NotifyConnection(bool connected, const ConnectionInfo& conn_info,
                         ConnectionListenerCallback only = nullptr);
 
+  // Number of queued notifications and the age of the oldest one, in
+  // nt::Now() units.
+  void GetQueueStatistics(std::size_t* depth, unsigned long long* oldest_age);
+
  private:
-  Notifier();
+  // Only the process-wide notifier (the default) marks itself destroyed.
+  explicit Notifier(bool process_wide = true);
 
   class Thread;
   SafeThreadOwner<Thread> m_owner;
 
   std::atomic_bool m_local_notifiers;
+  bool m_process_wide;
 
   std::function<void()> m_on_start;
   std::function<void()> m_on_exit;
@@ -0,0 +1,101 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "Relay.h"
+
+#include "Dispatcher.h"
+#include "InstanceImpl.h"
+#include "Log.h"
+#include "Notifier.h"
+#include "Storage.h"
+
+using namespace nt;
+
+// Shared with the listeners, which may still be running after Stop()
+// removes them; once inactive, they do nothing.
+struct Relay::Bridge {
+  std::mutex mutex;
+  bool active = true;
+  InstanceImpl* upstream;
+  InstanceImpl* downstream;
+};
+
+static const unsigned int kRemoteChanges =
+    NT_NOTIFY_NEW | NT_NOTIFY_DELETE | NT_NOTIFY_UPDATE | NT_NOTIFY_FLAGS;
+
+// Copies a change notified by one storage to the other.
+static void CopyChange(Storage& from, Storage& to, StringRef name,
+                       std::shared_ptr<Value> value, unsigned int flags) {
+  if ((flags & NT_NOTIFY_DELETE) != 0) {
+    to.DeleteEntry(name);
+    return;
+  }
+  // the relay is a go-between, so its copy takes whatever type is sent
+  if ((flags & (NT_NOTIFY_NEW | NT_NOTIFY_UPDATE)) != 0)
+    to.SetEntryTypeValue(name, value);
+  if ((flags & (NT_NOTIFY_NEW | NT_NOTIFY_FLAGS)) != 0)
+    to.SetEntryFlags(name, from.GetEntryFlags(name));
+}
+
+bool Relay::Start(const char* server_name, unsigned int server_port) {
+  std::lock_guard<std::mutex> lock(m_mutex);
+  if (m_upstream != 0) return false;
+  NT_Inst upstream = InstanceImpl::Create();
+  auto ui = InstanceImpl::Get(upstream);
+  if (!ui) {
+    WARNING("relay: no instance left for the upstream connection");
+    return false;
+  }
+  m_upstream = upstream;
+  m_bridge = std::make_shared<Bridge>();
+  m_bridge->upstream = ui;
+  m_bridge->downstream = &m_owner;
+
+  std::weak_ptr<Bridge> weak = m_bridge;
+  ui->notifier.AddEntryListener(
+      "",
+      [=](unsigned int, StringRef name, std::shared_ptr<Value> value,
+          unsigned int flags) {
+        auto bridge = weak.lock();
+        if (!bridge) return;
+        std::lock_guard<std::mutex> lock(bridge->mutex);
+        if (!bridge->active) return;
+        CopyChange(bridge->upstream->storage, bridge->downstream->storage,
+                   name, value, flags);
+      },
+      kRemoteChanges);
+  m_downstream_listener = m_owner.notifier.AddEntryListener(
+      "",
+      [=](unsigned int, StringRef name, std::shared_ptr<Value> value,
+          unsigned int flags) {
+        auto bridge = weak.lock();
+        if (!bridge) return;
+        std::lock_guard<std::mutex> lock(bridge->mutex);
+        if (!bridge->active) return;
+        CopyChange(bridge->downstream->storage, bridge->upstream->storage,
+                   name, value, flags);
+      },
+      kRemoteChanges);
+
+  ui->dispatcher.StartClient(server_name, server_port);
+  INFO("relay: relaying server " << server_name << " port " << server_port);
+  return true;
+}
+
+void Relay::Stop() {
+  std::lock_guard<std::mutex> lock(m_mutex);
+  if (m_upstream == 0) return;
+  {
+    std::lock_guard<std::mutex> bridge_lock(m_bridge->mutex);
+    m_bridge->active = false;
+  }
+  m_owner.notifier.RemoveEntryListener(m_downstream_listener);
+  // the upstream listener goes with its instance
+  InstanceImpl::Destroy(m_upstream);
+  m_upstream = 0;
+  m_bridge.reset();
+}
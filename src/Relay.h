@@ -0,0 +1,54 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_RELAY_H_
+#define NT_RELAY_H_
+
+#include <memory>
+#include <mutex>
+
+#include "ntcore_c.h"
+
+namespace nt {
+
+class InstanceImpl;
+
+// Relays an upstream server to any number of downstream clients.  The
+// instance runs as a server for the downstream clients, while a private
+// instance connects upstream as a client; remote changes on either side
+// are copied to the other.  The upstream server thus sees a single client
+// however many are attached downstream.
+//
+// Changes made through the relaying instance itself are not sent upstream,
+// as they can't be told apart from the relay's own copies.  RPCs are not
+// relayed.
+class Relay {
+ public:
+  explicit Relay(InstanceImpl& owner) : m_owner(owner) {}
+  ~Relay() { Stop(); }
+
+  // Starts the upstream side; the caller starts the downstream server.
+  // Returns false if already relaying or no instance is left for upstream.
+  bool Start(const char* server_name, unsigned int server_port);
+  void Stop();
+
+  Relay(const Relay&) = delete;
+  Relay& operator=(const Relay&) = delete;
+
+ private:
+  struct Bridge;
+
+  InstanceImpl& m_owner;
+  std::mutex m_mutex;
+  NT_Inst m_upstream = 0;
+  unsigned int m_downstream_listener = 0;
+  std::shared_ptr<Bridge> m_bridge;
+};
+
+}  // namespace nt
+
+#endif  // NT_RELAY_H_
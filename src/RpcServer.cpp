@@ -28,12 +28,12 @@ class RpcServer::Thread : public SafeThread {
   std::function<void()> m_on_exit;
 };
 
-RpcServer::RpcServer() {
+RpcServer::RpcServer(bool process_wide) : m_process_wide(process_wide) {
   m_terminating = false;
 }
 
 RpcServer::~RpcServer() {
-  Logger::GetInstance().SetLogger(nullptr);
+  if (m_process_wide) Logger::GetInstance().SetLogger(nullptr);
   m_terminating = true;
   m_poll_cond.notify_all();
 }
@@ -90,6 +90,16 @@ void RpcServer::PostRpcResponse(unsigned int rpc_id, unsigned int call_uid,
   m_response_map.erase(i);
 }
 
+std::size_t RpcServer::GetQueueDepth() {
+  std::size_t depth = 0;
+  {
+    auto thr = m_owner.GetThread();
+    if (thr) depth += thr->m_call_queue.size();
+  }
+  std::lock_guard<std::mutex> lock(m_mutex);
+  return depth + m_poll_queue.size();
+}
+
 void RpcServer::Thread::Main() {
   if (m_on_start) m_on_start();
 
@@ -24,6 +24,7 @@ namespace nt {
 
 class RpcServer {
   friend class RpcServerTest;
+  friend class InstanceImpl;
  public:
   static RpcServer& GetInstance() {
     ATOMIC_STATIC(RpcServer, instance);
@@ -47,8 +48,13 @@ class RpcServer {
   void PostRpcResponse(unsigned int rpc_id, unsigned int call_uid,
                        llvm::StringRef result);
 
+  // Number of calls waiting to be processed (both callback and polled).
+  std::size_t GetQueueDepth();
+
  private:
-  RpcServer();
+  // Only the process-wide server (the default) clears the logger on
+  // destruction.
+  explicit RpcServer(bool process_wide = true);
 
   class Thread;
   SafeThreadOwner<Thread> m_owner;
@@ -78,6 +84,7 @@ class RpcServer {
   std::condition_variable m_poll_cond;
 
   std::atomic_bool m_terminating;
+  bool m_process_wide;
 
   std::function<void()> m_on_start;
   std::function<void()> m_on_exit;
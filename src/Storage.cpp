@@ -7,7 +7,11 @@
 
 #include "Storage.h"
 
+#include <algorithm>
 #include <cctype>
+#include <cmath>
+#include <cstdio>
+#include <cstring>
 #include <string>
 #include <tuple>
 
@@ -15,37 +19,86 @@
 #include "Base64.h"
 #include "Log.h"
 #include "NetworkConnection.h"
+#include "raw_istream.h"
+#include "support/MappedFile.h"
+#include "support/timestamp.h"
+#include "WireDecoder.h"
+#include "WireEncoder.h"
 
 using namespace nt;
 
+void Storage::IdMap::set(std::size_t id, Entry* entry) {
+  if (id >= m_size) resize(id + 1);
+  auto& page = m_pages[id >> kPageBits];
+  if (!page) {
+    if (!entry) return;
+    page.reset(new Entry*[kPageSize]());
+  }
+  page[id & (kPageSize - 1)] = entry;
+}
+
+void Storage::IdMap::resize(std::size_t size) {
+  m_pages.resize((size + kPageSize - 1) >> kPageBits);
+  // empty the tail of a partial last page, in case it grows again
+  std::size_t tail = size & (kPageSize - 1);
+  if (size < m_size && tail != 0 && m_pages.back())
+    std::fill(&m_pages.back()[tail], &m_pages.back()[kPageSize], nullptr);
+  m_size = size;
+}
+
+unsigned int Storage::IdMap::Add(Entry* entry) {
+  // 0xffff means unassigned, so it's never given out
+  if (m_size == 0xffff) resize(m_size + 1);
+  unsigned int id = m_size;
+  set(id, entry);
+  return id;
+}
+
 ATOMIC_STATIC_INIT(Storage)
 
 Storage::Storage()
-    : Storage(Notifier::GetInstance(), RpcServer::GetInstance()) {}
-
-Storage::Storage(Notifier& notifier, RpcServer& rpc_server)
-    : m_notifier(notifier), m_rpc_server(rpc_server) {
+    : Storage(Notifier::GetInstance(), RpcServer::GetInstance(),
+              DataLogger::GetInstance()) {}
+
+Storage::Storage(Notifier& notifier, RpcServer& rpc_server,
+                 DataLogger& data_logger, bool process_wide)
+    : m_notifier(notifier),
+      m_rpc_server(rpc_server),
+      m_data_logger(data_logger),
+      m_process_wide(process_wide) {
   m_terminating = false;
+  m_node_id = 0;
+  m_save_count = 0;
+  m_save_last = 0;
+  m_save_max = 0;
 }
 
 Storage::~Storage() {
-  Logger::GetInstance().SetLogger(nullptr);
+  if (m_process_wide) Logger::GetInstance().SetLogger(nullptr);
   m_terminating = true;
   m_rpc_results_cond.notify_all();
 }
 
-void Storage::SetOutgoing(QueueOutgoingFunc queue_outgoing, bool server) {
-  std::lock_guard<std::mutex> lock(m_mutex);
+void Storage::SetOutgoing(QueueOutgoingFunc queue_outgoing, bool server,
+                          SyncedFunc synced) {
+  std::lock_guard<StatMutex> lock(m_mutex);
   m_queue_outgoing = queue_outgoing;
+  m_synced = synced;
   m_server = server;
 }
 
 void Storage::ClearOutgoing() {
   m_queue_outgoing = nullptr;
+  m_synced = nullptr;
+}
+
+void Storage::SetSynchronized(NetworkConnection& conn) {
+  conn.set_state(NetworkConnection::kSynchronized);
+  if (m_synced) m_synced(conn);
 }
 
 NT_Type Storage::GetEntryType(unsigned int id) const {
-  std::lock_guard<std::mutex> lock(m_mutex);
+  std::lock_guard<StatMutex> lock(m_mutex);
   if (id >= m_idmap.size()) return NT_UNASSIGNED;
   Entry* entry = m_idmap[id];
   if (!entry || !entry->value) return NT_UNASSIGNED;
@@ -55,7 +108,7 @@ NT_Type Storage::GetEntryType(unsigned int id) const {
 void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
                               NetworkConnection* conn,
                               std::weak_ptr<NetworkConnection> conn_weak) {
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
   switch (msg->type()) {
     case Message::kKeepAlive:
       break;  // ignore
@@ -80,28 +133,26 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
           if (m_entries.count(name) != 0) return;
 
           // create it locally
-          id = m_idmap.size();
           auto& new_entry = m_entries[name];
           if (!new_entry) new_entry.reset(new Entry(name));
           entry = new_entry.get();
-          entry->value = msg->value();
+          LiftTombstone(entry);
+          entry->SetValue(msg->value());
           entry->flags = msg->flags();
+          id = m_idmap.Add(entry);
           entry->id = id;
-          m_idmap.push_back(entry);
 
           // update persistent dirty flag if it's persistent
           if (entry->IsPersistent()) m_persistent_dirty = true;
 
           // notify
-          m_notifier.NotifyEntry(name, entry->value, NT_NOTIFY_NEW);
+          NotifyEntry(name, entry->value, NT_NOTIFY_NEW);
 
           // send the assignment to everyone (including the originator)
           if (m_queue_outgoing) {
-            auto queue_outgoing = m_queue_outgoing;
             auto outmsg = Message::EntryAssign(
                 name, id, entry->seq_num.value(), msg->value(), msg->flags());
-            lock.unlock();
-            queue_outgoing(outmsg, nullptr, nullptr);
+            m_queue_outgoing(outmsg, nullptr, nullptr, 0);
           }
           return;
         }
@@ -120,7 +171,6 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
           DEBUG("client: received entry assignment request?");
           return;
         }
-        if (id >= m_idmap.size()) m_idmap.resize(id+1);
         entry = m_idmap[id];
         if (!entry) {
           // create local
@@ -129,28 +179,25 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
             // didn't exist at all (rather than just being a response to a
             // id assignment request)
             new_entry.reset(new Entry(name));
-            new_entry->value = msg->value();
+            new_entry->SetValue(msg->value());
             new_entry->flags = msg->flags();
             new_entry->id = id;
-            m_idmap[id] = new_entry.get();
+            m_idmap.set(id, new_entry.get());
 
             // notify
-            m_notifier.NotifyEntry(name, new_entry->value, NT_NOTIFY_NEW);
+            NotifyEntry(name, new_entry->value, NT_NOTIFY_NEW);
             return;
           }
           may_need_update = true;  // we may need to send an update message
           entry = new_entry.get();
           entry->id = id;
-          m_idmap[id] = entry;
+          m_idmap.set(id, entry);
 
           // if the received flags don't match what we sent, we most likely
           // updated flags locally in the interim; send flags update message.
           if (msg->flags() != entry->flags) {
-            auto queue_outgoing = m_queue_outgoing;
             auto outmsg = Message::FlagsUpdate(id, entry->flags);
-            lock.unlock();
-            queue_outgoing(outmsg, nullptr, nullptr);
-            lock.lock();
+            m_queue_outgoing(outmsg, nullptr, nullptr, 0);
           }
         }
       }
@@ -161,11 +208,9 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
       SequenceNumber seq_num(msg->seq_num_uid());
       if (seq_num < entry->seq_num) {
         if (may_need_update) {
-          auto queue_outgoing = m_queue_outgoing;
           auto outmsg = Message::EntryUpdate(entry->id, entry->seq_num.value(),
                                              entry->value);
-          lock.unlock();
-          queue_outgoing(outmsg, nullptr, nullptr);
+          m_queue_outgoing(outmsg, nullptr, nullptr, entry->flags);
         }
         return;
       }
@@ -185,8 +230,10 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
         // update persistent dirty flag if persistent flag changed
         if ((entry->flags & NT_PERSISTENT) != (msg->flags() & NT_PERSISTENT))
           m_persistent_dirty = true;
-        if (entry->flags != msg->flags())
+        if (entry->flags != msg->flags()) {
           notify_flags |= NT_NOTIFY_FLAGS;
+          FlagsChanged(entry);
+        }
         entry->flags = msg->flags();
       }
 
@@ -195,21 +242,19 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
         m_persistent_dirty = true;
 
       // update local
-      entry->value = msg->value();
+      entry->SetValue(msg->value());
       entry->seq_num = seq_num;
 
       // notify
-      m_notifier.NotifyEntry(name, entry->value, notify_flags);
+      NotifyEntry(name, entry->value, notify_flags);
 
       // broadcast to all other connections (note for client there won't
       // be any other connections, so don't bother)
       if (m_server && m_queue_outgoing) {
-        auto queue_outgoing = m_queue_outgoing;
         auto outmsg =
             Message::EntryAssign(entry->name, id, msg->seq_num_uid(),
                                  msg->value(), entry->flags);
-        lock.unlock();
-        queue_outgoing(outmsg, nullptr, conn);
+        m_queue_outgoing(outmsg, nullptr, conn, 0);
       }
       break;
     }
@@ -229,24 +274,52 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
       if (seq_num <= entry->seq_num) return;
 
       // update local
-      entry->value = msg->value();
+      entry->SetValue(msg->value());
       entry->seq_num = seq_num;
 
       // update persistent dirty flag if it's a persistent value
       if (entry->IsPersistent()) m_persistent_dirty = true;
 
       // notify
-      m_notifier.NotifyEntry(entry->name, entry->value, NT_NOTIFY_UPDATE);
+      NotifyEntry(entry->name, entry->value, NT_NOTIFY_UPDATE);
 
       // broadcast to all other connections (note for client there won't
       // be any other connections, so don't bother)
       if (m_server && m_queue_outgoing) {
-        auto queue_outgoing = m_queue_outgoing;
-        lock.unlock();
-        queue_outgoing(msg, nullptr, conn);
+        m_queue_outgoing(msg, nullptr, conn, entry->flags);
       }
       break;
     }
+    case Message::kEntryUpdateBatch: {
+      // same as a series of updates, but under one lock
+      std::vector<OutgoingMsg> outmsgs;
+      for (auto& update : msg->updates()) {
+        Entry* entry = m_idmap[update.id];
+        if (!entry) {
+          DEBUG("received update to unknown entry");
+          continue;
+        }
+
+        SequenceNumber seq_num(update.seq_num);
+        if (seq_num <= entry->seq_num) continue;
+
+        entry->SetValue(update.value);
+        entry->seq_num = seq_num;
+        if (entry->IsPersistent()) m_persistent_dirty = true;
+        NotifyEntry(entry->name, entry->value, NT_NOTIFY_UPDATE);
+
+        if (m_server && m_queue_outgoing)
+          outmsgs.emplace_back(
+              Message::EntryUpdate(update.id, update.seq_num, update.value),
+              entry->flags);
+      }
+
+      // broadcast to all other connections
+      if (outmsgs.empty()) break;
+      for (auto& outmsg : outmsgs)
+        m_queue_outgoing(outmsg.first, nullptr, conn, outmsg.second);
+      break;
+    }
     case Message::kFlagsUpdate: {
       unsigned int id = msg->id();
       if (id >= m_idmap.size() || !m_idmap[id]) {
@@ -267,16 +340,15 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
 
       // update local
       entry->flags = msg->flags();
+      FlagsChanged(entry);
 
       // notify
-      m_notifier.NotifyEntry(entry->name, entry->value, NT_NOTIFY_FLAGS);
+      NotifyEntry(entry->name, entry->value, NT_NOTIFY_FLAGS);
 
       // broadcast to all other connections (note for client there won't
       // be any other connections, so don't bother)
       if (m_server && m_queue_outgoing) {
-        auto queue_outgoing = m_queue_outgoing;
-        lock.unlock();
-        queue_outgoing(msg, nullptr, conn);
+        m_queue_outgoing(msg, nullptr, conn, 0);
       }
       break;
     }
@@ -290,12 +362,13 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
         return;
       }
       Entry* entry = m_idmap[id];
+      auto peer_msg = MakePeerDelete(*entry);
 
       // update persistent dirty flag if it's a persistent value
       if (entry->IsPersistent()) m_persistent_dirty = true;
 
       // delete it from idmap
-      m_idmap[id] = nullptr;
+      m_idmap.set(id, nullptr);
 
       // get entry (as we'll need it for notify) and erase it from the map
       // it should always be in the map, but sanity check just in case
@@ -305,15 +378,14 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
         m_entries.erase(i);
 
         // notify
-        m_notifier.NotifyEntry(entry2->name, entry2->value, NT_NOTIFY_DELETE);
+        NotifyEntry(entry2->name, entry2->value, NT_NOTIFY_DELETE);
       }
 
       // broadcast to all other connections (note for client there won't
       // be any other connections, so don't bother)
       if (m_server && m_queue_outgoing) {
-        auto queue_outgoing = m_queue_outgoing;
-        lock.unlock();
-        queue_outgoing(msg, nullptr, conn);
+        m_queue_outgoing(msg, nullptr, conn, 0);
+        if (peer_msg) m_queue_outgoing(peer_msg, nullptr, conn, 0);
       }
       break;
     }
@@ -327,19 +399,131 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
       m_persistent_dirty = true;
 
       // notify
-      for (auto& entry : map)
-        m_notifier.NotifyEntry(entry.getKey(), entry.getValue()->value,
-                               NT_NOTIFY_DELETE);
+      std::vector<std::shared_ptr<Message>> peer_msgs;
+      for (auto& entry : map) {
+        NotifyEntry(entry.getKey(), entry.getValue()->value, NT_NOTIFY_DELETE);
+        if (auto peer_msg = MakePeerDelete(*entry.getValue()))
+          peer_msgs.emplace_back(std::move(peer_msg));
+      }
 
       // broadcast to all other connections (note for client there won't
       // be any other connections, so don't bother)
       if (m_server && m_queue_outgoing) {
-        auto queue_outgoing = m_queue_outgoing;
-        lock.unlock();
-        queue_outgoing(msg, nullptr, conn);
+        m_queue_outgoing(msg, nullptr, conn, 0);
+        for (auto& peer_msg : peer_msgs)
+          m_queue_outgoing(peer_msg, nullptr, conn, 0);
       }
       break;
     }
+    case Message::kPeerEntry: {
+      // only exchanged between cluster nodes
+      if (!m_server || m_node_id == 0 ||
+          conn->peer_role() != NetworkConnection::kPeerIncoming)
+        return;
+      StringRef name = msg->str();
+      auto i = m_entries.find(name);
+      Entry* entry = i == m_entries.end() ? nullptr : i->getValue().get();
+      SequenceNumber seq_num(msg->seq_num_uid());
+      unsigned int node_id = m_node_id;
+
+      // the last writer wins: the higher sequence number, then node id; with
+      // no value, the write to beat is the delete, if one is still kept
+      bool value_wins = true;
+      bool flags_win = true;
+      if (entry && entry->value) {
+        unsigned int origin = entry->origin != 0 &&
+                                      entry->origin_seq == entry->seq_num
+                                  ? entry->origin
+                                  : node_id;
+        value_wins = seq_num > entry->seq_num ||
+                     (seq_num == entry->seq_num && msg->id() > origin);
+      } else {
+        auto tombstone = m_tombstones.find(name);
+        if (tombstone != m_tombstones.end()) {
+          auto& ts = tombstone->getValue();
+          value_wins = seq_num > ts.seq_num ||
+                       (seq_num == ts.seq_num && msg->id() > ts.origin);
+        }
+      }
+      if (entry) {
+        unsigned int flags_origin =
+            entry->flags_origin != 0 ? entry->flags_origin : node_id;
+        flags_win = msg->flags_seq() > entry->flags_seq ||
+                    (msg->flags_seq() == entry->flags_seq &&
+                     msg->flags_origin() > flags_origin);
+      }
+
+      if (!msg->value()) {
+        // deleted (kept even if we don't have the entry, in case a write it
+        // won over comes later); forwarded on to the other nodes
+        if (!value_wins) return;
+        AddTombstone(name, seq_num, msg->id());
+        unsigned int id = 0xffff;
+        if (entry) {
+          auto entry2 = std::move(i->getValue());
+          m_entries.erase(i);
+          id = entry2->id;
+          if (id < m_idmap.size()) m_idmap.set(id, nullptr);
+          if (entry2->value) {
+            if (entry2->IsPersistent()) m_persistent_dirty = true;
+            NotifyEntry(entry2->name, entry2->value, NT_NOTIFY_DELETE);
+          }
+        }
+        if (!m_queue_outgoing) return;
+        if (id != 0xffff)
+          m_queue_outgoing(Message::EntryDelete(id), nullptr, conn, 0);
+        m_queue_outgoing(msg, nullptr, conn, 0);
+        return;
+      }
+      if (msg->value()->IsRpc()) return;
+      if (!value_wins && !flags_win) return;
+
+      unsigned int notify_flags = 0;
+      if (!entry || !entry->value) {
+        // a flags change alone doesn't make an entry
+        if (!value_wins) return;
+        if (!entry) {
+          auto& new_entry = m_entries[name];
+          new_entry.reset(new Entry(name));
+          entry = new_entry.get();
+        }
+        // an entry without a value may still have its id
+        if (entry->id == 0xffff)
+          entry->id = m_idmap.Add(entry);
+        else
+          m_idmap.set(entry->id, entry);
+        notify_flags = NT_NOTIFY_NEW;
+        m_tombstones.erase(name);
+      }
+      if (value_wins) {
+        if (notify_flags == 0 && *entry->value != *msg->value())
+          notify_flags |= NT_NOTIFY_UPDATE;
+        entry->SetValue(msg->value());
+        entry->seq_num = seq_num;
+        entry->origin = msg->id();
+        entry->origin_seq = seq_num;
+      }
+      if (flags_win) {
+        if ((entry->flags & NT_PERSISTENT) != (msg->flags() & NT_PERSISTENT))
+          m_persistent_dirty = true;
+        if (notify_flags != NT_NOTIFY_NEW && entry->flags != msg->flags())
+          notify_flags |= NT_NOTIFY_FLAGS;
+        entry->flags = msg->flags();
+        entry->flags_seq = msg->flags_seq();
+        entry->flags_origin = msg->flags_origin();
+      }
+      if (entry->IsPersistent() && notify_flags != 0) m_persistent_dirty = true;
+      if (notify_flags != 0) NotifyEntry(name, entry->value, notify_flags);
+
+      // sent as an assignment, which clients take even if the sequence
+      // number is the same as theirs (a tie lost to another node)
+      if (!m_queue_outgoing) return;
+      auto outmsg = Message::EntryAssign(entry->name, entry->id,
+                                         entry->seq_num.value(), entry->value,
+                                         entry->flags);
+      m_queue_outgoing(outmsg, nullptr, conn, 0);
+      break;
+    }
     case Message::kExecuteRpc: {
       if (!m_server) return;  // only process on server
       unsigned int id = msg->id();
@@ -375,27 +559,60 @@ void Storage::ProcessIncoming(std::shared_ptr<Message> msg,
   }
 }
 
-void Storage::GetInitialAssignments(
-    NetworkConnection& conn, std::vector<std::shared_ptr<Message>>* msgs) {
-  std::lock_guard<std::mutex> lock(m_mutex);
-  conn.set_state(NetworkConnection::kSynchronized);
-  for (auto& i : m_entries) {
-    Entry* entry = i.getValue().get();
-    msgs->emplace_back(Message::EntryAssign(i.getKey(), entry->id,
-                                            entry->seq_num.value(),
-                                            entry->value, entry->flags));
+void Storage::GetInitialAssignments(NetworkConnection& conn,
+                                    SendMsgsFunc send_msgs,
+                                    std::size_t chunk_size) {
+  if (chunk_size == 0) chunk_size = 1;
+  std::vector<std::shared_ptr<Message>> msgs;
+  msgs.reserve(chunk_size);
+
+  // Mark the connection synchronized before the first chunk is generated.
+  // From this point on, every change to the table is queued to the
+  // connection, and the queue is not posted until the handshake completes
+  // (after the last chunk).  The client thus converges on a consistent state
+  // even though the lock is released between chunks; any update it receives
+  // that is older than an assignment is discarded by sequence number.
+  // Changes queued before this point (say a delete not yet fanned out) are
+  // already reflected in the snapshot and are skipped for the connection.
+  //
+  // The walk is done by id rather than over m_entries as ids are stable
+  // across lock releases while map iterators are not.
+  {
+    std::lock_guard<StatMutex> lock(m_mutex);
+    SetSynchronized(conn);
+  }
+
+  // peers before 3.2 can't address ids beyond 16 bits
+  std::size_t max_id = conn.proto_rev() >= 0x0302 ? ~std::size_t(0) : 0xffff;
+  std::size_t id = 0;
+  for (;;) {
+    {
+      std::lock_guard<StatMutex> lock(m_mutex);
+      std::size_t end = std::min(m_idmap.size(), max_id);
+      for (; id < end && msgs.size() < chunk_size; ++id) {
+        Entry* entry = m_idmap[id];
+        if (!entry || !entry->value) continue;
+        msgs.emplace_back(Message::EntryAssign(entry->name, entry->id,
+                                              entry->seq_num.value(),
+                                              entry->value, entry->flags));
+      }
+      if (msgs.empty()) break;
+    }
+    // send without holding the lock
+    send_msgs(msgs);
+    msgs.clear();
   }
 }
 
 void Storage::ApplyInitialAssignments(
     NetworkConnection& conn, llvm::ArrayRef<std::shared_ptr<Message>> msgs,
     bool new_server, std::vector<std::shared_ptr<Message>>* out_msgs) {
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
   if (m_server) return;  // should not do this on server
 
-  conn.set_state(NetworkConnection::kSynchronized);
+  SetSynchronized(conn);
 
-  std::vector<std::shared_ptr<Message>> update_msgs;
+  std::vector<OutgoingMsg> update_msgs;
 
   // clear existing id's
   for (auto& i : m_entries) i.getValue()->id = 0xffff;
@@ -423,20 +640,22 @@ void Storage::ApplyInitialAssignments(
     if (!entry) {
       // doesn't currently exist
       entry.reset(new Entry(name));
-      entry->value = msg->value();
+      entry->SetValue(msg->value());
       entry->flags = msg->flags();
       entry->seq_num = seq_num;
       // notify
-      m_notifier.NotifyEntry(name, entry->value, NT_NOTIFY_NEW);
+      NotifyEntry(name, entry->value, NT_NOTIFY_NEW);
     } else {
       // if reconnect and sequence number not higher than local, then we
       // don't update the local value and instead send it back to the server
       // as an update message
       if (!new_server && seq_num <= entry->seq_num) {
-        update_msgs.emplace_back(Message::EntryUpdate(
-            entry->id, entry->seq_num.value(), entry->value));
+        update_msgs.emplace_back(
+            Message::EntryUpdate(entry->id, entry->seq_num.value(),
+                                 entry->value),
+            entry->flags);
       } else {
-        entry->value = msg->value();
+        entry->SetValue(msg->value());
         entry->seq_num = seq_num;
         unsigned int notify_flags = NT_NOTIFY_UPDATE;
         // don't update flags from a <3.0 remote (not part of message)
@@ -445,14 +664,13 @@ void Storage::ApplyInitialAssignments(
           entry->flags = msg->flags();
         }
         // notify
-        m_notifier.NotifyEntry(name, entry->value, notify_flags);
+        NotifyEntry(name, entry->value, notify_flags);
       }
     }
 
     // set id and save to idmap
     entry->id = id;
-    if (id >= m_idmap.size()) m_idmap.resize(id+1);
-    m_idmap[id] = entry.get();
+    m_idmap.set(id, entry.get());
   }
 
   // generate assign messages for unassigned local entries
@@ -463,13 +681,195 @@ void Storage::ApplyInitialAssignments(
                                                 entry->seq_num.value(),
                                                 entry->value, entry->flags));
   }
-  auto queue_outgoing = m_queue_outgoing;
-  lock.unlock();
-  for (auto& msg : update_msgs) queue_outgoing(msg, nullptr, nullptr);
+  for (auto& msg : update_msgs)
+    m_queue_outgoing(msg.first, nullptr, nullptr, msg.second);
+}
+
+void Storage::GetResyncAssignments(llvm::ArrayRef<unsigned int> ids,
+                                   SendMsgsFunc send_msgs,
+                                   std::size_t chunk_size) {
+  if (chunk_size == 0) chunk_size = 1;
+  std::vector<std::shared_ptr<Message>> msgs;
+  msgs.reserve(chunk_size);
+  while (!ids.empty()) {
+    {
+      std::lock_guard<StatMutex> lock(m_mutex);
+      for (; !ids.empty() && msgs.size() < chunk_size; ids = ids.slice(1)) {
+        Entry* entry = m_idmap[ids.front()];
+        if (!entry || !entry->value)
+          msgs.emplace_back(Message::EntryDelete(ids.front()));
+        else
+          msgs.emplace_back(Message::EntryAssign(entry->name, entry->id,
+                                                entry->seq_num.value(),
+                                                entry->value, entry->flags));
+      }
+    }
+    // send without holding the lock
+    send_msgs(msgs);
+    msgs.clear();
+  }
+}
+
+std::shared_ptr<Message> Storage::MakePeerEntry(const Entry& entry) const {
+  unsigned int node_id = m_node_id;
+  unsigned int origin =
+      entry.origin != 0 && entry.origin_seq == entry.seq_num ? entry.origin
+                                                             : node_id;
+  unsigned int flags_origin =
+      entry.flags_origin != 0 ? entry.flags_origin : node_id;
+  return Message::PeerEntry(entry.name, origin, entry.seq_num.value(),
+                            flags_origin, entry.flags_seq, entry.flags,
+                            entry.value);
+}
+
+std::shared_ptr<Message> Storage::MakePeerDelete(const Entry& entry) {
+  if (m_node_id == 0 || !entry.value || entry.value->IsRpc()) return nullptr;
+  // a write of our own, so it wins over the value deleted
+  SequenceNumber seq_num = entry.seq_num;
+  ++seq_num;
+  AddTombstone(entry.name, seq_num, m_node_id);
+  return Message::PeerEntry(entry.name, m_node_id, seq_num.value(), 0, 0, 0,
+                            nullptr);
+}
+
+void Storage::AddTombstone(StringRef name, SequenceNumber seq_num,
+                           unsigned int origin) {
+  m_tombstones[name] = Tombstone{seq_num, origin, ++m_tombstone_stamp};
+}
+
+void Storage::LiftTombstone(Entry* entry) {
+  auto i = m_tombstones.find(entry->name);
+  if (i == m_tombstones.end()) return;
+  entry->seq_num = i->getValue().seq_num;
+  ++entry->seq_num;
+  m_tombstones.erase(i);
+}
+
+void Storage::SetNodeId(unsigned int node_id) {
+  std::lock_guard<StatMutex> lock(m_mutex);
+  m_node_id = node_id;
+  // only kept while clustered
+  if (node_id == 0) m_tombstones.clear();
+}
+
+unsigned long long Storage::GetTombstoneStamp() const {
+  std::lock_guard<StatMutex> lock(m_mutex);
+  return m_tombstone_stamp;
+}
+
+void Storage::ExpireTombstones(unsigned long long stamp) {
+  std::lock_guard<StatMutex> lock(m_mutex);
+  for (auto i = m_tombstones.begin(), end = m_tombstones.end(); i != end;) {
+    auto cur = i;
+    ++i;
+    if (cur->getValue().stamp <= stamp) m_tombstones.erase(cur);
+  }
+}
+
+std::shared_ptr<Message> Storage::GetPeerEntry(unsigned int id) const {
+  std::lock_guard<StatMutex> lock(m_mutex);
+  Entry* entry = m_idmap[id];
+  if (!entry || !entry->value || entry->value->IsRpc()) return nullptr;
+  return MakePeerEntry(*entry);
+}
+
+void Storage::GetPeerEntries(NetworkConnection& conn, SendMsgsFunc send_msgs,
+                             std::size_t chunk_size) {
+  if (chunk_size == 0) chunk_size = 1;
+  std::vector<std::shared_ptr<Message>> msgs;
+  msgs.reserve(chunk_size);
+
+  // as for GetInitialAssignments()
+  {
+    std::lock_guard<StatMutex> lock(m_mutex);
+    conn.set_state(NetworkConnection::kSynchronized);
+  }
+
+  std::size_t id = 0;
+  for (;;) {
+    {
+      std::lock_guard<StatMutex> lock(m_mutex);
+      for (; id < m_idmap.size() && msgs.size() < chunk_size; ++id) {
+        Entry* entry = m_idmap[id];
+        if (!entry || !entry->value || entry->value->IsRpc()) continue;
+        msgs.emplace_back(MakePeerEntry(*entry));
+      }
+      if (msgs.empty()) break;
+    }
+    // send without holding the lock
+    send_msgs(msgs);
+    msgs.clear();
+  }
+
+  // the deletes the peer may have missed; there are few, as they expire
+  {
+    std::lock_guard<StatMutex> lock(m_mutex);
+    for (auto& i : m_tombstones) {
+      auto& tombstone = i.getValue();
+      msgs.emplace_back(Message::PeerEntry(i.getKey(), tombstone.origin,
+                                           tombstone.seq_num.value(), 0, 0,
+                                           0, nullptr));
+    }
+  }
+  if (!msgs.empty()) send_msgs(msgs);
+}
+
+void Storage::ApplyResyncAssignments(
+    NetworkConnection& conn, llvm::ArrayRef<std::shared_ptr<Message>> msgs,
+    llvm::ArrayRef<unsigned int> local_ids,
+    std::vector<std::shared_ptr<Message>>* out_msgs) {
+  if (m_server) return;  // should not do this on server
+
+  // An entry the server deleted that we changed ourselves is kept, as it
+  // would be on a full reconnect: it loses its id and is assigned again
+  // below.
+  std::vector<std::shared_ptr<Message>> apply;
+  {
+    std::lock_guard<StatMutex> lock(m_mutex);
+    for (auto& msg : msgs) {
+      unsigned int id = msg->id();
+      if (msg->Is(Message::kEntryDelete) && m_idmap[id] &&
+          std::find(local_ids.begin(), local_ids.end(), id) !=
+              local_ids.end()) {
+        m_idmap[id]->id = 0xffff;
+        m_idmap.set(id, nullptr);
+        continue;
+      }
+      apply.push_back(msg);
+    }
+  }
+
+  // the ids are unchanged, so the server's changes apply as if the
+  // connection had never dropped
+  for (auto& msg : apply)
+    ProcessIncoming(msg, &conn, std::weak_ptr<NetworkConnection>());
+
+  std::unique_lock<StatMutex> lock(m_mutex);
+
+  // the server may not have seen our own changes; it keeps the newer value
+  std::vector<OutgoingMsg> update_msgs;
+  for (unsigned int id : local_ids) {
+    Entry* entry = m_idmap[id];
+    if (!entry || !entry->value) continue;
+    update_msgs.emplace_back(
+        Message::EntryUpdate(entry->id, entry->seq_num.value(), entry->value),
+        entry->flags);
+  }
+
+  // generate assign messages for unassigned local entries
+  for (auto& i : m_entries) {
+    Entry* entry = i.getValue().get();
+    if (entry->id != 0xffff) continue;
+    out_msgs->emplace_back(Message::EntryAssign(entry->name, entry->id,
+                                                entry->seq_num.value(),
+                                                entry->value, entry->flags));
+  }
+  for (auto& msg : update_msgs)
+    m_queue_outgoing(msg.first, nullptr, nullptr, msg.second);
 }
 
 std::shared_ptr<Value> Storage::GetEntryValue(StringRef name) const {
-  std::lock_guard<std::mutex> lock(m_mutex);
+  std::lock_guard<StatMutex> lock(m_mutex);
   auto i = m_entries.find(name);
   return i == m_entries.end() ? nullptr : i->getValue()->value;
 }
@@ -477,107 +877,121 @@ std::shared_ptr<Value> Storage::GetEntryValue(StringRef name) const {
 bool Storage::SetEntryValue(StringRef name, std::shared_ptr<Value> value) {
   if (name.empty()) return true;
   if (!value) return true;
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
   auto& new_entry = m_entries[name];
   if (!new_entry) new_entry.reset(new Entry(name));
   Entry* entry = new_entry.get();
   auto old_value = entry->value;
+  if (!old_value) LiftTombstone(entry);
   if (old_value && old_value->type() != value->type())
     return false;  // error on type mismatch
-  entry->value = value;
+  entry->SetValue(value);
 
   // if we're the server, assign an id if it doesn't have one
   if (m_server && entry->id == 0xffff) {
-    unsigned int id = m_idmap.size();
-    entry->id = id;
-    m_idmap.push_back(entry);
+    entry->id = m_idmap.Add(entry);
   }
 
   // update persistent dirty flag if value changed and it's persistent
   if (entry->IsPersistent() && *old_value != *value) m_persistent_dirty = true;
 
-  // notify (for local listeners)
-  if (m_notifier.local_notifiers()) {
+  // The publish policy filters changes before they are notified or sent;
+  // the entry keeps the new value regardless, so reads are current.  A held
+  // back value is notified when PublishPending() sends it.
+  if (old_value && *old_value != *value && entry->publish) {
+    bool was_pending = bool(entry->publish->pending);
+    if (!entry->publish->Publish(value, value->last_change())) {
+      if (entry->publish->pending && !was_pending)
+        m_publish_pending.push_back(name);
+      return true;
+    }
+  }
+
+  // notify (for local listeners and the data log)
+  if (m_notifier.local_notifiers() || m_data_logger.active()) {
     if (!old_value)
-      m_notifier.NotifyEntry(name, value, NT_NOTIFY_NEW | NT_NOTIFY_LOCAL);
+      NotifyEntry(name, value, NT_NOTIFY_NEW | NT_NOTIFY_LOCAL);
     else if (*old_value != *value)
-      m_notifier.NotifyEntry(name, value, NT_NOTIFY_UPDATE | NT_NOTIFY_LOCAL);
+      NotifyEntry(name, value, NT_NOTIFY_UPDATE | NT_NOTIFY_LOCAL);
   }
 
   // generate message
   if (!m_queue_outgoing) return true;
-  auto queue_outgoing = m_queue_outgoing;
   if (!old_value) {
     auto msg = Message::EntryAssign(name, entry->id, entry->seq_num.value(),
                                     value, entry->flags);
-    lock.unlock();
-    queue_outgoing(msg, nullptr, nullptr);
+    m_queue_outgoing(msg, nullptr, nullptr, 0);
   } else if (*old_value != *value) {
     ++entry->seq_num;
     // don't send an update if we don't have an assigned id yet
     if (entry->id != 0xffff) {
       auto msg =
           Message::EntryUpdate(entry->id, entry->seq_num.value(), value);
-      lock.unlock();
-      queue_outgoing(msg, nullptr, nullptr);
+      m_queue_outgoing(msg, nullptr, nullptr, entry->flags);
     }
   }
   return true;
 }
 
 void Storage::SetEntryTypeValue(StringRef name, std::shared_ptr<Value> value) {
+  SetEntryTypeValueImpl(name, value, true);
+}
+
+void Storage::ReplayEntryValue(StringRef name, std::shared_ptr<Value> value) {
+  SetEntryTypeValueImpl(name, value, false);
+}
+
+void Storage::SetEntryTypeValueImpl(StringRef name,
+                                    std::shared_ptr<Value> value, bool local) {
   if (name.empty()) return;
   if (!value) return;
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
   auto& new_entry = m_entries[name];
   if (!new_entry) new_entry.reset(new Entry(name));
   Entry* entry = new_entry.get();
   auto old_value = entry->value;
-  entry->value = value;
+  if (!old_value) LiftTombstone(entry);
+  entry->SetValue(value);
   if (old_value && *old_value == *value) return;
 
   // if we're the server, assign an id if it doesn't have one
   if (m_server && entry->id == 0xffff) {
-    unsigned int id = m_idmap.size();
-    entry->id = id;
-    m_idmap.push_back(entry);
+    entry->id = m_idmap.Add(entry);
   }
 
   // update persistent dirty flag if it's a persistent value
   if (entry->IsPersistent()) m_persistent_dirty = true;
 
-  // notify (for local listeners)
-  if (m_notifier.local_notifiers()) {
+  // notify
+  unsigned int notify_local = local ? NT_NOTIFY_LOCAL : 0;
+  if (!local || m_notifier.local_notifiers() || m_data_logger.active()) {
     if (!old_value)
-      m_notifier.NotifyEntry(name, value, NT_NOTIFY_NEW | NT_NOTIFY_LOCAL);
+      NotifyEntry(name, value, NT_NOTIFY_NEW | notify_local);
     else
-      m_notifier.NotifyEntry(name, value, NT_NOTIFY_UPDATE | NT_NOTIFY_LOCAL);
+      NotifyEntry(name, value, NT_NOTIFY_UPDATE | notify_local);
   }
 
   // generate message
   if (!m_queue_outgoing) return;
-  auto queue_outgoing = m_queue_outgoing;
   if (!old_value || old_value->type() != value->type()) {
     ++entry->seq_num;
     auto msg = Message::EntryAssign(name, entry->id, entry->seq_num.value(),
                                     value, entry->flags);
-    lock.unlock();
-    queue_outgoing(msg, nullptr, nullptr);
+    m_queue_outgoing(msg, nullptr, nullptr, 0);
   } else {
     ++entry->seq_num;
     // don't send an update if we don't have an assigned id yet
     if (entry->id != 0xffff) {
       auto msg =
           Message::EntryUpdate(entry->id, entry->seq_num.value(), value);
-      lock.unlock();
-      queue_outgoing(msg, nullptr, nullptr);
+      m_queue_outgoing(msg, nullptr, nullptr, entry->flags);
     }
   }
 }
 
 void Storage::SetEntryFlags(StringRef name, unsigned int flags) {
   if (name.empty()) return;
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
   auto i = m_entries.find(name);
   if (i == m_entries.end()) return;
   Entry* entry = i->getValue().get();
@@ -588,29 +1002,183 @@ void Storage::SetEntryFlags(StringRef name, unsigned int flags) {
     m_persistent_dirty = true;
 
   entry->flags = flags;
+  FlagsChanged(entry);
 
   // notify
-  m_notifier.NotifyEntry(name, entry->value, NT_NOTIFY_FLAGS | NT_NOTIFY_LOCAL);
+  NotifyEntry(name, entry->value, NT_NOTIFY_FLAGS | NT_NOTIFY_LOCAL);
 
   // generate message
   if (!m_queue_outgoing) return;
-  auto queue_outgoing = m_queue_outgoing;
   unsigned int id = entry->id;
   // don't send an update if we don't have an assigned id yet
   if (id != 0xffff) {
-    lock.unlock();
-    queue_outgoing(Message::FlagsUpdate(id, flags), nullptr, nullptr);
+    m_queue_outgoing(Message::FlagsUpdate(id, flags), nullptr, nullptr, 0);
   }
 }
 
 unsigned int Storage::GetEntryFlags(StringRef name) const {
-  std::lock_guard<std::mutex> lock(m_mutex);
+  std::lock_guard<StatMutex> lock(m_mutex);
   auto i = m_entries.find(name);
   return i == m_entries.end() ? 0 : i->getValue()->flags;
 }
 
-void Storage::DeleteEntry(StringRef name) {
-  std::unique_lock<std::mutex> lock(m_mutex);
+void Storage::History::Record(const Value& value) {
+  if (!value.IsDouble()) return;
+  values[next] = value.GetDouble();
+  times[next] = value.last_change();
+  if (++next == values.size()) next = 0;
+  if (count < values.size()) ++count;
+}
+
+std::size_t Storage::History::Get(unsigned long long since, double* values_out,
+                                  unsigned long long* times_out,
+                                  std::size_t size) const {
+  // walk back from the newest to find how many to return
+  std::size_t cap = values.size();
+  std::size_t n = 0;
+  while (n < count && n < size) {
+    std::size_t slot = (next + cap - 1 - n) % cap;
+    if (times[slot] < since) break;
+    ++n;
+  }
+  // then copy them out oldest first
+  std::size_t slot = (next + cap - n) % cap;
+  for (std::size_t i = 0; i < n; ++i) {
+    if (values_out) values_out[i] = values[slot];
+    if (times_out) times_out[i] = times[slot];
+    if (++slot == cap) slot = 0;
+  }
+  return n;
+}
+
+void Storage::SetEntryHistory(StringRef name, std::size_t size) {
+  std::lock_guard<StatMutex> lock(m_mutex);
+  auto i = m_entries.find(name);
+  if (i == m_entries.end()) return;
+  Entry* entry = i->getValue().get();
+  if (size == 0) {
+    entry->history.reset();
+    return;
+  }
+  if (entry->history && entry->history->values.size() == size) return;
+  entry->history.reset(new History(size));
+  if (entry->value) entry->history->Record(*entry->value);
+}
+
+std::size_t Storage::GetEntryNumberHistory(StringRef name,
+                                           unsigned long long since,
+                                           double* values,
+                                           unsigned long long* times,
+                                           std::size_t size) const {
+  std::lock_guard<StatMutex> lock(m_mutex);
+  auto i = m_entries.find(name);
+  if (i == m_entries.end()) return 0;
+  Entry* entry = i->getValue().get();
+  if (!entry->history) return 0;
+  return entry->history->Get(since, values, times, size);
+}
+
+bool Storage::PublishPolicy::Publish(std::shared_ptr<Value> value,
+                                     unsigned long long now) {
+  // a newer value replaces any pending one, even if it isn't sent either
+  pending.reset();
+  if (published) {
+    if (*published == *value) return false;
+    if (deadband > 0 && value->IsDouble() && published->IsDouble()) {
+      double old_v = published->GetDouble();
+      double limit = relative ? deadband * std::fabs(old_v) : deadband;
+      if (std::fabs(value->GetDouble() - old_v) < limit) return false;
+    }
+  }
+  if (min_period != 0 && last_publish != 0 &&
+      now < last_publish + min_period) {
+    pending = value;
+    return false;
+  }
+  published = value;
+  last_publish = now;
+  return true;
+}
+
+void Storage::PublishPending(unsigned long long now) {
+  std::unique_lock<StatMutex> lock(m_mutex);
+  if (m_publish_pending.empty()) return;
+  std::vector<OutgoingMsg> msgs;
+  std::size_t keep = 0;
+  for (std::size_t i = 0; i < m_publish_pending.size(); ++i) {
+    auto it = m_entries.find(m_publish_pending[i]);
+    if (it == m_entries.end()) continue;
+    Entry* entry = it->getValue().get();
+    PublishPolicy* policy = entry->publish.get();
+    if (!policy || !policy->pending) continue;
+    // dropped if a remote change has replaced it since
+    if (policy->pending != entry->value) {
+      policy->pending.reset();
+      continue;
+    }
+    if (now < policy->last_publish + policy->min_period) {
+      if (keep != i) m_publish_pending[keep] = std::move(m_publish_pending[i]);
+      ++keep;
+      continue;
+    }
+    policy->published = std::move(policy->pending);
+    policy->last_publish = now;
+    if (m_notifier.local_notifiers() || m_data_logger.active())
+      NotifyEntry(entry->name, entry->value,
+                  NT_NOTIFY_UPDATE | NT_NOTIFY_LOCAL);
+    ++entry->seq_num;
+    if (entry->id != 0xffff)
+      msgs.emplace_back(Message::EntryUpdate(entry->id, entry->seq_num.value(),
+                                             entry->value),
+                        entry->flags);
+  }
+  m_publish_pending.resize(keep);
+  if (msgs.empty() || !m_queue_outgoing) return;
+  for (auto& msg : msgs)
+    m_queue_outgoing(msg.first, nullptr, nullptr, msg.second);
+}
+
+void Storage::SetEntryPublishPolicy(StringRef name, double max_rate,
+                                    double deadband, bool relative_deadband) {
+  std::unique_lock<StatMutex> lock(m_mutex);
+  auto i = m_entries.find(name);
+  if (i == m_entries.end()) return;
+  Entry* entry = i->getValue().get();
+  if (max_rate <= 0 && deadband <= 0) {
+    // send any value still held back
+    bool send = entry->publish && entry->publish->pending &&
+                entry->publish->pending == entry->value;
+    entry->publish.reset();
+    if (!send) return;
+    if (m_notifier.local_notifiers() || m_data_logger.active())
+      NotifyEntry(entry->name, entry->value,
+                  NT_NOTIFY_UPDATE | NT_NOTIFY_LOCAL);
+    ++entry->seq_num;
+    if (entry->id == 0xffff || !m_queue_outgoing) return;
+    auto msg = Message::EntryUpdate(entry->id, entry->seq_num.value(),
+                                    entry->value);
+    m_queue_outgoing(msg, nullptr, nullptr, entry->flags);
+    return;
+  }
+  if (!entry->publish) {
+    entry->publish.reset(new PublishPolicy);
+    entry->publish->published = entry->value;
+  }
+  // Now() is in 100 ns units
+  entry->publish->min_period =
+      max_rate > 0 ? static_cast<unsigned long long>(1e7 / max_rate) : 0;
+  entry->publish->deadband = deadband > 0 ? deadband : 0;
+  entry->publish->relative = relative_deadband;
+}
+
+void Storage::DeleteEntry(StringRef name) { DeleteEntryImpl(name, true); }
+
+void Storage::ReplayDeleteEntry(StringRef name) {
+  DeleteEntryImpl(name, false);
+}
+
+void Storage::DeleteEntryImpl(StringRef name, bool local) {
+  std::unique_lock<StatMutex> lock(m_mutex);
   auto i = m_entries.find(name);
   if (i == m_entries.end()) return;
   auto entry = std::move(i->getValue());
@@ -620,26 +1188,26 @@ void Storage::DeleteEntry(StringRef name) {
   if (entry->IsPersistent()) m_persistent_dirty = true;
 
   m_entries.erase(i);  // erase from map
-  if (id < m_idmap.size()) m_idmap[id] = nullptr; 
+  if (id < m_idmap.size()) m_idmap.set(id, nullptr);
 
   if (!entry->value) return;
 
   // notify
-  m_notifier.NotifyEntry(name, entry->value,
-                         NT_NOTIFY_DELETE | NT_NOTIFY_LOCAL);
+  NotifyEntry(name, entry->value,
+              NT_NOTIFY_DELETE | (local ? NT_NOTIFY_LOCAL : 0));
 
   // if it had a value, generate message
   // don't send an update if we don't have an assigned id yet
   if (id != 0xffff) {
     if (!m_queue_outgoing) return;
-    auto queue_outgoing = m_queue_outgoing;
-    lock.unlock();
-    queue_outgoing(Message::EntryDelete(id), nullptr, nullptr);
+    auto peer_msg = MakePeerDelete(*entry);
+    m_queue_outgoing(Message::EntryDelete(id), nullptr, nullptr, 0);
+    if (peer_msg) m_queue_outgoing(peer_msg, nullptr, nullptr, 0);
   }
 }
 
 void Storage::DeleteAllEntries() {
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
   if (m_entries.empty()) return;
   EntriesMap map;
   m_entries.swap(map);
@@ -649,22 +1217,27 @@ void Storage::DeleteAllEntries() {
   m_persistent_dirty = true;
 
   // notify
-  if (m_notifier.local_notifiers()) {
+  if (m_notifier.local_notifiers() || m_data_logger.active()) {
     for (auto& entry : map)
-      m_notifier.NotifyEntry(entry.getKey(), entry.getValue()->value,
-                             NT_NOTIFY_DELETE | NT_NOTIFY_LOCAL);
+      NotifyEntry(entry.getKey(), entry.getValue()->value,
+                  NT_NOTIFY_DELETE | NT_NOTIFY_LOCAL);
   }
 
   // generate message
   if (!m_queue_outgoing) return;
-  auto queue_outgoing = m_queue_outgoing;
-  lock.unlock();
-  queue_outgoing(Message::ClearEntries(), nullptr, nullptr);
+  std::vector<std::shared_ptr<Message>> peer_msgs;
+  for (auto& entry : map) {
+    if (auto peer_msg = MakePeerDelete(*entry.getValue()))
+      peer_msgs.emplace_back(std::move(peer_msg));
+  }
+  m_queue_outgoing(Message::ClearEntries(), nullptr, nullptr, 0);
+  for (auto& peer_msg : peer_msgs)
+    m_queue_outgoing(peer_msg, nullptr, nullptr, 0);
 }
 
 std::vector<EntryInfo> Storage::GetEntryInfo(StringRef prefix,
                                              unsigned int types) {
-  std::lock_guard<std::mutex> lock(m_mutex);
+  std::lock_guard<StatMutex> lock(m_mutex);
   std::vector<EntryInfo> infos;
   for (auto& i : m_entries) {
     if (!i.getKey().startswith(prefix)) continue;
@@ -684,7 +1257,7 @@ std::vector<EntryInfo> Storage::GetEntryInfo(StringRef prefix,
 
 void Storage::NotifyEntries(StringRef prefix,
                             EntryListenerCallback only) const {
-  std::lock_guard<std::mutex> lock(m_mutex);
+  std::lock_guard<StatMutex> lock(m_mutex);
   for (auto& i : m_entries) {
     if (!i.getKey().startswith(prefix)) continue;
     m_notifier.NotifyEntry(i.getKey(), i.getValue()->value, NT_NOTIFY_IMMEDIATE,
@@ -730,7 +1303,7 @@ bool Storage::GetPersistentEntries(
     const {
   // copy values out of storage as quickly as possible so lock isn't held
   {
-    std::lock_guard<std::mutex> lock(m_mutex);
+    std::lock_guard<StatMutex> lock(m_mutex);
     // for periodic, don't re-save unless something has changed
     if (periodic && !m_persistent_dirty) return false;
     m_persistent_dirty = false;
@@ -860,6 +1433,8 @@ const char* Storage::SavePersistent(StringRef filename, bool periodic) const {
   std::string bak = filename;
   bak += ".bak";
 
+  auto start = Now();
+
   // Get entries before creating file
   std::vector<std::pair<std::string, std::shared_ptr<Value>>> entries;
   if (!GetPersistentEntries(periodic, &entries)) return nullptr;
@@ -895,6 +1470,11 @@ const char* Storage::SavePersistent(StringRef filename, bool periodic) const {
 done:
   // try again if there was an error
   if (err && periodic) m_persistent_dirty = true;
+
+  auto duration = Now() - start;
+  ++m_save_count;
+  m_save_last = duration;
+  if (duration > m_save_max) m_save_max = duration;
   return err;
 }
 
@@ -1179,33 +1759,31 @@ next_line:
 
   // copy values into storage as quickly as possible so lock isn't held
   {
-    std::vector<std::shared_ptr<Message>> msgs;
-    std::unique_lock<std::mutex> lock(m_mutex);
+    std::vector<OutgoingMsg> msgs;
+    std::unique_lock<StatMutex> lock(m_mutex);
     for (auto& i : entries) {
       auto& new_entry = m_entries[i.first];
       if (!new_entry) new_entry.reset(new Entry(i.first));
       Entry* entry = new_entry.get();
       auto old_value = entry->value;
-      entry->value = i.second;
+      if (!old_value) LiftTombstone(entry);
+      entry->SetValue(i.second);
       bool was_persist = entry->IsPersistent();
       if (!was_persist) entry->flags |= NT_PERSISTENT;
 
       // if we're the server, assign an id if it doesn't have one
       if (m_server && entry->id == 0xffff) {
-        unsigned int id = m_idmap.size();
-        entry->id = id;
-        m_idmap.push_back(entry);
+        entry->id = m_idmap.Add(entry);
       }
 
-      // notify (for local listeners)
-      if (m_notifier.local_notifiers()) {
+      // notify (for local listeners and the data log)
+      if (m_notifier.local_notifiers() || m_data_logger.active()) {
         if (!old_value)
-          m_notifier.NotifyEntry(i.first, i.second,
-                                 NT_NOTIFY_NEW | NT_NOTIFY_LOCAL);
+          NotifyEntry(i.first, i.second, NT_NOTIFY_NEW | NT_NOTIFY_LOCAL);
         else if (*old_value != *i.second) {
           unsigned int notify_flags = NT_NOTIFY_UPDATE | NT_NOTIFY_LOCAL;
           if (!was_persist) notify_flags |= NT_NOTIFY_FLAGS;
-          m_notifier.NotifyEntry(i.first, i.second, notify_flags);
+          NotifyEntry(i.first, i.second, notify_flags);
         }
       }
 
@@ -1216,21 +1794,22 @@ next_line:
       if (!old_value || old_value->type() != i.second->type())
         msgs.emplace_back(Message::EntryAssign(i.first, entry->id,
                                                entry->seq_num.value(),
-                                               i.second, entry->flags));
+                                               i.second, entry->flags),
+                          entry->flags);
       else if (entry->id != 0xffff) {
         // don't send an update if we don't have an assigned id yet
         if (*old_value != *i.second)
           msgs.emplace_back(Message::EntryUpdate(
-              entry->id, entry->seq_num.value(), i.second));
+              entry->id, entry->seq_num.value(), i.second), entry->flags);
         if (!was_persist)
-          msgs.emplace_back(Message::FlagsUpdate(entry->id, entry->flags));
+          msgs.emplace_back(Message::FlagsUpdate(entry->id, entry->flags),
+                            entry->flags);
       }
     }
 
     if (m_queue_outgoing) {
-      auto queue_outgoing = m_queue_outgoing;
-      lock.unlock();
-      for (auto& msg : msgs) queue_outgoing(std::move(msg), nullptr, nullptr);
+      for (auto& msg : msgs)
+        m_queue_outgoing(std::move(msg.first), nullptr, nullptr, msg.second);
     }
   }
 
@@ -1246,9 +1825,155 @@ const char* Storage::LoadPersistent(
   return nullptr;
 }
 
+// Snapshot file format: the magic and a 16-bit version, then for each entry
+// its name, id (ULEB128), 16-bit sequence number, flags, type and value, as
+// in protocol 3.0 messages.
+static const char kSnapshotMagic[6] = {'N', 'T', 'S', 'N', 'A', 'P'};
+static const unsigned int kSnapshotVersion = 1;
+
+static void WriteSnapshotEntry(WireEncoder& enc, llvm::StringRef name,
+                               unsigned int id, unsigned int seq_num,
+                               unsigned int flags, const Value& value) {
+  enc.WriteString(name);
+  enc.WriteUleb128(id);
+  enc.Write16(seq_num);
+  enc.Write8(flags);
+  enc.WriteType(value.type());
+  enc.WriteValue(value);
+}
+
+void Storage::SaveSnapshot(std::string* data) const {
+  WireEncoder enc(0x0300);
+  for (char c : kSnapshotMagic) enc.Write8(c);
+  enc.Write16(kSnapshotVersion);
+  {
+    std::lock_guard<StatMutex> lock(m_mutex);
+    // in id order, so a load can usually put everything back where it was
+    for (std::size_t id = 0; id < m_idmap.size(); ++id) {
+      Entry* entry = m_idmap[id];
+      if (!entry || !entry->value || entry->value->IsRpc()) continue;
+      WriteSnapshotEntry(enc, entry->name, entry->id, entry->seq_num.value(),
+                         entry->flags, *entry->value);
+    }
+    // then entries without an id (a client's new ones)
+    for (auto& i : m_entries) {
+      Entry* entry = i.getValue().get();
+      if (entry->id != 0xffff || !entry->value || entry->value->IsRpc())
+        continue;
+      WriteSnapshotEntry(enc, entry->name, entry->id, entry->seq_num.value(),
+                         entry->flags, *entry->value);
+    }
+  }
+  data->assign(enc.data(), enc.size());
+}
+
+const char* Storage::SaveSnapshot(StringRef filename) const {
+  std::string data;
+  SaveSnapshot(&data);
+
+  // write to a temporary file first, as for SavePersistent()
+  std::string fn = filename;
+  std::string tmp = filename;
+  tmp += ".tmp";
+  std::ofstream os(tmp, std::ios_base::out | std::ios_base::binary |
+                            std::ios_base::trunc);
+  if (!os) return "could not open file";
+  os.write(data.data(), data.size());
+  os.flush();
+  if (!os) {
+    os.close();
+    std::remove(tmp.c_str());
+    return "error saving file";
+  }
+  os.close();
+  if (std::rename(tmp.c_str(), fn.c_str()) != 0) {
+    std::remove(tmp.c_str());
+    return "could not rename temp file to real file";
+  }
+  return nullptr;
+}
+
+const char* Storage::LoadSnapshot(llvm::ArrayRef<char> data,
+                                  std::size_t* count) {
+  static const std::size_t kHeaderSize = sizeof(kSnapshotMagic) + 2;
+  if (data.size() < kHeaderSize ||
+      std::memcmp(data.data(), kSnapshotMagic, sizeof(kSnapshotMagic)) != 0)
+    return "not a snapshot";
+  const unsigned char* ver =
+      reinterpret_cast<const unsigned char*>(data.data()) +
+      sizeof(kSnapshotMagic);
+  if (((ver[0] << 8) | ver[1]) != kSnapshotVersion)
+    return "unsupported snapshot version";
+  // ids are handed out in order, and the id map grows to the largest one, so
+  // an id far beyond any table's size means a corrupt file
+  static const unsigned long kMaxId = 1ul << 24;
+
+  // read everything before touching storage; a bad file changes nothing
+  struct Record {
+    std::string name;
+    unsigned int id;
+    unsigned int seq_num;
+    unsigned int flags;
+    std::shared_ptr<Value> value;
+  };
+  std::vector<Record> records;
+  raw_mem_istream is(data.data() + kHeaderSize, data.size() - kHeaderSize);
+  WireDecoder decoder(is, 0x0300);
+  while (is.left() > 0) {
+    Record rec;
+    unsigned long id;
+    NT_Type type;
+    if (!decoder.ReadString(&rec.name) || !decoder.ReadUleb128(&id) ||
+        !decoder.Read16(&rec.seq_num) || !decoder.Read8(&rec.flags) ||
+        !decoder.ReadType(&type))
+      return "truncated snapshot";
+    rec.value = decoder.ReadValue(type);
+    if (!rec.value) return "truncated snapshot";
+    if (rec.value->IsRpc()) return "invalid entry in snapshot";
+    // 0xffff is an entry without an id (as never given out by IdMap::Add)
+    if (id != 0xffff && id >= kMaxId) return "invalid entry id in snapshot";
+    rec.id = id;
+    records.emplace_back(std::move(rec));
+  }
+
+  std::lock_guard<StatMutex> lock(m_mutex);
+  std::vector<Entry*> restored;
+  restored.reserve(records.size());
+  for (auto& rec : records) {
+    auto& new_entry = m_entries[rec.name];
+    if (!new_entry) new_entry.reset(new Entry(rec.name));
+    Entry* entry = new_entry.get();
+    if (entry->value) continue;  // set since startup; keep it
+    entry->SetValue(rec.value);
+    entry->seq_num = SequenceNumber(rec.seq_num);
+    entry->flags = rec.flags;
+    // old ids first, so another entry doesn't take one of them
+    if (m_server && entry->id == 0xffff && rec.id != 0xffff &&
+        !m_idmap[rec.id]) {
+      entry->id = rec.id;
+      m_idmap.set(rec.id, entry);
+    }
+    restored.push_back(entry);
+  }
+  for (auto entry : restored) {
+    if (m_server && entry->id == 0xffff) entry->id = m_idmap.Add(entry);
+    // notify (for local listeners and the data log)
+    if (m_notifier.local_notifiers() || m_data_logger.active())
+      NotifyEntry(entry->name, entry->value, NT_NOTIFY_NEW | NT_NOTIFY_LOCAL);
+  }
+  if (count) *count = restored.size();
+  return nullptr;
+}
+
+const char* Storage::LoadSnapshot(StringRef filename, std::size_t* count) {
+  MappedFile file;
+  if (!file.Open(filename)) return "could not open file";
+  return LoadSnapshot(llvm::ArrayRef<char>(file.data(), file.size()), count);
+}
+
 void Storage::CreateRpc(StringRef name, StringRef def, RpcCallback callback) {
   if (name.empty() || def.empty() || !callback) return;
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
   if (!m_server) return; // only server can create RPCs
 
   auto& new_entry = m_entries[name];
@@ -1268,31 +1993,26 @@ void Storage::CreateRpc(StringRef name, StringRef def, RpcCallback callback) {
 
   // assign an id if it doesn't have one
   if (entry->id == 0xffff) {
-    unsigned int id = m_idmap.size();
-    entry->id = id;
-    m_idmap.push_back(entry);
+    entry->id = m_idmap.Add(entry);
   }
 
   // generate message
   if (!m_queue_outgoing) return;
-  auto queue_outgoing = m_queue_outgoing;
   if (!old_value || old_value->type() != value->type()) {
     ++entry->seq_num;
     auto msg = Message::EntryAssign(name, entry->id, entry->seq_num.value(),
                                     value, entry->flags);
-    lock.unlock();
-    queue_outgoing(msg, nullptr, nullptr);
+    m_queue_outgoing(msg, nullptr, nullptr, 0);
   } else {
     ++entry->seq_num;
     auto msg = Message::EntryUpdate(entry->id, entry->seq_num.value(), value);
-    lock.unlock();
-    queue_outgoing(msg, nullptr, nullptr);
+    m_queue_outgoing(msg, nullptr, nullptr, entry->flags);
   }
 }
 
 void Storage::CreatePolledRpc(StringRef name, StringRef def) {
   if (name.empty() || def.empty()) return;
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
   if (!m_server) return; // only server can create RPCs
 
   auto& new_entry = m_entries[name];
@@ -1309,30 +2029,25 @@ void Storage::CreatePolledRpc(StringRef name, StringRef def) {
 
   // assign an id if it doesn't have one
   if (entry->id == 0xffff) {
-    unsigned int id = m_idmap.size();
-    entry->id = id;
-    m_idmap.push_back(entry);
+    entry->id = m_idmap.Add(entry);
   }
 
   // generate message
   if (!m_queue_outgoing) return;
-  auto queue_outgoing = m_queue_outgoing;
   if (!old_value || old_value->type() != value->type()) {
     ++entry->seq_num;
     auto msg = Message::EntryAssign(name, entry->id, entry->seq_num.value(),
                                     value, entry->flags);
-    lock.unlock();
-    queue_outgoing(msg, nullptr, nullptr);
+    m_queue_outgoing(msg, nullptr, nullptr, 0);
   } else {
     ++entry->seq_num;
     auto msg = Message::EntryUpdate(entry->id, entry->seq_num.value(), value);
-    lock.unlock();
-    queue_outgoing(msg, nullptr, nullptr);
+    m_queue_outgoing(msg, nullptr, nullptr, entry->flags);
   }
 }
 
 unsigned int Storage::CallRpc(StringRef name, StringRef params) {
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
   auto i = m_entries.find(name);
   if (i == m_entries.end()) return 0;
   auto& entry = i->getValue();
@@ -1340,7 +2055,10 @@ unsigned int Storage::CallRpc(StringRef name, StringRef params) {
 
   ++entry->rpc_call_uid;
   if (entry->rpc_call_uid > 0xffff) entry->rpc_call_uid = 0;
-  unsigned int combined_uid = (entry->id << 16) | entry->rpc_call_uid;
+  // 0 is failure, and the top two values are reserved by DenseMap
+  if (++m_rpc_call_handle >= 0xfffffffeu) m_rpc_call_handle = 1;
+  unsigned int call_handle = m_rpc_call_handle;
+  m_rpc_calls[call_handle] = std::make_pair(entry->id, entry->rpc_call_uid);
   auto msg = Message::ExecuteRpc(entry->id, entry->rpc_call_uid, params);
   if (m_server) {
     // RPCs are unlikely to be used locally on the server, but handle it
@@ -1349,25 +2067,25 @@ unsigned int Storage::CallRpc(StringRef name, StringRef params) {
     lock.unlock();
     m_rpc_server.ProcessRpc(
         name, msg, rpc_callback, 0xffffU, [this](std::shared_ptr<Message> msg) {
-          std::lock_guard<std::mutex> lock(m_mutex);
+          std::lock_guard<StatMutex> lock(m_mutex);
           m_rpc_results.insert(std::make_pair(
               std::make_pair(msg->id(), msg->seq_num_uid()), msg->str()));
           m_rpc_results_cond.notify_all();
         });
   } else {
-    auto queue_outgoing = m_queue_outgoing;
-    lock.unlock();
-    queue_outgoing(msg, nullptr, nullptr);
+    m_queue_outgoing(msg, nullptr, nullptr, 0);
   }
-  return combined_uid;
+  return call_handle;
 }
 
 bool Storage::GetRpcResult(bool blocking, unsigned int call_uid,
                            std::string* result) {
-  std::unique_lock<std::mutex> lock(m_mutex);
+  std::unique_lock<StatMutex> lock(m_mutex);
+  auto call = m_rpc_calls.find(call_uid);
+  if (call == m_rpc_calls.end()) return false;
+  auto key = call->getSecond();
   for (;;) {
-    auto i =
-        m_rpc_results.find(std::make_pair(call_uid >> 16, call_uid & 0xffff));
+    auto i = m_rpc_results.find(key);
     if (i == m_rpc_results.end()) {
       if (!blocking || m_terminating) return false;
       m_rpc_results_cond.wait(lock);
@@ -1376,6 +2094,7 @@ bool Storage::GetRpcResult(bool blocking, unsigned int call_uid,
     }
     result->swap(i->getSecond());
     m_rpc_results.erase(i);
+    m_rpc_calls.erase(call_uid);
     return true;
   }
 }
@@ -20,11 +20,13 @@
 #include "llvm/DenseMap.h"
 #include "llvm/StringMap.h"
 #include "atomic_static.h"
+#include "DataLogger.h"
 #include "Message.h"
 #include "Notifier.h"
 #include "ntcore_cpp.h"
 #include "RpcServer.h"
 #include "SequenceNumber.h"
+#include "support/StatMutex.h"
 
 namespace nt {
 
@@ -33,6 +35,7 @@ class StorageTest;
 
 class Storage {
   friend class StorageTest;
+  friend class InstanceImpl;
  public:
   static Storage& GetInstance() {
     ATOMIC_STATIC(Storage, instance);
@@ -44,10 +47,20 @@ class Storage {
   // generation of outgoing messages to break a dependency loop between
   // Storage and Dispatcher; in operation this is always set to
   // Dispatcher::QueueOutgoing.
+  // flags are those of the message's entry, passed so the dispatcher can
+  // route value updates without looking the entry up again.
+  // Both functions are called with the storage lock held, so messages are
+  // queued in the order the changes were made; they must not call back into
+  // Storage.  synced is called when a connection is synchronized from a
+  // snapshot of the table: anything queued before then is covered by the
+  // snapshot and must not be sent to it.
   typedef std::function<void(std::shared_ptr<Message> msg,
                              NetworkConnection* only,
-                             NetworkConnection* except)> QueueOutgoingFunc;
-  void SetOutgoing(QueueOutgoingFunc queue_outgoing, bool server);
+                             NetworkConnection* except,
+                             unsigned int flags)> QueueOutgoingFunc;
+  typedef std::function<void(NetworkConnection& conn)> SyncedFunc;
+  void SetOutgoing(QueueOutgoingFunc queue_outgoing, bool server,
+                   SyncedFunc synced = nullptr);
   void ClearOutgoing();
 
   // Required for wire protocol 2.0 to get the entry type of an entry when
@@ -57,12 +70,47 @@ class Storage {
 
   void ProcessIncoming(std::shared_ptr<Message> msg, NetworkConnection* conn,
                        std::weak_ptr<NetworkConnection> conn_weak);
-  void GetInitialAssignments(NetworkConnection& conn,
-                             std::vector<std::shared_ptr<Message>>* msgs);
+  // Generates the initial entry assignments for a new server connection.
+  // The entries are walked in chunks of at most chunk_size; the storage lock
+  // is released between chunks and each chunk is handed to send_msgs.
+  typedef std::function<void(llvm::ArrayRef<std::shared_ptr<Message>> msgs)>
+      SendMsgsFunc;
+  void GetInitialAssignments(NetworkConnection& conn, SendMsgsFunc send_msgs,
+                             std::size_t chunk_size = 256);
   void ApplyInitialAssignments(NetworkConnection& conn,
                                llvm::ArrayRef<std::shared_ptr<Message>> msgs,
                                bool new_server,
                                std::vector<std::shared_ptr<Message>>* out_msgs);
+  // Session resumption: the server sends an assignment for each of the given
+  // ids that still exists and a delete for the rest; the client applies them
+  // and sends back updates for the ids it changed itself.  An entry deleted
+  // by the server but changed by the client is assigned again instead.
+  void GetResyncAssignments(llvm::ArrayRef<unsigned int> ids,
+                            SendMsgsFunc send_msgs,
+                            std::size_t chunk_size = 256);
+  void ApplyResyncAssignments(NetworkConnection& conn,
+                              llvm::ArrayRef<std::shared_ptr<Message>> msgs,
+                              llvm::ArrayRef<unsigned int> local_ids,
+                              std::vector<std::shared_ptr<Message>>* out_msgs);
+
+  // Cluster mode (see Dispatcher::StartCluster).  Nodes replicate entries
+  // to each other by name with PEER_ENTRY messages; the last writer wins,
+  // going by sequence number and then node id.  The node id is 0 when not
+  // clustered.
+  unsigned int node_id() const { return m_node_id; }
+  void SetNodeId(unsigned int node_id);
+  // Null if the entry doesn't exist (or is an RPC, which isn't replicated).
+  std::shared_ptr<Message> GetPeerEntry(unsigned int id) const;
+  // Marks the connection synchronized, then sends it all entries in chunks,
+  // and then the deletes still kept as tombstones.
+  void GetPeerEntries(NetworkConnection& conn, SendMsgsFunc send_msgs,
+                      std::size_t chunk_size = 256);
+  // A delete is kept as a tombstone, so a write it won over that arrives
+  // later (from a concurrent update, or a node that was cut off) doesn't
+  // bring the entry back.  The dispatcher drops the tombstones made up to a
+  // stamp once every peer has been sent them.
+  unsigned long long GetTombstoneStamp() const;
+  void ExpireTombstones(unsigned long long stamp);
 
   // User functions.  These are the actual implementations of the corresponding
   // user API functions in ntcore_cpp.
@@ -71,8 +119,23 @@ class Storage {
   void SetEntryTypeValue(StringRef name, std::shared_ptr<Value> value);
   void SetEntryFlags(StringRef name, unsigned int flags);
   unsigned int GetEntryFlags(StringRef name) const;
+  void SetEntryHistory(StringRef name, std::size_t size);
+  std::size_t GetEntryNumberHistory(StringRef name, unsigned long long since,
+                                    double* values, unsigned long long* times,
+                                    std::size_t size) const;
+  void SetEntryPublishPolicy(StringRef name, double max_rate, double deadband,
+                             bool relative_deadband);
+  // Notifies and sends local changes held back by a publish policy's rate
+  // limit whose period has passed.  Called periodically by the dispatcher.
+  void PublishPending(unsigned long long now);
   void DeleteEntry(StringRef name);
   void DeleteAllEntries();
+
+  // Apply changes read back from a data log.  These behave like changes
+  // received from a remote client: listeners are notified without
+  // NT_NOTIFY_LOCAL, and the changes are sent to all connections.
+  void ReplayEntryValue(StringRef name, std::shared_ptr<Value> value);
+  void ReplayDeleteEntry(StringRef name);
   std::vector<EntryInfo> GetEntryInfo(StringRef prefix, unsigned int types);
   void NotifyEntries(StringRef prefix,
                      EntryListenerCallback only = nullptr) const;
@@ -91,26 +154,93 @@ class Storage {
       std::istream& is,
       std::function<void(std::size_t line, const char* msg)> warn);
 
+  // Warm restart snapshots: the complete state (ids, sequence numbers, flags
+  // and values, but not RPCs) in a binary file, read back through a memory
+  // mapping.  On a load, entries that already exist keep their own value,
+  // and the others get their old id if it is free.
+  const char* SaveSnapshot(StringRef filename) const;
+  const char* LoadSnapshot(StringRef filename, std::size_t* count = nullptr);
+
+  // Memory-based versions (exposed for testing purposes).
+  void SaveSnapshot(std::string* data) const;
+  const char* LoadSnapshot(llvm::ArrayRef<char> data,
+                           std::size_t* count = nullptr);
+
   // RPC configuration needs to come through here as RPC definitions are
   // actually special Storage value types.
   void CreateRpc(StringRef name, StringRef def, RpcCallback callback);
   void CreatePolledRpc(StringRef name, StringRef def);
 
+  // CallRpc() returns a handle for GetRpcResult(), or 0 on failure.
   unsigned int CallRpc(StringRef name, StringRef params);
   bool GetRpcResult(bool blocking, unsigned int call_uid, std::string* result);
 
+  // Statistics.  Times are in nt::Now() units.
+  unsigned long long lock_wait_count() const { return m_mutex.wait_count(); }
+  unsigned long long lock_wait_total() const { return m_mutex.wait_total(); }
+  unsigned long long lock_wait_max() const { return m_mutex.wait_max(); }
+  unsigned long long save_count() const { return m_save_count; }
+  unsigned long long save_last_duration() const { return m_save_last; }
+  unsigned long long save_max_duration() const { return m_save_max; }
+
  private:
   Storage();
-  Storage(Notifier& notifier, RpcServer& rpcserver);
+  // Only a process-wide storage clears the logger on destruction.
+  Storage(Notifier& notifier, RpcServer& rpcserver, DataLogger& data_logger,
+          bool process_wide = true);
   Storage(const Storage&) = delete;
   Storage& operator=(const Storage&) = delete;
 
+  // Fixed-size ring of recent numeric values and their times, oldest
+  // overwritten first.
+  struct History {
+    explicit History(std::size_t size) : values(size), times(size) {}
+    void Record(const Value& value);
+    std::size_t Get(unsigned long long since, double* values_out,
+                    unsigned long long* times_out, std::size_t size) const;
+
+    std::vector<double> values;
+    std::vector<unsigned long long> times;
+    std::size_t next = 0;   // slot for the next value
+    std::size_t count = 0;  // number of valid slots
+  };
+
+  // Filter for local value changes, applied before they are notified or
+  // sent to the network: a minimum time between published values, and for
+  // numbers a minimum change from the last published value.  The entry
+  // itself always takes the new value.
+  struct PublishPolicy {
+    // Returns whether a changed value should be sent now, and if so records
+    // it as published.  A value held back only by the rate limit is kept
+    // as pending, to be sent once the period has passed.
+    bool Publish(std::shared_ptr<Value> value, unsigned long long now);
+
+    unsigned long long min_period = 0;  // in Now() units; 0 for no limit
+    double deadband = 0;
+    bool relative = false;  // deadband is a fraction of the published value
+    std::shared_ptr<Value> published;
+    unsigned long long last_publish = 0;
+    std::shared_ptr<Value> pending;
+  };
+
   // Data for each table entry.
   struct Entry {
     Entry(llvm::StringRef name_)
-        : name(name_), flags(0), id(0xffff), rpc_call_uid(0) {}
+        : name(name_),
+          flags(0),
+          id(0xffff),
+          origin(0),
+          flags_seq(0),
+          flags_origin(0),
+          rpc_call_uid(0) {}
     bool IsPersistent() const { return (flags & NT_PERSISTENT) != 0; }
 
+    // All value changes go through here so the history is kept up to date.
+    void SetValue(std::shared_ptr<Value> value_) {
+      value = value_;
+      if (history && value) history->Record(*value);
+    }
+
     // We redundantly store the name so that it's available when accessing the
     // raw Entry* via the ID map.
     std::string name;
@@ -127,6 +257,18 @@ class Storage {
     // Sequence number for update resolution.
     SequenceNumber seq_num;
 
+    // Cluster mode: the node that wrote the value with sequence number
+    // origin_seq, if another node did.  Any later write, which changes
+    // seq_num, is this node's own.
+    unsigned int origin;
+    SequenceNumber origin_seq;
+
+    // Cluster mode: flags have no sequence number on the wire, so nodes
+    // keep a version of their own, bumped on every change, and its writer
+    // (0 for this node).
+    unsigned int flags_seq;
+    unsigned int flags_origin;
+
     // RPC callback function.  Null if either not an RPC or if the RPC is
     // polled.
     RpcCallback rpc_callback;
@@ -134,31 +276,124 @@ class Storage {
     // Last UID used when calling this RPC (primarily for client use).  This
     // is incremented for each call.
     unsigned int rpc_call_uid;
+
+    // Value history; null unless enabled for this entry.
+    std::unique_ptr<History> history;
+
+    // Publish policy; null unless set for this entry.
+    std::unique_ptr<PublishPolicy> publish;
   };
 
   typedef llvm::StringMap<std::unique_ptr<Entry>> EntriesMap;
-  typedef std::vector<Entry*> IdMap;
+
+  // Entries by id.  Servers may hold millions of entries, so the map is
+  // paged: growing it never copies existing slots, and a page is only
+  // allocated once an entry is stored in it.
+  class IdMap {
+   public:
+    std::size_t size() const { return m_size; }
+    bool empty() const { return m_size == 0; }
+    Entry* operator[](std::size_t id) const {
+      std::size_t page = id >> kPageBits;
+      if (page >= m_pages.size() || !m_pages[page]) return nullptr;
+      return m_pages[page][id & (kPageSize - 1)];
+    }
+    // Stores an entry, growing the map if needed.
+    void set(std::size_t id, Entry* entry);
+    void resize(std::size_t size);
+    // Stores an entry at the end, returning its id.
+    unsigned int Add(Entry* entry);
+
+   private:
+    static const unsigned int kPageBits = 12;
+    static const std::size_t kPageSize = 1u << kPageBits;
+    std::vector<std::unique_ptr<Entry*[]>> m_pages;
+    std::size_t m_size = 0;
+  };
+
   typedef llvm::DenseMap<std::pair<unsigned int, unsigned int>, std::string>
       RpcResultMap;
+  // Outstanding calls by handle; entry ids don't fit in a packed 32-bit
+  // handle alongside the call uid.
+  typedef llvm::DenseMap<unsigned int, std::pair<unsigned int, unsigned int>>
+      RpcCallMap;
 
-  mutable std::mutex m_mutex;
+  mutable StatMutex m_mutex;
   EntriesMap m_entries;
   IdMap m_idmap;
   RpcResultMap m_rpc_results;
+  RpcCallMap m_rpc_calls;
+  unsigned int m_rpc_call_handle = 0;
   // If any persistent values have changed
   mutable bool m_persistent_dirty = false;
 
+  // persistent save statistics (filename-based saves only)
+  mutable std::atomic_ullong m_save_count;
+  mutable std::atomic_ullong m_save_last;
+  mutable std::atomic_ullong m_save_max;
+
   // condition variable and termination flag for blocking on a RPC result
   std::atomic_bool m_terminating;
-  std::condition_variable m_rpc_results_cond;
+  std::condition_variable_any m_rpc_results_cond;
+
+  // An outgoing message and the flags of its entry.
+  typedef std::pair<std::shared_ptr<Message>, unsigned int> OutgoingMsg;
+
+  // Names of entries whose publish policy has a pending value; may include
+  // entries that have since been deleted or published.
+  std::vector<std::string> m_publish_pending;
 
   // configured by dispatcher at startup
   QueueOutgoingFunc m_queue_outgoing;
+  SyncedFunc m_synced;
   bool m_server = true;
+  std::atomic_uint m_node_id;
+
+  // Cluster mode: the write that deleted each entry without a value, and
+  // when it was made (m_tombstone_stamp counts them).
+  struct Tombstone {
+    SequenceNumber seq_num;
+    unsigned int origin;
+    unsigned long long stamp;
+  };
+  llvm::StringMap<Tombstone> m_tombstones;
+  unsigned long long m_tombstone_stamp = 0;
 
   // references to singletons (we don't grab them directly for testing purposes)
   Notifier& m_notifier;
   RpcServer& m_rpc_server;
+  DataLogger& m_data_logger;
+  // false for storage owned by a non-default instance
+  bool m_process_wide;
+
+  // Records the change in the data log (if running) and notifies listeners.
+  void NotifyEntry(StringRef name, std::shared_ptr<Value> value,
+                   unsigned int flags) {
+    if (m_data_logger.active()) m_data_logger.LogEntry(name, value, flags);
+    m_notifier.NotifyEntry(name, value, flags);
+  }
+
+  void SetEntryTypeValueImpl(StringRef name, std::shared_ptr<Value> value,
+                             bool local);
+  void DeleteEntryImpl(StringRef name, bool local);
+
+  // Marks a connection synchronized from a snapshot; needs the lock held.
+  void SetSynchronized(NetworkConnection& conn);
+
+  // Cluster mode; these need the lock held.  MakePeerDelete() returns null
+  // if not clustered, and otherwise also keeps a tombstone for the entry.
+  // LiftTombstone() is for a local write that makes the entry again, which
+  // must win over the delete.
+  std::shared_ptr<Message> MakePeerEntry(const Entry& entry) const;
+  std::shared_ptr<Message> MakePeerDelete(const Entry& entry);
+  void AddTombstone(StringRef name, SequenceNumber seq_num,
+                    unsigned int origin);
+  void LiftTombstone(Entry* entry);
+  void FlagsChanged(Entry* entry) {
+    if (m_node_id == 0) return;
+    ++entry->flags_seq;
+    entry->flags_origin = 0;
+  }
 
   bool GetPersistentEntries(
       bool periodic,
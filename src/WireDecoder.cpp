@@ -14,6 +14,7 @@
 
 #include "llvm/MathExtras.h"
 #include "leb128.h"
+#include "lz4.h"
 
 using namespace nt;
 
@@ -45,13 +46,14 @@ static double ReadDouble(const char*& buf) {
   return llvm::BitsToDouble(val);
 }
 
-WireDecoder::WireDecoder(raw_istream& is, unsigned int proto_rev) : m_is(is) {
+WireDecoder::WireDecoder(raw_istream& is, unsigned int proto_rev) : m_is(&is) {
   // Start with a 1K temporary buffer.  Use malloc instead of new so we can
   // realloc.
   m_allocated = 1024;
   m_buf = static_cast<char*>(std::malloc(m_allocated));
   m_proto_rev = proto_rev;
   m_error = nullptr;
+  m_compression = false;
 }
 
 WireDecoder::~WireDecoder() { std::free(m_buf); }
@@ -63,6 +65,25 @@ bool WireDecoder::ReadDouble(double* val) {
   return true;
 }
 
+bool WireDecoder::ReadId(unsigned int* id) {
+  if (m_proto_rev < 0x0302u) return Read16(id);
+  unsigned int result = 0;
+  for (int shift = 0;; shift += 7) {
+    unsigned int byte;
+    if (!Read8(&byte)) return false;
+    // the fifth byte holds the top 3 bits and ends the id; ids are limited
+    // to 31 bits so they never collide with the markers of a DenseMap
+    if (shift == 28 && byte > 0x07) {
+      m_error = "entry id out of range";
+      return false;
+    }
+    result |= (byte & 0x7f) << shift;
+    if (!(byte & 0x80)) break;
+  }
+  *id = result;
+  return true;
+}
+
 void WireDecoder::Realloc(std::size_t len) {
   // Double current buffer size until we have enough space.
   if (m_allocated >= len) return;
@@ -109,7 +130,56 @@ bool WireDecoder::ReadType(NT_Type* type) {
   return true;
 }
 
-std::shared_ptr<Value> WireDecoder::ReadValue(NT_Type type) {
+std::shared_ptr<Value> WireDecoder::ReadValue(NT_Type type, unsigned int id) {
+  if (!m_compression || type == NT_BOOLEAN || type == NT_DOUBLE)
+    return ReadPlainValue(type);
+
+  unsigned int encoding;
+  if (!Read8(&encoding)) return nullptr;
+  if (encoding == kValuePlain) return ReadPlainValue(type);
+  if (encoding != kValueLz4 && encoding != kValueLz4Delta) {
+    m_error = "unrecognized value encoding";
+    return nullptr;
+  }
+  unsigned long len, compressed_len;
+  if (!ReadUleb128(&len) || !ReadUleb128(&compressed_len)) return nullptr;
+  const char* buf;
+  if (!Read(&buf, compressed_len)) return nullptr;
+  std::string plain;
+  if (!DecompressLz4(llvm::StringRef(buf, compressed_len), len, &plain)) {
+    m_error = "invalid compressed value";
+    return nullptr;
+  }
+
+  std::string* base = id != 0xffff ? &m_delta_base[id] : nullptr;
+  if (encoding == kValueLz4Delta) {
+    if (!base || base->size() != len) {
+      m_error = "compressed value delta without a base";
+      return nullptr;
+    }
+    for (std::size_t i = 0; i < len; ++i) plain[i] ^= (*base)[i];
+  }
+
+  raw_mem_istream is(plain.data(), plain.size());
+  WireDecoder decoder(is, m_proto_rev);
+  auto value = decoder.ReadPlainValue(type);
+  if (!value) {
+    m_error = "invalid compressed value";
+    return nullptr;
+  }
+  if (base) *base = std::move(plain);
+  return value;
+}
+
+bool WireDecoder::ReadArraySize(unsigned int* size) {
+  if (m_proto_rev < 0x0302u) return Read8(size);
+  unsigned long v;
+  if (!ReadUleb128(&v)) return false;
+  *size = v;
+  return true;
+}
+
+std::shared_ptr<Value> WireDecoder::ReadPlainValue(NT_Type type) {
   switch (type) {
     case NT_BOOLEAN: {
       unsigned int v;
@@ -147,7 +217,7 @@ std::shared_ptr<Value> WireDecoder::ReadValue(NT_Type type) {
     case NT_BOOLEAN_ARRAY: {
       // size
       unsigned int size;
-      if (!Read8(&size)) return nullptr;
+      if (!ReadArraySize(&size)) return nullptr;
 
       // array values
       const char* buf;
@@ -160,11 +230,11 @@ std::shared_ptr<Value> WireDecoder::ReadValue(NT_Type type) {
     case NT_DOUBLE_ARRAY: {
       // size
       unsigned int size;
-      if (!Read8(&size)) return nullptr;
+      if (!ReadArraySize(&size)) return nullptr;
 
       // array values
       const char* buf;
-      if (!Read(&buf, size * 8)) return nullptr;
+      if (!Read(&buf, static_cast<std::size_t>(size) * 8)) return nullptr;
       std::vector<double> v(size);
       for (unsigned int i = 0; i < size; ++i)
         v[i] = ::ReadDouble(buf);
@@ -173,7 +243,7 @@ std::shared_ptr<Value> WireDecoder::ReadValue(NT_Type type) {
     case NT_STRING_ARRAY: {
       // size
       unsigned int size;
-      if (!Read8(&size)) return nullptr;
+      if (!ReadArraySize(&size)) return nullptr;
 
       // array values
       std::vector<std::string> v(size);
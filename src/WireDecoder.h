@@ -9,7 +9,9 @@
 #define NT_WIREDECODER_H_
 
 #include <cstddef>
+#include <string>
 
+#include "llvm/DenseMap.h"
 #include "nt_Value.h"
 #include "leb128.h"
 //#include "Log.h"
@@ -34,6 +36,21 @@ class WireDecoder {
   /* Get the active protocol revision. */
   unsigned int proto_rev() const { return m_proto_rev; }
 
+  /* Enables reading compressed values (negotiated with the peer).  Only for
+   * protocol 3.2 and later.
+   */
+  void set_compression(bool enabled) { m_compression = enabled; }
+
+  /* Switches to reading from another input stream, keeping all other state;
+   * returns the previous stream.  Used to decode messages that arrived in
+   * chunks.
+   */
+  raw_istream& set_stream(raw_istream& is) {
+    raw_istream& prev = *m_is;
+    m_is = &is;
+    return prev;
+  }
+
   /* Clears error indicator. */
   void Reset() { m_error = nullptr; }
 
@@ -52,7 +69,7 @@ class WireDecoder {
   bool Read(const char** buf, std::size_t len) {
     if (len > m_allocated) Realloc(len);
     *buf = m_buf;
-    bool rv = m_is.read(m_buf, len);
+    bool rv = m_is->read(m_buf, len);
 #if 0
     nt::Logger& logger = nt::Logger::GetInstance();
     if (logger.min_level() <= NT_LOG_DEBUG4 && logger.HasLogger()) {
@@ -108,17 +125,33 @@ class WireDecoder {
     return true;
   }
 
+  /* Reads a 64-bit word. */
+  bool Read64(unsigned long long* val) {
+    unsigned long hi, lo;
+    if (!Read32(&hi) || !Read32(&lo)) return false;
+    *val = (static_cast<unsigned long long>(hi) << 32) | lo;
+    return true;
+  }
+
+  /* Reads an entry id: a 16-bit word, or ULEB128-encoded from version 3.2
+   * on.
+   */
+  bool ReadId(unsigned int* id);
+
   /* Reads a double. */
   bool ReadDouble(double* val);
 
   /* Reads an ULEB128-encoded unsigned integer. */
   bool ReadUleb128(unsigned long* val) {
-    return nt::ReadUleb128(m_is, val);
+    return nt::ReadUleb128(*m_is, val);
   }
 
   bool ReadType(NT_Type* type);
   bool ReadString(std::string* str);
-  std::shared_ptr<Value> ReadValue(NT_Type type);
+  /* Reads a value.  If compression is enabled, the id is that of the entry,
+   * as the value may be a delta against the previous one.
+   */
+  std::shared_ptr<Value> ReadValue(NT_Type type, unsigned int id = 0xffff);
 
   WireDecoder(const WireDecoder&) = delete;
   WireDecoder& operator=(const WireDecoder&) = delete;
@@ -134,14 +167,23 @@ class WireDecoder {
   /* Reallocate temporary buffer to specified length. */
   void Realloc(std::size_t len);
 
+  std::shared_ptr<Value> ReadPlainValue(NT_Type type);
+  bool ReadArraySize(unsigned int* size);
+
   /* input stream */
-  raw_istream& m_is;
+  raw_istream* m_is;
 
   /* temporary buffer */
   char* m_buf;
 
   /* allocated size of temporary buffer */
   std::size_t m_allocated;
+
+  /* whether compression is enabled, and the last compressed value read for
+   * each id
+   */
+  bool m_compression;
+  llvm::DenseMap<unsigned int, std::string> m_delta_base;
 };
 
 }  // namespace nt
@@ -14,12 +14,14 @@
 
 #include "llvm/MathExtras.h"
 #include "leb128.h"
+#include "lz4.h"
 
 using namespace nt;
 
 WireEncoder::WireEncoder(unsigned int proto_rev) {
   m_proto_rev = proto_rev;
   m_error = nullptr;
+  m_compress_threshold = 0;
 }
 
 void WireEncoder::WriteDouble(double val) {
@@ -99,22 +101,29 @@ std::size_t WireEncoder::GetValueSize(const Value& value) const {
       if (m_proto_rev < 0x0300u) return 0;
       return GetStringSize(value.GetRpc());
     case NT_BOOLEAN_ARRAY: {
-      // 1-byte size, 1 byte per element
+      // 1-byte size (ULEB128 from 3.2), 1 byte per element
       std::size_t size = value.GetBooleanArray().size();
+      if (m_proto_rev >= 0x0302u) return SizeUleb128(size) + size;
       if (size > 0xff) size = 0xff; // size is only 1 byte, truncate
       return 1 + size;
     }
     case NT_DOUBLE_ARRAY: {
-      // 1-byte size, 8 bytes per element
+      // 1-byte size (ULEB128 from 3.2), 8 bytes per element
       std::size_t size = value.GetDoubleArray().size();
+      if (m_proto_rev >= 0x0302u) return SizeUleb128(size) + size * 8;
       if (size > 0xff) size = 0xff; // size is only 1 byte, truncate
       return 1 + size * 8;
     }
     case NT_STRING_ARRAY: {
       auto v = value.GetStringArray();
       std::size_t size = v.size();
-      if (size > 0xff) size = 0xff; // size is only 1 byte, truncate
-      std::size_t len = 1; // 1-byte size
+      std::size_t len;
+      if (m_proto_rev >= 0x0302u) {
+        len = SizeUleb128(size);
+      } else {
+        if (size > 0xff) size = 0xff; // size is only 1 byte, truncate
+        len = 1; // 1-byte size
+      }
       for (std::size_t i = 0; i < size; ++i)
         len += GetStringSize(v[i]);
       return len;
@@ -124,7 +133,53 @@ std::size_t WireEncoder::GetValueSize(const Value& value) const {
   }
 }
 
-void WireEncoder::WriteValue(const Value& value) {
+void WireEncoder::WriteValue(const Value& value, unsigned int id) {
+  NT_Type type = value.type();
+  if (m_compress_threshold == 0 || type == NT_BOOLEAN || type == NT_DOUBLE) {
+    WritePlainValue(value);
+    return;
+  }
+
+  // an encoding byte, then the value, compressed if large enough
+  std::size_t start = m_data.size();
+  Write8(kValuePlain);
+  WritePlainValue(value);
+  std::size_t len = m_data.size() - start - 1;
+  if (len < m_compress_threshold) return;
+  std::string plain(m_data.data() + start + 1, len);
+
+  // delta against the previous value if it's the same size
+  std::string* base = id != 0xffff ? &m_delta_base[id] : nullptr;
+  unsigned int encoding = kValueLz4;
+  std::string compressed;
+  if (base && base->size() == len) {
+    encoding = kValueLz4Delta;
+    std::string delta(plain);
+    for (std::size_t i = 0; i < len; ++i) delta[i] ^= (*base)[i];
+    CompressLz4(delta, &compressed);
+  } else {
+    CompressLz4(plain, &compressed);
+  }
+  if (SizeUleb128(len) + SizeUleb128(compressed.size()) + compressed.size() >=
+      len)
+    return;  // not worth it
+
+  m_data.resize(start);
+  Write8(encoding);
+  WriteUleb128(len);
+  WriteUleb128(compressed.size());
+  m_data.append(compressed.begin(), compressed.end());
+  if (base) *base = std::move(plain);
+}
+
+void WireEncoder::WriteArraySize(std::size_t size) {
+  if (m_proto_rev >= 0x0302u)
+    WriteUleb128(size);
+  else
+    Write8(size);
+}
+
+void WireEncoder::WritePlainValue(const Value& value) {
   switch (value.type()) {
     case NT_BOOLEAN:
       Write8(value.GetBoolean() ? 1 : 0);
@@ -152,8 +207,9 @@ void WireEncoder::WriteValue(const Value& value) {
     case NT_BOOLEAN_ARRAY: {
       auto v = value.GetBooleanArray();
       std::size_t size = v.size();
-      if (size > 0xff) size = 0xff; // size is only 1 byte, truncate
-      Write8(size);
+      // size is only 1 byte before 3.2, truncate
+      if (m_proto_rev < 0x0302u && size > 0xff) size = 0xff;
+      WriteArraySize(size);
 
       for (std::size_t i = 0; i < size; ++i)
         Write8(v[i] ? 1 : 0);
@@ -162,8 +218,9 @@ void WireEncoder::WriteValue(const Value& value) {
     case NT_DOUBLE_ARRAY: {
       auto v = value.GetDoubleArray();
       std::size_t size = v.size();
-      if (size > 0xff) size = 0xff; // size is only 1 byte, truncate
-      Write8(size);
+      // size is only 1 byte before 3.2, truncate
+      if (m_proto_rev < 0x0302u && size > 0xff) size = 0xff;
+      WriteArraySize(size);
 
       for (std::size_t i = 0; i < size; ++i)
         WriteDouble(v[i]);
@@ -172,8 +229,9 @@ void WireEncoder::WriteValue(const Value& value) {
     case NT_STRING_ARRAY: {
       auto v = value.GetStringArray();
       std::size_t size = v.size();
-      if (size > 0xff) size = 0xff; // size is only 1 byte, truncate
-      Write8(size);
+      // size is only 1 byte before 3.2, truncate
+      if (m_proto_rev < 0x0302u && size > 0xff) size = 0xff;
+      WriteArraySize(size);
 
       for (std::size_t i = 0; i < size; ++i)
         WriteString(v[i]);
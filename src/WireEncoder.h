@@ -10,7 +10,9 @@
 
 #include <cassert>
 #include <cstddef>
+#include <string>
 
+#include "llvm/DenseMap.h"
 #include "llvm/SmallVector.h"
 #include "llvm/StringRef.h"
 #include "nt_Value.h"
@@ -32,12 +34,22 @@ class WireEncoder {
   /* Get the active protocol revision. */
   unsigned int proto_rev() const { return m_proto_rev; }
 
+  /* Enables value compression (negotiated with the peer) for values of at
+   * least threshold bytes; 0 disables it.  Only for protocol 3.2 and later.
+   */
+  void set_compression(std::size_t threshold) {
+    m_compress_threshold = threshold;
+  }
+
   /* Clears buffer and error indicator. */
   void Reset() {
     m_data.clear();
     m_error = nullptr;
   }
 
+  /* Discards everything written after the first size bytes. */
+  void Truncate(std::size_t size) { m_data.resize(size); }
+
   /* Returns error indicator (a string describing the error).  Returns nullptr
    * if no error has occurred.
    */
@@ -69,6 +81,22 @@ class WireEncoder {
                    (char)(val & 0xff)});
   }
 
+  /* Writes a 64-bit word. */
+  void Write64(unsigned long long val) {
+    Write32(static_cast<unsigned long>((val >> 32) & 0xffffffff));
+    Write32(static_cast<unsigned long>(val & 0xffffffff));
+  }
+
+  /* Writes an entry id: a 16-bit word, or ULEB128-encoded from version 3.2
+   * on.
+   */
+  void WriteId(unsigned int id) {
+    if (m_proto_rev >= 0x0302u)
+      WriteUleb128(id);
+    else
+      Write16(id);
+  }
+
   /* Writes a double. */
   void WriteDouble(double val);
 
@@ -76,7 +104,10 @@ class WireEncoder {
   void WriteUleb128(unsigned long val);
 
   void WriteType(NT_Type type);
-  void WriteValue(const Value& value);
+  /* Writes a value.  If compression is enabled, the id is that of the entry,
+   * so the value can be encoded as a delta against the previous one.
+   */
+  void WriteValue(const Value& value, unsigned int id = 0xffff);
   void WriteString(llvm::StringRef str);
 
   /* Utility function to get the written size of a value (without actually
@@ -97,7 +128,16 @@ class WireEncoder {
   const char* m_error;
 
  private:
+  void WritePlainValue(const Value& value);
+  void WriteArraySize(std::size_t size);
+
   llvm::SmallVector<char, 256> m_data;
+
+  /* Compression threshold (0 if disabled), and the last compressed value
+   * written for each id.
+   */
+  std::size_t m_compress_threshold;
+  llvm::DenseMap<unsigned int, std::string> m_delta_base;
 };
 
 }  // namespace nt
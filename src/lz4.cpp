@@ -0,0 +1,139 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "lz4.h"
+
+#include <cstdint>
+#include <cstring>
+#include <vector>
+
+namespace nt {
+
+// A minimal implementation of the LZ4 block format: a series of sequences,
+// each a token byte (literal length in the high nibble, match length - 4 in
+// the low nibble, 15 meaning more length bytes follow), the literals, and a
+// 2-byte little-endian match offset.  The last sequence has literals only.
+static const unsigned int kHashBits = 12;
+static const std::size_t kMinMatch = 4;
+// the last 5 bytes are always literals, and the last match starts at least
+// 12 bytes before the end
+static const std::size_t kLastLiterals = 5;
+static const std::size_t kMatchLimit = 12;
+static const std::size_t kMaxOffset = 0xffff;
+
+static inline std::uint32_t Read32(const char* p) {
+  std::uint32_t v;
+  std::memcpy(&v, p, 4);
+  return v;
+}
+
+static inline unsigned int Hash(std::uint32_t v) {
+  return (v * 2654435761u) >> (32 - kHashBits);
+}
+
+static void WriteLength(std::size_t len, std::string* out) {
+  for (; len >= 255; len -= 255) out->push_back(static_cast<char>(255));
+  out->push_back(static_cast<char>(len));
+}
+
+// A match_len of 0 ends the block.
+static void WriteSequence(const char* literals, std::size_t literal_len,
+                          std::size_t offset, std::size_t match_len,
+                          std::string* out) {
+  std::size_t extra = match_len != 0 ? match_len - kMinMatch : 0;
+  unsigned int token = (literal_len < 15 ? literal_len : 15) << 4;
+  if (match_len != 0) token |= extra < 15 ? extra : 15;
+  out->push_back(static_cast<char>(token));
+  if (literal_len >= 15) WriteLength(literal_len - 15, out);
+  out->append(literals, literal_len);
+  if (match_len == 0) return;
+  out->push_back(static_cast<char>(offset & 0xff));
+  out->push_back(static_cast<char>(offset >> 8));
+  if (extra >= 15) WriteLength(extra - 15, out);
+}
+
+void CompressLz4(llvm::StringRef in, std::string* out) {
+  const char* data = in.data();
+  std::size_t len = in.size();
+  std::size_t anchor = 0;
+  if (len > kMatchLimit) {
+    // most recent position of each hashed 4-byte sequence
+    std::vector<std::uint32_t> table(1u << kHashBits, 0);
+    std::size_t limit = len - kMatchLimit;
+    std::size_t match_end = len - kLastLiterals;
+    std::size_t pos = 0;
+    while (pos < limit) {
+      std::uint32_t seq = Read32(data + pos);
+      unsigned int hash = Hash(seq);
+      std::size_t candidate = table[hash];
+      table[hash] = pos;
+      if (candidate >= pos || pos - candidate > kMaxOffset ||
+          Read32(data + candidate) != seq) {
+        ++pos;
+        continue;
+      }
+      std::size_t match_len = kMinMatch;
+      while (pos + match_len < match_end &&
+             data[candidate + match_len] == data[pos + match_len])
+        ++match_len;
+      WriteSequence(data + anchor, pos - anchor, pos - candidate, match_len,
+                    out);
+      pos += match_len;
+      anchor = pos;
+    }
+  }
+  WriteSequence(data + anchor, len - anchor, 0, 0, out);
+}
+
+static bool ReadLength(const unsigned char** p, const unsigned char* end,
+                       std::size_t* len) {
+  unsigned int byte;
+  do {
+    if (*p == end) return false;
+    byte = *(*p)++;
+    *len += byte;
+  } while (byte == 255);
+  return true;
+}
+
+bool DecompressLz4(llvm::StringRef in, std::size_t out_len, std::string* out) {
+  // no valid block expands by more than this; don't trust out_len blindly
+  if (out_len > in.size() * 255 + 16) return false;
+  out->resize(out_len);
+  char* dest = out_len != 0 ? &(*out)[0] : nullptr;
+  std::size_t pos = 0;
+  const unsigned char* p = reinterpret_cast<const unsigned char*>(in.data());
+  const unsigned char* end = p + in.size();
+  while (p != end) {
+    unsigned int token = *p++;
+    std::size_t literal_len = token >> 4;
+    if (literal_len == 15 && !ReadLength(&p, end, &literal_len)) return false;
+    if (static_cast<std::size_t>(end - p) < literal_len ||
+        out_len - pos < literal_len)
+      return false;
+    std::memcpy(dest + pos, p, literal_len);
+    p += literal_len;
+    pos += literal_len;
+    if (p == end) break;  // last sequence
+
+    if (end - p < 2) return false;
+    std::size_t offset = p[0] | (p[1] << 8);
+    p += 2;
+    if (offset == 0 || offset > pos) return false;
+    std::size_t match_len = token & 15;
+    if (match_len == 15 && !ReadLength(&p, end, &match_len)) return false;
+    match_len += kMinMatch;
+    if (out_len - pos < match_len) return false;
+    // byte by byte, as the match may overlap what it is copying
+    const char* from = dest + pos - offset;
+    for (std::size_t i = 0; i < match_len; ++i) dest[pos + i] = from[i];
+    pos += match_len;
+  }
+  return pos == out_len;
+}
+
+}  // namespace nt
@@ -0,0 +1,39 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_LZ4_H_
+#define NT_LZ4_H_
+
+#include <cstddef>
+#include <string>
+
+#include "llvm/StringRef.h"
+
+namespace nt {
+
+// Encodings of large values on the wire (protocol 3.2, when compression has
+// been negotiated).  Each such value starts with one of these bytes; for the
+// compressed forms, it is followed by the plain size and compressed size
+// (both ULEB128) and the compressed bytes.
+enum ValueEncoding {
+  kValuePlain = 0,
+  kValueLz4 = 1,
+  // the plain value XORed with the previous compressed value for the same
+  // id on the same connection, then compressed
+  kValueLz4Delta = 2
+};
+
+// Appends data compressed in the LZ4 block format to out.
+void CompressLz4(llvm::StringRef in, std::string* out);
+
+// Decompresses an LZ4 block that decompresses to exactly out_len bytes.
+// Returns false if the block is malformed.
+bool DecompressLz4(llvm::StringRef in, std::size_t out_len, std::string* out);
+
+}  // namespace nt
+
+#endif  // NT_LZ4_H_
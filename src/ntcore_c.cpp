@@ -7,6 +7,7 @@
 
 #include "ntcore.h"
 
+#include <algorithm>
 #include <cassert>
 #include <cstdlib>
 
@@ -35,6 +36,7 @@ static void ConvertToC(const ConnectionInfo& in, NT_ConnectionInfo* out) {
   out->remote_port = in.remote_port;
   out->last_update = in.last_update;
   out->protocol_version = in.protocol_version;
+  out->rtt = in.rtt;
 }
 
 static void ConvertToC(const RpcParamDef& in, NT_RpcParamDef* out) {
@@ -142,6 +144,23 @@ unsigned int NT_GetEntryFlags(const char *name, size_t name_len) {
   return nt::GetEntryFlags(StringRef(name, name_len));
 }
 
+void NT_SetEntryHistory(const char *name, size_t name_len, size_t size) {
+  nt::SetEntryHistory(StringRef(name, name_len), size);
+}
+
+size_t NT_GetEntryNumberHistory(const char *name, size_t name_len,
+                                unsigned long long since, double *values,
+                                unsigned long long *times, size_t size) {
+  return nt::GetEntryNumberHistory(StringRef(name, name_len), since, values,
+                                   times, size);
+}
+
+void NT_SetEntryPublishPolicy(const char *name, size_t name_len,
+                              double max_rate, double deadband, int relative) {
+  nt::SetEntryPublishPolicy(StringRef(name, name_len), max_rate, deadband,
+                            relative != 0);
+}
+
 void NT_DeleteEntry(const char *name, size_t name_len) {
   nt::DeleteEntry(StringRef(name, name_len));
 }
@@ -334,6 +353,10 @@ void NT_SetNetworkIdentity(const char *name, size_t name_len) {
   nt::SetNetworkIdentity(StringRef(name, name_len));
 }
 
+void NT_SetSnapshotFile(const char *filename) {
+  nt::SetSnapshotFile(filename ? filename : "");
+}
+
 void NT_StartServer(const char *persist_filename, const char *listen_address,
                     unsigned int port) {
   nt::StartServer(persist_filename, listen_address, port);
@@ -349,6 +372,23 @@ void NT_StopClient(void) {
   nt::StopClient();
 }
 
+void NT_StartRelay(const char *server_name, unsigned int server_port,
+                   const char *listen_address, unsigned int port) {
+  nt::StartRelay(server_name, server_port, listen_address, port);
+}
+
+void NT_StopRelay(void) { nt::StopRelay(); }
+
+void NT_StartCluster(const char *persist_filename, const char *listen_address,
+                     unsigned int port, const char **peer_names,
+                     const unsigned int *peer_ports, size_t peers_len) {
+  std::vector<std::pair<std::string, unsigned int>> peers;
+  peers.reserve(peers_len);
+  for (size_t i = 0; i < peers_len; ++i)
+    peers.emplace_back(peer_names[i], peer_ports[i]);
+  nt::StartCluster(persist_filename, listen_address, port, peers);
+}
+
 void NT_StopRpcServer(void) {
   nt::StopRpcServer();
 }
@@ -361,6 +401,18 @@ void NT_SetUpdateRate(double interval) {
   nt::SetUpdateRate(interval);
 }
 
+void NT_SetOutgoingLimit(size_t max_bytes, enum NT_OutgoingPolicy policy) {
+  nt::SetOutgoingLimit(max_bytes, policy);
+}
+
+void NT_SetNetworkCompression(size_t threshold) {
+  nt::SetNetworkCompression(threshold);
+}
+
+void NT_SetLowPriorityBudget(size_t bytes_per_sec) {
+  nt::SetLowPriorityBudget(bytes_per_sec);
+}
+
 struct NT_ConnectionInfo *NT_GetConnections(size_t *count) {
   auto conn_v = nt::GetConnections();
   *count = conn_v.size();
@@ -373,6 +425,39 @@ struct NT_ConnectionInfo *NT_GetConnections(size_t *count) {
   return conn;
 }
 
+unsigned long long NT_ServerNow(void) { return nt::ServerNow(); }
+
+size_t NT_GetStatistics(unsigned long long *stats, size_t size) {
+  auto stats_v = nt::GetStatistics();
+  if (stats) {
+    if (size > stats_v.size()) size = stats_v.size();
+    std::copy(stats_v.begin(), stats_v.begin() + size, stats);
+  }
+  return stats_v.size();
+}
+
+void NT_SetLatencyTracing(int enabled, const struct NT_String *prefixes,
+                          size_t prefixes_len) {
+  std::vector<std::string> v;
+  v.reserve(prefixes_len);
+  for (size_t i = 0; i < prefixes_len; ++i)
+    v.push_back(ConvertFromC(prefixes[i]));
+  nt::SetLatencyTracing(enabled != 0, v);
+}
+
+size_t NT_GetLatencyHistograms(unsigned long long *data, size_t size) {
+  auto data_v = nt::GetLatencyHistograms();
+  if (data) {
+    if (size > data_v.size()) size = data_v.size();
+    std::copy(data_v.begin(), data_v.begin() + size, data);
+  }
+  return data_v.size();
+}
+
+unsigned long long NT_LatencyBucketValue(size_t bucket) {
+  return nt::LatencyBucketValue(bucket);
+}
+
 /*
  * Persistent Functions
  */
@@ -386,6 +471,32 @@ const char *NT_LoadPersistent(const char *filename,
   return nt::LoadPersistent(filename, warn);
 }
 
+/*
+ * Data Log Functions
+ */
+
+const char *NT_StartDataLog(const char *filename,
+                            const struct NT_String *prefixes,
+                            size_t prefixes_len) {
+  std::vector<std::string> v;
+  v.reserve(prefixes_len);
+  for (size_t i = 0; i < prefixes_len; ++i)
+    v.push_back(ConvertFromC(prefixes[i]));
+  return nt::StartDataLog(filename, v);
+}
+
+void NT_StopDataLog(void) { nt::StopDataLog(); }
+
+const char *NT_StartReplay(const char *filename, double speed) {
+  return nt::StartReplay(filename, speed);
+}
+
+void NT_SeekReplay(double time) { nt::SeekReplay(time); }
+
+void NT_SetReplaySpeed(double speed) { nt::SetReplaySpeed(speed); }
+
+void NT_StopReplay(void) { nt::StopReplay(); }
+
 /*
  * Utility Functions
  */
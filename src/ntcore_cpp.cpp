@@ -11,7 +11,11 @@
 #include <cstdio>
 #include <cstdlib>
 
+#include "DataLogger.h"
+#include "DataLogReplayer.h"
 #include "Dispatcher.h"
+#include "InstanceImpl.h"
+#include "LatencyTracer.h"
 #include "Log.h"
 #include "Notifier.h"
 #include "RpcServer.h"
@@ -45,6 +49,23 @@ unsigned int GetEntryFlags(StringRef name) {
   return Storage::GetInstance().GetEntryFlags(name);
 }
 
+void SetEntryHistory(StringRef name, std::size_t size) {
+  Storage::GetInstance().SetEntryHistory(name, size);
+}
+
+std::size_t GetEntryNumberHistory(StringRef name, unsigned long long since,
+                                  double* values, unsigned long long* times,
+                                  std::size_t size) {
+  return Storage::GetInstance().GetEntryNumberHistory(name, since, values,
+                                                      times, size);
+}
+
+void SetEntryPublishPolicy(StringRef name, double max_rate, double deadband,
+                           bool relative_deadband) {
+  Storage::GetInstance().SetEntryPublishPolicy(name, max_rate, deadband,
+                                               relative_deadband);
+}
+
 void DeleteEntry(StringRef name) {
   Storage::GetInstance().DeleteEntry(name);
 }
@@ -226,6 +247,10 @@ void SetNetworkIdentity(StringRef name) {
   Dispatcher::GetInstance().SetIdentity(name);
 }
 
+void SetSnapshotFile(StringRef filename) {
+  Dispatcher::GetInstance().SetSnapshotFile(filename);
+}
+
 void StartServer(StringRef persist_filename, const char *listen_address,
                  unsigned int port) {
   Dispatcher::GetInstance().StartServer(persist_filename, listen_address, port);
@@ -243,6 +268,23 @@ void StopClient() {
   Dispatcher::GetInstance().Stop();
 }
 
+void StartRelay(const char* server_name, unsigned int server_port,
+                const char* listen_address, unsigned int port) {
+  StartRelay(InstanceImpl::kDefaultInstance, server_name, server_port,
+             listen_address, port);
+}
+
+void StopRelay() {
+  StopRelay(InstanceImpl::kDefaultInstance);
+}
+
+void StartCluster(StringRef persist_filename, const char* listen_address,
+                  unsigned int port,
+                  ArrayRef<std::pair<std::string, unsigned int>> peers) {
+  Dispatcher::GetInstance().StartCluster(persist_filename, listen_address,
+                                         port, peers);
+}
+
 void StopRpcServer() {
   RpcServer::GetInstance().Stop();
 }
@@ -255,10 +297,67 @@ void SetUpdateRate(double interval) {
   Dispatcher::GetInstance().SetUpdateRate(interval);
 }
 
+void SetOutgoingLimit(std::size_t max_bytes, NT_OutgoingPolicy policy) {
+  Dispatcher::GetInstance().SetOutgoingLimit(max_bytes, policy);
+}
+
+void SetNetworkCompression(std::size_t threshold) {
+  Dispatcher::GetInstance().SetNetworkCompression(threshold);
+}
+
+void SetLowPriorityBudget(std::size_t bytes_per_sec) {
+  Dispatcher::GetInstance().SetLowPriorityBudget(bytes_per_sec);
+}
+
 std::vector<ConnectionInfo> GetConnections() {
   return Dispatcher::GetInstance().GetConnections();
 }
 
+unsigned long long ServerNow() {
+  return Dispatcher::GetInstance().ServerNow();
+}
+
+std::vector<unsigned long long> GetStatistics() {
+  std::vector<unsigned long long> stats(NT_STAT_NUM);
+  auto& storage = Storage::GetInstance();
+  auto& dispatcher = Dispatcher::GetInstance();
+  stats[NT_STAT_LOCK_WAIT_COUNT] = storage.lock_wait_count();
+  stats[NT_STAT_LOCK_WAIT_TOTAL] = storage.lock_wait_total();
+  stats[NT_STAT_LOCK_WAIT_MAX] = storage.lock_wait_max();
+  stats[NT_STAT_DISPATCH_LOOPS] = dispatcher.dispatch_loops();
+  stats[NT_STAT_DISPATCH_OVERRUNS] = dispatcher.dispatch_overruns();
+  stats[NT_STAT_SAVE_COUNT] = storage.save_count();
+  stats[NT_STAT_SAVE_LAST_DURATION] = storage.save_last_duration();
+  stats[NT_STAT_SAVE_MAX_DURATION] = storage.save_max_duration();
+  std::size_t depth;
+  Notifier::GetInstance().GetQueueStatistics(
+      &depth, &stats[NT_STAT_NOTIFIER_OLDEST_AGE]);
+  stats[NT_STAT_NOTIFIER_DEPTH] = depth;
+  stats[NT_STAT_RPC_DEPTH] = RpcServer::GetInstance().GetQueueDepth();
+  stats[NT_STAT_DATALOG_RECORDS] = DataLogger::GetInstance().records();
+  stats[NT_STAT_DATALOG_DROPPED] = DataLogger::GetInstance().dropped();
+  dispatcher.GetConnectionStatistics(&stats);
+  stats[NT_STAT_NUM_CONNECTIONS] =
+      (stats.size() - NT_STAT_NUM) / NT_STAT_CONN_NUM;
+  return stats;
+}
+
+void SetLatencyTracing(bool enabled, ArrayRef<std::string> prefixes) {
+  LatencyTracer::GetInstance().SetEnabled(enabled, prefixes);
+  Dispatcher::GetInstance().ResetLatencyHistograms();
+}
+
+std::vector<unsigned long long> GetLatencyHistograms() {
+  std::vector<unsigned long long> data;
+  Dispatcher::GetInstance().GetLatencyHistograms(&data);
+  LatencyTracer::GetInstance().GetHistograms(&data);
+  return data;
+}
+
+unsigned long long LatencyBucketValue(std::size_t bucket) {
+  return LatencyHistogram::BucketValue(bucket);
+}
+
 /*
  * Persistent Functions
  */
@@ -273,6 +372,328 @@ const char* LoadPersistent(
   return Storage::GetInstance().LoadPersistent(filename, warn);
 }
 
+/*
+ * Data Log Functions
+ */
+
+const char* StartDataLog(StringRef filename, ArrayRef<std::string> prefixes) {
+  return DataLogger::GetInstance().Start(filename, prefixes);
+}
+
+void StopDataLog() { DataLogger::GetInstance().Stop(); }
+
+const char* StartReplay(StringRef filename, double speed) {
+  return DataLogReplayer::GetInstance().Start(filename, speed);
+}
+
+void SeekReplay(double time) { DataLogReplayer::GetInstance().Seek(time); }
+
+void SetReplaySpeed(double speed) {
+  DataLogReplayer::GetInstance().SetSpeed(speed);
+}
+
+void StopReplay() { DataLogReplayer::GetInstance().Stop(); }
+
+/*
+ * Instance Functions
+ */
+
+NT_Inst GetDefaultInstance() { return InstanceImpl::kDefaultInstance; }
+
+NT_Inst CreateInstance() { return InstanceImpl::Create(); }
+
+void DestroyInstance(NT_Inst inst) { InstanceImpl::Destroy(inst); }
+
+std::shared_ptr<Value> GetEntryValue(NT_Inst inst, StringRef name) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return nullptr;
+  return ii->storage.GetEntryValue(name);
+}
+
+bool SetEntryValue(NT_Inst inst, StringRef name,
+                   std::shared_ptr<Value> value) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return false;
+  return ii->storage.SetEntryValue(name, value);
+}
+
+void SetEntryTypeValue(NT_Inst inst, StringRef name,
+                       std::shared_ptr<Value> value) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->storage.SetEntryTypeValue(name, value);
+}
+
+void SetEntryFlags(NT_Inst inst, StringRef name, unsigned int flags) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->storage.SetEntryFlags(name, flags);
+}
+
+unsigned int GetEntryFlags(NT_Inst inst, StringRef name) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return 0;
+  return ii->storage.GetEntryFlags(name);
+}
+
+void SetEntryHistory(NT_Inst inst, StringRef name, std::size_t size) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->storage.SetEntryHistory(name, size);
+}
+
+std::size_t GetEntryNumberHistory(NT_Inst inst, StringRef name,
+                                  unsigned long long since, double* values,
+                                  unsigned long long* times,
+                                  std::size_t size) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return 0;
+  return ii->storage.GetEntryNumberHistory(name, since, values, times, size);
+}
+
+void SetEntryPublishPolicy(NT_Inst inst, StringRef name, double max_rate,
+                           double deadband, bool relative_deadband) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->storage.SetEntryPublishPolicy(name, max_rate, deadband,
+                                    relative_deadband);
+}
+
+void DeleteEntry(NT_Inst inst, StringRef name) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->storage.DeleteEntry(name);
+}
+
+void DeleteAllEntries(NT_Inst inst) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->storage.DeleteAllEntries();
+}
+
+std::vector<EntryInfo> GetEntryInfo(NT_Inst inst, StringRef prefix,
+                                    unsigned int types) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return std::vector<EntryInfo>();
+  return ii->storage.GetEntryInfo(prefix, types);
+}
+
+void Flush(NT_Inst inst) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.Flush();
+}
+
+void SetListenerOnStart(NT_Inst inst, std::function<void()> on_start) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->notifier.SetOnStart(on_start);
+}
+
+void SetListenerOnExit(NT_Inst inst, std::function<void()> on_exit) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->notifier.SetOnExit(on_exit);
+}
+
+unsigned int AddEntryListener(NT_Inst inst, StringRef prefix,
+                              EntryListenerCallback callback,
+                              unsigned int flags) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return 0;
+  unsigned int uid = ii->notifier.AddEntryListener(prefix, callback, flags);
+  if ((flags & NT_NOTIFY_IMMEDIATE) != 0)
+    ii->storage.NotifyEntries(prefix, callback);
+  return uid;
+}
+
+void RemoveEntryListener(NT_Inst inst, unsigned int entry_listener_uid) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->notifier.RemoveEntryListener(entry_listener_uid);
+}
+
+unsigned int AddConnectionListener(NT_Inst inst,
+                                   ConnectionListenerCallback callback,
+                                   bool immediate_notify) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return 0;
+  unsigned int uid = ii->notifier.AddConnectionListener(callback);
+  if (immediate_notify) ii->dispatcher.NotifyConnections(callback);
+  return uid;
+}
+
+void RemoveConnectionListener(NT_Inst inst, unsigned int conn_listener_uid) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->notifier.RemoveConnectionListener(conn_listener_uid);
+}
+
+void CreateRpc(NT_Inst inst, StringRef name, StringRef def,
+               RpcCallback callback) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->storage.CreateRpc(name, def, callback);
+}
+
+void CreatePolledRpc(NT_Inst inst, StringRef name, StringRef def) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->storage.CreatePolledRpc(name, def);
+}
+
+bool PollRpc(NT_Inst inst, bool blocking, RpcCallInfo* call_info) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return false;
+  return ii->rpc_server.PollRpc(blocking, call_info);
+}
+
+void PostRpcResponse(NT_Inst inst, unsigned int rpc_id, unsigned int call_uid,
+                     StringRef result) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->rpc_server.PostRpcResponse(rpc_id, call_uid, result);
+}
+
+unsigned int CallRpc(NT_Inst inst, StringRef name, StringRef params) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return 0;
+  return ii->storage.CallRpc(name, params);
+}
+
+bool GetRpcResult(NT_Inst inst, bool blocking, unsigned int call_uid,
+                  std::string* result) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return false;
+  return ii->storage.GetRpcResult(blocking, call_uid, result);
+}
+
+void SetNetworkIdentity(NT_Inst inst, StringRef name) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.SetIdentity(name);
+}
+
+void SetSnapshotFile(NT_Inst inst, StringRef filename) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.SetSnapshotFile(filename);
+}
+
+void StartServer(NT_Inst inst, StringRef persist_filename,
+                 const char* listen_address, unsigned int port) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.StartServer(persist_filename, listen_address, port);
+}
+
+void StopServer(NT_Inst inst) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.Stop();
+}
+
+void StartClient(NT_Inst inst, const char* server_name, unsigned int port) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.StartClient(server_name, port);
+}
+
+void StopClient(NT_Inst inst) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.Stop();
+}
+
+void StartRelay(NT_Inst inst, const char* server_name,
+                unsigned int server_port, const char* listen_address,
+                unsigned int port) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  if (ii->dispatcher.active()) return;
+  if (!ii->relay.Start(server_name, server_port)) return;
+  ii->dispatcher.StartServer("", listen_address, port);
+}
+
+void StopRelay(NT_Inst inst) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->relay.Stop();
+  ii->dispatcher.Stop();
+}
+
+void StartCluster(NT_Inst inst, StringRef persist_filename,
+                  const char* listen_address, unsigned int port,
+                  ArrayRef<std::pair<std::string, unsigned int>> peers) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.StartCluster(persist_filename, listen_address, port, peers);
+}
+
+void SetUpdateRate(NT_Inst inst, double interval) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.SetUpdateRate(interval);
+}
+
+void SetOutgoingLimit(NT_Inst inst, std::size_t max_bytes,
+                      NT_OutgoingPolicy policy) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.SetOutgoingLimit(max_bytes, policy);
+}
+
+void SetNetworkCompression(NT_Inst inst, std::size_t threshold) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.SetNetworkCompression(threshold);
+}
+
+void SetLowPriorityBudget(NT_Inst inst, std::size_t bytes_per_sec) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->dispatcher.SetLowPriorityBudget(bytes_per_sec);
+}
+
+std::vector<ConnectionInfo> GetConnections(NT_Inst inst) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return std::vector<ConnectionInfo>();
+  return ii->dispatcher.GetConnections();
+}
+
+unsigned long long ServerNow(NT_Inst inst) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return Now();
+  return ii->dispatcher.ServerNow();
+}
+
+const char* SavePersistent(NT_Inst inst, StringRef filename) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return "invalid instance";
+  return ii->storage.SavePersistent(filename, false);
+}
+
+const char* LoadPersistent(
+    NT_Inst inst, StringRef filename,
+    std::function<void(size_t line, const char* msg)> warn) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return "invalid instance";
+  return ii->storage.LoadPersistent(filename, warn);
+}
+
+const char* StartDataLog(NT_Inst inst, StringRef filename,
+                         ArrayRef<std::string> prefixes) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return "invalid instance";
+  return ii->data_logger.Start(filename, prefixes);
+}
+
+void StopDataLog(NT_Inst inst) {
+  auto ii = InstanceImpl::Get(inst);
+  if (!ii) return;
+  ii->data_logger.Stop();
+}
+
 void SetLogger(LogFunc func, unsigned int min_level) {
   Logger& logger = Logger::GetInstance();
   logger.SetLogger(func);
@@ -30,6 +30,9 @@ class raw_mem_istream : public raw_istream {
   virtual bool read(void* data, std::size_t len);
   virtual void close() {}
 
+  // Number of bytes not yet read.
+  std::size_t left() const { return m_left; }
+
  private:
   const char* m_cur;
   std::size_t m_left;
@@ -19,6 +19,7 @@ bool raw_socket_istream::read(void* data, std::size_t len) {
         m_stream.receive(&cdata[pos], len - pos, &err, m_timeout);
     if (count == 0) return false;
     pos += count;
+    m_count += count;
   }
   return true;
 }
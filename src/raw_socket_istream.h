@@ -17,14 +17,18 @@ namespace nt {
 class raw_socket_istream : public raw_istream {
  public:
   raw_socket_istream(NetworkStream& stream, int timeout = 0)
-      : m_stream(stream), m_timeout(timeout) {}
+      : m_stream(stream), m_timeout(timeout), m_count(0) {}
   virtual ~raw_socket_istream() = default;
   virtual bool read(void* data, std::size_t len);
   virtual void close();
 
+  // Total number of bytes read so far.
+  unsigned long long count() const { return m_count; }
+
  private:
   NetworkStream& m_stream;
   int m_timeout;
+  unsigned long long m_count;
 };
 
 }  // namespace nt
@@ -44,6 +44,14 @@ class ConcurrentQueue {
     queue_.pop();
   }
 
+  bool try_pop(T& item) {
+    std::unique_lock<std::mutex> mlock(mutex_);
+    if (queue_.empty()) return false;
+    item = std::move(queue_.front());
+    queue_.pop();
+    return true;
+  }
+
   void push(const T& item) {
     std::unique_lock<std::mutex> mlock(mutex_);
     queue_.push(item);
@@ -0,0 +1,45 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_SUPPORT_MAPPEDFILE_H_
+#define NT_SUPPORT_MAPPEDFILE_H_
+
+#include <cstddef>
+
+#include "llvm/StringRef.h"
+
+namespace nt {
+
+// A read-only memory mapping of an entire file.
+class MappedFile {
+ public:
+  MappedFile() = default;
+  ~MappedFile() { Close(); }
+
+  // Returns false if the file could not be opened or mapped.
+  bool Open(llvm::StringRef filename);
+  void Close();
+
+  bool is_open() const { return m_data != nullptr; }
+  const char* data() const { return m_data; }
+  std::size_t size() const { return m_size; }
+
+  MappedFile(const MappedFile&) = delete;
+  MappedFile& operator=(const MappedFile&) = delete;
+
+ private:
+  const char* m_data = nullptr;
+  std::size_t m_size = 0;
+#ifdef _WIN32
+  void* m_file = nullptr;
+  void* m_mapping = nullptr;
+#endif
+};
+
+}  // namespace nt
+
+#endif  // NT_SUPPORT_MAPPEDFILE_H_
@@ -0,0 +1,62 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_SUPPORT_STATMUTEX_H_
+#define NT_SUPPORT_STATMUTEX_H_
+
+#include <atomic>
+#include <mutex>
+
+#include "support/timestamp.h"
+
+namespace nt {
+
+// A mutex that keeps track of how long callers wait to acquire it.  The
+// uncontended path is a single try_lock(); the clock is only read when the
+// lock is already held by another thread.  Wait times are in nt::Now() units.
+// Satisfies Lockable, so it works with std::lock_guard, std::unique_lock, and
+// std::condition_variable_any.
+class StatMutex {
+ public:
+  StatMutex() {
+    m_wait_count = 0;
+    m_wait_total = 0;
+    m_wait_max = 0;
+  }
+
+  void lock() {
+    if (m_mutex.try_lock()) return;
+    auto start = Now();
+    m_mutex.lock();
+    auto wait = Now() - start;
+    ++m_wait_count;
+    m_wait_total += wait;
+    // only updated while holding the lock, so no need for a CAS loop
+    if (wait > m_wait_max) m_wait_max = wait;
+  }
+  bool try_lock() { return m_mutex.try_lock(); }
+  void unlock() { m_mutex.unlock(); }
+
+  // Number of acquisitions that had to wait.
+  unsigned long long wait_count() const { return m_wait_count; }
+  // Total and maximum time spent waiting.
+  unsigned long long wait_total() const { return m_wait_total; }
+  unsigned long long wait_max() const { return m_wait_max; }
+
+  StatMutex(const StatMutex&) = delete;
+  StatMutex& operator=(const StatMutex&) = delete;
+
+ private:
+  std::mutex m_mutex;
+  std::atomic_ullong m_wait_count;
+  std::atomic_ullong m_wait_total;
+  std::atomic_ullong m_wait_max;
+};
+
+}  // namespace nt
+
+#endif  // NT_SUPPORT_STATMUTEX_H_
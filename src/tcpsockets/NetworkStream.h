@@ -30,6 +30,8 @@ class NetworkStream {
 
   virtual llvm::StringRef getPeerIP() const = 0;
   virtual int getPeerPort() const = 0;
+  // Local TCP port, or 0 if not a TCP stream.
+  virtual int getLocalPort() const = 0;
   virtual void setNoDelay() = 0;
 
   NetworkStream(const NetworkStream&) = delete;
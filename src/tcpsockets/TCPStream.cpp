@@ -23,11 +23,13 @@
 
 #include "TCPStream.h"
 
+#include <cstring>
 #ifdef _WIN32
 #include <WinSock2.h>
 #else
 #include <arpa/inet.h>
 #include <netinet/tcp.h>
+#include <sys/socket.h>
 #include <unistd.h>
 #endif
 
@@ -44,6 +46,9 @@ TCPStream::TCPStream(int sd, struct sockaddr_in* address) : m_sd(sd) {
   m_peerPort = ntohs(address->sin_port);
 }
 
+TCPStream::TCPStream(int sd, llvm::StringRef peerIP, int peerPort)
+    : m_sd(sd), m_peerIP(peerIP), m_peerPort(peerPort) {}
+
 TCPStream::~TCPStream() { close(); }
 
 std::size_t TCPStream::send(const char* buffer, std::size_t len, Error* err) {
@@ -75,8 +80,13 @@ std::size_t TCPStream::send(const char* buffer, std::size_t len, Error* err) {
     *err = kConnectionReset;
     return 0;
   }
+#else
+#ifdef MSG_NOSIGNAL
+  // don't raise SIGPIPE if the peer has closed the connection
+  ssize_t rv = ::send(m_sd, buffer, len, MSG_NOSIGNAL);
 #else
   ssize_t rv = write(m_sd, buffer, len);
+#endif
   if (rv < 0) {
     *err = kConnectionReset;
     return 0;
@@ -137,6 +147,20 @@ llvm::StringRef TCPStream::getPeerIP() const { return m_peerIP; }
 
 int TCPStream::getPeerPort() const { return m_peerPort; }
 
+int TCPStream::getLocalPort() const {
+  struct sockaddr_in address;
+#ifdef _WIN32
+  int len = sizeof(address);
+#else
+  socklen_t len = sizeof(address);
+#endif
+  std::memset(&address, 0, sizeof(address));
+  if (getsockname(m_sd, (struct sockaddr*)&address, &len) != 0 ||
+      address.sin_family != AF_INET)
+    return 0;
+  return ntohs(address.sin_port);
+}
+
 void TCPStream::setNoDelay() {
   int optval = 1;
   setsockopt(m_sd, IPPROTO_TCP, TCP_NODELAY, (char*)&optval, sizeof optval);
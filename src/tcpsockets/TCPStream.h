@@ -43,6 +43,8 @@ class TCPStream : public NetworkStream {
  public:
   friend class TCPAcceptor;
   friend class TCPConnector;
+  friend class UnixAcceptor;
+  friend class UnixConnector;
 
   ~TCPStream();
 
@@ -53,6 +55,7 @@ class TCPStream : public NetworkStream {
 
   llvm::StringRef getPeerIP() const override;
   int getPeerPort() const override;
+  int getLocalPort() const override;
   void setNoDelay() override;
 
   TCPStream(const TCPStream& stream) = delete;
@@ -61,6 +64,7 @@ class TCPStream : public NetworkStream {
   bool WaitForReadEvent(int timeout);
 
   TCPStream(int sd, struct sockaddr_in* address);
+  TCPStream(int sd, llvm::StringRef peerIP, int peerPort);
   TCPStream() = delete;
 };
 
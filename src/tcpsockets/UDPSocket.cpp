@@ -0,0 +1,131 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "UDPSocket.h"
+
+#include <cstring>
+#ifdef _WIN32
+#include <WinSock2.h>
+#include <WS2tcpip.h>
+#pragma comment(lib, "Ws2_32.lib")
+#else
+#include <arpa/inet.h>
+#include <netinet/in.h>
+#include <sys/select.h>
+#include <sys/socket.h>
+#include <unistd.h>
+#endif
+
+#include "../Log.h"
+#include "SocketError.h"
+
+using namespace tcpsockets;
+
+bool UDPSocket::ParseAddress(const char* ip, int port, Address* addr) {
+  struct in_addr in;
+  if (inet_pton(AF_INET, ip, &in) != 1) return false;
+  addr->ip = in.s_addr;
+  addr->port = port;
+  return true;
+}
+
+UDPSocket::UDPSocket() : m_sd(-1) {
+#ifdef _WIN32
+  WSAData wsaData;
+  WORD wVersionRequested = MAKEWORD(2, 2);
+  WSAStartup(wVersionRequested, &wsaData);
+#endif
+}
+
+UDPSocket::~UDPSocket() {
+  close();
+#ifdef _WIN32
+  WSACleanup();
+#endif
+}
+
+bool UDPSocket::bind(const char* address, int port) {
+  close();
+  m_sd = socket(AF_INET, SOCK_DGRAM, 0);
+  if (m_sd < 0) {
+    ERROR("could not create socket");
+    return false;
+  }
+
+  struct sockaddr_in addr;
+  std::memset(&addr, 0, sizeof(addr));
+  addr.sin_family = AF_INET;
+  if (address && address[0] != '\0') {
+    if (inet_pton(AF_INET, address, &addr.sin_addr) != 1) {
+      DEBUG("invalid datagram address " << address);
+      close();
+      return false;
+    }
+  } else {
+    addr.sin_addr.s_addr = INADDR_ANY;
+  }
+  addr.sin_port = htons(port);
+
+  int optval = 1;
+  setsockopt(m_sd, SOL_SOCKET, SO_REUSEADDR, (char*)&optval, sizeof optval);
+
+  if (::bind(m_sd, (struct sockaddr*)&addr, sizeof(addr)) != 0) {
+    DEBUG("datagram bind() to port " << port
+                                     << " failed: " << SocketStrerror());
+    close();
+    return false;
+  }
+  return true;
+}
+
+void UDPSocket::close() {
+  if (m_sd < 0) return;
+#ifdef _WIN32
+  closesocket(m_sd);
+#else
+  ::close(m_sd);
+#endif
+  m_sd = -1;
+}
+
+bool UDPSocket::sendTo(const char* buffer, std::size_t len,
+                       const Address& to) {
+  if (m_sd < 0) return false;
+  struct sockaddr_in addr;
+  std::memset(&addr, 0, sizeof(addr));
+  addr.sin_family = AF_INET;
+  addr.sin_addr.s_addr = to.ip;
+  addr.sin_port = htons(to.port);
+  return sendto(m_sd, buffer, len, 0, (struct sockaddr*)&addr,
+                sizeof(addr)) == static_cast<int>(len);
+}
+
+std::size_t UDPSocket::receiveFrom(char* buffer, std::size_t len,
+                                   Address* from, int timeout_ms) {
+  if (m_sd < 0) return 0;
+
+  fd_set sdset;
+  struct timeval tv;
+  tv.tv_sec = timeout_ms / 1000;
+  tv.tv_usec = (timeout_ms % 1000) * 1000;
+  FD_ZERO(&sdset);
+  FD_SET(m_sd, &sdset);
+  if (select(m_sd + 1, &sdset, nullptr, nullptr, &tv) <= 0) return 0;
+
+  struct sockaddr_in addr;
+#ifdef _WIN32
+  int addr_len = sizeof(addr);
+#else
+  socklen_t addr_len = sizeof(addr);
+#endif
+  std::memset(&addr, 0, sizeof(addr));
+  int rv = recvfrom(m_sd, buffer, len, 0, (struct sockaddr*)&addr, &addr_len);
+  if (rv <= 0) return 0;
+  from->ip = addr.sin_addr.s_addr;
+  from->port = ntohs(addr.sin_port);
+  return static_cast<std::size_t>(rv);
+}
@@ -0,0 +1,51 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef TCPSOCKETS_UDPSOCKET_H_
+#define TCPSOCKETS_UDPSOCKET_H_
+
+#include <cstddef>
+#include <cstdint>
+
+// A bound IPv4 datagram socket.  Sends and receives may be called
+// concurrently from different threads.
+class UDPSocket {
+ public:
+  struct Address {
+    std::uint32_t ip = 0;  // network byte order
+    int port = 0;
+
+    bool operator==(const Address& other) const {
+      return ip == other.ip && port == other.port;
+    }
+  };
+
+  // Converts a numeric IP address string; returns false if not valid.
+  static bool ParseAddress(const char* ip, int port, Address* addr);
+
+  UDPSocket();
+  ~UDPSocket();
+
+  // Binds to a local address (null or empty for any) and port (0 for any).
+  bool bind(const char* address, int port);
+  void close();
+
+  bool sendTo(const char* buffer, std::size_t len, const Address& to);
+
+  // Waits up to timeout_ms for a datagram.  Returns its length, or 0 on
+  // timeout or error.  Datagrams longer than len are truncated.
+  std::size_t receiveFrom(char* buffer, std::size_t len, Address* from,
+                          int timeout_ms);
+
+  UDPSocket(const UDPSocket&) = delete;
+  UDPSocket& operator=(const UDPSocket&) = delete;
+
+ private:
+  int m_sd;
+};
+
+#endif  // TCPSOCKETS_UDPSOCKET_H_
@@ -0,0 +1,111 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "UnixAcceptor.h"
+
+#include <cstring>
+#ifndef _WIN32
+#include <fcntl.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <unistd.h>
+#endif
+
+#include "../Log.h"
+#include "SocketError.h"
+#include "TCPStream.h"
+
+using namespace tcpsockets;
+
+UnixAcceptor::UnixAcceptor(const char* path)
+    : m_lsd(-1), m_path(path), m_listening(false) {
+  m_shutdown = false;
+}
+
+UnixAcceptor::~UnixAcceptor() {
+#ifndef _WIN32
+  if (m_lsd >= 0) {
+    shutdown();
+    ::close(m_lsd);
+  }
+  if (m_listening) ::unlink(m_path.c_str());
+#endif
+}
+
+int UnixAcceptor::start() {
+  if (m_listening) return 0;
+#ifdef _WIN32
+  ERROR("unix domain sockets are not supported on this platform");
+  return -1;
+#else
+  struct sockaddr_un address;
+  if (m_path.empty() || m_path.size() >= sizeof(address.sun_path)) {
+    ERROR("invalid unix socket path '" << m_path << "'");
+    return -1;
+  }
+
+  m_lsd = socket(AF_UNIX, SOCK_STREAM, 0);
+  if (m_lsd < 0) {
+    ERROR("could not create socket");
+    return -1;
+  }
+
+  std::memset(&address, 0, sizeof(address));
+  address.sun_family = AF_UNIX;
+  std::memcpy(address.sun_path, m_path.data(), m_path.size());
+
+  // remove a socket file left behind by a previous server
+  ::unlink(m_path.c_str());
+
+  int result = bind(m_lsd, (struct sockaddr*)&address, sizeof(address));
+  if (result != 0) {
+    ERROR("bind() to " << m_path << " failed: " << SocketStrerror());
+    return result;
+  }
+
+  result = listen(m_lsd, 5);
+  if (result != 0) {
+    ERROR("listen() failed: " << SocketStrerror());
+    return result;
+  }
+  m_listening = true;
+  return result;
+#endif
+}
+
+void UnixAcceptor::shutdown() {
+  m_shutdown = true;
+#ifndef _WIN32
+  if (m_lsd < 0) return;
+  // same wakeup as TCPAcceptor: accept() returns once the fd is replaced
+  ::shutdown(m_lsd, SHUT_RDWR);
+  int nullfd = ::open("/dev/null", O_RDONLY);
+  if (nullfd >= 0) {
+    ::dup2(nullfd, m_lsd);
+    ::close(nullfd);
+  }
+#endif
+}
+
+std::unique_ptr<NetworkStream> UnixAcceptor::accept() {
+  if (!m_listening || m_shutdown) return nullptr;
+#ifdef _WIN32
+  return nullptr;
+#else
+  int sd = ::accept(m_lsd, nullptr, nullptr);
+  if (sd < 0) {
+    if (!m_shutdown) ERROR("accept() failed: " << SocketStrerror());
+    return nullptr;
+  }
+  if (m_shutdown) {
+    ::close(sd);
+    return nullptr;
+  }
+  // unix sockets have no peer address; report the socket path instead
+  return std::unique_ptr<NetworkStream>(new TCPStream(sd, m_path, 0));
+#endif
+}
@@ -0,0 +1,34 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef TCPSOCKETS_UNIXACCEPTOR_H_
+#define TCPSOCKETS_UNIXACCEPTOR_H_
+
+#include <atomic>
+#include <memory>
+#include <string>
+
+#include "NetworkAcceptor.h"
+
+// Accepts connections on a Unix domain socket, for clients on the same host.
+// Not supported on Windows (start() fails).
+class UnixAcceptor : public NetworkAcceptor {
+  int m_lsd;
+  std::string m_path;
+  bool m_listening;
+  std::atomic_bool m_shutdown;
+
+ public:
+  explicit UnixAcceptor(const char* path);
+  ~UnixAcceptor();
+
+  int start() override;
+  void shutdown() override;
+  std::unique_ptr<NetworkStream> accept() override;
+};
+
+#endif  // TCPSOCKETS_UNIXACCEPTOR_H_
@@ -0,0 +1,51 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "UnixConnector.h"
+
+#include <cstring>
+#ifndef _WIN32
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <unistd.h>
+#endif
+
+#include "../Log.h"
+#include "SocketError.h"
+#include "TCPStream.h"
+
+using namespace tcpsockets;
+
+std::unique_ptr<NetworkStream> UnixConnector::connect(const char* path) {
+#ifdef _WIN32
+  ERROR("unix domain sockets are not supported on this platform");
+  return nullptr;
+#else
+  struct sockaddr_un address;
+  std::size_t len = std::strlen(path);
+  if (len == 0 || len >= sizeof(address.sun_path)) {
+    ERROR("invalid unix socket path '" << path << "'");
+    return nullptr;
+  }
+  std::memset(&address, 0, sizeof(address));
+  address.sun_family = AF_UNIX;
+  std::memcpy(address.sun_path, path, len);
+
+  int sd = socket(AF_UNIX, SOCK_STREAM, 0);
+  if (sd < 0) {
+    ERROR("could not create socket");
+    return nullptr;
+  }
+  // local connects complete (or fail) immediately, so no timeout is needed
+  if (::connect(sd, (struct sockaddr*)&address, sizeof(address)) != 0) {
+    DEBUG("connect() to " << path << " failed: " << SocketStrerror());
+    ::close(sd);
+    return nullptr;
+  }
+  return std::unique_ptr<NetworkStream>(new TCPStream(sd, path, 0));
+#endif
+}
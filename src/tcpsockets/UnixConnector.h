@@ -0,0 +1,20 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef TCPSOCKETS_UNIXCONNECTOR_H_
+#define TCPSOCKETS_UNIXCONNECTOR_H_
+
+#include <memory>
+
+#include "NetworkStream.h"
+
+class UnixConnector {
+ public:
+  static std::unique_ptr<NetworkStream> connect(const char* path);
+};
+
+#endif  // TCPSOCKETS_UNIXCONNECTOR_H_
@@ -0,0 +1,106 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "ChangeLog.h"
+
+#include <thread>
+#include <vector>
+
+#include "gtest/gtest.h"
+
+namespace nt {
+
+static const unsigned int kNone = ChangeLog::kNoConnection;
+
+TEST(ChangeLogTest, Order) {
+  ChangeLog log;
+  std::vector<ChangeLog::Record> out;
+  log.TakeAll(&out);
+  EXPECT_TRUE(out.empty());
+
+  for (unsigned int i = 0; i < 3; ++i)
+    log.Push(Message::EntryDelete(i), kNone, kNone, false);
+  log.TakeAll(&out);
+  ASSERT_EQ(3u, out.size());
+  for (unsigned int i = 0; i < 3; ++i) EXPECT_EQ(i, out[i].msg->id());
+
+  // appends to what's already there
+  log.Push(Message::EntryDelete(3), kNone, kNone, true);
+  log.TakeAll(&out);
+  ASSERT_EQ(4u, out.size());
+  EXPECT_EQ(3u, out[3].msg->id());
+  EXPECT_TRUE(out[3].unreliable);
+}
+
+TEST(ChangeLogTest, Clear) {
+  ChangeLog log;
+  log.Push(Message::EntryDelete(0), kNone, kNone, false);
+  log.Clear();
+  std::vector<ChangeLog::Record> out;
+  log.TakeAll(&out);
+  EXPECT_TRUE(out.empty());
+  // and the destructor frees what's left
+  log.Push(Message::EntryDelete(0), kNone, kNone, false);
+}
+
+TEST(ChangeLogTest, Targets) {
+  ChangeLog log;
+  log.Push(Message::EntryDelete(0), 5, kNone, false);
+  log.Push(Message::EntryDelete(1), kNone, 0, false);
+  std::vector<ChangeLog::Record> out;
+  log.TakeAll(&out);
+  ASSERT_EQ(2u, out.size());
+  EXPECT_EQ(5u, out[0].only);
+  EXPECT_EQ(kNone, out[0].except);
+  // uid 0 is a real connection
+  EXPECT_EQ(kNone, out[1].only);
+  EXPECT_EQ(0u, out[1].except);
+}
+
+TEST(ChangeLogTest, Stamp) {
+  ChangeLog log;
+  EXPECT_EQ(0u, log.stamp());
+  log.Push(Message::EntryDelete(0), kNone, kNone, false);
+  unsigned long long stamp = log.stamp();
+  log.Push(Message::EntryDelete(1), kNone, kNone, false);
+  std::vector<ChangeLog::Record> out;
+  log.TakeAll(&out);
+  ASSERT_EQ(2u, out.size());
+  // records up to a stamp are those pushed before it was read
+  EXPECT_EQ(stamp, out[0].stamp);
+  EXPECT_LT(stamp, out[1].stamp);
+  EXPECT_EQ(out[1].stamp, log.stamp());
+}
+
+TEST(ChangeLogTest, ConcurrentPush) {
+  ChangeLog log;
+  static const unsigned int kThreads = 4;
+  static const unsigned int kCount = 1000;
+  std::vector<std::thread> threads;
+  for (unsigned int t = 0; t < kThreads; ++t) {
+    threads.emplace_back([&log, t] {
+      for (unsigned int i = 0; i < kCount; ++i)
+        log.Push(Message::EntryUpdate(t, i, nullptr), kNone, kNone, false);
+    });
+  }
+  std::vector<ChangeLog::Record> out;
+  while (out.size() < kThreads * kCount) log.TakeAll(&out);
+  for (auto& thread : threads) thread.join();
+  log.TakeAll(&out);
+  ASSERT_EQ(kThreads * kCount, out.size());
+
+  // each producer's records stay in order
+  std::vector<unsigned int> next(kThreads, 0);
+  for (auto& record : out) {
+    unsigned int t = record.msg->id();
+    ASSERT_LT(t, kThreads);
+    EXPECT_EQ(next[t], record.msg->seq_num_uid());
+    ++next[t];
+  }
+}
+
+}  // namespace nt
@@ -0,0 +1,136 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "DataLogReplayer.h"
+
+#include <chrono>
+#include <cstdio>
+#include <fstream>
+#include <thread>
+
+#include "DataLogger.h"
+#include "WireEncoder.h"
+
+#include "gtest/gtest.h"
+
+#include "StorageTest.h"
+
+namespace nt {
+
+// Log times are 10 seconds apart so that at 1x nothing past the first
+// record (or the seek position) is applied while the test runs.
+static const unsigned long long kSecond = 10000000ull;
+
+class DataLogReplayerTest : public StorageTest, public ::testing::Test {
+ protected:
+  DataLogReplayerTest()
+      : filename("DataLogReplayerTest.ntlog"), replayer(storage) {
+    WireEncoder enc(0x0300);
+    enc.Write8(DataLogger::kDefine);
+    enc.WriteUleb128(0);
+    enc.WriteString("foo");
+    enc.Write8(DataLogger::kDefine);
+    enc.WriteUleb128(1);
+    enc.WriteString("bar");
+    WriteValue(enc, 0, 0, Value::MakeDouble(1.0));
+    WriteValue(enc, 10, 1, Value::MakeString("x"));
+    WriteValue(enc, 20, 0, Value::MakeDouble(2.0));
+    enc.Write8(DataLogger::kDelete);
+    enc.Write64(base + 30 * kSecond);
+    enc.WriteUleb128(1);
+
+    std::ofstream os(filename, std::ios_base::binary);
+    os.write(DataLogger::kMagic, sizeof(DataLogger::kMagic));
+    os.write("\x00\x01", 2);
+    os.write(enc.data(), enc.size());
+  }
+  ~DataLogReplayerTest() {
+    replayer.Stop();
+    std::remove(filename.c_str());
+  }
+
+  void WriteValue(WireEncoder& enc, unsigned int secs, unsigned int id,
+                  std::shared_ptr<Value> value) {
+    enc.Write8(DataLogger::kValue);
+    enc.Write64(base + secs * kSecond);
+    enc.WriteUleb128(id);
+    enc.WriteType(value->type());
+    enc.WriteValue(*value);
+  }
+
+  bool WaitFinished() {
+    for (int i = 0; i < 100 && !replayer.finished(); ++i)
+      std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    return replayer.finished();
+  }
+
+  const unsigned long long base = 1000 * kSecond;
+  std::string filename;
+  DataLogReplayer replayer;
+};
+
+TEST_F(DataLogReplayerTest, AsFastAsPossible) {
+  ASSERT_EQ(nullptr, replayer.Start(filename, 0));
+  ASSERT_TRUE(WaitFinished());
+  EXPECT_EQ(*Value::MakeDouble(2.0), *storage.GetEntryValue("foo"));
+  EXPECT_FALSE(storage.GetEntryValue("bar"));
+}
+
+TEST_F(DataLogReplayerTest, RealTime) {
+  ASSERT_EQ(nullptr, replayer.Start(filename, 1));
+  for (int i = 0; i < 100 && !storage.GetEntryValue("foo"); ++i)
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+  auto value = storage.GetEntryValue("foo");
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(1.0), *value);
+  EXPECT_FALSE(storage.GetEntryValue("bar"));
+  EXPECT_FALSE(replayer.finished());
+
+  // speeding up plays out the rest
+  replayer.SetSpeed(0);
+  ASSERT_TRUE(WaitFinished());
+  EXPECT_EQ(*Value::MakeDouble(2.0), *storage.GetEntryValue("foo"));
+}
+
+TEST_F(DataLogReplayerTest, Seek) {
+  ASSERT_EQ(nullptr, replayer.Start(filename, 1));
+  replayer.Seek(15);
+  EXPECT_EQ(*Value::MakeDouble(1.0), *storage.GetEntryValue("foo"));
+  EXPECT_EQ(*Value::MakeString("x"), *storage.GetEntryValue("bar"));
+
+  replayer.Seek(35);
+  EXPECT_EQ(*Value::MakeDouble(2.0), *storage.GetEntryValue("foo"));
+  EXPECT_FALSE(storage.GetEntryValue("bar"));
+  EXPECT_TRUE(WaitFinished());
+
+  // back to before anything was set
+  replayer.Seek(-1);
+  EXPECT_FALSE(storage.GetEntryValue("bar"));
+}
+
+TEST_F(DataLogReplayerTest, Truncated) {
+  // a partial record at the end is ignored
+  {
+    std::ofstream os(filename, std::ios_base::binary | std::ios_base::app);
+    os.write("\x02\x00\x00", 3);
+  }
+  ASSERT_EQ(nullptr, replayer.Start(filename, 0));
+  ASSERT_TRUE(WaitFinished());
+  EXPECT_EQ(*Value::MakeDouble(2.0), *storage.GetEntryValue("foo"));
+}
+
+TEST_F(DataLogReplayerTest, BadFile) {
+  EXPECT_NE(nullptr, replayer.Start("/nonexistent/dir/log", 0));
+  {
+    std::ofstream os(filename, std::ios_base::binary);
+    os.write("NTLOX\x00\x01", 7);
+  }
+  EXPECT_NE(nullptr, replayer.Start(filename, 0));
+  EXPECT_FALSE(replayer.active());
+}
+
+}  // namespace nt
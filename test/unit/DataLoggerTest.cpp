@@ -0,0 +1,151 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "DataLogger.h"
+
+#include <cstdio>
+#include <fstream>
+#include <sstream>
+
+#include "raw_istream.h"
+#include "WireDecoder.h"
+
+#include "gtest/gtest.h"
+
+namespace nt {
+
+class DataLoggerTest : public ::testing::Test {
+ protected:
+  DataLoggerTest() : filename("DataLoggerTest.ntlog") {}
+  ~DataLoggerTest() {
+    DataLogger::GetInstance().Stop();
+    std::remove(filename.c_str());
+  }
+
+  std::string ReadFile() {
+    std::ifstream is(filename, std::ios_base::binary);
+    std::ostringstream oss;
+    oss << is.rdbuf();
+    return oss.str();
+  }
+
+  std::string filename;
+};
+
+TEST_F(DataLoggerTest, Records) {
+  auto& logger = DataLogger::GetInstance();
+  ASSERT_EQ(nullptr, logger.Start(filename, {}));
+  EXPECT_TRUE(logger.active());
+  logger.LogEntry("foo", Value::MakeDouble(1.0), NT_NOTIFY_NEW);
+  logger.LogEntry("bar", Value::MakeString("x"), NT_NOTIFY_NEW);
+  logger.LogEntry("foo", Value::MakeDouble(2.0), NT_NOTIFY_UPDATE);
+  // flags-only changes are not logged
+  logger.LogEntry("foo", Value::MakeDouble(2.0), NT_NOTIFY_FLAGS);
+  logger.LogEntry("bar", Value::MakeString("x"), NT_NOTIFY_DELETE);
+  logger.Stop();
+  EXPECT_FALSE(logger.active());
+  EXPECT_EQ(4u, logger.records());
+  EXPECT_EQ(0u, logger.dropped());
+
+  std::string data = ReadFile();
+  ASSERT_LE(7u, data.size());
+  EXPECT_EQ("NTLOG", data.substr(0, 5));
+  EXPECT_EQ(std::string("\x00\x01", 2), data.substr(5, 2));
+
+  raw_mem_istream is(data.data() + 7, data.size() - 7);
+  WireDecoder d(is, 0x0300);
+  unsigned int kind;
+  unsigned long id;
+  unsigned long long time;
+  std::string name;
+  NT_Type type;
+
+  // foo defined and set
+  ASSERT_TRUE(d.Read8(&kind));
+  EXPECT_EQ(DataLogger::kDefine, kind);
+  ASSERT_TRUE(d.ReadUleb128(&id));
+  EXPECT_EQ(0u, id);
+  ASSERT_TRUE(d.ReadString(&name));
+  EXPECT_EQ("foo", name);
+  ASSERT_TRUE(d.Read8(&kind));
+  EXPECT_EQ(DataLogger::kValue, kind);
+  ASSERT_TRUE(d.Read64(&time));
+  ASSERT_TRUE(d.ReadUleb128(&id));
+  EXPECT_EQ(0u, id);
+  ASSERT_TRUE(d.ReadType(&type));
+  EXPECT_EQ(NT_DOUBLE, type);
+  auto value = d.ReadValue(type);
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(1.0), *value);
+
+  // bar defined and set
+  ASSERT_TRUE(d.Read8(&kind));
+  EXPECT_EQ(DataLogger::kDefine, kind);
+  ASSERT_TRUE(d.ReadUleb128(&id));
+  EXPECT_EQ(1u, id);
+  ASSERT_TRUE(d.ReadString(&name));
+  EXPECT_EQ("bar", name);
+  ASSERT_TRUE(d.Read8(&kind));
+  ASSERT_TRUE(d.Read64(&time));
+  ASSERT_TRUE(d.ReadUleb128(&id));
+  ASSERT_TRUE(d.ReadType(&type));
+  EXPECT_EQ(NT_STRING, type);
+  ASSERT_TRUE(bool(d.ReadValue(type)));
+
+  // foo updated; the id is reused
+  ASSERT_TRUE(d.Read8(&kind));
+  EXPECT_EQ(DataLogger::kValue, kind);
+  ASSERT_TRUE(d.Read64(&time));
+  ASSERT_TRUE(d.ReadUleb128(&id));
+  EXPECT_EQ(0u, id);
+  ASSERT_TRUE(d.ReadType(&type));
+  value = d.ReadValue(type);
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(2.0), *value);
+
+  // bar deleted
+  ASSERT_TRUE(d.Read8(&kind));
+  EXPECT_EQ(DataLogger::kDelete, kind);
+  ASSERT_TRUE(d.Read64(&time));
+  ASSERT_TRUE(d.ReadUleb128(&id));
+  EXPECT_EQ(1u, id);
+
+  EXPECT_FALSE(d.Read8(&kind));
+}
+
+TEST_F(DataLoggerTest, Prefixes) {
+  auto& logger = DataLogger::GetInstance();
+  std::vector<std::string> prefixes{"/a/", "/b/"};
+  ASSERT_EQ(nullptr, logger.Start(filename, prefixes));
+  logger.LogEntry("/a/x", Value::MakeDouble(1.0), NT_NOTIFY_NEW);
+  logger.LogEntry("/c/x", Value::MakeDouble(1.0), NT_NOTIFY_NEW);
+  logger.LogEntry("/b/x", Value::MakeDouble(1.0), NT_NOTIFY_NEW);
+  logger.Stop();
+  EXPECT_EQ(2u, logger.records());
+}
+
+TEST_F(DataLoggerTest, ManyBlocks) {
+  // enough records to go through several writer blocks
+  auto& logger = DataLogger::GetInstance();
+  ASSERT_EQ(nullptr, logger.Start(filename, {}));
+  auto value = Value::MakeDouble(1.0);
+  for (int i = 0; i < 20000; ++i)
+    logger.LogEntry(i % 2 ? "foo" : "bar", value, NT_NOTIFY_UPDATE);
+  logger.Stop();
+  EXPECT_EQ(20000u, logger.records());
+  EXPECT_EQ(0u, logger.dropped());
+  // header, two defines, and 20000 value records of 1+8+1+1+8 bytes
+  EXPECT_EQ(7u + 2 * 6 + 20000 * 19, ReadFile().size());
+}
+
+TEST_F(DataLoggerTest, BadFile) {
+  EXPECT_NE(nullptr,
+            DataLogger::GetInstance().Start("/nonexistent/dir/log", {}));
+  EXPECT_FALSE(DataLogger::GetInstance().active());
+}
+
+}  // namespace nt
@@ -0,0 +1,408 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "ntcore.h"
+
+#include <atomic>
+#include <chrono>
+#include <cstdio>
+#include <fstream>
+#include <iterator>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include "gtest/gtest.h"
+
+namespace nt {
+
+class InstanceTest : public ::testing::Test {
+ protected:
+  InstanceTest() : inst1(CreateInstance()), inst2(CreateInstance()) {}
+  ~InstanceTest() {
+    DestroyInstance(inst1);
+    DestroyInstance(inst2);
+  }
+
+  NT_Inst inst1;
+  NT_Inst inst2;
+};
+
+TEST_F(InstanceTest, Handles) {
+  EXPECT_NE(0u, inst1);
+  EXPECT_NE(0u, inst2);
+  EXPECT_NE(inst1, inst2);
+  EXPECT_NE(GetDefaultInstance(), inst1);
+
+  // invalid handles are ignored
+  EXPECT_FALSE(SetEntryValue(0, "foo", Value::MakeDouble(1.0)));
+  EXPECT_FALSE(bool(GetEntryValue(0, "foo")));
+  DestroyInstance(0);
+  DestroyInstance(GetDefaultInstance());
+}
+
+TEST_F(InstanceTest, Isolated) {
+  ASSERT_TRUE(SetEntryValue(inst1, "foo", Value::MakeDouble(1.0)));
+  ASSERT_TRUE(SetEntryValue(inst2, "foo", Value::MakeString("bar")));
+  EXPECT_EQ(*Value::MakeDouble(1.0), *GetEntryValue(inst1, "foo"));
+  EXPECT_EQ(*Value::MakeString("bar"), *GetEntryValue(inst2, "foo"));
+  EXPECT_FALSE(bool(GetEntryValue("foo")));
+
+  DeleteAllEntries(inst1);
+  EXPECT_FALSE(bool(GetEntryValue(inst1, "foo")));
+  EXPECT_TRUE(bool(GetEntryValue(inst2, "foo")));
+}
+
+TEST_F(InstanceTest, Recreate) {
+  SetEntryValue(inst1, "foo", Value::MakeDouble(1.0));
+  DestroyInstance(inst1);
+  EXPECT_FALSE(bool(GetEntryValue(inst1, "foo")));
+  inst1 = CreateInstance();
+  ASSERT_NE(0u, inst1);
+  EXPECT_FALSE(bool(GetEntryValue(inst1, "foo")));
+}
+
+TEST_F(InstanceTest, DataLog) {
+  std::string path = "/tmp/ntcore-test-" + std::to_string(inst1) + ".ntlog";
+  ASSERT_EQ(nullptr, StartDataLog(inst1, path, {}));
+  SetEntryValue(inst1, "logged", Value::MakeDouble(1.0));
+  SetEntryValue(inst2, "other", Value::MakeDouble(2.0));
+  SetEntryValue("default", Value::MakeDouble(3.0));
+  StopDataLog(inst1);
+
+  std::ifstream is(path, std::ios_base::binary);
+  std::string contents((std::istreambuf_iterator<char>(is)),
+                       std::istreambuf_iterator<char>());
+  EXPECT_NE(std::string::npos, contents.find("logged"));
+  EXPECT_EQ(std::string::npos, contents.find("other"));
+  EXPECT_EQ(std::string::npos, contents.find("default"));
+  DeleteEntry("default");
+  std::remove(path.c_str());
+}
+
+TEST_F(InstanceTest, DestroyKeepsProcessState) {
+  std::atomic_int logged(0);
+  SetLogger([&](unsigned int, const char*, unsigned int, const char*) {
+    ++logged;
+  }, NT_LOG_DEBUG4);
+  DestroyInstance(inst1);
+  inst1 = CreateInstance();
+  EXPECT_FALSE(NotifierDestroyed());
+  // the logger set above is still installed
+  EXPECT_LT(0, logged.load());
+  SetLogger(nullptr, NT_LOG_INFO);
+}
+
+TEST_F(InstanceTest, Listener) {
+  std::atomic_int count{0};
+  AddEntryListener(inst1, "",
+                   [&](unsigned int, StringRef name, std::shared_ptr<Value>,
+                       unsigned int) {
+                     if (name == "foo") ++count;
+                   },
+                   NT_NOTIFY_NEW | NT_NOTIFY_LOCAL);
+  SetEntryValue(inst2, "foo", Value::MakeDouble(1.0));
+  SetEntryValue(inst1, "foo", Value::MakeDouble(1.0));
+  for (int i = 0; i < 100 && count == 0; ++i)
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+  EXPECT_EQ(1, count);
+}
+
+TEST_F(InstanceTest, ServerClient) {
+  // a server and a client in the same process, over loopback
+  SetEntryValue(inst1, "foo", Value::MakeDouble(5.0));
+  StartServer(inst1, "", "127.0.0.1", 10735);
+  StartClient(inst2, "127.0.0.1", 10735);
+  std::shared_ptr<Value> value;
+  for (int i = 0; i < 300 && !value; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst2, "foo");
+  }
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(5.0), *value);
+  EXPECT_EQ(1u, GetConnections(inst1).size());
+  EXPECT_TRUE(GetConnections().empty());
+}
+
+TEST_F(InstanceTest, ServerClientUnreliable) {
+  SetEntryValue(inst1, "foo", Value::MakeDouble(0.0));
+  SetEntryFlags(inst1, "foo", NT_UNRELIABLE);
+  StartServer(inst1, "", "127.0.0.1", 10737);
+  StartClient(inst2, "127.0.0.1", 10737);
+  for (int i = 0; i < 300 && !GetEntryValue(inst2, "foo"); ++i)
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+  ASSERT_TRUE(bool(GetEntryValue(inst2, "foo")));
+
+  // updates arrive by datagram once the path is up; keep sending in case
+  // some are lost
+  std::shared_ptr<Value> value;
+  for (int i = 1; i < 300; ++i) {
+    SetEntryValue(inst1, "foo", Value::MakeDouble(i));
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst2, "foo");
+    if (value && value->GetDouble() >= 50.0) break;
+  }
+  ASSERT_TRUE(bool(value));
+  EXPECT_GE(value->GetDouble(), 50.0);
+  EXPECT_EQ(NT_UNRELIABLE, GetEntryFlags(inst2, "foo") & NT_UNRELIABLE);
+}
+
+TEST_F(InstanceTest, ServerClientLargeValue) {
+  // sent in chunks, interleaved with other updates
+  std::string big;
+  unsigned int x = 1;
+  for (int i = 0; i < 200000; ++i) {
+    x = x * 1103515245u + 12345u;
+    big.push_back(static_cast<char>(x >> 16));
+  }
+  SetEntryValue(inst1, "big", Value::MakeRaw(big));
+  SetEntryValue(inst1, "small", Value::MakeDouble(1.0));
+  StartServer(inst1, "", "127.0.0.1", 10739);
+  StartClient(inst2, "127.0.0.1", 10739);
+  std::shared_ptr<Value> value;
+  for (int i = 0; i < 300 && !value; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst2, "big");
+  }
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(big, value->GetRaw());
+  value = GetEntryValue(inst2, "small");
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(1.0), *value);
+
+  // a change right behind a large one still wins
+  big[0] ^= 1;
+  SetEntryValue(inst1, "big", Value::MakeRaw(big));
+  Flush(inst1);
+  SetEntryValue(inst1, "big", Value::MakeRaw("done"));
+  for (int i = 0; i < 300; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst2, "big");
+    if (value->GetRaw() == "done") break;
+  }
+  EXPECT_EQ("done", value->GetRaw());
+  EXPECT_EQ(1u, GetConnections(inst1).size());
+}
+
+TEST_F(InstanceTest, ServerClientResume) {
+  SetEntryValue(inst1, "a", Value::MakeDouble(1.0));
+  SetEntryValue(inst1, "b", Value::MakeDouble(2.0));
+  StartServer(inst1, "", "127.0.0.1", 10741);
+  StartClient(inst2, "127.0.0.1", 10741);
+  std::shared_ptr<Value> value;
+  for (int i = 0; i < 300 && !value; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst2, "b");
+  }
+  ASSERT_TRUE(bool(value));
+  StopClient(inst2);
+
+  // only the changes are sent on the reconnect; a full resync would have
+  // the client assign "b" back to the server
+  SetEntryValue(inst1, "a", Value::MakeDouble(3.0));
+  DeleteEntry(inst1, "b");
+  SetEntryValue(inst1, "c", Value::MakeString("new"));
+  SetEntryValue(inst2, "d", Value::MakeBoolean(true));
+  Flush(inst1);
+  StartClient(inst2, "127.0.0.1", 10741);
+  for (int i = 0; i < 300; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    if (GetEntryValue(inst2, "c") && GetEntryValue(inst1, "d")) break;
+  }
+  value = GetEntryValue(inst2, "c");
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeString("new"), *value);
+  value = GetEntryValue(inst2, "a");
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(3.0), *value);
+  EXPECT_FALSE(bool(GetEntryValue(inst2, "b")));
+  EXPECT_TRUE(bool(GetEntryValue(inst1, "d")));
+  std::this_thread::sleep_for(std::chrono::milliseconds(200));
+  EXPECT_FALSE(bool(GetEntryValue(inst1, "b")));
+}
+
+TEST_F(InstanceTest, Relay) {
+  NT_Inst inst3 = CreateInstance();
+  ASSERT_NE(0u, inst3);
+  SetEntryValue(inst1, "up", Value::MakeDouble(1.0));
+  StartServer(inst1, "", "127.0.0.1", 10743);
+  StartRelay(inst2, "127.0.0.1", 10743, "127.0.0.1", 10745);
+  StartClient(inst3, "127.0.0.1", 10745);
+  std::shared_ptr<Value> value;
+  for (int i = 0; i < 300 && !value; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst3, "up");
+  }
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(1.0), *value);
+
+  // and back up from a downstream client, flags included
+  SetEntryValue(inst3, "down", Value::MakeString("x"));
+  SetEntryFlags(inst3, "down", NT_PERSISTENT);
+  value = nullptr;
+  for (int i = 0; i < 300; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst1, "down");
+    if (value && GetEntryFlags(inst1, "down") == NT_PERSISTENT) break;
+  }
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeString("x"), *value);
+  EXPECT_EQ(NT_PERSISTENT, GetEntryFlags(inst1, "down"));
+
+  DeleteEntry(inst1, "up");
+  for (int i = 0; i < 300 && GetEntryValue(inst3, "up"); ++i)
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+  EXPECT_FALSE(bool(GetEntryValue(inst3, "up")));
+  EXPECT_FALSE(bool(GetEntryValue(inst2, "up")));
+
+  // the server only sees the relay
+  EXPECT_EQ(1u, GetConnections(inst1).size());
+  StopRelay(inst2);
+  DestroyInstance(inst3);
+}
+
+TEST_F(InstanceTest, Cluster) {
+  NT_Inst inst3 = CreateInstance();
+  NT_Inst inst4 = CreateInstance();
+  ASSERT_NE(0u, inst3);
+  ASSERT_NE(0u, inst4);
+  SetEntryValue(inst1, "a", Value::MakeDouble(1.0));
+  std::vector<std::pair<std::string, unsigned int>> peers1{
+      {"127.0.0.1", 10749}};
+  std::vector<std::pair<std::string, unsigned int>> peers2{
+      {"127.0.0.1", 10747}};
+  StartCluster(inst1, "", "127.0.0.1", 10747, peers1);
+  StartCluster(inst2, "", "127.0.0.1", 10749, peers2);
+  StartClient(inst3, "127.0.0.1", 10747);
+  StartClient(inst4, "127.0.0.1", 10749);
+  std::shared_ptr<Value> value;
+  for (int i = 0; i < 300 && !value; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst4, "a");
+  }
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(1.0), *value);
+
+  // from a client of one server to a client of the other, flags included
+  SetEntryValue(inst3, "b", Value::MakeString("x"));
+  SetEntryFlags(inst3, "b", NT_PERSISTENT);
+  value = nullptr;
+  for (int i = 0; i < 300; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst4, "b");
+    if (value && GetEntryFlags(inst4, "b") == NT_PERSISTENT) break;
+  }
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeString("x"), *value);
+  EXPECT_EQ(NT_PERSISTENT, GetEntryFlags(inst4, "b"));
+
+  DeleteEntry(inst2, "a");
+  for (int i = 0; i < 300 && GetEntryValue(inst3, "a"); ++i)
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+  EXPECT_FALSE(bool(GetEntryValue(inst3, "a")));
+  EXPECT_FALSE(bool(GetEntryValue(inst1, "a")));
+
+  // conflicting writes end up the same everywhere
+  SetEntryValue(inst1, "c", Value::MakeDouble(1.0));
+  SetEntryValue(inst2, "c", Value::MakeDouble(2.0));
+  auto converged = [&] {
+    auto v1 = GetEntryValue(inst1, "c");
+    auto v2 = GetEntryValue(inst2, "c");
+    auto v3 = GetEntryValue(inst3, "c");
+    auto v4 = GetEntryValue(inst4, "c");
+    return v1 && v2 && v3 && v4 && *v1 == *v2 && *v1 == *v3 && *v1 == *v4;
+  };
+  for (int i = 0; i < 300 && !converged(); ++i)
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+  EXPECT_TRUE(converged());
+
+  DestroyInstance(inst3);
+  DestroyInstance(inst4);
+}
+
+TEST_F(InstanceTest, ClusterDeleteDuringPartition) {
+  std::vector<std::pair<std::string, unsigned int>> peers1{
+      {"127.0.0.1", 10757}};
+  std::vector<std::pair<std::string, unsigned int>> peers2{
+      {"127.0.0.1", 10755}};
+  StartCluster(inst1, "", "127.0.0.1", 10755, peers1);
+  StartCluster(inst2, "", "127.0.0.1", 10757, peers2);
+  SetEntryValue(inst2, "a", Value::MakeDouble(1.0));
+  for (int i = 0; i < 300 && !GetEntryValue(inst1, "a"); ++i)
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+  ASSERT_TRUE(bool(GetEntryValue(inst1, "a")));
+
+  // deleted while the other server is down, which still has it when it
+  // comes back
+  StopServer(inst2);
+  DeleteEntry(inst1, "a");
+  ASSERT_TRUE(bool(GetEntryValue(inst2, "a")));
+  StartCluster(inst2, "", "127.0.0.1", 10757, peers2);
+  for (int i = 0; i < 300 && GetEntryValue(inst2, "a"); ++i)
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+  EXPECT_FALSE(bool(GetEntryValue(inst2, "a")));
+  // give a resurrection time to arrive
+  std::this_thread::sleep_for(std::chrono::milliseconds(200));
+  EXPECT_FALSE(bool(GetEntryValue(inst1, "a")));
+  EXPECT_FALSE(bool(GetEntryValue(inst2, "a")));
+}
+
+TEST_F(InstanceTest, Snapshot) {
+  std::string path =
+      "/tmp/ntcore-test-" + std::to_string(inst1) + ".snapshot";
+  std::remove(path.c_str());
+  SetSnapshotFile(inst1, path);
+  StartServer(inst1, "", "127.0.0.1", 10751);
+  SetEntryValue(inst1, "foo", Value::MakeDouble(5.0));
+  SetEntryFlags(inst1, "foo", NT_UNRELIABLE);
+  StopServer(inst1);
+
+  // restored before the server accepts anyone
+  SetSnapshotFile(inst2, path);
+  StartServer(inst2, "", "127.0.0.1", 10751);
+  auto value = GetEntryValue(inst2, "foo");
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(5.0), *value);
+  EXPECT_EQ(NT_UNRELIABLE, GetEntryFlags(inst2, "foo"));
+
+  // only used once
+  std::FILE* f = std::fopen(path.c_str(), "rb");
+  EXPECT_EQ(nullptr, f);
+  if (f) std::fclose(f);
+  StopServer(inst2);
+  std::remove(path.c_str());
+}
+
+TEST_F(InstanceTest, ServerClientUnix) {
+  std::string path = "/tmp/ntcore-test-" + std::to_string(inst1) + ".sock";
+  std::string address = "unix:" + path;
+  SetEntryValue(inst1, "foo", Value::MakeDouble(5.0));
+  StartServer(inst1, "", address.c_str(), 0);
+  StartClient(inst2, address.c_str(), 0);
+  std::shared_ptr<Value> value;
+  for (int i = 0; i < 300 && !value; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst2, "foo");
+  }
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(5.0), *value);
+
+  // and back from the client
+  SetEntryValue(inst2, "bar", Value::MakeString("baz"));
+  value = nullptr;
+  for (int i = 0; i < 300 && !value; ++i) {
+    std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    value = GetEntryValue(inst1, "bar");
+  }
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeString("baz"), *value);
+  auto conns = GetConnections(inst1);
+  ASSERT_EQ(1u, conns.size());
+  EXPECT_EQ(path, conns[0].remote_name);
+}
+
+}  // namespace nt
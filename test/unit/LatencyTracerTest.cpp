@@ -0,0 +1,58 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "LatencyTracer.h"
+
+#include "gtest/gtest.h"
+
+namespace nt {
+
+TEST(LatencyHistogramTest, BucketIndexSmall) {
+  for (unsigned long long i = 0; i < 8; ++i)
+    EXPECT_EQ(i, LatencyHistogram::BucketIndex(i));
+}
+
+TEST(LatencyHistogramTest, BucketIndexRoundTrip) {
+  for (std::size_t i = 0; i < LatencyHistogram::kNumBuckets; ++i) {
+    unsigned long long value = LatencyHistogram::BucketValue(i);
+    EXPECT_EQ(i, LatencyHistogram::BucketIndex(value));
+    if (i > 0) {
+      EXPECT_EQ(i - 1, LatencyHistogram::BucketIndex(value - 1));
+    }
+  }
+}
+
+TEST(LatencyHistogramTest, BucketIndexPrecision) {
+  // 8 sub-buckets per power of two
+  EXPECT_EQ(LatencyHistogram::BucketIndex(1000),
+            LatencyHistogram::BucketIndex(1023));
+  EXPECT_NE(LatencyHistogram::BucketIndex(1023),
+            LatencyHistogram::BucketIndex(1024));
+  EXPECT_EQ(LatencyHistogram::kNumBuckets - 1,
+            LatencyHistogram::BucketIndex(~0ull));
+}
+
+TEST(LatencyHistogramTest, Get) {
+  LatencyHistogram histogram;
+  histogram.Record(3);
+  histogram.Record(3);
+  histogram.Record(1000);
+  std::vector<unsigned long long> out;
+  histogram.Get(NT_LATENCY_SOURCE_CONNECTION, 5, NT_LATENCY_SENT, &out);
+  ASSERT_EQ(static_cast<std::size_t>(NT_LATENCY_BLOCK), out.size());
+  EXPECT_EQ(static_cast<unsigned long long>(NT_LATENCY_SOURCE_CONNECTION),
+            out[NT_LATENCY_SOURCE]);
+  EXPECT_EQ(5u, out[NT_LATENCY_ID]);
+  EXPECT_EQ(static_cast<unsigned long long>(NT_LATENCY_SENT),
+            out[NT_LATENCY_STAGE]);
+  EXPECT_EQ(3u, out[NT_LATENCY_COUNT]);
+  EXPECT_EQ(2u, out[NT_LATENCY_BUCKETS + 3]);
+  EXPECT_EQ(1u,
+            out[NT_LATENCY_BUCKETS + LatencyHistogram::BucketIndex(1000)]);
+}
+
+}  // namespace nt
@@ -0,0 +1,208 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "Message.h"
+
+#include <vector>
+
+#include "gtest/gtest.h"
+
+#include "raw_istream.h"
+#include "WireDecoder.h"
+#include "WireEncoder.h"
+
+namespace nt {
+
+class MessageTest : public ::testing::Test {
+ protected:
+  MessageTest()
+      : msgs{Message::EntryUpdate(0x10000, 7, Value::MakeDouble(1.0)),
+             Message::EntryUpdate(3, 8, Value::MakeString("foo")),
+             nullptr,
+             Message::EntryUpdate(1, 9, Value::MakeDouble(2.0))} {}
+
+  std::vector<std::shared_ptr<Message>> msgs;
+};
+
+TEST_F(MessageTest, UpdateBatch) {
+  WireEncoder e(0x0302u);
+  Message::WriteUpdates(e, msgs);
+  ASSERT_EQ(nullptr, e.error());
+
+  raw_mem_istream is(e.data(), e.size());
+  WireDecoder d(is, 0x0302u);
+  auto msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  EXPECT_EQ(Message::kEntryUpdateBatch, msg->type());
+  auto& updates = msg->updates();
+  ASSERT_EQ(3u, updates.size());
+  // grouped by type, ids ascending
+  EXPECT_EQ(1u, updates[0].id);
+  EXPECT_EQ(9u, updates[0].seq_num);
+  EXPECT_EQ(*Value::MakeDouble(2.0), *updates[0].value);
+  EXPECT_EQ(0x10000u, updates[1].id);
+  EXPECT_EQ(7u, updates[1].seq_num);
+  EXPECT_EQ(*Value::MakeDouble(1.0), *updates[1].value);
+  EXPECT_EQ(3u, updates[2].id);
+  EXPECT_EQ(8u, updates[2].seq_num);
+  EXPECT_EQ(*Value::MakeString("foo"), *updates[2].value);
+  EXPECT_FALSE(bool(Message::Read(d, nullptr)));
+}
+
+TEST_F(MessageTest, UpdateBatchSize) {
+  std::vector<std::shared_ptr<Message>> doubles;
+  for (unsigned int i = 0; i < 100; ++i)
+    doubles.emplace_back(Message::EntryUpdate(i, 1, Value::MakeDouble(i)));
+  WireEncoder e(0x0302u);
+  Message::WriteUpdates(e, doubles);
+  // 11 bytes per update (id delta, seq num, value) plus a 4 byte header,
+  // rather than 13 bytes each
+  EXPECT_EQ(4u + 100 * 11, e.size());
+}
+
+TEST_F(MessageTest, UpdateBatchOldProtocol) {
+  WireEncoder e(0x0301u);
+  Message::WriteUpdates(e, msgs);
+  raw_mem_istream is(e.data(), e.size());
+  WireDecoder d(is, 0x0301u);
+  for (int i = 0; i < 3; ++i) {
+    auto msg = Message::Read(d, nullptr);
+    ASSERT_TRUE(bool(msg));
+    EXPECT_EQ(Message::kEntryUpdate, msg->type());
+  }
+}
+
+TEST_F(MessageTest, UpdateBatchOfOne) {
+  WireEncoder e(0x0302u);
+  Message::WriteUpdates(e, llvm::makeArrayRef(msgs).slice(1, 2));
+  raw_mem_istream is(e.data(), e.size());
+  WireDecoder d(is, 0x0302u);
+  auto msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  EXPECT_EQ(Message::kEntryUpdate, msg->type());
+  EXPECT_EQ(3u, msg->id());
+}
+
+TEST_F(MessageTest, CompressedUpdates) {
+  WireEncoder e(0x0302u);
+  e.set_compression(64);
+  std::vector<double> arr(2000);
+  for (std::size_t i = 0; i < arr.size(); ++i) arr[i] = i % 10;
+  auto first = Value::MakeDoubleArray(arr);
+  arr[5] = 100.0;
+  auto second = Value::MakeDoubleArray(arr);
+  auto small = Value::MakeString("short");
+  Message::EntryUpdate(4, 1, first)->Write(e);
+  std::size_t first_size = e.size();
+  Message::EntryUpdate(4, 2, second)->Write(e);
+  std::size_t second_size = e.size() - first_size;
+  Message::EntryUpdate(5, 3, small)->Write(e);
+  ASSERT_EQ(nullptr, e.error());
+  // 16000 bytes of doubles
+  EXPECT_LT(first_size, 2000u);
+  // the second is a delta against the first
+  EXPECT_LT(second_size, first_size);
+
+  raw_mem_istream is(e.data(), e.size());
+  WireDecoder d(is, 0x0302u);
+  d.set_compression(true);
+  for (auto& value : {first, second, small}) {
+    auto msg = Message::Read(d, nullptr);
+    ASSERT_TRUE(bool(msg));
+    ASSERT_EQ(nullptr, d.error());
+    ASSERT_TRUE(bool(msg->value()));
+    EXPECT_EQ(*value, *msg->value());
+  }
+}
+
+TEST_F(MessageTest, MessageChunk) {
+  WireEncoder e(0x0302u);
+  Message::MessageChunk(10, "hello")->Write(e);
+  raw_mem_istream is(e.data(), e.size());
+  WireDecoder d(is, 0x0302u);
+  auto msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  EXPECT_EQ(Message::kMessageChunk, msg->type());
+  EXPECT_EQ(10u, msg->id());
+  EXPECT_EQ("hello", msg->str());
+
+  // not before 3.2
+  e.Reset();
+  e.set_proto_rev(0x0301u);
+  Message::MessageChunk(10, "hello")->Write(e);
+  EXPECT_EQ(0u, e.size());
+}
+
+TEST_F(MessageTest, ResumeHello) {
+  WireEncoder e(0x0302u);
+  Message::ClientHello("me", Message::kHelloResume, 0x123456789abcdefull, 42)
+      ->Write(e);
+  Message::ServerHello(0, "server", 7, 50)->Write(e);
+  Message::ResyncPoint(51)->Write(e);
+  raw_mem_istream is(e.data(), e.size());
+  WireDecoder d(is, 0x0302u);
+  auto msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  EXPECT_EQ(Message::kClientHello, msg->type());
+  EXPECT_EQ("me", msg->str());
+  EXPECT_EQ(0x123456789abcdefull, msg->session());
+  EXPECT_EQ(42u, msg->change_seq());
+  msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  EXPECT_EQ(Message::kServerHello, msg->type());
+  EXPECT_EQ(7u, msg->session());
+  EXPECT_EQ(50u, msg->change_seq());
+  msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  EXPECT_EQ(Message::kResyncPoint, msg->type());
+  EXPECT_EQ(51u, msg->change_seq());
+
+  // without the flag, a client hello carries no session
+  e.Reset();
+  Message::ClientHello("me", 0, 5, 6)->Write(e);
+  raw_mem_istream is2(e.data(), e.size());
+  d.set_stream(is2);
+  msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  EXPECT_EQ(0u, msg->session());
+  EXPECT_EQ(0u, msg->change_seq());
+  EXPECT_FALSE(bool(Message::Read(d, nullptr)));
+}
+
+TEST_F(MessageTest, PeerEntry) {
+  WireEncoder e(0x0302u);
+  Message::PeerEntry("foo", 0x12345678, 5, 3, 2, NT_PERSISTENT,
+                     Value::MakeString("bar"))->Write(e);
+  // a delete
+  Message::PeerEntry("baz", 7, 0xffff, 0, 0, 0, nullptr)->Write(e);
+  raw_mem_istream is(e.data(), e.size());
+  WireDecoder d(is, 0x0302u);
+  auto msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  EXPECT_EQ(Message::kPeerEntry, msg->type());
+  EXPECT_EQ("foo", msg->str());
+  EXPECT_EQ(0x12345678u, msg->id());
+  EXPECT_EQ(5u, msg->seq_num_uid());
+  EXPECT_EQ(3u, msg->flags_origin());
+  EXPECT_EQ(2u, msg->flags_seq());
+  EXPECT_EQ(static_cast<unsigned int>(NT_PERSISTENT), msg->flags());
+  ASSERT_TRUE(bool(msg->value()));
+  EXPECT_EQ(*Value::MakeString("bar"), *msg->value());
+  msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  EXPECT_EQ("baz", msg->str());
+  EXPECT_EQ(7u, msg->id());
+  EXPECT_EQ(0xffffu, msg->seq_num_uid());
+  EXPECT_FALSE(bool(msg->value()));
+
+  // not before 3.2
+  raw_mem_istream is2(e.data(), e.size());
+  WireDecoder d2(is2, 0x0301u);
+  EXPECT_FALSE(bool(Message::Read(d2, nullptr)));
+}
+
+}  // namespace nt
@@ -0,0 +1,55 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#ifndef NT_TEST_MOCKNETWORKSTREAM_H_
+#define NT_TEST_MOCKNETWORKSTREAM_H_
+
+#include <memory>
+
+#include "NetworkConnection.h"
+#include "Notifier.h"
+#include "tcpsockets/NetworkStream.h"
+
+namespace nt {
+
+// Stream that discards everything sent and never receives anything.  Used to
+// construct a NetworkConnection without starting its threads.
+class MockNetworkStream : public NetworkStream {
+ public:
+  std::size_t send(const char* buffer, std::size_t len, Error* err) override {
+    *err = kConnectionClosed;
+    return len;
+  }
+  std::size_t receive(char* buffer, std::size_t len, Error* err,
+                      int timeout = 0) override {
+    *err = kConnectionClosed;
+    return 0;
+  }
+  void close() override {}
+  llvm::StringRef getPeerIP() const override { return "127.0.0.1"; }
+  int getPeerPort() const override { return 1735; }
+  int getLocalPort() const override { return 0; }
+  void setNoDelay() override {}
+};
+
+inline std::unique_ptr<NetworkConnection> MakeMockConnection(
+    Message::GetEntryTypeFunc get_entry_type = [](unsigned int) {
+      return NT_UNASSIGNED;
+    }) {
+  return std::unique_ptr<NetworkConnection>(new NetworkConnection(
+      std::unique_ptr<NetworkStream>(new MockNetworkStream),
+      Notifier::GetInstance(),
+      [](NetworkConnection&, std::function<std::shared_ptr<Message>()>,
+         std::function<void(llvm::ArrayRef<std::shared_ptr<Message>>)>) {
+        return false;
+      },
+      get_entry_type));
+}
+
+}  // namespace nt
+
+#endif  // NT_TEST_MOCKNETWORKSTREAM_H_
@@ -0,0 +1,322 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "NetworkConnection.h"
+#include "MockNetworkStream.h"
+
+#include <string>
+#include <vector>
+
+#include "gtest/gtest.h"
+
+namespace nt {
+
+// The connection threads are never started, so anything posted stays queued
+// and counts against the outgoing limit.
+class NetworkConnectionTest : public ::testing::Test {
+ protected:
+  NetworkConnectionTest() : conn(MakeMockConnection()) {
+    conn->set_state(NetworkConnection::kActive);
+    // 3.0 keeps time sync requests out of the byte counts
+    conn->set_proto_rev(0x0300);
+  }
+
+  void QueueUpdate(unsigned int id, double value) {
+    conn->QueueOutgoing(
+        Message::EntryUpdate(id, 1, Value::MakeDouble(value)));
+  }
+
+  static void HoldBehindChunked(std::vector<unsigned int> blocked,
+                                NetworkConnection::Outgoing* msgs,
+                                NetworkConnection::Outgoing* held) {
+    NetworkConnection::HoldBehindChunked(std::move(blocked), msgs, held);
+  }
+
+  std::unique_ptr<NetworkConnection> conn;
+};
+
+TEST_F(NetworkConnectionTest, Unlimited) {
+  QueueUpdate(0, 1.0);
+  conn->PostOutgoing(false);
+  std::size_t first = conn->outgoing_bytes();
+  EXPECT_NE(0u, first);
+  QueueUpdate(0, 2.0);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(2 * first, conn->outgoing_bytes());
+  EXPECT_EQ(0u, conn->coalesce_count());
+  EXPECT_EQ(0u, conn->drop_count());
+}
+
+TEST_F(NetworkConnectionTest, LimitCoalesce) {
+  conn->set_outgoing_limit(20, NT_OUTGOING_COALESCE);
+  QueueUpdate(0, 1.0);
+  conn->PostOutgoing(false);
+  std::size_t first = conn->outgoing_bytes();
+
+  // over the limit: held back and merged
+  QueueUpdate(0, 2.0);
+  conn->PostOutgoing(false);
+  QueueUpdate(0, 3.0);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(first, conn->outgoing_bytes());
+  EXPECT_EQ(2u, conn->coalesce_count());
+  EXPECT_FALSE(conn->overflow_disconnected());
+
+  // once the limit is lifted, only the latest value goes out
+  conn->set_outgoing_limit(0, NT_OUTGOING_COALESCE);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(2 * first, conn->outgoing_bytes());
+}
+
+TEST_F(NetworkConnectionTest, LimitDropUpdates) {
+  conn->set_outgoing_limit(20, NT_OUTGOING_DROP_UPDATES);
+  QueueUpdate(0, 1.0);
+  conn->PostOutgoing(false);
+  std::size_t first = conn->outgoing_bytes();
+
+  QueueUpdate(0, 2.0);
+  QueueUpdate(1, 2.0);
+  conn->QueueOutgoing(Message::EntryDelete(2));
+  conn->PostOutgoing(false);
+  EXPECT_EQ(2u, conn->drop_count());
+  // only the delete is posted
+  EXPECT_EQ(first + 8, conn->outgoing_bytes());
+  EXPECT_FALSE(conn->overflow_disconnected());
+}
+
+TEST_F(NetworkConnectionTest, LimitDisconnect) {
+  conn->set_outgoing_limit(20, NT_OUTGOING_DISCONNECT);
+  QueueUpdate(0, 1.0);
+  conn->PostOutgoing(false);
+  std::size_t first = conn->outgoing_bytes();
+  EXPECT_FALSE(conn->overflow_disconnected());
+
+  QueueUpdate(0, 2.0);
+  conn->PostOutgoing(false);
+  EXPECT_TRUE(conn->overflow_disconnected());
+  EXPECT_EQ(first, conn->outgoing_bytes());
+}
+
+TEST_F(NetworkConnectionTest, TimeSyncRequest) {
+  conn->set_proto_rev(0x0301);
+  // sent even with nothing else pending, but at most once a second
+  conn->PostOutgoing(false);
+  std::size_t first = conn->outgoing_bytes();
+  EXPECT_NE(0u, first);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(first, conn->outgoing_bytes());
+  EXPECT_FALSE(conn->time_synced());
+}
+
+TEST_F(NetworkConnectionTest, ExtendedIds) {
+  // ids beyond 16 bits don't exist for a 3.0 peer
+  QueueUpdate(0x10000, 1.0);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(0u, conn->outgoing_bytes());
+
+  conn->set_proto_rev(0x0302);
+  conn->PostOutgoing(false);  // time sync request
+  std::size_t base = conn->outgoing_bytes();
+  QueueUpdate(0x10000, 1.0);
+  QueueUpdate(0x10000, 2.0);  // merged
+  conn->PostOutgoing(false);
+  std::size_t first = conn->outgoing_bytes() - base;
+  EXPECT_NE(0u, first);
+  QueueUpdate(0x10000, 3.0);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(base + 2 * first, conn->outgoing_bytes());
+}
+
+TEST_F(NetworkConnectionTest, HighPriority) {
+  QueueUpdate(0, 1.0);
+  conn->QueueOutgoing(Message::EntryUpdate(1, 1, Value::MakeDouble(1.0)),
+                      NetworkConnection::kPriorityHigh);
+  conn->PostOutgoing(false);
+  // posted separately, so the writer can take it first
+  EXPECT_EQ(2u, conn->outgoing_depth());
+
+  // but an assignment has to stay ahead of updates to it
+  conn->QueueOutgoing(Message::EntryAssign("foo", 2, 1,
+                                           Value::MakeDouble(1.0), 0));
+  conn->QueueOutgoing(Message::EntryUpdate(2, 2, Value::MakeDouble(2.0)),
+                      NetworkConnection::kPriorityHigh);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(3u, conn->outgoing_depth());
+}
+
+TEST_F(NetworkConnectionTest, LowPriorityBudget) {
+  conn->set_low_priority_budget(30);
+  for (unsigned int id = 0; id < 10; ++id)
+    conn->QueueOutgoing(Message::EntryUpdate(id, 1, Value::MakeDouble(1.0)),
+                        NetworkConnection::kPriorityLow);
+  // superseded by a normal priority update
+  QueueUpdate(9, 2.0);
+  conn->PostOutgoing(false);
+  std::size_t size = 16;  // per update
+  // the normal update, plus a second's worth of budget, overdrawn by one
+  EXPECT_EQ(3 * size, conn->outgoing_bytes());
+
+  // coalesced while waiting
+  conn->QueueOutgoing(Message::EntryUpdate(5, 2, Value::MakeDouble(2.0)),
+                      NetworkConnection::kPriorityLow);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(3 * size, conn->outgoing_bytes());
+
+  conn->set_low_priority_budget(0);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(10 * size, conn->outgoing_bytes());
+}
+
+TEST_F(NetworkConnectionTest, UnreliableWithoutSender) {
+  // no datagram path: same as a normal update
+  conn->QueueUnreliable(
+      Message::EntryUpdate(0, 1, Value::MakeDouble(1.0)));
+  conn->PostOutgoing(false);
+  EXPECT_NE(0u, conn->outgoing_bytes());
+}
+
+TEST_F(NetworkConnectionTest, UnreliableCoalesce) {
+  std::vector<std::string> sent;
+  conn->set_datagram_sender([&](const char* data, std::size_t len) {
+    sent.emplace_back(data, len);
+    return true;
+  });
+  EXPECT_TRUE(conn->datagram_active());
+  conn->QueueUnreliable(Message::EntryUpdate(0, 1, Value::MakeDouble(1.0)));
+  conn->QueueUnreliable(Message::EntryUpdate(1, 1, Value::MakeDouble(2.0)));
+  conn->QueueUnreliable(Message::EntryUpdate(0, 2, Value::MakeDouble(3.0)));
+  conn->PostOutgoing(false);
+  EXPECT_EQ(0u, conn->outgoing_bytes());
+  ASSERT_EQ(1u, sent.size());
+  // header, then two records of id, seq, type and a double
+  ASSERT_EQ(2u + 2 * 13, sent[0].size());
+  EXPECT_EQ(NetworkConnection::kDatagramMagic, sent[0][0]);
+  EXPECT_EQ(NetworkConnection::kDatagramUpdates, sent[0][1]);
+
+  // nothing pending, nothing sent
+  conn->PostOutgoing(false);
+  EXPECT_EQ(1u, sent.size());
+
+  // losing the sender moves pending updates to the stream
+  conn->QueueUnreliable(Message::EntryUpdate(0, 3, Value::MakeDouble(4.0)));
+  conn->set_datagram_sender(nullptr);
+  conn->PostOutgoing(false);
+  EXPECT_EQ(1u, sent.size());
+  EXPECT_NE(0u, conn->outgoing_bytes());
+}
+
+TEST_F(NetworkConnectionTest, UnreliableTooLarge) {
+  std::size_t sent = 0;
+  conn->set_datagram_sender([&](const char*, std::size_t) {
+    ++sent;
+    return true;
+  });
+  conn->QueueUnreliable(
+      Message::EntryUpdate(0, 1, Value::MakeString(std::string(2000, 'x'))));
+  conn->PostOutgoing(false);
+  EXPECT_EQ(0u, sent);
+  EXPECT_NE(0u, conn->outgoing_bytes());
+}
+
+TEST_F(NetworkConnectionTest, ProcessDatagram) {
+  auto conn2 = MakeMockConnection([](unsigned int id) {
+    return id == 5 ? NT_DOUBLE : NT_UNASSIGNED;
+  });
+  std::vector<std::shared_ptr<Message>> incoming;
+  conn2->set_process_incoming(
+      [&](std::shared_ptr<Message> msg, NetworkConnection*) {
+        incoming.push_back(msg);
+      });
+
+  std::string datagram;
+  conn->set_datagram_sender([&](const char* data, std::size_t len) {
+    datagram.assign(data, len);
+    return true;
+  });
+  conn->QueueUnreliable(Message::EntryUpdate(5, 7, Value::MakeDouble(1.5)));
+  // unknown entry
+  conn->QueueUnreliable(Message::EntryUpdate(6, 1, Value::MakeDouble(2.0)));
+  conn->PostOutgoing(false);
+  ASSERT_FALSE(datagram.empty());
+
+  conn2->ProcessDatagram(datagram.data(), datagram.size());
+  ASSERT_EQ(1u, incoming.size());
+  EXPECT_TRUE(incoming[0]->Is(Message::kEntryUpdate));
+  EXPECT_EQ(5u, incoming[0]->id());
+  EXPECT_EQ(7u, incoming[0]->seq_num_uid());
+  EXPECT_EQ(*Value::MakeDouble(1.5), *incoming[0]->value());
+
+  // complete records before a truncated one still apply
+  incoming.clear();
+  conn2->ProcessDatagram(datagram.data(), datagram.size() - 3);
+  EXPECT_EQ(1u, incoming.size());
+  // foreign datagrams are ignored
+  conn2->ProcessDatagram("xyz", 3);
+  EXPECT_EQ(1u, incoming.size());
+}
+
+TEST_F(NetworkConnectionTest, HoldBehindChunkedHandshake) {
+  // an initial assignment sent in chunks, then the end of the handshake and
+  // the first changes after it
+  NetworkConnection::Outgoing msgs;
+  msgs.push_back(Message::EntryAssign(
+      "big", 0, 1,
+      Value::MakeRaw(std::string(NetworkConnection::kChunkSize + 1, 'x')),
+      0));
+  msgs.push_back(Message::EntryAssign("small", 1, 1, Value::MakeDouble(1.0),
+                                      0));
+  msgs.push_back(Message::ServerHelloDone());
+  msgs.push_back(Message::EntryUpdate(1, 2, Value::MakeDouble(2.0)));
+  NetworkConnection::Outgoing held;
+  HoldBehindChunked(std::vector<unsigned int>(), &msgs, &held);
+  ASSERT_EQ(2u, msgs.size());
+  EXPECT_EQ("big", msgs[0]->str());
+  EXPECT_EQ("small", msgs[1]->str());
+  ASSERT_EQ(2u, held.size());
+  EXPECT_TRUE(held[0]->Is(Message::kServerHelloDone));
+  EXPECT_TRUE(held[1]->Is(Message::kEntryUpdate));
+
+  // still held while the transfer is in flight
+  msgs.swap(held);
+  held.clear();
+  msgs.push_back(Message::KeepAlive());
+  HoldBehindChunked(std::vector<unsigned int>{0}, &msgs, &held);
+  EXPECT_TRUE(msgs.empty());
+  ASSERT_EQ(3u, held.size());
+  EXPECT_TRUE(held[0]->Is(Message::kServerHelloDone));
+
+  // and released in order once it's through
+  msgs.swap(held);
+  held.clear();
+  HoldBehindChunked(std::vector<unsigned int>(), &msgs, &held);
+  EXPECT_TRUE(held.empty());
+  ASSERT_EQ(3u, msgs.size());
+  EXPECT_TRUE(msgs[0]->Is(Message::kServerHelloDone));
+  EXPECT_TRUE(msgs[1]->Is(Message::kEntryUpdate));
+  EXPECT_TRUE(msgs[2]->Is(Message::kKeepAlive));
+}
+
+TEST_F(NetworkConnectionTest, HoldBehindChunkedOtherIds) {
+  // messages for other ids go ahead of a transfer unless behind a barrier
+  NetworkConnection::Outgoing msgs;
+  msgs.push_back(Message::EntryUpdate(1, 2, Value::MakeDouble(2.0)));
+  msgs.push_back(Message::KeepAlive());
+  msgs.push_back(Message::EntryUpdate(2, 2, Value::MakeDouble(2.0)));
+  msgs.push_back(Message::ClearEntries());
+  msgs.push_back(Message::EntryUpdate(3, 2, Value::MakeDouble(2.0)));
+  NetworkConnection::Outgoing held;
+  HoldBehindChunked(std::vector<unsigned int>{0}, &msgs, &held);
+  ASSERT_EQ(2u, msgs.size());
+  EXPECT_EQ(1u, msgs[0]->id());
+  EXPECT_EQ(2u, msgs[1]->id());
+  ASSERT_EQ(3u, held.size());
+  EXPECT_TRUE(held[0]->Is(Message::kKeepAlive));
+  EXPECT_TRUE(held[1]->Is(Message::kClearEntries));
+  EXPECT_EQ(3u, held[2]->id());
+}
+
+}  // namespace nt
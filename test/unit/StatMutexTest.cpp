@@ -0,0 +1,39 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "support/StatMutex.h"
+
+#include <chrono>
+#include <thread>
+
+#include "gtest/gtest.h"
+
+namespace nt {
+
+TEST(StatMutexTest, Uncontended) {
+  StatMutex mutex;
+  {
+    std::lock_guard<StatMutex> lock(mutex);
+  }
+  EXPECT_EQ(0u, mutex.wait_count());
+  EXPECT_EQ(0u, mutex.wait_total());
+  EXPECT_EQ(0u, mutex.wait_max());
+}
+
+TEST(StatMutexTest, Contended) {
+  StatMutex mutex;
+  std::unique_lock<StatMutex> lock(mutex);
+  std::thread thr([&] { std::lock_guard<StatMutex> lock2(mutex); });
+  std::this_thread::sleep_for(std::chrono::milliseconds(20));
+  lock.unlock();
+  thr.join();
+  EXPECT_EQ(1u, mutex.wait_count());
+  EXPECT_NE(0u, mutex.wait_total());
+  EXPECT_EQ(mutex.wait_total(), mutex.wait_max());
+}
+
+}  // namespace nt
@@ -7,6 +7,10 @@
 
 #include "Storage.h"
 #include "StorageTest.h"
+#include "MockNetworkStream.h"
+#include "raw_istream.h"
+#include "WireDecoder.h"
+#include "WireEncoder.h"
 
 #include <sstream>
 
@@ -345,6 +349,219 @@ TEST_P(StorageTestPopulateOne, GetEntryFlagsExist) {
   EXPECT_TRUE(outgoing.empty());
 }
 
+TEST_P(StorageTestEmpty, EntryHistoryNotExist) {
+  storage.SetEntryHistory("foo", 4);
+  double values[4];
+  EXPECT_EQ(0u, storage.GetEntryNumberHistory("foo", 0, values, nullptr, 4));
+}
+
+TEST_P(StorageTestPopulated, EntryHistory) {
+  storage.SetEntryHistory("bar", 3);
+  // the current value is the first sample
+  double values[4];
+  unsigned long long times[4];
+  ASSERT_EQ(1u, storage.GetEntryNumberHistory("bar", 0, values, times, 4));
+  EXPECT_EQ(1.0, values[0]);
+
+  // the ring keeps only the last 3, oldest first
+  for (int i = 2; i <= 5; ++i)
+    storage.SetEntryValue("bar", Value::MakeDouble(i));
+  ASSERT_EQ(3u, storage.GetEntryNumberHistory("bar", 0, values, times, 4));
+  EXPECT_EQ(3.0, values[0]);
+  EXPECT_EQ(4.0, values[1]);
+  EXPECT_EQ(5.0, values[2]);
+  EXPECT_LE(times[0], times[1]);
+  EXPECT_LE(times[1], times[2]);
+
+  // smaller buffers get the most recent
+  ASSERT_EQ(2u, storage.GetEntryNumberHistory("bar", 0, values, nullptr, 2));
+  EXPECT_EQ(4.0, values[0]);
+  EXPECT_EQ(5.0, values[1]);
+
+  // range query by time
+  EXPECT_EQ(0u, storage.GetEntryNumberHistory("bar", times[2] + 1, values,
+                                              nullptr, 4));
+
+  // disabling or deleting drops it
+  storage.SetEntryHistory("bar", 0);
+  EXPECT_EQ(0u, storage.GetEntryNumberHistory("bar", 0, values, times, 4));
+  storage.SetEntryHistory("foo2", 2);
+  storage.DeleteEntry("foo2");
+  storage.SetEntryValue("foo2", Value::MakeDouble(1.0));
+  EXPECT_EQ(0u, storage.GetEntryNumberHistory("foo2", 0, values, times, 4));
+}
+
+TEST_P(StorageTestPopulated, SetEntryValueOutgoingFlags) {
+  storage.SetEntryFlags("foo2", NT_UNRELIABLE);
+  outgoing.clear();
+  storage.SetEntryValue("foo2", Value::MakeDouble(1.0));
+  if (GetParam()) {
+    // the entry's flags go with the update, for routing
+    ASSERT_EQ(1u, outgoing.size());
+    EXPECT_EQ(Message::kEntryUpdate, outgoing[0].msg->type());
+    EXPECT_EQ(NT_UNRELIABLE, outgoing[0].flags);
+  }
+}
+
+TEST_P(StorageTestPopulated, PublishPolicyDeadband) {
+  HookNotify();
+  storage.SetEntryPublishPolicy("bar", 0, 0.5, false);
+  // within the deadband of the last sent value: stored but neither notified
+  // nor sent
+  EXPECT_TRUE(storage.SetEntryValue("bar", Value::MakeDouble(1.3)));
+  EXPECT_TRUE(storage.SetEntryValue("bar", Value::MakeDouble(1.49)));
+  EXPECT_EQ(*Value::MakeDouble(1.49), *storage.GetEntryValue("bar"));
+  EXPECT_TRUE(outgoing.empty());
+  EXPECT_TRUE(TakeNotified().empty());
+  EXPECT_TRUE(storage.SetEntryValue("bar", Value::MakeDouble(1.5)));
+  EXPECT_EQ(*Value::MakeDouble(1.5), *storage.GetEntryValue("bar"));
+  if (GetParam()) {
+    ASSERT_EQ(1u, outgoing.size());
+    EXPECT_EQ(*Value::MakeDouble(1.5), *outgoing[0].msg->value());
+  }
+  {
+    auto notified = TakeNotified();
+    ASSERT_EQ(1u, notified.size());
+    EXPECT_EQ("bar", notified[0].first);
+    EXPECT_EQ(*Value::MakeDouble(1.5), *notified[0].second);
+  }
+
+  // type mismatches are still errors
+  EXPECT_FALSE(storage.SetEntryValue("bar", Value::MakeBoolean(true)));
+
+  // relative to the last sent value
+  outgoing.clear();
+  storage.SetEntryPublishPolicy("bar", 0, 0.1, true);
+  storage.SetEntryValue("bar", Value::MakeDouble(1.6));
+  EXPECT_EQ(*Value::MakeDouble(1.6), *storage.GetEntryValue("bar"));
+  EXPECT_TRUE(outgoing.empty());
+  EXPECT_TRUE(TakeNotified().empty());
+  storage.SetEntryValue("bar", Value::MakeDouble(1.7));
+  if (GetParam()) {
+    EXPECT_EQ(1u, outgoing.size());
+  }
+  EXPECT_EQ(1u, TakeNotified().size());
+
+  // disabled
+  outgoing.clear();
+  storage.SetEntryPublishPolicy("bar", 0, 0, false);
+  storage.SetEntryValue("bar", Value::MakeDouble(1.71));
+  EXPECT_EQ(*Value::MakeDouble(1.71), *storage.GetEntryValue("bar"));
+  if (GetParam()) {
+    EXPECT_EQ(1u, outgoing.size());
+  }
+  EXPECT_EQ(1u, TakeNotified().size());
+}
+
+TEST_P(StorageTestPopulated, PublishPolicyRate) {
+  HookNotify();
+  // one change every 1000 seconds
+  storage.SetEntryPublishPolicy("foo", 0.001, 0, false);
+  storage.SetEntryValue("foo", Value::MakeBoolean(false));
+  EXPECT_EQ(*Value::MakeBoolean(false), *storage.GetEntryValue("foo"));
+  if (GetParam()) {
+    EXPECT_EQ(1u, outgoing.size());
+  }
+  EXPECT_EQ(1u, TakeNotified().size());
+  outgoing.clear();
+
+  // stored, but held back from listeners and the network until the period
+  // has passed
+  storage.SetEntryValue("foo", Value::MakeBoolean(true));
+  EXPECT_EQ(*Value::MakeBoolean(true), *storage.GetEntryValue("foo"));
+  EXPECT_TRUE(outgoing.empty());
+  unsigned long long now = Now();
+  storage.PublishPending(now);
+  EXPECT_TRUE(outgoing.empty());
+  EXPECT_TRUE(TakeNotified().empty());
+  storage.PublishPending(now + 10000000000ull);
+  if (GetParam()) {
+    ASSERT_EQ(1u, outgoing.size());
+    EXPECT_EQ(*Value::MakeBoolean(true), *outgoing[0].msg->value());
+  }
+  {
+    auto notified = TakeNotified();
+    ASSERT_EQ(1u, notified.size());
+    EXPECT_EQ("foo", notified[0].first);
+    EXPECT_EQ(*Value::MakeBoolean(true), *notified[0].second);
+  }
+  outgoing.clear();
+  storage.PublishPending(now + 20000000000ull);
+  EXPECT_TRUE(outgoing.empty());
+  EXPECT_TRUE(TakeNotified().empty());
+
+  // disabling sends anything held back
+  storage.SetEntryValue("foo", Value::MakeBoolean(false));
+  EXPECT_TRUE(outgoing.empty());
+  EXPECT_TRUE(TakeNotified().empty());
+  storage.SetEntryPublishPolicy("foo", 0, 0, false);
+  if (GetParam()) {
+    ASSERT_EQ(1u, outgoing.size());
+    EXPECT_EQ(*Value::MakeBoolean(false), *outgoing[0].msg->value());
+  }
+  {
+    auto notified = TakeNotified();
+    ASSERT_EQ(1u, notified.size());
+    EXPECT_EQ(*Value::MakeBoolean(false), *notified[0].second);
+  }
+  storage.SetEntryPublishPolicy("foo", 0.001, 0, false);
+
+  // the policy goes with the entry
+  storage.DeleteEntry("foo");
+  storage.SetEntryValue("foo", Value::MakeBoolean(true));
+  storage.SetEntryValue("foo", Value::MakeBoolean(false));
+  EXPECT_EQ(*Value::MakeBoolean(false), *storage.GetEntryValue("foo"));
+}
+
+TEST_P(StorageTestPopulateOne, IdMapPaged) {
+  auto entry = GetEntry("foo");
+  idmap().resize(0);
+
+  // sparse ids only allocate the pages in use
+  idmap().set(1000000, entry);
+  EXPECT_EQ(1000001u, idmap().size());
+  EXPECT_EQ(entry, idmap()[1000000]);
+  EXPECT_FALSE(idmap()[999999]);
+  EXPECT_FALSE(idmap()[2000000]);
+
+  // shrinking empties the dropped slots
+  idmap().set(5, entry);
+  idmap().resize(3);
+  idmap().resize(10);
+  EXPECT_FALSE(idmap()[5]);
+
+  // 0xffff means unassigned, so it is never given out
+  idmap().resize(0xffff);
+  EXPECT_EQ(0x10000u, idmap().Add(entry));
+  EXPECT_FALSE(idmap()[0xffff]);
+  EXPECT_EQ(entry, idmap()[0x10000]);
+  idmap().resize(0);
+}
+
+TEST_P(StorageTestPopulated, ProcessIncomingUpdateBatch) {
+  if (!GetParam()) return;  // ids are only assigned by the server
+  std::vector<std::shared_ptr<Message>> msgs{
+      Message::EntryUpdate(GetEntry("foo2")->id, 5, Value::MakeDouble(2.0)),
+      Message::EntryUpdate(GetEntry("bar")->id, 0, Value::MakeDouble(3.0)),
+      Message::EntryUpdate(100, 5, Value::MakeDouble(4.0))};
+  WireEncoder e(0x0302u);
+  Message::WriteUpdates(e, msgs);
+  raw_mem_istream is(e.data(), e.size());
+  WireDecoder d(is, 0x0302u);
+  auto msg = Message::Read(d, nullptr);
+  ASSERT_TRUE(bool(msg));
+  storage.ProcessIncoming(msg, nullptr, std::weak_ptr<NetworkConnection>());
+
+  EXPECT_EQ(*Value::MakeDouble(2.0), *GetEntry("foo2")->value);
+  // stale sequence number
+  EXPECT_EQ(*Value::MakeDouble(1.0), *GetEntry("bar")->value);
+
+  // passed on as a plain update
+  ASSERT_EQ(1u, outgoing.size());
+  EXPECT_EQ(Message::kEntryUpdate, outgoing[0].msg->type());
+  EXPECT_EQ(GetEntry("foo2")->id, outgoing[0].msg->id());
+}
+
 TEST_P(StorageTestEmpty, DeleteEntryNotExist) {
   storage.DeleteEntry("foo");
   EXPECT_TRUE(outgoing.empty());
@@ -744,6 +961,328 @@ TEST_P(StorageTestEmpty, LoadPersistentWarn) {
   EXPECT_TRUE(outgoing.empty());
 }
 
+TEST_P(StorageTestPopulated, GetInitialAssignmentsChunked) {
+  auto conn = MakeMockConnection();
+  std::vector<std::size_t> chunks;
+  std::vector<std::string> names;
+  storage.GetInitialAssignments(
+      *conn, [&](llvm::ArrayRef<std::shared_ptr<Message>> msgs) {
+        chunks.push_back(msgs.size());
+        for (auto& msg : msgs) {
+          EXPECT_TRUE(msg->Is(Message::kEntryAssign));
+          names.push_back(msg->str());
+        }
+      }, 3);
+  EXPECT_EQ(NetworkConnection::kSynchronized, conn->state());
+  if (GetParam()) {
+    ASSERT_EQ(2u, chunks.size());
+    EXPECT_EQ(3u, chunks[0]);
+    EXPECT_EQ(1u, chunks[1]);
+    EXPECT_THAT(names, ::testing::UnorderedElementsAre("foo", "foo2", "bar",
+                                                       "bar2"));
+  } else {
+    // clients don't have id assignments to send
+    EXPECT_TRUE(chunks.empty());
+  }
+  EXPECT_TRUE(outgoing.empty());
+}
+
+TEST_P(StorageTestPopulated, GetInitialAssignmentsSkipsDeleted) {
+  storage.DeleteEntry("foo2");
+  outgoing.clear();
+  auto conn = MakeMockConnection();
+  std::vector<std::string> names;
+  storage.GetInitialAssignments(
+      *conn, [&](llvm::ArrayRef<std::shared_ptr<Message>> msgs) {
+        for (auto& msg : msgs) names.push_back(msg->str());
+      }, 1);
+  if (GetParam())
+    EXPECT_THAT(names, ::testing::UnorderedElementsAre("foo", "bar", "bar2"));
+  else
+    EXPECT_TRUE(names.empty());
+}
+
+TEST_P(StorageTestPopulated, GetInitialAssignmentsSyncPoint) {
+  // changes queued before the snapshot are marked as covered by it
+  std::size_t synced = 0;
+  using namespace std::placeholders;
+  storage.SetOutgoing(
+      std::bind(&StorageTest::QueueOutgoing, this, _1, _2, _3, _4),
+      GetParam(), [&](NetworkConnection&) { synced = outgoing.size(); });
+  storage.DeleteAllEntries();
+  ASSERT_EQ(1u, outgoing.size());
+  EXPECT_TRUE(outgoing[0].msg->Is(Message::kClearEntries));
+  storage.SetEntryTypeValue("baz", Value::MakeDouble(1.0));
+  std::size_t before = outgoing.size();
+
+  auto conn = MakeMockConnection();
+  storage.GetInitialAssignments(
+      *conn, [&](llvm::ArrayRef<std::shared_ptr<Message>>) {
+        // made while the lock is released between chunks
+        storage.SetEntryTypeValue("baz", Value::MakeDouble(2.0));
+      }, 1);
+  EXPECT_EQ(before, synced);
+  if (GetParam()) {
+    EXPECT_EQ(before + 1, outgoing.size());
+  }
+}
+
+TEST_P(StorageTestEmpty, ApplyResyncKeepsLocalChanges) {
+  if (GetParam()) return;  // client only
+  auto conn = MakeMockConnection();
+  std::vector<std::shared_ptr<Message>> msgs{
+      Message::EntryAssign("foo", 0, 1, Value::MakeDouble(1.0), 0),
+      Message::EntryAssign("bar", 1, 1, Value::MakeDouble(1.0), 0)};
+  std::vector<std::shared_ptr<Message>> out;
+  storage.ApplyInitialAssignments(*conn, msgs, false, &out);
+  ASSERT_TRUE(out.empty());
+
+  // while disconnected, foo is changed here and both are deleted by the
+  // server
+  storage.SetEntryValue("foo", Value::MakeDouble(2.0));
+  outgoing.clear();
+  msgs = {Message::EntryDelete(0), Message::EntryDelete(1)};
+  std::vector<unsigned int> local_ids{0};
+  storage.ApplyResyncAssignments(*conn, msgs, local_ids, &out);
+  EXPECT_FALSE(storage.GetEntryValue("bar"));
+  auto value = storage.GetEntryValue("foo");
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(2.0), *value);
+
+  // foo is assigned again rather than updated
+  EXPECT_TRUE(outgoing.empty());
+  ASSERT_EQ(1u, out.size());
+  EXPECT_TRUE(out[0]->Is(Message::kEntryAssign));
+  EXPECT_EQ("foo", out[0]->str());
+  EXPECT_EQ(0xffffu, out[0]->id());
+  EXPECT_EQ(0xffffu, GetEntry("foo")->id);
+}
+
+TEST_P(StorageTestEmpty, CallRpcLargeId) {
+  if (GetParam()) return;  // client only
+  // an RPC beyond 16 bits, as on a large 3.2 server
+  storage.ProcessIncoming(
+      Message::EntryAssign("rpc", 70000, 1, Value::MakeRpc("def"), 0),
+      nullptr, std::weak_ptr<NetworkConnection>());
+  unsigned int call = storage.CallRpc("rpc", "params");
+  EXPECT_NE(0u, call);
+  ASSERT_EQ(1u, outgoing.size());
+  auto msg = outgoing[0].msg;
+  ASSERT_TRUE(msg->Is(Message::kExecuteRpc));
+  EXPECT_EQ(70000u, msg->id());
+
+  std::string result;
+  EXPECT_FALSE(storage.GetRpcResult(false, call, &result));
+  storage.ProcessIncoming(
+      Message::RpcResponse(msg->id(), msg->seq_num_uid(), "result"), nullptr,
+      std::weak_ptr<NetworkConnection>());
+  ASSERT_TRUE(storage.GetRpcResult(false, call, &result));
+  EXPECT_EQ("result", result);
+  // a result is only returned once
+  EXPECT_FALSE(storage.GetRpcResult(false, call, &result));
+}
+
+TEST_P(StorageTestEmpty, PeerDeleteTies) {
+  if (!GetParam()) return;  // only servers are clustered
+  storage.SetNodeId(10);
+  auto peer = MakeMockConnection();
+  peer->set_peer_role(NetworkConnection::kPeerIncoming);
+  auto apply = [&](std::shared_ptr<Message> msg) {
+    storage.ProcessIncoming(msg, peer.get(),
+                            std::weak_ptr<NetworkConnection>());
+  };
+  apply(Message::PeerEntry("foo", 5, 1, 0, 0, 0, Value::MakeDouble(1.0)));
+  ASSERT_TRUE(bool(storage.GetEntryValue("foo")));
+
+  // our delete and node 5's update cross, with the same sequence number;
+  // the delete wins here as it does on node 5
+  storage.DeleteEntry("foo");
+  apply(Message::PeerEntry("foo", 5, 2, 0, 0, 0, Value::MakeDouble(2.0)));
+  EXPECT_FALSE(bool(storage.GetEntryValue("foo")));
+  // a later write brings it back
+  apply(Message::PeerEntry("foo", 5, 3, 0, 0, 0, Value::MakeDouble(3.0)));
+  auto value = storage.GetEntryValue("foo");
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(3.0), *value);
+
+  // our update and node 5's delete cross; the update wins
+  storage.SetEntryValue("foo", Value::MakeDouble(4.0));
+  apply(Message::PeerEntry("foo", 5, 4, 0, 0, 0, nullptr));
+  value = storage.GetEntryValue("foo");
+  ASSERT_TRUE(bool(value));
+  EXPECT_EQ(*Value::MakeDouble(4.0), *value);
+  // but not over node 20's delete
+  apply(Message::PeerEntry("foo", 20, 4, 0, 0, 0, nullptr));
+  EXPECT_FALSE(bool(storage.GetEntryValue("foo")));
+  apply(Message::PeerEntry("foo", 10, 4, 0, 0, 0, Value::MakeDouble(4.0)));
+  EXPECT_FALSE(bool(storage.GetEntryValue("foo")));
+
+  // a local write after the delete wins over it on the other nodes
+  outgoing.clear();
+  storage.SetEntryValue("foo", Value::MakeDouble(5.0));
+  ASSERT_FALSE(outgoing.empty());
+  EXPECT_LT(4u, outgoing.back().msg->seq_num_uid());
+}
+
+TEST_P(StorageTestEmpty, PeerEntryWithoutValue) {
+  if (!GetParam()) return;  // only servers are clustered
+  storage.SetNodeId(10);
+  auto peer = MakeMockConnection();
+  peer->set_peer_role(NetworkConnection::kPeerIncoming);
+  // an entry that has an id but no value, with newer flags than the write
+  auto entry = MakeEntry("foo");
+  entry->id = 3;
+  entry->flags_seq = 5;
+  idmap().set(3, entry);
+
+  storage.ProcessIncoming(
+      Message::PeerEntry("foo", 5, 1, 5, 1, NT_PERSISTENT,
+                         Value::MakeDouble(1.0)),
+      peer.get(), std::weak_ptr<NetworkConnection>());
+  // takes the value, and keeps its id
+  EXPECT_EQ(3u, entry->id);
+  EXPECT_EQ(entry, idmap()[3]);
+  EXPECT_EQ(4u, idmap().size());
+  ASSERT_TRUE(bool(entry->value));
+  EXPECT_EQ(*Value::MakeDouble(1.0), *entry->value);
+  ASSERT_EQ(1u, outgoing.size());
+  EXPECT_TRUE(outgoing[0].msg->Is(Message::kEntryAssign));
+  EXPECT_EQ(3u, outgoing[0].msg->id());
+  ASSERT_TRUE(bool(outgoing[0].msg->value()));
+}
+
+TEST_P(StorageTestEmpty, PeerDeleteDuringPartition) {
+  if (!GetParam()) return;  // only servers are clustered
+  storage.SetNodeId(10);
+  auto peer = MakeMockConnection();
+  peer->set_peer_role(NetworkConnection::kPeerIncoming);
+  auto apply = [&](std::shared_ptr<Message> msg) {
+    storage.ProcessIncoming(msg, peer.get(),
+                            std::weak_ptr<NetworkConnection>());
+  };
+  apply(Message::PeerEntry("foo", 5, 1, 0, 0, 0, Value::MakeDouble(1.0)));
+  storage.DeleteEntry("foo");
+
+  // node 5 missed the delete, and pushes its table when it links up again
+  apply(Message::PeerEntry("foo", 5, 1, 0, 0, 0, Value::MakeDouble(1.0)));
+  EXPECT_FALSE(bool(storage.GetEntryValue("foo")));
+
+  // and is sent the delete in ours
+  auto link = MakeMockConnection();
+  link->set_peer_role(NetworkConnection::kPeerOutgoing);
+  std::vector<std::shared_ptr<Message>> sent;
+  storage.GetPeerEntries(*link,
+                         [&](llvm::ArrayRef<std::shared_ptr<Message>> msgs) {
+                           sent.insert(sent.end(), msgs.begin(), msgs.end());
+                         });
+  ASSERT_EQ(1u, sent.size());
+  EXPECT_TRUE(sent[0]->Is(Message::kPeerEntry));
+  EXPECT_EQ("foo", sent[0]->str());
+  EXPECT_FALSE(bool(sent[0]->value()));
+  EXPECT_EQ(10u, sent[0]->id());
+  EXPECT_EQ(2u, sent[0]->seq_num_uid());
+
+  // once every peer has it, the tombstone is dropped
+  storage.ExpireTombstones(storage.GetTombstoneStamp());
+  apply(Message::PeerEntry("foo", 5, 1, 0, 0, 0, Value::MakeDouble(1.0)));
+  EXPECT_TRUE(bool(storage.GetEntryValue("foo")));
+}
+
+TEST_P(StorageTestPopulated, SnapshotRoundTrip) {
+  storage.SetEntryFlags("foo2", NT_PERSISTENT);
+  storage.SetEntryTypeValue("foo2", Value::MakeDouble(2.0));
+  unsigned int seq_num = GetEntry("foo2")->seq_num.value();
+  unsigned int id = GetEntry("foo2")->id;
+  std::string data;
+  storage.SaveSnapshot(&data);
+  storage.DeleteAllEntries();
+  outgoing.clear();
+
+  std::size_t count = 0;
+  ASSERT_EQ(nullptr, storage.LoadSnapshot(
+                         llvm::ArrayRef<char>(data.data(), data.size()),
+                         &count));
+  EXPECT_EQ(4u, count);
+  EXPECT_EQ(4u, entries().size());
+  auto entry = GetEntry("foo2");
+  ASSERT_TRUE(bool(entry->value));
+  EXPECT_EQ(*Value::MakeDouble(2.0), *entry->value);
+  EXPECT_EQ(seq_num, entry->seq_num.value());
+  EXPECT_EQ(static_cast<unsigned int>(NT_PERSISTENT), entry->flags);
+  if (GetParam()) {
+    EXPECT_EQ(id, entry->id);
+    EXPECT_EQ(entry, idmap()[id]);
+  } else {
+    EXPECT_EQ(0xffffu, entry->id);
+  }
+  // nobody is connected yet
+  EXPECT_TRUE(outgoing.empty());
+}
+
+TEST_P(StorageTestPopulated, SnapshotLargeIds) {
+  if (!GetParam()) return;  // ids are only assigned by the server
+  // beyond 16 bits, as on a large 3.2 server
+  auto entry = GetEntry("foo2");
+  idmap().set(entry->id, nullptr);
+  entry->id = 70000;
+  idmap().set(entry->id, entry);
+  // saved without an id
+  entry = GetEntry("bar");
+  idmap().set(entry->id, nullptr);
+  entry->id = 0xffff;
+  std::string data;
+  storage.SaveSnapshot(&data);
+  storage.DeleteAllEntries();
+
+  ASSERT_EQ(nullptr, storage.LoadSnapshot(
+                         llvm::ArrayRef<char>(data.data(), data.size())));
+  entry = GetEntry("foo2");
+  EXPECT_EQ(70000u, entry->id);
+  EXPECT_EQ(entry, idmap()[70000]);
+  entry = GetEntry("bar");
+  EXPECT_NE(0xffffu, entry->id);
+  EXPECT_EQ(entry, idmap()[entry->id]);
+}
+
+TEST_P(StorageTestPopulated, SnapshotCorruptId) {
+  if (!GetParam()) return;  // ids are only assigned by the server
+  // saved as written, even though the id map doesn't hold it there
+  GetEntry("foo2")->id = 1u << 30;
+  std::string data;
+  storage.SaveSnapshot(&data);
+  storage.DeleteAllEntries();
+
+  EXPECT_STREQ("invalid entry id in snapshot",
+               storage.LoadSnapshot(
+                   llvm::ArrayRef<char>(data.data(), data.size())));
+  EXPECT_TRUE(entries().empty());
+}
+
+TEST_P(StorageTestPopulated, SnapshotKeepsExisting) {
+  std::string data;
+  storage.SaveSnapshot(&data);
+  unsigned int id = GetEntry("bar")->id;
+  storage.DeleteEntry("bar");
+  storage.SetEntryTypeValue("foo", Value::MakeBoolean(false));
+
+  std::size_t count = 0;
+  ASSERT_EQ(nullptr, storage.LoadSnapshot(
+                         llvm::ArrayRef<char>(data.data(), data.size()),
+                         &count));
+  EXPECT_EQ(1u, count);
+  EXPECT_EQ(*Value::MakeBoolean(false), *GetEntry("foo")->value);
+  ASSERT_TRUE(bool(GetEntry("bar")->value));
+  EXPECT_EQ(*Value::MakeDouble(1.0), *GetEntry("bar")->value);
+  EXPECT_EQ(id, GetEntry("bar")->id);
+
+  // a bad snapshot changes nothing
+  storage.DeleteEntry("bar");
+  EXPECT_NE(nullptr, storage.LoadSnapshot(
+                         llvm::ArrayRef<char>(data.data(), data.size() - 1)));
+  EXPECT_NE(nullptr, storage.LoadSnapshot(llvm::ArrayRef<char>("junk", 4)));
+  EXPECT_FALSE(bool(GetEntry("bar")->value));
+}
+
 INSTANTIATE_TEST_CASE_P(StorageTestsEmpty, StorageTestEmpty, ::testing::Bool());
 INSTANTIATE_TEST_CASE_P(StorageTestsPopulateOne, StorageTestPopulateOne,
                         ::testing::Bool());
@@ -8,17 +8,30 @@
 #ifndef NT_TEST_STORAGETEST_H_
 #define NT_TEST_STORAGETEST_H_
 
+#include <atomic>
+#include <chrono>
 #include <functional>
 #include <memory>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <utility>
 #include <vector>
 
+#include "DataLogger.h"
+#include "Notifier.h"
+#include "RpcServer.h"
 #include "Storage.h"
 
 namespace nt {
 
 class StorageTest {
  public:
-  StorageTest() : tmp_entry("foobar") {}
+  StorageTest()
+      : notified(std::make_shared<NotifiedData>()),
+        notifier(false),
+        storage(notifier, RpcServer::GetInstance(), DataLogger::GetInstance()),
+        tmp_entry("foobar") {}
 
   Storage::EntriesMap& entries() { return storage.m_entries; }
   Storage::IdMap& idmap() { return storage.m_idmap; }
@@ -28,23 +41,67 @@ class StorageTest {
     return i == storage.m_entries.end() ? &tmp_entry : i->getValue().get();
   }
 
+  // An entry with neither a value nor an id.
+  Storage::Entry* MakeEntry(StringRef name) {
+    auto& entry = storage.m_entries[name];
+    entry.reset(new Storage::Entry(name));
+    return entry.get();
+  }
+
   void HookOutgoing(bool server) {
     using namespace std::placeholders;
     storage.SetOutgoing(
-        std::bind(&StorageTest::QueueOutgoing, this, _1, _2, _3), server);
+        std::bind(&StorageTest::QueueOutgoing, this, _1, _2, _3, _4),
+        server);
   }
 
   struct OutgoingData {
     std::shared_ptr<Message> msg;
     NetworkConnection* only;
     NetworkConnection* except;
+    unsigned int flags;
   };
 
   void QueueOutgoing(std::shared_ptr<Message> msg, NetworkConnection* only,
-                     NetworkConnection* except) {
-    outgoing.emplace_back(OutgoingData{msg, only, except});
+                     NetworkConnection* except, unsigned int flags) {
+    outgoing.emplace_back(OutgoingData{msg, only, except, flags});
+  }
+
+  struct NotifiedData {
+    std::mutex mutex;
+    std::vector<std::pair<std::string, std::shared_ptr<Value>>> values;
+  };
+
+  // Records the local value updates the storage notifies.
+  void HookNotify() {
+    auto data = notified;
+    notifier.AddEntryListener(
+        "",
+        [=](unsigned int, StringRef name, std::shared_ptr<Value> value,
+            unsigned int) {
+          std::lock_guard<std::mutex> lock(data->mutex);
+          data->values.emplace_back(name, value);
+        },
+        NT_NOTIFY_UPDATE | NT_NOTIFY_LOCAL);
+  }
+
+  // Waits for everything notified so far to be delivered, then returns and
+  // clears the recorded values.
+  std::vector<std::pair<std::string, std::shared_ptr<Value>>> TakeNotified() {
+    auto flushed = std::make_shared<std::atomic_bool>(false);
+    notifier.NotifyEntry("", Value::MakeBoolean(true), 0,
+                         [=](unsigned int, StringRef, std::shared_ptr<Value>,
+                             unsigned int) { *flushed = true; });
+    for (int i = 0; i < 500 && !*flushed; ++i)
+      std::this_thread::sleep_for(std::chrono::milliseconds(1));
+    std::lock_guard<std::mutex> lock(notified->mutex);
+    auto values = std::move(notified->values);
+    notified->values.clear();
+    return values;
   }
 
+  std::shared_ptr<NotifiedData> notified;
+  Notifier notifier;
   Storage storage;
   Storage::Entry tmp_entry;
   std::vector<OutgoingData> outgoing;
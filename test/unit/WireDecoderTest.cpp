@@ -127,6 +127,21 @@ TEST_F(WireDecoderTest, Read32) {
   ASSERT_EQ(nullptr, d.error());
 }
 
+TEST_F(WireDecoderTest, Read64) {
+  raw_mem_istream is(
+      "\x00\x00\x00\x00\x00\x00\x00\x05"
+      "\x01\x23\x45\x67\x89\xab\xcd\xef",
+      16);
+  WireDecoder d(is, 0x0300u);
+  unsigned long long val;
+  ASSERT_TRUE(d.Read64(&val));
+  EXPECT_EQ(5ull, val);
+  ASSERT_TRUE(d.Read64(&val));
+  EXPECT_EQ(0x0123456789abcdefull, val);
+  ASSERT_FALSE(d.Read64(&val));
+  ASSERT_EQ(nullptr, d.error());
+}
+
 TEST_F(WireDecoderTest, ReadDouble) {
   // values except min and max from
   // http://www.binaryconvert.com/result_double.html
@@ -167,6 +182,22 @@ TEST_F(WireDecoderTest, ReadUleb128) {
   ASSERT_EQ(nullptr, d.error());
 }
 
+TEST_F(WireDecoderTest, ReadId) {
+  raw_mem_istream is("\x12\x34\x7f\xc5\xc6\x04\x80\x80\x80\x80\x10",
+                     11);
+  WireDecoder d(is, 0x0301u);
+  unsigned int val;
+  ASSERT_TRUE(d.ReadId(&val));
+  EXPECT_EQ(0x1234u, val);
+  d.set_proto_rev(0x0302u);
+  ASSERT_TRUE(d.ReadId(&val));
+  EXPECT_EQ(0x7fu, val);
+  ASSERT_TRUE(d.ReadId(&val));
+  EXPECT_EQ(0x12345u, val);
+  ASSERT_FALSE(d.ReadId(&val));  // more than 31 bits
+  ASSERT_NE(nullptr, d.error());
+}
+
 TEST_F(WireDecoderTest, ReadType) {
   raw_mem_istream is("\x00\x01\x02\x03\x10\x11\x12\x20", 8);
   WireDecoder d(is, 0x0300u);
@@ -508,6 +539,18 @@ TEST_F(WireDecoderTest, ReadDoubleArrayBigValue3) {
   ASSERT_EQ(nullptr, d.error());
 }
 
+TEST_F(WireDecoderTest, ReadDoubleArrayBigValue3_2) {
+  // the size is ULEB128 from 3.2, so more than 255 elements fit
+  std::string s("\x90\x03", 2);
+  s.append(400*8, '\x00');
+  raw_mem_istream is(s.data(), s.size());
+  WireDecoder d(is, 0x0302u);
+  auto val = d.ReadValue(NT_DOUBLE_ARRAY);
+  ASSERT_TRUE(bool(val));
+  EXPECT_EQ(*Value::MakeDoubleArray(std::vector<double>(400, 0.0)), *val);
+  ASSERT_EQ(nullptr, d.error());
+}
+
 TEST_F(WireDecoderTest, ReadStringArrayValue3) {
   raw_mem_istream is("\x02\x05hello\x07goodbye\x55", 16);
   WireDecoder d(is, 0x0300u);
@@ -117,6 +117,20 @@ TEST_F(WireEncoderTest, Write32) {
             llvm::StringRef(e.data(), e.size()).substr(off));
 }
 
+TEST_F(WireEncoderTest, Write64) {
+  std::size_t off = BUFSIZE-8;
+  WireEncoder e(0x0300u);
+  for(std::size_t i=0; i<off; ++i) e.Write8(0u);  // test across Reserve()
+  e.Write64(5ull);
+  e.Write64(0x0123456789abcdefull);
+  ASSERT_EQ(16u, e.size()-off);
+  ASSERT_EQ(llvm::StringRef(
+                "\x00\x00\x00\x00\x00\x00\x00\x05"
+                "\x01\x23\x45\x67\x89\xab\xcd\xef",
+                16),
+            llvm::StringRef(e.data(), e.size()).substr(off));
+}
+
 TEST_F(WireEncoderTest, WriteDouble) {
   std::size_t off = BUFSIZE-8;
   WireEncoder e(0x0300u);
@@ -151,6 +165,19 @@ TEST_F(WireEncoderTest, WriteUleb128) {
             llvm::StringRef(e.data(), e.size()).substr(off));
 }
 
+TEST_F(WireEncoderTest, WriteId) {
+  WireEncoder e(0x0301u);
+  e.WriteId(0x1234u);
+  ASSERT_EQ(llvm::StringRef("\x12\x34", 2), e.ToStringRef());
+
+  // variable length from 3.2
+  e.Reset();
+  e.set_proto_rev(0x0302u);
+  e.WriteId(0x7fu);
+  e.WriteId(0x12345u);
+  ASSERT_EQ(llvm::StringRef("\x7f\xc5\xc6\x04", 4), e.ToStringRef());
+}
+
 TEST_F(WireEncoderTest, WriteType) {
   std::size_t off = BUFSIZE-1;
   WireEncoder e(0x0300u);
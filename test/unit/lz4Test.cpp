@@ -0,0 +1,67 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2015. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+#include "lz4.h"
+
+#include "gtest/gtest.h"
+
+#include <string>
+
+namespace nt {
+
+static void RoundTrip(const std::string& in) {
+  std::string compressed;
+  CompressLz4(in, &compressed);
+  std::string out;
+  ASSERT_TRUE(DecompressLz4(compressed, in.size(), &out));
+  EXPECT_EQ(in, out);
+}
+
+TEST(Lz4Test, RoundTrip) {
+  RoundTrip("");
+  RoundTrip("a");
+  RoundTrip("hello world");
+  RoundTrip(std::string(1000, 'x'));
+
+  std::string mixed;
+  for (int i = 0; i < 5000; ++i) mixed.push_back(static_cast<char>(i * 7 % 13));
+  RoundTrip(mixed);
+
+  // incompressible
+  std::string noise;
+  unsigned int x = 1;
+  for (int i = 0; i < 5000; ++i) {
+    x = x * 1103515245u + 12345u;
+    noise.push_back(static_cast<char>(x >> 16));
+  }
+  RoundTrip(noise);
+}
+
+TEST(Lz4Test, Compresses) {
+  std::string in(10000, '\0');
+  std::string compressed;
+  CompressLz4(in, &compressed);
+  EXPECT_LT(compressed.size(), 100u);
+}
+
+TEST(Lz4Test, Malformed) {
+  std::string compressed;
+  CompressLz4(std::string(100, 'x'), &compressed);
+  std::string out;
+  // wrong size
+  EXPECT_FALSE(DecompressLz4(compressed, 99, &out));
+  EXPECT_FALSE(DecompressLz4(compressed, 101, &out));
+  // truncated
+  EXPECT_FALSE(DecompressLz4(llvm::StringRef(compressed).drop_back(1), 100,
+                             &out));
+  // absurd size
+  EXPECT_FALSE(DecompressLz4(compressed, 1u << 30, &out));
+  // offset before the start of the output
+  EXPECT_FALSE(DecompressLz4(llvm::StringRef("\x10x\x05\x00", 4), 5, &out));
+}
+
+}  // namespace nt